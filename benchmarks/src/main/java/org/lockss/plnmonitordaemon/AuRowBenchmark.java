@@ -0,0 +1,51 @@
+package org.lockss.plnmonitordaemon;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.lockss.ws.entities.AuWsResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The Class AuRowBenchmark.
+ *
+ * Mapping of the AU list of a box to the SQL parameters of au_current, row hash included (see StatusRows),
+ * without the database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuRowBenchmark {
+
+	@Param({ "1000", "10000", "100000" })
+	public int aus;
+
+	private List<AuWsResult> auList;
+
+	@Setup
+	public void setUp() {
+		auList = SyntheticData.aus(aus, 42);
+	}
+
+	@Benchmark
+	public void auRows(Blackhole blackhole) {
+		for (AuWsResult au : auList) {
+			blackhole.consume(StatusRows.auRow(1, au));
+		}
+	}
+
+}
@@ -0,0 +1,32 @@
+package org.lockss.plnmonitordaemon;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The Class BenchmarkRunner.
+ *
+ * Runs the benchmarks with the GC profiler (allocation rate per operation) and writes the results as JSON
+ * (jmh-result.json by default) so that two runs can be compared.
+ * Accepts the usual JMH command line options, e.g. a benchmark regexp, -p aus=10000 or -rff results.json.
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		Options options = new OptionsBuilder()
+				.parent(commandLine)
+				.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.result(commandLine.getResult().orElse("jmh-result.json"))
+				.build();
+		new Runner(options).run();
+	}
+
+}
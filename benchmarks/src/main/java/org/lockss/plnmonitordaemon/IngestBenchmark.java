@@ -0,0 +1,184 @@
+package org.lockss.plnmonitordaemon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.lockss.ws.entities.AuWsResult;
+import org.lockss.ws.entities.PeerWsResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The Class IngestBenchmark.
+ *
+ * Storage of the AUs and peers of a box in a PostgreSQL database through DaemonStatusWebService
+ * (row by row upserts and COPY bulk load), history, AU x box matrix and dialect detection included.
+ * <p>
+ * Needs a disposable local PostgreSQL database (e.g. docker run -e POSTGRES_PASSWORD=plnmonitor -p 5432:5432 postgres):
+ * bench.jdbcUrl, bench.dbUser and bench.dbPassword system properties, default
+ * jdbc:postgresql://localhost:5432/postgres, plnmonitor, plnmonitor. The plnmonitor schema is created if missing
+ * and the benchmark box is removed at the end.
+ * <p>
+ * Single shot: each invocation stores the whole AU list of the box. newAus starts from a box without AUs,
+ * unchangedAus stores the same AUs again (row hash comparison path).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IngestBenchmark {
+
+	private static final String BOX_IP_ADDRESS = "192.0.2.1";
+	private static final int PLN_ID = 999999;
+
+	@Param({ "1000", "10000", "100000" })
+	public int aus;
+
+	/** upsert: storeAus (JDBC batches), copy: bulkLoad (COPY into a staging table) */
+	@Param({ "upsert", "copy" })
+	public String mode;
+
+	private DaemonStatusWebService dsws;
+	private Integer boxId;
+	private List<AuWsResult> auList;
+	private List<PeerWsResult> peerList;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		String url = System.getProperty("bench.jdbcUrl", "jdbc:postgresql://localhost:5432/postgres");
+		String user = System.getProperty("bench.dbUser", "plnmonitor");
+		String password = System.getProperty("bench.dbPassword", "plnmonitor");
+
+		Connection dbConnection = DriverManager.getConnection(url, user, password);
+		try {
+			createSchema(dbConnection);
+			boxId = createBox(dbConnection);
+		} finally {
+			dbConnection.close();
+		}
+
+		dsws = new DaemonStatusWebService(url, user, password, "org.postgresql.Driver");
+		// partitions of the history tables, as at the start of a collection cycle
+		dsws.maintainHistory();
+		auList = SyntheticData.aus(aus, 42);
+		peerList = SyntheticData.peers(100, 42);
+
+		// first load (schema update, dialect detection) out of the measurements
+		store();
+	}
+
+	@Benchmark
+	public void newAus(EmptyBox emptyBox) throws SQLException {
+		store();
+	}
+
+	@Benchmark
+	public void unchangedAus() throws SQLException {
+		store();
+	}
+
+	@Benchmark
+	public void peers() throws SQLException {
+		dsws.storePeers(boxId, peerList);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws SQLException {
+		execute("DELETE FROM plnmonitor.au_current WHERE box = " + boxId);
+		execute("DELETE FROM plnmonitor.au_history WHERE box = " + boxId);
+		execute("DELETE FROM plnmonitor.peer WHERE box = " + boxId);
+		execute("DELETE FROM plnmonitor.au_box_matrix WHERE pln = " + PLN_ID);
+		execute("DELETE FROM plnmonitor.lockss_box WHERE id = " + boxId);
+		dsws.close();
+	}
+
+	/**
+	 * Box without AUs before each invocation of newAus
+	 */
+	@State(Scope.Benchmark)
+	public static class EmptyBox {
+
+		@Setup(Level.Invocation)
+		public void clearAus(IngestBenchmark ingest) throws SQLException {
+			ingest.execute("DELETE FROM plnmonitor.au_current WHERE box = " + ingest.boxId);
+		}
+	}
+
+	private void store() throws SQLException {
+		if (mode.equals("copy")) {
+			dsws.bulkLoad(boxId, null, null, auList);
+		}
+		else {
+			dsws.storeAus(boxId, auList);
+		}
+	}
+
+	private void execute(String sql) throws SQLException {
+		Connection dbConnection = dsws.getConnectionPool().getConnection();
+		try {
+			Statement statement = dbConnection.createStatement();
+			statement.executeUpdate(sql);
+			statement.close();
+		} finally {
+			dbConnection.close();
+		}
+	}
+
+	private static void createSchema(Connection dbConnection) throws IOException, SQLException {
+		InputStream in = IngestBenchmark.class.getResourceAsStream("/bench-schema.sql");
+		String schema;
+		try {
+			schema = new Scanner(in, StandardCharsets.UTF_8.name()).useDelimiter("\\A").next();
+		} finally {
+			in.close();
+		}
+		Statement statement = dbConnection.createStatement();
+		try {
+			for (String sql : schema.replaceAll("(?m)^--.*$", "").split(";")) {
+				if (!sql.trim().isEmpty()) {
+					statement.execute(sql);
+				}
+			}
+		} finally {
+			statement.close();
+		}
+	}
+
+	private static Integer createBox(Connection dbConnection) throws SQLException {
+		PreparedStatement preparedStatement = dbConnection.prepareStatement("INSERT INTO plnmonitor.lockss_box (ipaddress, pln) VALUES (?, ?) "
+				+ "ON CONFLICT (ipaddress, pln) DO UPDATE SET ipaddress = EXCLUDED.ipaddress RETURNING id");
+		try {
+			preparedStatement.setString(1, BOX_IP_ADDRESS);
+			preparedStatement.setInt(2, PLN_ID);
+			ResultSet rs = preparedStatement.executeQuery();
+			rs.next();
+			return rs.getInt(1);
+		} finally {
+			preparedStatement.close();
+		}
+	}
+
+}
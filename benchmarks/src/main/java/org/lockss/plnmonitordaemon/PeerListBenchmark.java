@@ -0,0 +1,54 @@
+package org.lockss.plnmonitordaemon;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The Class PeerListBenchmark.
+ *
+ * Reading the peer list of a large lockss.xml file, as loadPLNConfiguration does (see PLNConfigurationReader).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PeerListBenchmark {
+
+	/** Number of title DB entries before the peer list */
+	@Param({ "1000", "20000" })
+	public int titles;
+
+	/** Number of boxes in the peer list */
+	@Param({ "50" })
+	public int boxes;
+
+	private byte[] lockssXml;
+
+	@Setup
+	public void setUp() {
+		lockssXml = SyntheticData.lockssXml(boxes, titles);
+	}
+
+	@Benchmark
+	public List<String> readPeerAddresses() throws XMLStreamException {
+		return PLNConfigurationReader.readPeerAddresses(new ByteArrayInputStream(lockssXml));
+	}
+
+}
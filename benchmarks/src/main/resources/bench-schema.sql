@@ -0,0 +1,102 @@
+-- Tables of the plnmonitor schema written by the ingest benchmarks (created by plnmonitor-installer in production).
+-- The tables added by the daemon itself are created by DatabaseSchema.update.
+CREATE SCHEMA IF NOT EXISTS plnmonitor;
+
+CREATE TABLE IF NOT EXISTS plnmonitor.pln (
+	id integer PRIMARY KEY,
+	name text,
+	config_url text
+);
+
+CREATE TABLE IF NOT EXISTS plnmonitor.lockss_box (
+	id serial PRIMARY KEY,
+	ipaddress text NOT NULL,
+	uiport text,
+	pln integer NOT NULL,
+	groups text,
+	v3identity text,
+	uptime bigint,
+	admin_email text,
+	disks text,
+	"current_time" bigint,
+	daemon_full_version text,
+	java_version text,
+	platform text,
+	UNIQUE (ipaddress, pln)
+);
+
+CREATE TABLE IF NOT EXISTS plnmonitor.lockss_box_info (
+	box integer PRIMARY KEY,
+	username text,
+	password text,
+	longitude double precision,
+	latitude double precision,
+	country text,
+	name text
+);
+
+CREATE TABLE IF NOT EXISTS plnmonitor.au_current (
+	box integer NOT NULL,
+	name text,
+	plugin_name text,
+	tdb_year text,
+	access_type text,
+	content_size bigint,
+	recent_poll_agreement double precision,
+	creation_time bigint,
+	au_lockss_id text NOT NULL,
+	tdb_publisher text,
+	volume text,
+	disk_usage bigint,
+	last_completed_crawl bigint,
+	last_completed_poll bigint,
+	last_crawl bigint,
+	last_poll bigint,
+	crawl_pool text,
+	crawl_proxy text,
+	crawl_window text,
+	last_crawl_result text,
+	last_poll_result text,
+	publishing_platform text,
+	repository_path text,
+	subscription_status text,
+	substance_state text,
+	available_from_publisher boolean,
+	UNIQUE (box, au_lockss_id)
+);
+
+CREATE TABLE IF NOT EXISTS plnmonitor.peer (
+	box integer NOT NULL,
+	last_poll bigint,
+	polls_called bigint,
+	last_invitation bigint,
+	last_vote bigint,
+	peer_lockss_id text NOT NULL,
+	last_message bigint,
+	invitation_count bigint,
+	message_count bigint,
+	message_type text,
+	polls_rejected bigint,
+	votes_cast bigint,
+	UNIQUE (box, peer_lockss_id)
+);
+
+CREATE TABLE IF NOT EXISTS plnmonitor.lockss_box_data_current (
+	box integer NOT NULL,
+	used bigint,
+	size bigint,
+	free bigint,
+	percentage double precision,
+	active_aus integer,
+	repository_space_lockss_id text NOT NULL,
+	deleted_aus integer,
+	inactive_aus integer,
+	orphaned_aus integer,
+	UNIQUE (box, repository_space_lockss_id)
+);
+
+CREATE TABLE IF NOT EXISTS plnmonitor."user" (
+	name text PRIMARY KEY,
+	"passwordHash" text,
+	role text
+);
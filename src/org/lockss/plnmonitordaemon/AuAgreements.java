@@ -0,0 +1,392 @@
+package org.lockss.plnmonitordaemon;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.lockss.ws.entities.AgreementTypeWsResult;
+import org.lockss.ws.entities.AuWsResult;
+import org.lockss.ws.entities.PeerAgreementsWsResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class AuAgreements.
+ *
+ * Stores the agreement of each peer on each AU of a box (peerAgreements of queryAus) in plnmonitor.au_agreement,
+ * one row per AU instead of one row per AU x peer:
+ * <ul>
+ * <li>peers: the peers of the AU, as integer IDs of the network-wide peer dictionary plnmonitor.peer_identity,
+ * in increasing order</li>
+ * <li>agreement: the percent agreements of the peers, packed in a bytea: for each peer (in the order of peers),
+ * for each agreement type (in the order of types), 2 bytes big endian holding the agreement in hundredths of
+ * a percent (0 to 10000), 0xFFFF when the peer has no agreement of this type</li>
+ * <li>types: the agreement types stored (AGREEMENT_TYPES)</li>
+ * </ul>
+ * Only the AUs whose agreements changed since the last collection are written (agreement_hash).
+ * When the AUs are bulk loaded with COPY on the same connection, the rows are deferred: kept in memory (packed)
+ * and sent by finish(), once the COPY is over, since the connection can't run other statements meanwhile.
+ * The plnmonitor.au_peer_agreement view unpacks the rows (box, AU, peer, type, agreement) for the dashboards.
+ */
+public class AuAgreements {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(AuAgreements.class);
+
+	public static final String TABLE = "plnmonitor.au_agreement";
+	public static final String PEER_TABLE = "plnmonitor.peer_identity";
+
+	/** Columns of au_agreement */
+	public static final String[] COLUMNS = { "box", "au_lockss_id", "peers", "agreement", "types", "agreement_hash" };
+	private static final int HASH_COLUMN = 5;
+
+	/** Packed value of a missing agreement */
+	private static final int NO_AGREEMENT = 0xFFFF;
+
+	private final Connection dbConnection;
+	private final PeerDictionary peerDictionary;
+	private final Integer boxId;
+	private final List<String> types;
+	private final Array typesArray;
+	private final int batchSize;
+	private final SQLDialect.Upsert upsert;
+	private final PreparedStatement preparedStatement;
+
+	/** Hash of the agreements currently stored for each AU of the box (au_lockss_id, agreement_hash) */
+	private final Map<String, Long> storedHashes;
+
+	/** Rows written by finish() (deferred writer), null if they are sent to the database by write() */
+	private final List<Object[]> deferredRows;
+
+	private int batchCount = 0;
+	private long writtenCount = 0;
+
+	/**
+	 * Creates the agreement tables and view if they don't exist
+	 *
+	 * @param dbConnection connection to the plnmonitor database
+	 * @throws SQLException the SQL exception
+	 */
+	static void create(Connection dbConnection) throws SQLException {
+		DatabaseSchema.execute(dbConnection, "CREATE TABLE IF NOT EXISTS " + PEER_TABLE + " ("
+				+ "id serial PRIMARY KEY, "
+				+ "peer_lockss_id text NOT NULL UNIQUE)");
+		DatabaseSchema.execute(dbConnection, "CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+				+ "box integer NOT NULL, "
+				+ "au_lockss_id text NOT NULL, "
+				+ "peers integer[] NOT NULL, "
+				+ "agreement bytea NOT NULL, "
+				+ "types text[] NOT NULL, "
+				+ "agreement_hash bigint, "
+				+ "PRIMARY KEY (box, au_lockss_id))");
+		// one row per box, AU, peer and agreement type
+		DatabaseSchema.execute(dbConnection, "CREATE OR REPLACE VIEW plnmonitor.au_peer_agreement AS "
+				+ "SELECT a.box, a.au_lockss_id, d.peer_lockss_id, t.type, "
+				+ "NULLIF(get_byte(a.agreement, v.pos) * 256 + get_byte(a.agreement, v.pos + 1), " + NO_AGREEMENT + ") / 10000.0 AS agreement "
+				+ "FROM " + TABLE + " AS a "
+				+ "CROSS JOIN LATERAL unnest(a.peers) WITH ORDINALITY AS p(peer, n) "
+				+ "CROSS JOIN LATERAL unnest(a.types) WITH ORDINALITY AS t(type, n) "
+				+ "CROSS JOIN LATERAL (SELECT ((p.n - 1) * array_length(a.types, 1) + (t.n - 1))::integer * 2 AS pos) AS v "
+				+ "INNER JOIN " + PEER_TABLE + " AS d ON d.id = p.peer");
+	}
+
+	/**
+	 * AuAgreements constructor: writer of the agreements of a box, in the transaction storing its AUs
+	 *
+	 * @param dbConnection the DB connection (in the transaction storing the AUs, autocommit off)
+	 * @param dialect SQL dialect of the database server
+	 * @param peerDictionary IDs of the peers
+	 * @param boxId the box ID in the database
+	 * @param types agreement types stored
+	 * @param batchSize number of AUs sent to the database in a single JDBC batch
+	 * @throws SQLException the SQL exception
+	 */
+	public AuAgreements(Connection dbConnection, SQLDialect dialect, PeerDictionary peerDictionary, Integer boxId, List<String> types,
+			int batchSize) throws SQLException {
+		this(dbConnection, dialect, peerDictionary, boxId, types, batchSize, false);
+	}
+
+	/**
+	 * AuAgreements constructor: writer of the agreements of a box, in the transaction storing its AUs.
+	 * A deferred writer must be created before the COPY of the AUs is started on the connection.
+	 *
+	 * @param dbConnection the DB connection (in the transaction storing the AUs, autocommit off)
+	 * @param dialect SQL dialect of the database server
+	 * @param peerDictionary IDs of the peers
+	 * @param boxId the box ID in the database
+	 * @param types agreement types stored
+	 * @param batchSize number of AUs sent to the database in a single JDBC batch
+	 * @param deferred true to keep the rows until finish() (AUs bulk loaded on the same connection)
+	 * @throws SQLException the SQL exception
+	 */
+	public AuAgreements(Connection dbConnection, SQLDialect dialect, PeerDictionary peerDictionary, Integer boxId, List<String> types,
+			int batchSize, boolean deferred) throws SQLException {
+		this.deferredRows = deferred ? new ArrayList<Object[]>() : null;
+		this.dbConnection = dbConnection;
+		this.peerDictionary = peerDictionary;
+		this.boxId = boxId;
+		this.types = types;
+		this.batchSize = batchSize;
+		this.typesArray = dbConnection.createArrayOf("text", types.toArray());
+		this.storedHashes = getHashes();
+		this.upsert = dialect.upsert(TABLE, COLUMNS, StatusRows.KEY_COLUMNS.get(TABLE), false);
+		this.preparedStatement = dbConnection.prepareStatement(upsert.getSQL());
+	}
+
+	/**
+	 * Writes the agreements of AUs of the box (AUs without peerAgreements are left as they are)
+	 *
+	 * @param aus the AUs
+	 * @throws SQLException the SQL exception
+	 */
+	public void write(List<AuWsResult> aus) throws SQLException {
+		for (AuWsResult au : aus) {
+			if (au.getPeerAgreements() == null) {
+				continue;
+			}
+
+			// peers by dictionary ID
+			Map<Integer, PeerAgreementsWsResult> peers = new TreeMap<Integer, PeerAgreementsWsResult>();
+			for (PeerAgreementsWsResult peerAgreements : au.getPeerAgreements()) {
+				if (peerAgreements.getPeerId() != null) {
+					peers.put(peerDictionary.getId(peerAgreements.getPeerId()), peerAgreements);
+				}
+			}
+
+			Integer[] peerIds = peers.keySet().toArray(new Integer[peers.size()]);
+			byte[] agreement = pack(new ArrayList<PeerAgreementsWsResult>(peers.values()), types);
+			long hash = StatusRows.hash(new Object[] { Arrays.toString(peerIds), Arrays.toString(agreement), types.toString() }, 3);
+			Long storedHash = storedHashes.get(au.getAuId());
+			if ((storedHash != null) && (storedHash == hash)) {
+				continue;
+			}
+			storedHashes.put(au.getAuId(), hash);
+
+			Object[] row = new Object[] { boxId, au.getAuId(), peerIds, agreement, typesArray, null };
+			row[HASH_COLUMN] = hash;
+			if (deferredRows != null) {
+				deferredRows.add(row);
+			}
+			else {
+				addRow(row);
+			}
+		}
+	}
+
+	/**
+	 * Adds a row (peers as Integer[]) to the batch, sent when it is full
+	 */
+	private void addRow(Object[] row) throws SQLException {
+		row[2] = dbConnection.createArrayOf("integer", (Integer[]) row[2]);
+		upsert.bind(preparedStatement, row);
+		preparedStatement.addBatch();
+		writtenCount++;
+		if (++batchCount == batchSize) {
+			preparedStatement.executeBatch();
+			batchCount = 0;
+		}
+	}
+
+	/**
+	 * Sends the last batch and deletes the agreements of the AUs no longer in au_current for the box.
+	 * Called after the AUs of the box were stored, in the same transaction.
+	 *
+	 * @return number of rows written or deleted
+	 * @throws SQLException the SQL exception
+	 */
+	public long finish() throws SQLException {
+		try {
+			if (deferredRows != null) {
+				for (Object[] row : deferredRows) {
+					addRow(row);
+				}
+				deferredRows.clear();
+			}
+			if (batchCount > 0) {
+				preparedStatement.executeBatch();
+				batchCount = 0;
+			}
+		} finally {
+			preparedStatement.close();
+		}
+
+		PreparedStatement deleteStatement = dbConnection.prepareStatement("DELETE FROM " + TABLE + " AS a WHERE a.box = ? "
+				+ "AND NOT EXISTS (SELECT 1 FROM plnmonitor.au_current WHERE au_current.box = a.box AND au_current.au_lockss_id = a.au_lockss_id)");
+		int deletedCount;
+		try {
+			deleteStatement.setInt(1, boxId);
+			deletedCount = deleteStatement.executeUpdate();
+		} finally {
+			deleteStatement.close();
+		}
+		CollectorMetrics.rowsWritten(TABLE, writtenCount + deletedCount);
+		LOGGER.debug("Agreements of box " + boxId + ": " + writtenCount + " AUs written, " + deletedCount + " removed");
+		return writtenCount + deletedCount;
+	}
+
+	/**
+	 * Closes the statement of an unfinished writer (transaction rolled back)
+	 */
+	public void close() {
+		try {
+			preparedStatement.close();
+		} catch (SQLException e) {
+			LOGGER.error(e.getMessage());
+		}
+	}
+
+	private Map<String, Long> getHashes() throws SQLException {
+		Map<String, Long> hashes = new HashMap<String, Long>();
+		PreparedStatement statement = dbConnection.prepareStatement("SELECT au_lockss_id, agreement_hash FROM " + TABLE + " WHERE box = ?");
+		try {
+			statement.setInt(1, boxId);
+			statement.setFetchSize(batchSize);
+			ResultSet rs = statement.executeQuery();
+			while (rs.next()) {
+				long hash = rs.getLong(2);
+				if (!rs.wasNull()) {
+					hashes.put(rs.getString(1), hash);
+				}
+			}
+		} finally {
+			statement.close();
+		}
+		return hashes;
+	}
+
+	/**
+	 * Packs the agreements of the peers of an AU (see the class description)
+	 *
+	 * @param peers the agreements of each peer, in the order of the peer IDs
+	 * @param types agreement types stored
+	 * @return the packed agreements
+	 */
+	static byte[] pack(List<PeerAgreementsWsResult> peers, List<String> types) {
+		byte[] packed = new byte[peers.size() * types.size() * 2];
+		Arrays.fill(packed, (byte) 0xFF);
+		for (int p = 0; p < peers.size(); p++) {
+			if (peers.get(p).getAgreements() == null) {
+				continue;
+			}
+			for (AgreementTypeWsResult agreement : peers.get(p).getAgreements()) {
+				int t = types.indexOf(agreement.getType());
+				if ((t < 0) || (agreement.getPeerAgreement() == null) || (agreement.getPeerAgreement().getPercentAgreement() == null)) {
+					continue;
+				}
+				int value = Math.round(agreement.getPeerAgreement().getPercentAgreement() * 10000);
+				value = Math.max(0, Math.min(10000, value));
+				int offset = (p * types.size() + t) * 2;
+				packed[offset] = (byte) (value >> 8);
+				packed[offset + 1] = (byte) value;
+			}
+		}
+		return packed;
+	}
+
+	/**
+	 * Reads an agreement of a packed row
+	 *
+	 * @param packed the agreement column of the row
+	 * @param peerIndex position of the peer in the peers column
+	 * @param typeIndex position of the agreement type in the types column
+	 * @param typeCount number of agreement types of the row
+	 * @return the percent agreement (0 to 1), or null if the peer has no agreement of this type
+	 */
+	public static Float unpack(byte[] packed, int peerIndex, int typeIndex, int typeCount) {
+		int offset = (peerIndex * typeCount + typeIndex) * 2;
+		int value = ((packed[offset] & 0xFF) << 8) | (packed[offset + 1] & 0xFF);
+		return (value == NO_AGREEMENT) ? null : value / 10000f;
+	}
+
+	/**
+	 * The Class PeerDictionary.
+	 *
+	 * Integer IDs of the peers of all the networks in plnmonitor.peer_identity. The dictionary is loaded once
+	 * and new peers are added in their own transaction, so the AU transactions of several boxes never wait
+	 * for each other on a new peer.
+	 */
+	public static class PeerDictionary {
+		private final DBConnectionPool connectionPool;
+		private final Map<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+		private boolean loaded = false;
+
+		/**
+		 * PeerDictionary constructor
+		 *
+		 * @param connectionPool pool of database connections (new peers)
+		 */
+		public PeerDictionary(DBConnectionPool connectionPool) {
+			this.connectionPool = connectionPool;
+		}
+
+		/**
+		 * Gets the ID of a peer, added to the dictionary if needed
+		 *
+		 * @param peerId the peer identity (e.g. TCP:[10.0.0.1]:9729)
+		 * @return the ID of the peer
+		 * @throws SQLException the SQL exception
+		 */
+		public int getId(String peerId) throws SQLException {
+			Integer id = ids.get(peerId);
+			if (id != null) {
+				return id;
+			}
+			return addPeer(peerId);
+		}
+
+		private synchronized int addPeer(String peerId) throws SQLException {
+			Connection dbConnection = connectionPool.getConnection();
+			try {
+				dbConnection.setAutoCommit(true);
+				if (!loaded) {
+					PreparedStatement statement = dbConnection.prepareStatement("SELECT id, peer_lockss_id FROM " + PEER_TABLE);
+					try {
+						ResultSet rs = statement.executeQuery();
+						while (rs.next()) {
+							ids.put(rs.getString(2), rs.getInt(1));
+						}
+					} finally {
+						statement.close();
+					}
+					loaded = true;
+					if (ids.containsKey(peerId)) {
+						return ids.get(peerId);
+					}
+				}
+
+				PreparedStatement insertStatement = dbConnection.prepareStatement("INSERT INTO " + PEER_TABLE + " (peer_lockss_id) SELECT ? "
+						+ "WHERE NOT EXISTS (SELECT 1 FROM " + PEER_TABLE + " WHERE peer_lockss_id = ?)");
+				try {
+					insertStatement.setString(1, peerId);
+					insertStatement.setString(2, peerId);
+					insertStatement.executeUpdate();
+				} finally {
+					insertStatement.close();
+				}
+				PreparedStatement statement = dbConnection.prepareStatement("SELECT id FROM " + PEER_TABLE + " WHERE peer_lockss_id = ?");
+				try {
+					statement.setString(1, peerId);
+					ResultSet rs = statement.executeQuery();
+					if (!rs.next()) {
+						throw new SQLException("Peer " + peerId + " not added to " + PEER_TABLE);
+					}
+					ids.put(peerId, rs.getInt(1));
+					return rs.getInt(1);
+				} finally {
+					statement.close();
+				}
+			} finally {
+				dbConnection.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,136 @@
+package org.lockss.plnmonitordaemon;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class AuBoxMatrix.
+ *
+ * Maintains the AU x box matrix of the dashboards in plnmonitor.au_box_matrix: one row per AU name of
+ * each PLN, with the poll agreement and content size of the AU in every box of the PLN in two arrays
+ * indexed by box ID (agreement[box], content_size[box]; NULL when the box doesn't have the AU).
+ * <p>
+ * The elements of a box are updated after the AUs of this box are committed, in a short transaction of
+ * their own, so the matrix follows au_current without ever aggregating all the boxes. The rows of the matrix
+ * are shared by the boxes of a PLN: each update locks the rows it changes first, in name order, so boxes
+ * updated at the same time wait for each other instead of deadlocking. The dashboards read it with
+ * SELECT name, agreement[3] AS "box3", ... FROM au_box_matrix WHERE pln = ? (primary key lookup)
+ * instead of one MAX(CASE ...) column per box over au_current.
+ */
+public class AuBoxMatrix {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(AuBoxMatrix.class);
+
+	/** First key of the advisory locks of the matrix (the second one is the PLN ID) */
+	private static final int ADVISORY_LOCK_CLASS = 0x4D415458;
+
+	public static final String TABLE = "plnmonitor.au_box_matrix";
+
+	private AuBoxMatrix() {
+	}
+
+	/**
+	 * Creates the matrix table if it doesn't exist
+	 *
+	 * @param dbConnection connection to the plnmonitor database
+	 * @throws SQLException the SQL exception
+	 */
+	static void create(Connection dbConnection) throws SQLException {
+		DatabaseSchema.execute(dbConnection, "CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+				+ "pln integer NOT NULL, "
+				+ "name text NOT NULL, "
+				+ "tdb_publisher text, "
+				+ "agreement double precision[], "
+				+ "content_size bigint[], "
+				+ "PRIMARY KEY (pln, name))");
+		try {
+			DatabaseSchema.execute(dbConnection, "CREATE INDEX IF NOT EXISTS au_box_matrix_publisher ON " + TABLE + " (pln, tdb_publisher)");
+		} catch (SQLException e) {
+			// CREATE INDEX IF NOT EXISTS needs 9.5
+			LOGGER.warn("Can't create index on au_box_matrix (pln, tdb_publisher): " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Updates the elements of a box in the matrix from its AUs in au_current.
+	 * Without ON CONFLICT (servers older than 9.5), the row locks don't cover the AUs not in the matrix yet: the
+	 * updates of the boxes of a PLN are serialized by an advisory lock, so two boxes don't insert the same new AU.
+	 *
+	 * @param dbConnection the DB connection, with autocommit off (committed by the caller, right after: the rows are locked)
+	 * @param boxId the box ID in the database
+	 * @param onConflict true if the server supports INSERT ... ON CONFLICT
+	 * @throws SQLException the SQL exception
+	 */
+	static void update(Connection dbConnection, Integer boxId, boolean onConflict) throws SQLException {
+		// box IDs are integers from the database: used as array subscripts in the statements
+		int box = boxId.intValue();
+		String pln = "(SELECT pln FROM plnmonitor.lockss_box WHERE id = " + box + ")";
+		// AUs of the box, one row per name (like the MAX() of the former pivot)
+		String boxAus = "SELECT lockss_box.pln, au_current.name, MAX(au_current.tdb_publisher) AS tdb_publisher, "
+				+ "MAX(au_current.recent_poll_agreement) AS agreement, MAX(au_current.content_size) AS content_size "
+				+ "FROM plnmonitor.au_current INNER JOIN plnmonitor.lockss_box ON lockss_box.id = au_current.box "
+				+ "WHERE au_current.box = " + box + " AND au_current.name IS NOT NULL GROUP BY lockss_box.pln, au_current.name";
+
+		// rows of the box (its AUs and the AUs it had), locked in the same order by every box
+		Statement statement = dbConnection.createStatement();
+		try {
+			if (!onConflict) {
+				// released at the end of the transaction
+				statement.executeQuery("SELECT pg_advisory_xact_lock(" + ADVISORY_LOCK_CLASS + ", " + pln + ")").close();
+			}
+			statement.executeQuery("SELECT 1 FROM " + TABLE + " AS m WHERE m.pln = " + pln + " AND (m.name IN (SELECT name FROM plnmonitor.au_current "
+					+ "WHERE box = " + box + ") OR m.agreement[" + box + "] IS NOT NULL OR m.content_size[" + box + "] IS NOT NULL) "
+					+ "ORDER BY m.name FOR UPDATE").close();
+		} finally {
+			statement.close();
+		}
+
+		// AUs not in the matrix yet (inserted in name order too)
+		int inserted = DatabaseSchema.execute(dbConnection, "INSERT INTO " + TABLE + " (pln, name, tdb_publisher) "
+				+ "SELECT s.pln, s.name, s.tdb_publisher FROM (" + boxAus + ") AS s "
+				+ "WHERE NOT EXISTS (SELECT 1 FROM " + TABLE + " AS m WHERE m.pln = s.pln AND m.name = s.name) ORDER BY s.name"
+				+ (onConflict ? " ON CONFLICT (pln, name) DO NOTHING" : ""));
+
+		// elements of the box, only where they changed
+		int updated = DatabaseSchema.execute(dbConnection, "UPDATE " + TABLE + " AS m "
+				+ "SET agreement[" + box + "] = s.agreement, content_size[" + box + "] = s.content_size, tdb_publisher = s.tdb_publisher "
+				+ "FROM (" + boxAus + ") AS s WHERE m.pln = s.pln AND m.name = s.name "
+				+ "AND (m.agreement[" + box + "] IS DISTINCT FROM s.agreement OR m.content_size[" + box + "] IS DISTINCT FROM s.content_size "
+				+ "OR m.tdb_publisher IS DISTINCT FROM s.tdb_publisher)");
+
+		// AUs removed from the box: rows of AUs left in no box of the PLN are deleted, the others lose the box elements
+		String removed = "m.pln = " + pln + " AND (m.agreement[" + box + "] IS NOT NULL OR m.content_size[" + box + "] IS NOT NULL) "
+				+ "AND NOT EXISTS (SELECT 1 FROM plnmonitor.au_current WHERE au_current.box = " + box + " AND au_current.name = m.name)";
+		int deleted = DatabaseSchema.execute(dbConnection, "DELETE FROM " + TABLE + " AS m WHERE " + removed
+				+ " AND NOT EXISTS (SELECT 1 FROM plnmonitor.au_current INNER JOIN plnmonitor.lockss_box ON lockss_box.id = au_current.box "
+				+ "WHERE lockss_box.pln = m.pln AND au_current.name = m.name)");
+		int cleared = DatabaseSchema.execute(dbConnection, "UPDATE " + TABLE + " AS m "
+				+ "SET agreement[" + box + "] = NULL, content_size[" + box + "] = NULL WHERE " + removed);
+
+		LOGGER.debug("AU matrix of box " + box + ": " + inserted + " AUs added, " + updated + " updated, " + (deleted + cleared) + " removed");
+	}
+
+	/**
+	 * Builds the dashboard query of one matrix column per box
+	 * (column labels quoted for a JSON string: the query is inserted as it is in the dashboard templates)
+	 *
+	 * @param arrayColumn agreement or content_size
+	 * @param plnID the pln ID in the database
+	 * @param boxIds box ID of each box name (column labels, in column order)
+	 * @return the SQL query, ordered by AU name
+	 */
+	public static String buildQuery(String arrayColumn, Integer plnID, Map<String, Integer> boxIds) {
+		StringBuilder query = new StringBuilder("select name");
+		for (Map.Entry<String, Integer> entry : boxIds.entrySet()) {
+			query.append(", ").append(arrayColumn).append("[").append(entry.getValue().intValue()).append("] AS ")
+					.append(DashboardTemplate.json("\"" + entry.getKey().replace("\"", "\"\"") + "\""));
+		}
+		return query.append(" from ").append(TABLE).append(" WHERE pln = ").append(plnID.intValue()).append(" ORDER BY 1").toString();
+	}
+
+}
@@ -0,0 +1,144 @@
+package org.lockss.plnmonitordaemon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class AuQueryProfile.
+ *
+ * AU fields asked for by the queryAus Daemon Status Service query.
+ * <p>
+ * The full profile asks for all the AU fields (DSS_AU_FULL_PROFILE) and writes whole au_current rows.
+ * The light profile (DSS_AU_LIGHT_PROFILE) only asks for the fields that change between two routine
+ * collections (agreement, sizes, last crawl and poll), which cuts the size of the response and the work
+ * of the box: only the matching au_current columns of the AUs already stored are updated.
+ * Fields are given by their Daemon Status Service names, comma separated; auId is always asked for.
+ */
+public class AuQueryProfile {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(AuQueryProfile.class);
+
+	/** au_current column set from each AU field (fields without column are not stored) */
+	private static final Map<String, String> FIELD_COLUMNS = new LinkedHashMap<String, String>();
+
+	static {
+		FIELD_COLUMNS.put("auId", "au_lockss_id");
+		FIELD_COLUMNS.put("name", "name");
+		FIELD_COLUMNS.put("volume", "volume");
+		FIELD_COLUMNS.put("pluginName", "plugin_name");
+		FIELD_COLUMNS.put("tdbYear", "tdb_year");
+		FIELD_COLUMNS.put("accessType", "access_type");
+		FIELD_COLUMNS.put("contentSize", "content_size");
+		FIELD_COLUMNS.put("diskUsage", "disk_usage");
+		FIELD_COLUMNS.put("recentPollAgreement", "recent_poll_agreement");
+		FIELD_COLUMNS.put("tdbPublisher", "tdb_publisher");
+		FIELD_COLUMNS.put("availableFromPublisher", "available_from_publisher");
+		FIELD_COLUMNS.put("substanceState", "substance_state");
+		FIELD_COLUMNS.put("creationTime", "creation_time");
+		FIELD_COLUMNS.put("crawlProxy", "crawl_proxy");
+		FIELD_COLUMNS.put("crawlWindow", "crawl_window");
+		FIELD_COLUMNS.put("crawlPool", "crawl_pool");
+		FIELD_COLUMNS.put("lastCompletedCrawl", "last_completed_crawl");
+		FIELD_COLUMNS.put("lastCrawl", "last_crawl");
+		FIELD_COLUMNS.put("lastCrawlResult", "last_crawl_result");
+		FIELD_COLUMNS.put("lastCompletedPoll", "last_completed_poll");
+		FIELD_COLUMNS.put("lastPoll", "last_poll");
+		FIELD_COLUMNS.put("lastPollResult", "last_poll_result");
+		FIELD_COLUMNS.put("publishingPlatform", "publishing_platform");
+		FIELD_COLUMNS.put("repositoryPath", "repository_path");
+		FIELD_COLUMNS.put("subscriptionStatus", "subscription_status");
+	}
+
+	/** Fields of the full profile: all available info in a specific order */
+	private static final String FULL_FIELDS = "auId, name, volume, pluginName, tdbYear, accessType, contentSize, diskUsage, recentPollAgreement, "
+			+ "tdbPublisher, availableFromPublisher, substanceState, creationTime, crawlProxy, crawlWindow, crawlPool, lastCompletedCrawl, "
+			+ "lastCrawl, lastCrawlResult, lastCompletedPoll, lastPollResult, currentlyCrawling, currentlyPolling, subscriptionStatus, "
+			+ "auConfiguration, newContentCrawlUrls, urlStems, isBulkContent, peerAgreements";
+
+	/** Fields of the light profile: values changing between two routine collections */
+	private static final String LIGHT_FIELDS = "auId, contentSize, diskUsage, recentPollAgreement, lastCompletedCrawl, lastCrawl, "
+			+ "lastCrawlResult, lastCompletedPoll, lastPollResult";
+
+	/** Whole AUs */
+	public static final AuQueryProfile FULL = new AuQueryProfile("full", DaemonConfiguration.getString("DSS_AU_FULL_PROFILE", FULL_FIELDS));
+
+	/** Frequently changing values of the AUs */
+	public static final AuQueryProfile LIGHT = new AuQueryProfile("light", DaemonConfiguration.getString("DSS_AU_LIGHT_PROFILE", LIGHT_FIELDS));
+
+	private final String name;
+	private final String query;
+	private final String[] columns;
+
+	/**
+	 * AuQueryProfile constructor
+	 *
+	 * @param name name of the profile (full or light)
+	 * @param fields AU fields of the query, comma separated
+	 */
+	AuQueryProfile(String name, String fields) {
+		this.name = name;
+
+		// auId first: key of the AUs
+		List<String> fieldList = new ArrayList<String>();
+		fieldList.add("auId");
+		List<String> columnList = new ArrayList<String>();
+		for (String field : Arrays.asList(fields.split(","))) {
+			field = field.trim();
+			if (field.isEmpty() || fieldList.contains(field)) {
+				continue;
+			}
+			fieldList.add(field);
+			if (FIELD_COLUMNS.containsKey(field)) {
+				columnList.add(FIELD_COLUMNS.get(field));
+			}
+		}
+
+		StringBuilder query = new StringBuilder("select ");
+		for (int i = 0; i < fieldList.size(); i++) {
+			query.append((i == 0) ? "" : ", ").append(fieldList.get(i));
+		}
+		this.query = query.toString();
+		this.columns = columnList.toArray(new String[columnList.size()]);
+		LOGGER.debug("AU query profile " + name + ": " + this.query);
+	}
+
+	/**
+	 * Gets the name of the profile
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Checks whether this profile gets whole AUs (au_current rows are replaced, new AUs are inserted)
+	 */
+	public boolean isFull() {
+		return this == FULL;
+	}
+
+	/**
+	 * Gets the queryAus query of the profile
+	 */
+	public String getQuery() {
+		return query;
+	}
+
+	/**
+	 * Gets the au_current columns set from the fields of the profile (key columns excluded)
+	 */
+	public String[] getColumns() {
+		return columns;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+}
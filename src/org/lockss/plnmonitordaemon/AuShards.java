@@ -0,0 +1,144 @@
+package org.lockss.plnmonitordaemon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import org.lockss.ws.entities.AuWsResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class AuShards.
+ *
+ * Splits the queryAus call of a large box into several smaller calls, each restricted by a where clause of the
+ * Daemon Status Service query language to a group of values of a shard field (pluginName or tdbPublisher).
+ * <p>
+ * The values of the field are read first with a small query (select of the field only). They are grouped into
+ * shards of about the target number of AUs, largest values first, each value going to the smallest shard so far:
+ * a single value with more AUs than the target makes a shard of its own. AUs without value (null) get a shard
+ * of their own with an "is null" clause. Together the shards cover every AU of the box exactly once.
+ */
+public class AuShards {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(AuShards.class);
+
+	/** AU fields a box can be sharded on */
+	private static final List<String> SHARD_FIELDS = Arrays.asList("pluginName", "tdbPublisher");
+
+	private final String field;
+	private final int shardSize;
+
+	/**
+	 * AuShards constructor
+	 *
+	 * @param field AU field the shards are built on (pluginName or tdbPublisher)
+	 * @param shardSize target number of AUs of a shard
+	 */
+	public AuShards(String field, int shardSize) {
+		if (!SHARD_FIELDS.contains(field)) {
+			LOGGER.error("Unknown AU shard field " + field + ", using tdbPublisher");
+			field = "tdbPublisher";
+		}
+		this.field = field;
+		this.shardSize = Math.max(1, shardSize);
+	}
+
+	/**
+	 * Gets the query reading the shard field of the AUs of a box
+	 */
+	public String getKeyQuery() {
+		return "select " + field;
+	}
+
+	/**
+	 * Builds the shards of a box
+	 *
+	 * @param keys result of the key query (only the shard field is set)
+	 * @return the where clause of each shard, empty if the AUs can't or needn't be split
+	 */
+	public List<String> plan(List<AuWsResult> keys) {
+		Map<String, Integer> counts = new TreeMap<String, Integer>();
+		int nullCount = 0;
+		for (AuWsResult au : keys) {
+			String value = value(au);
+			if (value == null) {
+				nullCount++;
+			}
+			else {
+				Integer count = counts.get(value);
+				counts.put(value, (count == null) ? 1 : count + 1);
+			}
+		}
+
+		int shardCount = Math.min((keys.size() + shardSize - 1) / shardSize, counts.size());
+		if (shardCount + ((nullCount > 0) ? 1 : 0) < 2) {
+			return Collections.emptyList();
+		}
+
+		// largest values first, each one in the smallest shard so far
+		List<Map.Entry<String, Integer>> values = new ArrayList<Map.Entry<String, Integer>>(counts.entrySet());
+		Collections.sort(values, (a, b) -> b.getValue().compareTo(a.getValue()));
+		PriorityQueue<Shard> shards = new PriorityQueue<Shard>(shardCount, (a, b) -> Integer.compare(a.count, b.count));
+		for (int i = 0; i < shardCount; i++) {
+			shards.add(new Shard());
+		}
+		for (Map.Entry<String, Integer> value : values) {
+			String literal = literal(value.getKey());
+			if (literal == null) {
+				LOGGER.warn(field + " value can't be written in a query, AUs not sharded: " + value.getKey());
+				return Collections.emptyList();
+			}
+			Shard shard = shards.poll();
+			shard.add(field + " = " + literal, value.getValue());
+			shards.add(shard);
+		}
+
+		List<String> clauses = new ArrayList<String>();
+		for (Shard shard : shards) {
+			clauses.add(shard.clause.toString());
+		}
+		if (nullCount > 0) {
+			clauses.add(field + " is null");
+		}
+		LOGGER.debug(keys.size() + " AUs split into " + clauses.size() + " shards on " + field);
+		return clauses;
+	}
+
+	private String value(AuWsResult au) {
+		return field.equals("tdbPublisher") ? au.getTdbPublisher() : au.getPluginName();
+	}
+
+	/**
+	 * Quotes a value for the query language (single quotes, or double quotes for values with a single quote)
+	 *
+	 * @return the quoted value, or null if it contains both quotes
+	 */
+	static String literal(String value) {
+		if (value.indexOf('\'') < 0) {
+			return "'" + value + "'";
+		}
+		if (value.indexOf('"') < 0) {
+			return "\"" + value + "\"";
+		}
+		return null;
+	}
+
+	/**
+	 * Values of a shard
+	 */
+	private static class Shard {
+		private final StringBuilder clause = new StringBuilder();
+		private int count = 0;
+
+		void add(String condition, int auCount) {
+			clause.append((clause.length() == 0) ? "" : " or ").append(condition);
+			count += auCount;
+		}
+	}
+
+}
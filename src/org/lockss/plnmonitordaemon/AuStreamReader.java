@@ -0,0 +1,307 @@
+package org.lockss.plnmonitordaemon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+import javax.xml.ws.WebServiceException;
+
+import org.lockss.ws.entities.AuWsResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class AuStreamReader.
+ *
+ * Streaming queryAus call: the SOAP response is parsed with StAX while it is being received and the AUs are
+ * handed over in chunks of a bounded size, so the AU list of a box is never held in memory as a whole
+ * (the JAX-WS proxy builds the complete List&lt;AuWsResult&gt; before returning it).
+ * <p>
+ * Each return element of the response is unmarshalled into an AuWsResult with JAXB (same mapping as the
+ * JAX-WS proxy). Elements of the AU listed as skipped (e.g. peerAgreements or urlStems when they are not
+ * stored) are passed over by the parser without being built.
+ * The request is sent to the same endpoint, with the same credentials and timeouts, as the JAX-WS client
+ * of the box (see DaemonStatusClientFactory.getAuStreamReader).
+ * <p>
+ * abort() disconnects the calls in progress: a thread blocked in a read of the response doesn't wait for the
+ * read timeout, and the call ends with an InterruptedException instead of a transport failure.
+ */
+public class AuStreamReader {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(AuStreamReader.class);
+
+	private static final String SOAP_NAMESPACE = "http://schemas.xmlsoap.org/soap/envelope/";
+	private static final String TARGET_NAMESPACE = "http://status.ws.lockss.org/";
+
+	/** Created once: JAXB contexts are expensive and thread safe */
+	private static JAXBContext jaxbContext;
+
+	private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+	static {
+		XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+	}
+
+	/**
+	 * Receives the AUs of the box chunk by chunk
+	 */
+	public interface ChunkHandler {
+
+		/**
+		 * Called with each chunk of AUs, in the order of the response
+		 *
+		 * @param aus the AUs of the chunk (the list is reused for the next chunk)
+		 */
+		void handle(List<AuWsResult> aus) throws SQLException;
+	}
+
+	private final String endpoint;
+	private final String authorization;
+	private final int connectTimeoutMillis;
+	private final int requestTimeoutMillis;
+
+	/** Connections of the calls in progress (several shards of the box at a time), disconnected by abort() */
+	private final Set<HttpURLConnection> openConnections = ConcurrentHashMap.newKeySet();
+	private volatile boolean aborted = false;
+
+	/**
+	 * AuStreamReader constructor
+	 *
+	 * @param endpoint address of the Daemon Status Service of the box
+	 * @param username username of the debug user in the LOCKSS box UI
+	 * @param password password of the debug user in the LOCKSS box UI
+	 * @param connectTimeoutMillis connection timeout (0 for none)
+	 * @param requestTimeoutMillis read timeout (0 for none)
+	 */
+	public AuStreamReader(String endpoint, String username, String password, int connectTimeoutMillis, int requestTimeoutMillis) {
+		this.endpoint = endpoint;
+		String credentials = ((username == null) ? "" : username) + ":" + ((password == null) ? "" : password);
+		this.authorization = "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.requestTimeoutMillis = requestTimeoutMillis;
+	}
+
+	/**
+	 * Calls queryAus and hands over the AUs of the response in chunks
+	 *
+	 * @param auQuery the Daemon Status Service AU query
+	 * @param chunkSize max number of AUs in a chunk
+	 * @param skippedFields AU elements not built (local names)
+	 * @param handler receiver of the chunks
+	 * @return number of AUs received
+	 * @throws IOException if the box can't be reached or the call failed
+	 * @throws SQLException if the handler failed
+	 * @throws InterruptedException if the calling thread is interrupted between two chunks, or the reader is aborted
+	 */
+	public long queryAus(String auQuery, int chunkSize, Set<String> skippedFields, ChunkHandler handler)
+			throws IOException, SQLException, InterruptedException {
+		if (aborted) {
+			throw new InterruptedException("queryAus abandoned");
+		}
+		HttpURLConnection connection = (HttpURLConnection) new URL(endpoint).openConnection();
+		openConnections.add(connection);
+		try {
+			return call(connection, auQuery, chunkSize, skippedFields, handler);
+		} catch (IOException e) {
+			if (aborted) {
+				// connection closed by abort()
+				throw new InterruptedException("queryAus abandoned");
+			}
+			throw e;
+		} finally {
+			openConnections.remove(connection);
+		}
+	}
+
+	/**
+	 * Abandons the calls in progress and the calls to come (the collection of the box was cancelled)
+	 */
+	public void abort() {
+		aborted = true;
+		for (HttpURLConnection connection : openConnections) {
+			connection.disconnect();
+		}
+	}
+
+	private long call(HttpURLConnection connection, String auQuery, int chunkSize, Set<String> skippedFields, ChunkHandler handler)
+			throws IOException, SQLException, InterruptedException {
+		connection.setConnectTimeout(connectTimeoutMillis);
+		connection.setReadTimeout(requestTimeoutMillis);
+		connection.setDoOutput(true);
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type", "text/xml; charset=utf-8");
+		connection.setRequestProperty("SOAPAction", "\"\"");
+		connection.setRequestProperty("Authorization", authorization);
+
+		byte[] request = envelope(auQuery).getBytes(StandardCharsets.UTF_8);
+		connection.setFixedLengthStreamingMode(request.length);
+		OutputStream out = connection.getOutputStream();
+		try {
+			out.write(request);
+		} finally {
+			out.close();
+		}
+
+		int status = connection.getResponseCode();
+		// SOAP faults come with HTTP 500
+		InputStream in = (status == HttpURLConnection.HTTP_INTERNAL_ERROR) ? connection.getErrorStream() : connection.getInputStream();
+		if (in == null) {
+			throw new IOException("HTTP " + status + " from " + endpoint);
+		}
+		try {
+			long count = parse(in, chunkSize, skippedFields, handler);
+			if (status != HttpURLConnection.HTTP_OK) {
+				throw new IOException("HTTP " + status + " from " + endpoint);
+			}
+			return count;
+		} catch (XMLStreamException | JAXBException e) {
+			throw new IOException("Invalid queryAus response from " + endpoint + ": " + e.getMessage(), e);
+		} finally {
+			in.close();
+			connection.disconnect();
+		}
+	}
+
+	private long parse(InputStream in, int chunkSize, Set<String> skippedFields, ChunkHandler handler)
+			throws XMLStreamException, JAXBException, SQLException, InterruptedException {
+		XMLStreamReader reader = new SkippingReader(XML_INPUT_FACTORY.createXMLStreamReader(in), skippedFields);
+		Unmarshaller unmarshaller = getJaxbContext().createUnmarshaller();
+		List<AuWsResult> chunk = new ArrayList<AuWsResult>(chunkSize);
+		long count = 0;
+
+		try {
+			while (reader.hasNext()) {
+				if (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+					reader.next();
+					continue;
+				}
+
+				String name = reader.getLocalName();
+				if (name.equals("return")) {
+					// leaves the reader after the end of the element
+					chunk.add(unmarshaller.unmarshal(reader, AuWsResult.class).getValue());
+					count++;
+					if (chunk.size() == chunkSize) {
+						flush(chunk, handler);
+					}
+				}
+				else if (name.equals("Fault") && SOAP_NAMESPACE.equals(reader.getNamespaceURI())) {
+					throw new WebServiceException("queryAus failed on " + endpoint + ": " + readFaultString(reader));
+				}
+				else {
+					reader.next();
+				}
+			}
+			if (!chunk.isEmpty()) {
+				flush(chunk, handler);
+			}
+		} finally {
+			reader.close();
+		}
+		LOGGER.debug(count + " AUs streamed from " + endpoint);
+		return count;
+	}
+
+	private static void flush(List<AuWsResult> chunk, ChunkHandler handler) throws SQLException, InterruptedException {
+		if (Thread.interrupted()) {
+			throw new InterruptedException("queryAus abandoned");
+		}
+		handler.handle(chunk);
+		chunk.clear();
+	}
+
+	private static String readFaultString(XMLStreamReader reader) throws XMLStreamException {
+		while (reader.hasNext()) {
+			if ((reader.next() == XMLStreamConstants.START_ELEMENT) && reader.getLocalName().equals("faultstring")) {
+				return reader.getElementText();
+			}
+		}
+		return "SOAP fault";
+	}
+
+	private static String envelope(String auQuery) {
+		return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<S:Envelope xmlns:S=\"" + SOAP_NAMESPACE + "\"><S:Body>"
+				+ "<ns2:queryAus xmlns:ns2=\"" + TARGET_NAMESPACE + "\"><auQuery>" + escape(auQuery) + "</auQuery></ns2:queryAus>"
+				+ "</S:Body></S:Envelope>";
+	}
+
+	private static String escape(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
+	private static synchronized JAXBContext getJaxbContext() throws JAXBException {
+		if (jaxbContext == null) {
+			jaxbContext = JAXBContext.newInstance(AuWsResult.class);
+		}
+		return jaxbContext;
+	}
+
+	/**
+	 * Passes over the skipped elements (and all their content) as if they were not in the response
+	 */
+	private static class SkippingReader extends StreamReaderDelegate {
+		private final Set<String> skippedFields;
+
+		SkippingReader(XMLStreamReader reader, Set<String> skippedFields) {
+			super(reader);
+			this.skippedFields = (skippedFields != null) ? skippedFields : Collections.<String>emptySet();
+		}
+
+		@Override
+		public int next() throws XMLStreamException {
+			int event = super.next();
+			while ((event == XMLStreamConstants.START_ELEMENT) && skippedFields.contains(getLocalName())) {
+				skipElement();
+				event = super.next();
+			}
+			return event;
+		}
+
+		@Override
+		public int nextTag() throws XMLStreamException {
+			int event = next();
+			while ((event == XMLStreamConstants.CHARACTERS && isWhiteSpace()) || (event == XMLStreamConstants.SPACE)
+					|| (event == XMLStreamConstants.COMMENT) || (event == XMLStreamConstants.PROCESSING_INSTRUCTION)) {
+				event = next();
+			}
+			if ((event != XMLStreamConstants.START_ELEMENT) && (event != XMLStreamConstants.END_ELEMENT)) {
+				throw new XMLStreamException("Expected start or end tag", getLocation());
+			}
+			return event;
+		}
+
+		private void skipElement() throws XMLStreamException {
+			int depth = 1;
+			while (depth > 0) {
+				int event = super.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					depth++;
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT) {
+					depth--;
+				}
+			}
+		}
+	}
+
+}
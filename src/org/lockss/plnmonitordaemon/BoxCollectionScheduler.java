@@ -0,0 +1,256 @@
+package org.lockss.plnmonitordaemon;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class BoxCollectionScheduler.
+ *
+ * Collects the status of many LOCKSS boxes in parallel (replaces the serial loop over loadDaemonStatus).
+ * <p>
+ * Concurrency is bounded globally (maxConcurrentBoxes) and per LOCKSS network (maxBoxesPerPln, which
+ * can be overridden for a given PLN). Each box gets its own deadline counted from the moment it starts:
+ * when the deadline is reached the collection thread is interrupted and abandoned, and its slot is
+ * handed to the next pending box. A hung box therefore only costs its own slot and the wall-clock
+ * time of a run is roughly the time of the slowest box (bounded by the deadline).
+ */
+public class BoxCollectionScheduler {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(BoxCollectionScheduler.class);
+
+	private final DaemonStatusWebService dsws;
+	private final int maxConcurrentBoxes;
+	private final int maxBoxesPerPln;
+	private final long boxTimeoutMillis;
+
+	/** PLN specific concurrency limits (PLN ID, max boxes) */
+	private final Map<Integer, Integer> plnLimits = new HashMap<Integer, Integer>();
+
+	/** Daemon Status Service queries issued to each box */
+	private Set<BoxQueries.Query> queries = EnumSet.allOf(BoxQueries.Query.class);
+
+	/** Boxes waiting to be collected, in submission order */
+	private final LinkedList<BoxTask> pendingBoxes = new LinkedList<BoxTask>();
+
+	/**
+	 * BoxCollectionScheduler constructor
+	 *
+	 * @param dsws the daemon status web service used to collect and store the box data
+	 * @param maxConcurrentBoxes max number of boxes collected at the same time over all PLNs
+	 * @param maxBoxesPerPln default max number of boxes of the same PLN collected at the same time
+	 * @param boxTimeoutMillis deadline for the collection of a single box
+	 */
+	public BoxCollectionScheduler(DaemonStatusWebService dsws, int maxConcurrentBoxes, int maxBoxesPerPln, long boxTimeoutMillis) {
+		this.dsws = dsws;
+		this.maxConcurrentBoxes = Math.max(1, maxConcurrentBoxes);
+		this.maxBoxesPerPln = Math.max(1, maxBoxesPerPln);
+		this.boxTimeoutMillis = boxTimeoutMillis;
+	}
+
+	/**
+	 * Sets the concurrency limit of a given PLN
+	 *
+	 * @param plnID the pln ID in the database
+	 * @param maxBoxes max number of boxes of this PLN collected at the same time
+	 */
+	public void setMaxBoxesForPln(Integer plnID, int maxBoxes) {
+		plnLimits.put(plnID, Math.max(1, maxBoxes));
+	}
+
+	/**
+	 * Sets the Daemon Status Service queries issued to each box (all of them by default)
+	 *
+	 * @param queries the queries
+	 */
+	public void setQueries(Set<BoxQueries.Query> queries) {
+		this.queries = EnumSet.copyOf(queries);
+	}
+
+	/**
+	 * Adds a box to the next run
+	 *
+	 * @param plnID the pln ID in the database
+	 * @param boxIpAddress the box ip address
+	 */
+	public void addBox(Integer plnID, String boxIpAddress) {
+		pendingBoxes.add(new BoxTask(plnID, boxIpAddress));
+	}
+
+	/**
+	 * Collects all boxes added so far and waits until every box is done or has reached its deadline.
+	 *
+	 * @return the outcome of the run
+	 */
+	public CollectionReport run() {
+		CollectionReport report = new CollectionReport();
+		long runStart = System.currentTimeMillis();
+
+		ExecutorService executor = Executors.newCachedThreadPool(new CollectorThreadFactory());
+		CompletionService<BoxTask> completionService = new ExecutorCompletionService<BoxTask>(executor);
+		Map<Future<BoxTask>, BoxTask> runningBoxes = new HashMap<Future<BoxTask>, BoxTask>();
+		Map<Integer, Integer> runningPerPln = new HashMap<Integer, Integer>();
+
+		try {
+			while (!pendingBoxes.isEmpty() || !runningBoxes.isEmpty()) {
+
+				// start every pending box allowed by the global and per PLN limits
+				Iterator<BoxTask> pending = pendingBoxes.iterator();
+				while (pending.hasNext() && runningBoxes.size() < maxConcurrentBoxes) {
+					BoxTask box = pending.next();
+					int plnRunning = runningPerPln.containsKey(box.plnID) ? runningPerPln.get(box.plnID) : 0;
+					if (plnRunning >= getMaxBoxesForPln(box.plnID)) {
+						continue;
+					}
+					pending.remove();
+					box.startTime = System.currentTimeMillis();
+					runningBoxes.put(completionService.submit(box), box);
+					runningPerPln.put(box.plnID, plnRunning + 1);
+					LOGGER.info((char)27 + "[34mLoading configuration of: " + box.boxIpAddress + (char)27 + "[39m");
+				}
+
+				// wait for the next box to complete, at most until the closest deadline
+				long now = System.currentTimeMillis();
+				long wait = boxTimeoutMillis;
+				for (BoxTask box : runningBoxes.values()) {
+					wait = Math.min(wait, box.startTime + boxTimeoutMillis - now);
+				}
+				Future<BoxTask> done = completionService.poll(Math.max(wait, 1), TimeUnit.MILLISECONDS);
+
+				if (done != null) {
+					BoxTask box = runningBoxes.remove(done);
+					// cancelled (timed out) boxes are reported again by the completion service: already accounted for
+					if (box != null) {
+						release(runningPerPln, box.plnID);
+						try {
+							done.get();
+							report.succeeded.add(box.boxIpAddress);
+							LOGGER.info("Box " + box.boxIpAddress + " collected in " + (System.currentTimeMillis() - box.startTime) + " ms");
+						} catch (ExecutionException e) {
+							report.failed.add(box.boxIpAddress);
+							CollectorMetrics.failure(box.boxIpAddress, "collection");
+							LOGGER.error("Collection of box " + box.boxIpAddress + " failed: " + e.getCause());
+						}
+					}
+				}
+
+				// abandon boxes that have reached their deadline
+				now = System.currentTimeMillis();
+				Iterator<Map.Entry<Future<BoxTask>, BoxTask>> running = runningBoxes.entrySet().iterator();
+				while (running.hasNext()) {
+					Map.Entry<Future<BoxTask>, BoxTask> entry = running.next();
+					BoxTask box = entry.getValue();
+					if (now - box.startTime >= boxTimeoutMillis) {
+						entry.getKey().cancel(true);
+						running.remove();
+						release(runningPerPln, box.plnID);
+						report.timedOut.add(box.boxIpAddress);
+						CollectorMetrics.failure(box.boxIpAddress, "collection_timeout");
+						LOGGER.error((char)27 + "[31mCollection of box " + box.boxIpAddress + " abandoned after " + boxTimeoutMillis + " ms" + (char)27 + "[39m");
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			LOGGER.error("Collection run interrupted");
+			Thread.currentThread().interrupt();
+			for (Future<BoxTask> future : runningBoxes.keySet()) {
+				future.cancel(true);
+			}
+		} finally {
+			// hung collection threads are daemon threads: they do not prevent the JVM from exiting
+			executor.shutdownNow();
+		}
+
+		report.elapsedMillis = System.currentTimeMillis() - runStart;
+		LOGGER.info("Collection run done in " + report.elapsedMillis + " ms: " + report.succeeded.size() + " boxes collected, "
+				+ report.failed.size() + " failed, " + report.timedOut.size() + " timed out");
+		return report;
+	}
+
+	private int getMaxBoxesForPln(Integer plnID) {
+		return plnLimits.containsKey(plnID) ? plnLimits.get(plnID) : maxBoxesPerPln;
+	}
+
+	private static void release(Map<Integer, Integer> runningPerPln, Integer plnID) {
+		runningPerPln.put(plnID, runningPerPln.get(plnID) - 1);
+	}
+
+	/**
+	 * Collection of a single box
+	 */
+	private class BoxTask implements Callable<BoxTask> {
+		private final Integer plnID;
+		private final String boxIpAddress;
+		private long startTime;
+
+		BoxTask(Integer plnID, String boxIpAddress) {
+			this.plnID = plnID;
+			this.boxIpAddress = boxIpAddress;
+		}
+
+		@Override
+		public BoxTask call() throws Exception {
+			dsws.loadDaemonStatus(plnID, boxIpAddress, queries);
+			return this;
+		}
+	}
+
+	/**
+	 * Creates named daemon threads for the box collections
+	 */
+	private static class CollectorThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "box-collector-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	/**
+	 * Outcome of a collection run (box IP addresses per result)
+	 */
+	public static class CollectionReport {
+		private final List<String> succeeded = new ArrayList<String>();
+		private final List<String> failed = new ArrayList<String>();
+		private final List<String> timedOut = new ArrayList<String>();
+		private long elapsedMillis;
+
+		public List<String> getSucceeded() {
+			return succeeded;
+		}
+
+		public List<String> getFailed() {
+			return failed;
+		}
+
+		public List<String> getTimedOut() {
+			return timedOut;
+		}
+
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+	}
+
+}
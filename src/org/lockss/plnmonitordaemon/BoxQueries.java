@@ -0,0 +1,243 @@
+package org.lockss.plnmonitordaemon;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class BoxQueries.
+ *
+ * Issues the Daemon Status Service queries of a LOCKSS box concurrently, each with its own timeout.
+ * <p>
+ * The results are handed over to a ResultHandler in the calling thread as soon as each of them arrives,
+ * so the small results (platform configuration, repository spaces, peers) are stored while the AUs are
+ * still being downloaded. A query still running after its timeout is cancelled and reported as failed.
+ * The cancel action of a query (if any) is run as well, e.g. to close a connection a thread is blocked on.
+ */
+public class BoxQueries {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(BoxQueries.class);
+
+	/**
+	 * Daemon Status Service queries of a box
+	 */
+	public enum Query {
+		PLATFORM_CONFIGURATION("platform configuration"),
+		REPOSITORY_SPACES("repository spaces status"),
+		AUS("AUs status"),
+		PEERS("peers status"),
+		REPOSITORIES("repository status");
+
+		private final String description;
+
+		Query(String description) {
+			this.description = description;
+		}
+
+		@Override
+		public String toString() {
+			return description;
+		}
+	}
+
+	/**
+	 * Receives the query results in the thread calling await()
+	 */
+	public interface ResultHandler {
+
+		/**
+		 * Called with the result of a query
+		 */
+		void handle(Query query, Object result) throws Exception;
+
+		/**
+		 * Called when a query failed or timed out
+		 *
+		 * @param query the query
+		 * @param cause the failure, or null on timeout
+		 */
+		void failed(Query query, Throwable cause);
+	}
+
+	private final String boxName;
+	private final CompletionService<Object> completionService;
+	private final Map<Future<Object>, Query> running = new HashMap<Future<Object>, Query>();
+	private final Map<Future<Object>, Long> deadlines = new HashMap<Future<Object>, Long>();
+	private final Map<Future<Object>, Runnable> cancelActions = new HashMap<Future<Object>, Runnable>();
+
+	/**
+	 * BoxQueries constructor
+	 *
+	 * @param executor executor running the queries (see newExecutor)
+	 * @param boxName name of the box in the logs
+	 */
+	public BoxQueries(ExecutorService executor, String boxName) {
+		this.completionService = new ExecutorCompletionService<Object>(executor);
+		this.boxName = boxName;
+	}
+
+	/**
+	 * Creates an executor for the queries of the boxes (named daemon threads, created on demand)
+	 *
+	 * @return the executor
+	 */
+	public static ExecutorService newExecutor() {
+		return Executors.newCachedThreadPool(new QueryThreadFactory());
+	}
+
+	/**
+	 * Starts a query
+	 *
+	 * @param query the query
+	 * @param call the Daemon Status Service call
+	 * @param timeoutMillis max duration of the query
+	 */
+	public void submit(Query query, Callable<?> call, long timeoutMillis) {
+		submit(query, call, timeoutMillis, null);
+	}
+
+	/**
+	 * Starts a query
+	 *
+	 * @param query the query
+	 * @param call the Daemon Status Service call
+	 * @param timeoutMillis max duration of the query
+	 * @param cancelAction run when the query is cancelled, after the interruption of its thread (null for none)
+	 */
+	public void submit(Query query, Callable<?> call, long timeoutMillis, Runnable cancelAction) {
+		Future<Object> future = completionService.submit(() -> {
+			long start = System.currentTimeMillis();
+			Object result = call.call();
+			CollectorMetrics.observeDssCall(boxName, query, System.currentTimeMillis() - start, result);
+			return result;
+		});
+		running.put(future, query);
+		deadlines.put(future, System.currentTimeMillis() + timeoutMillis);
+		if (cancelAction != null) {
+			cancelActions.put(future, cancelAction);
+		}
+		LOGGER.info("\u001B[32m Getting " + query + " of " + boxName + "...\u001B[0m");
+	}
+
+	/**
+	 * Waits for the results of all the submitted queries and hands each of them over as soon as it arrives
+	 *
+	 * @param handler the result handler
+	 * @return the queries that failed or timed out
+	 * @throws InterruptedException if the calling thread is interrupted (running queries are cancelled)
+	 */
+	public List<Query> await(ResultHandler handler) throws InterruptedException {
+		List<Query> failedQueries = new ArrayList<Query>();
+
+		try {
+			while (!running.isEmpty()) {
+				long now = System.currentTimeMillis();
+				long nearestDeadline = Long.MAX_VALUE;
+				for (Long deadline : deadlines.values()) {
+					nearestDeadline = Math.min(nearestDeadline, deadline);
+				}
+
+				Future<Object> done = completionService.poll(Math.max(0, nearestDeadline - now), TimeUnit.MILLISECONDS);
+				if (done == null) {
+					cancelOverdueQueries(handler, failedQueries);
+					continue;
+				}
+
+				Query query = running.remove(done);
+				deadlines.remove(done);
+				cancelActions.remove(done);
+				if (query == null) {
+					// already cancelled after its timeout
+					continue;
+				}
+
+				Object result;
+				try {
+					result = done.get();
+				} catch (ExecutionException e) {
+					LOGGER.error("Getting " + query + " of " + boxName + " failed: " + e.getCause());
+					CollectorMetrics.failure(boxName, "dss_" + CollectorMetrics.callName(query));
+					failedQueries.add(query);
+					handler.failed(query, e.getCause());
+					continue;
+				}
+
+				try {
+					handler.handle(query, result);
+				} catch (Exception e) {
+					LOGGER.error("Storing " + query + " of " + boxName + " failed: " + e.getMessage());
+					CollectorMetrics.failure(boxName, "store_" + CollectorMetrics.callName(query));
+				}
+			}
+		} finally {
+			// interrupted: don't leave queries running
+			for (Future<Object> future : running.keySet()) {
+				cancel(future);
+			}
+			running.clear();
+			deadlines.clear();
+			cancelActions.clear();
+		}
+		return failedQueries;
+	}
+
+	private void cancelOverdueQueries(ResultHandler handler, List<Query> failedQueries) {
+		long now = System.currentTimeMillis();
+		List<Future<Object>> overdue = new ArrayList<Future<Object>>();
+		for (Map.Entry<Future<Object>, Long> entry : deadlines.entrySet()) {
+			if (entry.getValue() <= now) {
+				overdue.add(entry.getKey());
+			}
+		}
+		for (Future<Object> future : overdue) {
+			cancel(future);
+			Query query = running.remove(future);
+			deadlines.remove(future);
+			LOGGER.error("\u001B[31m Getting " + query + " of " + boxName + " timed out \u001B[0m");
+			CollectorMetrics.failure(boxName, "dss_" + CollectorMetrics.callName(query) + "_timeout");
+			failedQueries.add(query);
+			handler.failed(query, null);
+		}
+	}
+
+	private void cancel(Future<Object> future) {
+		future.cancel(true);
+		Runnable cancelAction = cancelActions.remove(future);
+		if (cancelAction != null) {
+			try {
+				cancelAction.run();
+			} catch (RuntimeException e) {
+				LOGGER.error("Cancellation of a query of " + boxName + " failed: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Creates named daemon threads for the box queries
+	 */
+	private static class QueryThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "box-query-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
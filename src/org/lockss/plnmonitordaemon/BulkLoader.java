@@ -0,0 +1,307 @@
+package org.lockss.plnmonitordaemon;
+
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import org.lockss.ws.entities.AuWsResult;
+import org.lockss.ws.entities.PeerWsResult;
+import org.lockss.ws.entities.RepositorySpaceWsResult;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class BulkLoader.
+ *
+ * Bulk load of the status of a LOCKSS box with the PostgreSQL COPY protocol.
+ * <p>
+ * Each list (AUs, peers, repository spaces) is streamed into a temporary staging table with
+ * COPY ... FROM STDIN, then merged into the live table with one set-based statement
+ * (update of the existing rows and insert of the new ones, see SQLDialect.merge).
+ * Staging tables are dropped at commit: the caller is responsible for the transaction.
+ */
+public class BulkLoader {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(BulkLoader.class);
+
+	/** COPY data is sent to the server each time the buffer reaches this size */
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Connection dbConnection;
+	private final SQLDialect dialect;
+
+	/** COPY of the AUs in progress (see startAus) */
+	private CopyWriter auWriter;
+
+	/**
+	 * BulkLoader constructor
+	 *
+	 * @param dbConnection connection to the plnmonitor database with autocommit off
+	 * @param dialect SQL dialect of the database server (merge statement)
+	 */
+	public BulkLoader(Connection dbConnection, SQLDialect dialect) {
+		this.dbConnection = dbConnection;
+		this.dialect = dialect;
+	}
+
+	/**
+	 * Loads the AUs of a box in au_current
+	 *
+	 * @param boxId the box ID in the database
+	 * @param aus AUs status collected from the box
+	 * @return number of AUs loaded
+	 * @throws SQLException the SQL exception
+	 */
+	public long loadAus(Integer boxId, List<AuWsResult> aus) throws SQLException {
+		startAus();
+		addAus(boxId, aus);
+		return endAus(boxId);
+	}
+
+	/**
+	 * Starts a load of the AUs of a box sent in several parts (see addAus and endAus).
+	 * The connection can't be used for anything else until endAus or cancel.
+	 *
+	 * @throws SQLException the SQL exception
+	 */
+	public void startAus() throws SQLException {
+		createStagingTable("plnmonitor.au_current", "au_staging", StatusRows.AU_COLUMNS);
+		auWriter = new CopyWriter(startCopy("au_staging", StatusRows.AU_COLUMNS));
+	}
+
+	/**
+	 * Sends a part of the AUs of a box to the server
+	 *
+	 * @param boxId the box ID in the database
+	 * @param aus AUs status collected from the box
+	 * @throws SQLException the SQL exception
+	 */
+	public void addAus(Integer boxId, List<AuWsResult> aus) throws SQLException {
+		try {
+			for (AuWsResult currentAU : aus) {
+				auWriter.addRow(StatusRows.auRow(boxId, currentAU));
+			}
+		} catch (SQLException e) {
+			cancel();
+			throw e;
+		}
+	}
+
+	/**
+	 * Ends the load of the AUs of a box: merges them into au_current and removes the AUs no longer on the box
+	 *
+	 * @param boxId the box ID in the database
+	 * @return number of AUs loaded
+	 * @throws SQLException the SQL exception
+	 */
+	public long endAus(Integer boxId) throws SQLException {
+		long rows = auWriter.end();
+		auWriter = null;
+
+		// unchanged AUs (same row_hash) are left untouched
+		merge("plnmonitor.au_current", "au_staging", StatusRows.AU_COLUMNS, "row_hash");
+
+		// AUs no longer reported by the box (an empty AU list is not trusted)
+		if (rows > 0) {
+			PreparedStatement preparedStatement = dbConnection.prepareStatement("DELETE FROM plnmonitor.au_current AS t WHERE t.box = ? "
+					+ "AND NOT EXISTS (SELECT 1 FROM au_staging AS s WHERE s.au_lockss_id = t.au_lockss_id)");
+			try {
+				preparedStatement.setInt(1, boxId);
+				int removed = preparedStatement.executeUpdate();
+				LOGGER.debug(removed + " AUs removed from box " + boxId);
+			} finally {
+				preparedStatement.close();
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Cancels a load of AUs in progress (before a rollback)
+	 */
+	public void cancel() {
+		if (auWriter != null) {
+			auWriter.cancel();
+			auWriter = null;
+		}
+	}
+
+	/**
+	 * Loads the peers of a box in peer
+	 *
+	 * @param boxId the box ID in the database
+	 * @param peers peers status collected from the box
+	 * @return number of peers loaded
+	 * @throws SQLException the SQL exception
+	 */
+	public long loadPeers(Integer boxId, List<PeerWsResult> peers) throws SQLException {
+		createStagingTable("plnmonitor.peer", "peer_staging", StatusRows.PEER_COLUMNS);
+
+		CopyWriter writer = new CopyWriter(startCopy("peer_staging", StatusRows.PEER_COLUMNS));
+		try {
+			for (PeerWsResult currentPeer : peers) {
+				writer.addRow(StatusRows.peerRow(boxId, currentPeer));
+			}
+		} catch (SQLException e) {
+			writer.cancel();
+			throw e;
+		}
+		long rows = writer.end();
+
+		merge("plnmonitor.peer", "peer_staging", StatusRows.PEER_COLUMNS, null);
+		return rows;
+	}
+
+	/**
+	 * Loads the repository spaces of a box in lockss_box_data_current
+	 *
+	 * @param boxId the box ID in the database
+	 * @param repositorySpaces repository spaces status collected from the box
+	 * @return number of repository spaces loaded
+	 * @throws SQLException the SQL exception
+	 */
+	public long loadRepositorySpaces(Integer boxId, List<RepositorySpaceWsResult> repositorySpaces) throws SQLException {
+		createStagingTable("plnmonitor.lockss_box_data_current", "repository_space_staging", StatusRows.REPOSITORY_SPACE_COLUMNS);
+
+		CopyWriter writer = new CopyWriter(startCopy("repository_space_staging", StatusRows.REPOSITORY_SPACE_COLUMNS));
+		try {
+			for (RepositorySpaceWsResult currentBoxResult : repositorySpaces) {
+				writer.addRow(StatusRows.repositorySpaceRow(boxId, currentBoxResult));
+			}
+		} catch (SQLException e) {
+			writer.cancel();
+			throw e;
+		}
+		long rows = writer.end();
+
+		merge("plnmonitor.lockss_box_data_current", "repository_space_staging", StatusRows.REPOSITORY_SPACE_COLUMNS, null);
+		return rows;
+	}
+
+	/**
+	 * Creates an empty staging table with the given columns of the live table (same types, no constraint)
+	 */
+	private void createStagingTable(String liveTable, String stagingTable, String[] columns) throws SQLException {
+		execute("DROP TABLE IF EXISTS " + stagingTable);
+		execute("CREATE TEMP TABLE " + stagingTable + " ON COMMIT DROP AS SELECT " + join(columns, "")
+				+ " FROM " + liveTable + " WITH NO DATA");
+	}
+
+	private CopyIn startCopy(String stagingTable, String[] columns) throws SQLException {
+		CopyManager copyManager = dbConnection.unwrap(PGConnection.class).getCopyAPI();
+		return copyManager.copyIn("COPY " + stagingTable + " (" + join(columns, "") + ") FROM STDIN");
+	}
+
+	/**
+	 * Merges the staging table into the live table in one statement: rows matching the key columns
+	 * are updated (only if changeColumn differs, when given), the other ones are inserted
+	 */
+	private void merge(String liveTable, String stagingTable, String[] columns, String changeColumn) throws SQLException {
+		String mergeSQL = dialect.merge(liveTable, stagingTable, columns, StatusRows.KEY_COLUMNS.get(liveTable), changeColumn);
+		LOGGER.debug(mergeSQL);
+		execute(mergeSQL);
+	}
+
+	private void execute(String sql) throws SQLException {
+		Statement statement = dbConnection.createStatement();
+		try {
+			statement.executeUpdate(sql);
+		} finally {
+			statement.close();
+		}
+	}
+
+	private static String join(String[] columns, String prefix) {
+		StringBuilder joined = new StringBuilder();
+		for (String column : columns) {
+			if (joined.length() > 0) {
+				joined.append(", ");
+			}
+			joined.append(prefix).append(column);
+		}
+		return joined.toString();
+	}
+
+	/**
+	 * Writes rows in the COPY text format (tab separated columns, \N for null values)
+	 * and sends them to the server in chunks of COPY_BUFFER_SIZE bytes
+	 */
+	private static class CopyWriter {
+		private final CopyIn copyIn;
+		private final StringBuilder buffer = new StringBuilder(COPY_BUFFER_SIZE + 4096);
+
+		CopyWriter(CopyIn copyIn) {
+			this.copyIn = copyIn;
+		}
+
+		void addRow(Object[] row) throws SQLException {
+			for (int i = 0; i < row.length; i++) {
+				if (i > 0) {
+					buffer.append('\t');
+				}
+				add(row[i]);
+			}
+			buffer.append('\n');
+			if (buffer.length() >= COPY_BUFFER_SIZE) {
+				flush();
+			}
+		}
+
+		private void add(Object value) {
+			if (value == null) {
+				buffer.append("\\N");
+			}
+			else if (value instanceof Boolean) {
+				buffer.append(((Boolean) value) ? 't' : 'f');
+			}
+			else if (value instanceof String) {
+				String text = (String) value;
+				for (int i = 0; i < text.length(); i++) {
+					char c = text.charAt(i);
+					switch (c) {
+					case '\\': buffer.append("\\\\"); break;
+					case '\t': buffer.append("\\t"); break;
+					case '\n': buffer.append("\\n"); break;
+					case '\r': buffer.append("\\r"); break;
+					default: buffer.append(c);
+					}
+				}
+			}
+			else {
+				buffer.append(value);
+			}
+		}
+
+		long end() throws SQLException {
+			flush();
+			return copyIn.endCopy();
+		}
+
+		void cancel() {
+			try {
+				if (copyIn.isActive()) {
+					copyIn.cancelCopy();
+				}
+			} catch (SQLException e) {
+				LOGGER.debug(e.getMessage());
+			}
+		}
+
+		private void flush() throws SQLException {
+			if (buffer.length() > 0) {
+				byte[] bytes = buffer.toString().getBytes(UTF8);
+				copyIn.writeToCopy(bytes, 0, bytes.length);
+				buffer.setLength(0);
+			}
+		}
+	}
+
+}
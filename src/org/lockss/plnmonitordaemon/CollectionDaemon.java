@@ -0,0 +1,232 @@
+package org.lockss.plnmonitordaemon;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class CollectionDaemon.
+ *
+ * Collection cycles over all the LOCKSS boxes of all the networks.
+ * <p>
+ * runCycle() collects the given data classes (Daemon Status Service queries) once: this is the one-shot
+ * mode started by cron. run() is the resident mode: each data class is collected again after its own
+ * interval (DAEMON_&lt;QUERY&gt;_INTERVAL_MINUTES) and the box list of each network is reloaded every
+ * DAEMON_NETWORK_INTERVAL_MINUTES. Between cycles the JVM stays up: the database connection pool,
+ * the Daemon Status Service clients, the SQL dialect and the lockss.xml cache of the DaemonStatusWebService
+ * are reused.
+ */
+public class CollectionDaemon {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(CollectionDaemon.class);
+
+	private final DaemonStatusWebService dsws;
+	private final int maxConcurrentBoxes;
+	private final int maxBoxesPerPln;
+	private final long boxTimeoutMillis;
+
+	/** Collection interval of each data class (0 disables the data class in resident mode) */
+	private final Map<BoxQueries.Query, Long> intervals = new EnumMap<BoxQueries.Query, Long>(BoxQueries.Query.class);
+
+	/** Reload interval of the box list of the networks */
+	private long networkIntervalMillis;
+
+	/** Boxes of each network (PLN ID, box IP addresses), from the last reload */
+	private Map<Integer, List<String>> networkBoxes = null;
+	private long networkLoadTime = 0;
+
+	/** Rebuilds the dashboards after each collection of the AUs (null: dashboards left to the config and buildfromdb modes) */
+	private DashboardBuilder dashboardBuilder = null;
+
+	private volatile boolean running = false;
+	private volatile Thread runner = null;
+
+	/**
+	 * CollectionDaemon constructor
+	 *
+	 * @param dsws the daemon status web service used to collect and store the box data
+	 * @param maxConcurrentBoxes max number of boxes collected at the same time over all PLNs
+	 * @param maxBoxesPerPln default max number of boxes of the same PLN collected at the same time
+	 * @param boxTimeoutMillis deadline for the collection of a single box
+	 */
+	public CollectionDaemon(DaemonStatusWebService dsws, int maxConcurrentBoxes, int maxBoxesPerPln, long boxTimeoutMillis) {
+		this.dsws = dsws;
+		this.maxConcurrentBoxes = maxConcurrentBoxes;
+		this.maxBoxesPerPln = maxBoxesPerPln;
+		this.boxTimeoutMillis = boxTimeoutMillis;
+
+		this.networkIntervalMillis = DaemonConfiguration.getLong("DAEMON_NETWORK_INTERVAL_MINUTES", 60) * 60000L;
+		for (BoxQueries.Query query : BoxQueries.Query.values()) {
+			intervals.put(query, DaemonConfiguration.getLong("DAEMON_" + query.name() + "_INTERVAL_MINUTES", getDefaultIntervalMinutes(query)) * 60000L);
+		}
+	}
+
+	/**
+	 * Collects the given data classes once from all the boxes of all the networks
+	 *
+	 * @param queries the Daemon Status Service queries issued to each box
+	 * @param reloadNetworks true to reload the box list of the networks first
+	 * @return the outcome of the collection
+	 */
+	public BoxCollectionScheduler.CollectionReport runCycle(Set<BoxQueries.Query> queries, boolean reloadNetworks) {
+		if (reloadNetworks || (networkBoxes == null)) {
+			loadNetworks();
+		}
+
+		// partitions of the history tables for this month and the next one
+		dsws.maintainHistory();
+
+		// boxes of all PLNs are collected in parallel (bounded globally and per PLN, with a deadline per box)
+		BoxCollectionScheduler scheduler = new BoxCollectionScheduler(dsws, maxConcurrentBoxes, maxBoxesPerPln, boxTimeoutMillis);
+		scheduler.setQueries(queries);
+		for (Map.Entry<Integer, List<String>> entry : networkBoxes.entrySet()) {
+			Integer plnID = entry.getKey();
+			scheduler.setMaxBoxesForPln(plnID, DaemonConfiguration.getInt("COLLECTOR_MAX_THREADS_PLN_" + plnID, maxBoxesPerPln));
+			for (String boxIpAddress : entry.getValue()) {
+				scheduler.addBox(plnID, boxIpAddress);
+			}
+		}
+
+		LOGGER.info("Updating LOCKSS network status: " + queries);
+		BoxCollectionScheduler.CollectionReport report = scheduler.run();
+		CollectorMetrics.cycleDone(report);
+
+		// summaries over all boxes, once per cycle
+		if (queries.contains(BoxQueries.Query.AUS) && !Thread.currentThread().isInterrupted()) {
+			dsws.updatePublisherSummary();
+			dsws.updateRollups();
+			dsws.updateReplication();
+			if (dashboardBuilder != null) {
+				// the dashboards only show PLN 1 (see config mode)
+				dashboardBuilder.buildFromDatabase(dsws, 1);
+			}
+		}
+		return report;
+	}
+
+	/**
+	 * Sets the dashboards rebuilt from the database after each collection of the AUs
+	 *
+	 * @param dashboardBuilder the dashboard builder, null to leave the dashboards as they are
+	 */
+	public void setDashboardBuilder(DashboardBuilder dashboardBuilder) {
+		this.dashboardBuilder = dashboardBuilder;
+	}
+
+	/**
+	 * Resident mode: runs collection cycles until stop() is called.
+	 * Each data class is collected when its interval has elapsed since its previous collection started.
+	 */
+	public void run() {
+		running = true;
+		runner = Thread.currentThread();
+
+		Map<BoxQueries.Query, Long> nextRuns = new EnumMap<BoxQueries.Query, Long>(BoxQueries.Query.class);
+		for (BoxQueries.Query query : BoxQueries.Query.values()) {
+			if (intervals.get(query) > 0) {
+				nextRuns.put(query, 0L);
+			}
+		}
+		if (nextRuns.isEmpty()) {
+			LOGGER.error("All DAEMON_<QUERY>_INTERVAL_MINUTES are 0: nothing to collect");
+			return;
+		}
+		LOGGER.info("Daemon mode: collection intervals " + intervals + " ms, networks reloaded every " + networkIntervalMillis + " ms");
+
+		while (running) {
+			long cycleStart = System.currentTimeMillis();
+
+			Set<BoxQueries.Query> dueQueries = EnumSet.noneOf(BoxQueries.Query.class);
+			for (Map.Entry<BoxQueries.Query, Long> entry : nextRuns.entrySet()) {
+				if (entry.getValue() <= cycleStart) {
+					dueQueries.add(entry.getKey());
+				}
+			}
+
+			if (!dueQueries.isEmpty()) {
+				try {
+					runCycle(dueQueries, cycleStart - networkLoadTime >= networkIntervalMillis);
+				} catch (Exception e) {
+					LOGGER.error("Collection cycle failed: " + e.getMessage());
+				}
+				// intervals are counted from the start of the cycle: a long cycle doesn't shift the next ones
+				for (BoxQueries.Query query : dueQueries) {
+					nextRuns.put(query, cycleStart + intervals.get(query));
+				}
+			}
+
+			long nextCycle = Long.MAX_VALUE;
+			for (Long nextRun : nextRuns.values()) {
+				nextCycle = Math.min(nextCycle, nextRun);
+			}
+			long sleep = nextCycle - System.currentTimeMillis();
+			if (sleep > 0 && running) {
+				LOGGER.info("Next collection in " + (sleep / 1000) + " s");
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					// stop() or shutdown
+					Thread.interrupted();
+				}
+			}
+		}
+		LOGGER.info("Daemon mode stopped");
+	}
+
+	/**
+	 * Stops the resident mode (the running cycle is interrupted)
+	 */
+	public void stop() {
+		running = false;
+		Thread thread = runner;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Loads the box list of every network from its lockss.xml file
+	 */
+	private void loadNetworks() {
+		Map<Integer, List<String>> boxes = new LinkedHashMap<Integer, List<String>>();
+		try {
+			HashMap<Integer, String> propServerURLs = dsws.getPLNConfigurationFiles();
+			for (Map.Entry<Integer, String> entry : propServerURLs.entrySet()) {
+				LOGGER.info((char)27 + "[34mLoading lockss.xml configuration file from: " + entry.getValue() + (char)27 + "[39m");
+				boxes.put(entry.getKey(), new ArrayList<String>(dsws.loadPLNConfiguration(entry.getKey(), "pln", entry.getValue())));
+			}
+		} catch (Exception e) {
+			LOGGER.error(e.getMessage());
+			if (networkBoxes != null) {
+				// keep the previous box list
+				return;
+			}
+		}
+		networkBoxes = boxes;
+		networkLoadTime = System.currentTimeMillis();
+	}
+
+	private static long getDefaultIntervalMinutes(BoxQueries.Query query) {
+		switch (query) {
+		case PLATFORM_CONFIGURATION:
+			return 60;
+		case REPOSITORY_SPACES:
+		case PEERS:
+			return 15;
+		case AUS:
+			return 60;
+		default:
+			// repository status is not stored
+			return 0;
+		}
+	}
+
+}
@@ -0,0 +1,315 @@
+package org.lockss.plnmonitordaemon;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * The Class CollectorMetrics.
+ *
+ * Counters, histograms and gauges of the collector, exposed in the Prometheus text format by MetricsServer.
+ * <p>
+ * The collection code records its measurements through the static methods (Daemon Status Service call
+ * latency and number of records per box and call, rows written per table, duration of the database
+ * operations, failures per box and phase, outcome of the last collection cycle); the database pool and the
+ * Daemon Status Service clients are read as gauges when the metrics are scraped.
+ * Recording is lock free: a measurement costs a map lookup and a few atomic additions.
+ */
+public class CollectorMetrics {
+
+	/** Buckets of the durations (seconds) */
+	private static final double[] DSS_SECONDS_BUCKETS = { 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600, 900 };
+	private static final double[] DB_SECONDS_BUCKETS = { 0.001, 0.005, 0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300 };
+
+	/** Buckets of the number of records returned by a call */
+	private static final double[] RECORDS_BUCKETS = { 1, 10, 100, 1000, 10000, 100000, 1000000 };
+
+	private static final Family DSS_CALL_SECONDS = new Family("plnmonitor_dss_call_seconds", "histogram",
+			"Duration of the Daemon Status Service calls per box and call", DSS_SECONDS_BUCKETS);
+	private static final Family DSS_CALL_RECORDS = new Family("plnmonitor_dss_call_records", "histogram",
+			"Number of records returned by the Daemon Status Service calls per box and call", RECORDS_BUCKETS);
+	private static final Family DB_OPERATION_SECONDS = new Family("plnmonitor_db_operation_seconds", "histogram",
+			"Duration of the database operations (statements and transactions) per operation", DB_SECONDS_BUCKETS);
+	private static final Family ROWS_WRITTEN = new Family("plnmonitor_db_rows_written_total", "counter",
+			"Rows inserted, updated or deleted per table", null);
+	private static final Family FAILURES = new Family("plnmonitor_failures_total", "counter",
+			"Failures per box and phase (dss_<call>, dss_<call>_timeout, store_<call>, collection, collection_timeout)", null);
+	private static final Family CYCLES = new Family("plnmonitor_cycles_total", "counter",
+			"Collection cycles run", null);
+
+	private static final Family[] FAMILIES = { DSS_CALL_SECONDS, DSS_CALL_RECORDS, DB_OPERATION_SECONDS, ROWS_WRITTEN, FAILURES, CYCLES };
+
+	/** Gauges read at scrape time (name, gauge) */
+	private static final Map<String, Gauge> GAUGES = new TreeMap<String, Gauge>();
+
+	/** Outcome of the last collection cycle */
+	private static volatile BoxCollectionScheduler.CollectionReport lastCycle = null;
+	private static volatile long lastCycleEnd = 0;
+
+	private CollectorMetrics() {
+	}
+
+	/**
+	 * Records a Daemon Status Service call
+	 *
+	 * @param box the box IP address
+	 * @param query the query
+	 * @param millis duration of the call
+	 * @param result result of the call (the number of records is recorded for lists)
+	 */
+	public static void observeDssCall(String box, BoxQueries.Query query, long millis, Object result) {
+		String labels = labels("box", box, "call", callName(query));
+		DSS_CALL_SECONDS.histogram(labels).observe(millis / 1000.0);
+		if (result instanceof Collection) {
+			DSS_CALL_RECORDS.histogram(labels).observe(((Collection<?>) result).size());
+		}
+		else if (result instanceof Number) {
+			// streamed results: number of records received
+			DSS_CALL_RECORDS.histogram(labels).observe(((Number) result).doubleValue());
+		}
+	}
+
+	/**
+	 * Records the duration of a database operation
+	 *
+	 * @param operation name of the operation (e.g. store_aus)
+	 * @param millis duration of the operation
+	 */
+	public static void observeDbOperation(String operation, long millis) {
+		DB_OPERATION_SECONDS.histogram(labels("operation", operation)).observe(millis / 1000.0);
+	}
+
+	/**
+	 * Counts rows written to a table
+	 *
+	 * @param table the table name (with schema)
+	 * @param rows number of rows inserted, updated or deleted
+	 */
+	public static void rowsWritten(String table, long rows) {
+		if (rows > 0) {
+			ROWS_WRITTEN.counter(labels("table", table)).add(rows);
+		}
+	}
+
+	/**
+	 * Counts a failure
+	 *
+	 * @param box the box IP address
+	 * @param phase the failed phase
+	 */
+	public static void failure(String box, String phase) {
+		FAILURES.counter(labels("box", box, "phase", phase)).increment();
+	}
+
+	/**
+	 * Records the outcome of a collection cycle
+	 *
+	 * @param report the outcome of the cycle
+	 */
+	public static void cycleDone(BoxCollectionScheduler.CollectionReport report) {
+		CYCLES.counter("").increment();
+		lastCycle = report;
+		lastCycleEnd = System.currentTimeMillis();
+	}
+
+	/**
+	 * Registers (or replaces) a gauge read at scrape time
+	 *
+	 * @param name the metric name
+	 * @param help the metric description
+	 * @param value the value supplier
+	 */
+	public static void gauge(String name, String help, Supplier<Number> value) {
+		synchronized (GAUGES) {
+			GAUGES.put(name, new Gauge(help, value));
+		}
+	}
+
+	/**
+	 * Gets the name of a query in the metric labels (e.g. aus, repository_spaces)
+	 */
+	public static String callName(BoxQueries.Query query) {
+		return query.name().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Writes all the metrics in the Prometheus text exposition format (version 0.0.4)
+	 *
+	 * @return the metrics
+	 */
+	public static String scrape() {
+		StringBuilder out = new StringBuilder();
+		for (Family family : FAMILIES) {
+			family.write(out);
+		}
+
+		BoxCollectionScheduler.CollectionReport report = lastCycle;
+		if (report != null) {
+			header(out, "plnmonitor_last_cycle_boxes", "gauge", "Boxes of the last collection cycle per result");
+			sample(out, "plnmonitor_last_cycle_boxes", labels("result", "succeeded"), report.getSucceeded().size());
+			sample(out, "plnmonitor_last_cycle_boxes", labels("result", "failed"), report.getFailed().size());
+			sample(out, "plnmonitor_last_cycle_boxes", labels("result", "timed_out"), report.getTimedOut().size());
+			header(out, "plnmonitor_last_cycle_seconds", "gauge", "Duration of the last collection cycle");
+			sample(out, "plnmonitor_last_cycle_seconds", "", report.getElapsedMillis() / 1000.0);
+			header(out, "plnmonitor_last_cycle_end_timestamp_seconds", "gauge", "End time of the last collection cycle");
+			sample(out, "plnmonitor_last_cycle_end_timestamp_seconds", "", lastCycleEnd / 1000.0);
+		}
+
+		synchronized (GAUGES) {
+			for (Map.Entry<String, Gauge> entry : GAUGES.entrySet()) {
+				Number value;
+				try {
+					value = entry.getValue().value.get();
+				} catch (RuntimeException e) {
+					// e.g. pool closed: skip the gauge
+					continue;
+				}
+				header(out, entry.getKey(), "gauge", entry.getValue().help);
+				sample(out, entry.getKey(), "", value.doubleValue());
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Builds a label set (name1, value1, name2, value2...)
+	 */
+	private static String labels(String... namesAndValues) {
+		StringBuilder labels = new StringBuilder();
+		for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+			if (labels.length() > 0) {
+				labels.append(',');
+			}
+			String value = (namesAndValues[i + 1] != null) ? namesAndValues[i + 1] : "";
+			labels.append(namesAndValues[i]).append("=\"")
+					.append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+		}
+		return labels.toString();
+	}
+
+	private static void header(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder out, String name, String labels, double value) {
+		out.append(name);
+		if (!labels.isEmpty()) {
+			out.append('{').append(labels).append('}');
+		}
+		out.append(' ').append(format(value)).append('\n');
+	}
+
+	private static String format(double value) {
+		if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+			return Long.toString((long) value);
+		}
+		return Double.toString(value);
+	}
+
+	/**
+	 * Metric family: all the series of a metric name, per label set
+	 */
+	private static class Family {
+		private final String name;
+		private final String type;
+		private final String help;
+		private final double[] buckets;
+		private final ConcurrentMap<String, Object> series = new ConcurrentHashMap<String, Object>();
+
+		Family(String name, String type, String help, double[] buckets) {
+			this.name = name;
+			this.type = type;
+			this.help = help;
+			this.buckets = buckets;
+		}
+
+		Histogram histogram(String labels) {
+			Object histogram = series.get(labels);
+			if (histogram == null) {
+				series.putIfAbsent(labels, new Histogram(buckets));
+				histogram = series.get(labels);
+			}
+			return (Histogram) histogram;
+		}
+
+		LongAdder counter(String labels) {
+			Object counter = series.get(labels);
+			if (counter == null) {
+				series.putIfAbsent(labels, new LongAdder());
+				counter = series.get(labels);
+			}
+			return (LongAdder) counter;
+		}
+
+		void write(StringBuilder out) {
+			if (series.isEmpty()) {
+				return;
+			}
+			header(out, name, type, help);
+			for (Map.Entry<String, Object> entry : new TreeMap<String, Object>(series).entrySet()) {
+				String labels = entry.getKey();
+				if (entry.getValue() instanceof LongAdder) {
+					sample(out, name, labels, ((LongAdder) entry.getValue()).sum());
+					continue;
+				}
+				Histogram histogram = (Histogram) entry.getValue();
+				String prefix = labels.isEmpty() ? "" : labels + ",";
+				// counts are read without a snapshot: a scrape may see a measurement in count but not yet in sum
+				long cumulative = 0;
+				for (int i = 0; i < buckets.length; i++) {
+					cumulative += histogram.bucketCounts.get(i);
+					sample(out, name + "_bucket", prefix + "le=\"" + format(buckets[i]) + "\"", cumulative);
+				}
+				cumulative += histogram.bucketCounts.get(buckets.length);
+				sample(out, name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+				sample(out, name + "_sum", labels, histogram.sum.sum());
+				sample(out, name + "_count", labels, cumulative);
+			}
+		}
+	}
+
+	/**
+	 * Histogram with fixed buckets (the last count is the +Inf bucket)
+	 */
+	private static class Histogram {
+		private final double[] buckets;
+		private final AtomicLongArray bucketCounts;
+		private final DoubleAdder sum = new DoubleAdder();
+
+		Histogram(double[] buckets) {
+			this.buckets = buckets;
+			this.bucketCounts = new AtomicLongArray(buckets.length + 1);
+		}
+
+		void observe(double value) {
+			int bucket = 0;
+			while (bucket < buckets.length && value > buckets[bucket]) {
+				bucket++;
+			}
+			bucketCounts.incrementAndGet(bucket);
+			sum.add(value);
+		}
+	}
+
+	/**
+	 * Gauge read at scrape time
+	 */
+	private static class Gauge {
+		private final String help;
+		private final Supplier<Number> value;
+
+		Gauge(String help, Supplier<Number> value) {
+			this.help = help;
+			this.value = value;
+		}
+	}
+
+}
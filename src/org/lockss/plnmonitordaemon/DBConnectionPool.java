@@ -0,0 +1,373 @@
+package org.lockss.plnmonitordaemon;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class DBConnectionPool.
+ *
+ * Small fixed-size JDBC connection pool shared by all the methods of DaemonStatusWebService.
+ * <p>
+ * getConnection() hands out a wrapper around a physical connection: calling close() on it closes the
+ * statements created through it and gives the physical connection back to the pool instead of closing it,
+ * so the existing "finally { dbConnection.close(); }" blocks keep working unchanged.
+ * Idle connections are validated before being handed out again and recycled after maxLifetimeMillis.
+ * Basic usage metrics are available through getStatistics().
+ */
+public class DBConnectionPool {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(DBConnectionPool.class);
+
+	private final String dbConnectionURL;
+	private final String dbUser;
+	private final String dbPassword;
+
+	/** Max number of physical connections */
+	private final int maxSize;
+
+	/** Max time to wait for a free connection when all of them are in use */
+	private final long borrowTimeoutMillis;
+
+	/** Idle connections unused for longer than this are validated before being handed out */
+	private final long validateAfterIdleMillis;
+
+	/** Timeout of the validation (Connection.isValid) */
+	private final int validationTimeoutSeconds;
+
+	/** Physical connections older than this are closed when given back */
+	private final long maxLifetimeMillis;
+
+	/** Idle connections, the most recently used first */
+	private final LinkedList<PooledConnection> idleConnections = new LinkedList<PooledConnection>();
+
+	/** Number of physical connections currently open (idle + in use) */
+	private int openConnections = 0;
+
+	private boolean closed = false;
+
+	private final AtomicLong createdCount = new AtomicLong();
+	private final AtomicLong borrowedCount = new AtomicLong();
+	private final AtomicLong waitCount = new AtomicLong();
+	private final AtomicLong waitTimeMillis = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+	private final AtomicLong validationFailureCount = new AtomicLong();
+
+	/**
+	 * DBConnectionPool constructor
+	 *
+	 * @param dbConnectionURL the jdbc connection url
+	 * @param dbUser the database user
+	 * @param dbPassword the database password
+	 * @param maxSize max number of physical connections
+	 * @param borrowTimeoutMillis max time to wait for a free connection
+	 * @param validateAfterIdleMillis idle time after which a connection is validated before reuse
+	 * @param validationTimeoutSeconds timeout of the connection validation
+	 * @param maxLifetimeMillis max lifetime of a physical connection
+	 */
+	public DBConnectionPool(String dbConnectionURL, String dbUser, String dbPassword, int maxSize, long borrowTimeoutMillis,
+			long validateAfterIdleMillis, int validationTimeoutSeconds, long maxLifetimeMillis) {
+		this.dbConnectionURL = dbConnectionURL;
+		this.dbUser = dbUser;
+		this.dbPassword = dbPassword;
+		this.maxSize = Math.max(1, maxSize);
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+		this.validateAfterIdleMillis = validateAfterIdleMillis;
+		this.validationTimeoutSeconds = validationTimeoutSeconds;
+		this.maxLifetimeMillis = maxLifetimeMillis;
+	}
+
+	/**
+	 * Gets a connection from the pool, opening a new one if none is idle and the pool is not full.
+	 * Waits at most borrowTimeoutMillis for a connection to be given back otherwise.
+	 *
+	 * @return the connection, to be closed by the caller to give it back to the pool
+	 * @throws SQLException if no connection is available in time or the database is not reachable
+	 */
+	public Connection getConnection() throws SQLException {
+		long deadline = System.currentTimeMillis() + borrowTimeoutMillis;
+		boolean waited = false;
+		long waitStart = System.currentTimeMillis();
+
+		while (true) {
+			PooledConnection candidate = null;
+			boolean mayOpen = false;
+
+			synchronized (this) {
+				if (closed) {
+					throw new SQLException("Connection pool is closed");
+				}
+				if (!idleConnections.isEmpty()) {
+					candidate = idleConnections.removeFirst();
+				}
+				else if (openConnections < maxSize) {
+					openConnections++;
+					mayOpen = true;
+				}
+				else {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						timeoutCount.incrementAndGet();
+						throw new SQLException("No database connection available after " + borrowTimeoutMillis + " ms (" + maxSize + " connections in use)");
+					}
+					waited = true;
+					try {
+						wait(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while waiting for a database connection");
+					}
+					continue;
+				}
+			}
+
+			if (waited) {
+				waitCount.incrementAndGet();
+				waitTimeMillis.addAndGet(System.currentTimeMillis() - waitStart);
+			}
+
+			if (mayOpen) {
+				try {
+					candidate = new PooledConnection(DriverManager.getConnection(dbConnectionURL, dbUser, dbPassword));
+					createdCount.incrementAndGet();
+				} catch (SQLException e) {
+					discard(null);
+					throw e;
+				}
+			}
+			else if (!validate(candidate)) {
+				validationFailureCount.incrementAndGet();
+				LOGGER.warn("Discarding invalid database connection");
+				discard(candidate);
+				continue;
+			}
+
+			borrowedCount.incrementAndGet();
+			return candidate.borrow();
+		}
+	}
+
+	/**
+	 * Closes all idle connections. Connections in use are closed when given back.
+	 */
+	public synchronized void close() {
+		closed = true;
+		for (PooledConnection pooledConnection : idleConnections) {
+			closeQuietly(pooledConnection.physicalConnection);
+			openConnections--;
+		}
+		idleConnections.clear();
+		notifyAll();
+	}
+
+	/**
+	 * Gets the number of connections currently handed out
+	 */
+	public synchronized int getActiveCount() {
+		return openConnections - idleConnections.size();
+	}
+
+	/**
+	 * Gets the number of idle connections
+	 */
+	public synchronized int getIdleCount() {
+		return idleConnections.size();
+	}
+
+	/**
+	 * Gets the max number of connections
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Gets the number of physical connections opened since the pool creation
+	 */
+	public long getCreatedCount() {
+		return createdCount.get();
+	}
+
+	/**
+	 * Gets the number of connections handed out since the pool creation
+	 */
+	public long getBorrowedCount() {
+		return borrowedCount.get();
+	}
+
+	/**
+	 * Gets the number of times a caller had to wait for a free connection
+	 */
+	public long getWaitCount() {
+		return waitCount.get();
+	}
+
+	/**
+	 * Gets the number of times a caller gave up waiting for a free connection
+	 */
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	/**
+	 * Gets the pool usage metrics in a loggable form
+	 *
+	 * @return the pool statistics
+	 */
+	public String getStatistics() {
+		return "size=" + maxSize + " active=" + getActiveCount() + " idle=" + getIdleCount()
+				+ " created=" + createdCount.get() + " borrowed=" + borrowedCount.get()
+				+ " waits=" + waitCount.get() + " waitTime=" + waitTimeMillis.get() + "ms"
+				+ " timeouts=" + timeoutCount.get() + " validationFailures=" + validationFailureCount.get();
+	}
+
+	private boolean validate(PooledConnection pooledConnection) {
+		if (System.currentTimeMillis() - pooledConnection.lastUsed < validateAfterIdleMillis) {
+			return true;
+		}
+		try {
+			return pooledConnection.physicalConnection.isValid(validationTimeoutSeconds);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Gives a connection back to the pool (called by close() on the wrapper)
+	 */
+	private void giveBack(PooledConnection pooledConnection) {
+		Connection physicalConnection = pooledConnection.physicalConnection;
+		boolean reusable = System.currentTimeMillis() - pooledConnection.created < maxLifetimeMillis;
+
+		// leave the connection in a clean state for the next user
+		try {
+			if (reusable && !physicalConnection.getAutoCommit()) {
+				physicalConnection.rollback();
+				physicalConnection.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			LOGGER.warn("Discarding database connection that can't be reset: " + e.getMessage());
+			reusable = false;
+		}
+
+		synchronized (this) {
+			if (reusable && !closed) {
+				pooledConnection.lastUsed = System.currentTimeMillis();
+				idleConnections.addFirst(pooledConnection);
+				notifyAll();
+				return;
+			}
+		}
+		discard(pooledConnection);
+	}
+
+	private void discard(PooledConnection pooledConnection) {
+		if (pooledConnection != null) {
+			closeQuietly(pooledConnection.physicalConnection);
+		}
+		synchronized (this) {
+			openConnections--;
+			notifyAll();
+		}
+	}
+
+	private static void closeQuietly(Connection connection) {
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			LOGGER.debug(e.getMessage());
+		}
+	}
+
+	/**
+	 * Physical connection managed by the pool
+	 */
+	private class PooledConnection {
+		private final Connection physicalConnection;
+		private final long created = System.currentTimeMillis();
+		private long lastUsed = created;
+
+		PooledConnection(Connection physicalConnection) {
+			this.physicalConnection = physicalConnection;
+		}
+
+		Connection borrow() {
+			return (Connection) Proxy.newProxyInstance(DBConnectionPool.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new BorrowedConnectionHandler(this));
+		}
+	}
+
+	/**
+	 * Handler of the wrapper handed out by getConnection: tracks the statements and gives the
+	 * physical connection back on close()
+	 */
+	private class BorrowedConnectionHandler implements InvocationHandler {
+		private final PooledConnection pooledConnection;
+		private final List<Statement> statements = new ArrayList<Statement>();
+		private boolean returned = false;
+
+		BorrowedConnectionHandler(PooledConnection pooledConnection) {
+			this.pooledConnection = pooledConnection;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String methodName = method.getName();
+
+			if (methodName.equals("close")) {
+				if (!returned) {
+					returned = true;
+					for (Statement statement : statements) {
+						try {
+							statement.close();
+						} catch (SQLException e) {
+							LOGGER.debug(e.getMessage());
+						}
+					}
+					statements.clear();
+					giveBack(pooledConnection);
+				}
+				return null;
+			}
+			if (methodName.equals("isClosed")) {
+				return returned || pooledConnection.physicalConnection.isClosed();
+			}
+			if (methodName.equals("equals")) {
+				return proxy == args[0];
+			}
+			if (methodName.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+			if (methodName.equals("toString")) {
+				return "Pooled " + pooledConnection.physicalConnection.toString();
+			}
+			if (returned) {
+				throw new SQLException("Connection has already been given back to the pool");
+			}
+
+			Object result;
+			try {
+				result = method.invoke(pooledConnection.physicalConnection, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+			if (result instanceof Statement) {
+				statements.add((Statement) result);
+			}
+			return result;
+		}
+	}
+
+}
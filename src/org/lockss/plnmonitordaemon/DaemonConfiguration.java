@@ -0,0 +1,146 @@
+package org.lockss.plnmonitordaemon;
+
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class DaemonConfiguration.
+ *
+ * Tuning parameters of the daemon read from the plnmon-daemon.cfg file (KEY = VALUE lines) found on the classpath.
+ * Any parameter can be overridden on the command line with a system property of the same name:
+ *
+ *  java -DCOLLECTOR_MAX_THREADS=16 -jar /opt/plnmonitor-daemon.jar
+ *
+ * Missing or malformed values fall back to the default given by the caller.
+ */
+public class DaemonConfiguration {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(DaemonConfiguration.class);
+
+	/** Name of the configuration file looked up on the classpath */
+	private static final String CONFIG_RESOURCE = "plnmon-daemon.cfg";
+
+	/** Parameters loaded from the configuration file */
+	private static final Properties properties = load();
+
+	private DaemonConfiguration() {
+	}
+
+	/**
+	 * Gets a string parameter
+	 *
+	 * @param key the parameter name
+	 * @param defaultValue value returned when the parameter is not set
+	 * @return the parameter value
+	 */
+	public static String getString(String key, String defaultValue) {
+		String value = System.getProperty(key);
+		if (value == null) {
+			value = properties.getProperty(key);
+		}
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		return value.trim();
+	}
+
+	/**
+	 * Gets an integer parameter
+	 *
+	 * @param key the parameter name
+	 * @param defaultValue value returned when the parameter is not set or not a number
+	 * @return the parameter value
+	 */
+	public static int getInt(String key, int defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			LOGGER.warn("Invalid value for " + key + ": " + value + " - using default " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Gets a long parameter
+	 *
+	 * @param key the parameter name
+	 * @param defaultValue value returned when the parameter is not set or not a number
+	 * @return the parameter value
+	 */
+	public static long getLong(String key, long defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			LOGGER.warn("Invalid value for " + key + ": " + value + " - using default " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Gets a decimal parameter
+	 *
+	 * @param key the parameter name
+	 * @param defaultValue value returned when the parameter is not set or not a number
+	 * @return the parameter value
+	 */
+	public static double getDouble(String key, double defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			LOGGER.warn("Invalid value for " + key + ": " + value + " - using default " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Gets a boolean parameter (true/false, yes/no)
+	 *
+	 * @param key the parameter name
+	 * @param defaultValue value returned when the parameter is not set
+	 * @return the parameter value
+	 */
+	public static boolean getBoolean(String key, boolean defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		return value.equalsIgnoreCase("true") || value.equalsIgnoreCase("yes");
+	}
+
+	private static Properties load() {
+		Properties loaded = new Properties();
+		InputStream inputStream = DaemonConfiguration.class.getClassLoader().getResourceAsStream(CONFIG_RESOURCE);
+		if (inputStream == null) {
+			LOGGER.debug(CONFIG_RESOURCE + " not found on the classpath - using default settings");
+			return loaded;
+		}
+		try {
+			loaded.load(inputStream);
+		} catch (Exception e) {
+			LOGGER.error("Can't read " + CONFIG_RESOURCE + ": " + e.getMessage());
+		} finally {
+			try {
+				inputStream.close();
+			} catch (Exception e) {
+				LOGGER.error(e.getMessage());
+			}
+		}
+		return loaded;
+	}
+
+}
@@ -0,0 +1,199 @@
+package org.lockss.plnmonitordaemon;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.namespace.QName;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.Service;
+import javax.xml.ws.WebServiceException;
+
+import org.lockss.ws.status.DaemonStatusService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class DaemonStatusClientFactory.
+ *
+ * Creates and caches the Daemon Status Service client (port) of each LOCKSS box.
+ * <p>
+ * The JAX-WS service is created once, without downloading the WSDL of any box: the SOAP contract comes
+ * from the local copy of the WSDL shipped in resources/DaemonStatusService.wsdl (classpath), or from
+ * DSS_WSDL_LOCATION when it is set (the JAX-WS proxies can't be created from the DaemonStatusService interface alone).
+ * Each port gets the endpoint address and the credentials of its box in its own request context
+ * (no JVM-wide java.net.Authenticator), so boxes can be queried from several threads at the same time.
+ * The request context of a cached port is never modified after its creation: a port can be shared by the
+ * threads querying the same box.
+ */
+public class DaemonStatusClientFactory {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(DaemonStatusClientFactory.class);
+
+	/** Daemon Status Service namespace */
+	private static final String TARGET_NAMESPACE = "http://status.ws.lockss.org/";
+
+	/** Daemon Status Service service name */
+	private static final String SERVICE_NAME = "DaemonStatusServiceImplService";
+
+	/** Daemon Status Service path on the LOCKSS box UI port */
+	private static final String SERVICE_PATH = "/ws/DaemonStatusService";
+
+	/** Name of the local WSDL copy looked up on the classpath */
+	private static final String WSDL_RESOURCE = "DaemonStatusService.wsdl";
+
+	/** Connect and read timeout properties of the JAX-WS implementations (JDK internal and standalone) */
+	private static final String[] CONNECT_TIMEOUT_PROPERTIES = { "com.sun.xml.internal.ws.connect.timeout", "com.sun.xml.ws.connect.timeout" };
+	private static final String[] REQUEST_TIMEOUT_PROPERTIES = { "com.sun.xml.internal.ws.request.timeout", "com.sun.xml.ws.request.timeout" };
+
+	private final QName serviceName = new QName(TARGET_NAMESPACE, SERVICE_NAME);
+
+	/** JAX-WS service, created from the local WSDL copy */
+	private final Service service;
+	private final int connectTimeoutMillis;
+	private final int requestTimeoutMillis;
+
+	/** Cached clients (box address, client) */
+	private final Map<String, BoxClient> clients = new ConcurrentHashMap<String, BoxClient>();
+
+	/**
+	 * DaemonStatusClientFactory constructor
+	 *
+	 * @param wsdlLocation local copy of the Daemon Status Service WSDL
+	 * @param connectTimeoutMillis connection timeout of the SOAP requests (0 for none)
+	 * @param requestTimeoutMillis read timeout of the SOAP requests (0 for none)
+	 * @throws WebServiceException if there is no WSDL or it can't be read
+	 */
+	public DaemonStatusClientFactory(URL wsdlLocation, int connectTimeoutMillis, int requestTimeoutMillis) {
+		if (wsdlLocation == null) {
+			throw new WebServiceException("No Daemon Status Service WSDL: " + WSDL_RESOURCE + " is not on the classpath and DSS_WSDL_LOCATION is not set");
+		}
+		this.service = Service.create(wsdlLocation, serviceName);
+		LOGGER.debug("Daemon Status Service contract from " + wsdlLocation);
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.requestTimeoutMillis = requestTimeoutMillis;
+	}
+
+	/**
+	 * Creates the factory from the daemon configuration (DSS_WSDL_LOCATION, DSS_CONNECT_TIMEOUT_SECONDS, DSS_REQUEST_TIMEOUT_SECONDS)
+	 *
+	 * @return the client factory
+	 */
+	public static DaemonStatusClientFactory fromConfiguration() {
+		return new DaemonStatusClientFactory(findWsdl(DaemonConfiguration.getString("DSS_WSDL_LOCATION", "")),
+				DaemonConfiguration.getInt("DSS_CONNECT_TIMEOUT_SECONDS", 30) * 1000,
+				DaemonConfiguration.getInt("DSS_REQUEST_TIMEOUT_SECONDS", 600) * 1000);
+	}
+
+	/**
+	 * Gets the Daemon Status Service client of a box, creating it if needed.
+	 * The cached client is replaced when the credentials of the box change.
+	 *
+	 * @param boxIpAddress the box ip address
+	 * @param boxUIPort the box UI port
+	 * @param username username of the debug user in the LOCKSS box UI
+	 * @param password password of the debug user in the LOCKSS box UI
+	 * @return the client
+	 */
+	public DaemonStatusService getClient(String boxIpAddress, String boxUIPort, String username, String password) {
+		String boxAddress = boxIpAddress + ":" + boxUIPort;
+		BoxClient boxClient = clients.get(boxAddress);
+		if ((boxClient == null) || !boxClient.hasCredentials(username, password)) {
+			boxClient = new BoxClient(createPort(boxAddress, username, password), username, password);
+			clients.put(boxAddress, boxClient);
+		}
+		return boxClient.port;
+	}
+
+	/**
+	 * Gets a streaming queryAus client for a box (see AuStreamReader), with the endpoint and timeouts of the JAX-WS clients
+	 *
+	 * @param boxIpAddress the box ip address
+	 * @param boxUIPort the box UI port
+	 * @param username username of the debug user in the LOCKSS box UI
+	 * @param password password of the debug user in the LOCKSS box UI
+	 * @return the streaming client
+	 */
+	public AuStreamReader getAuStreamReader(String boxIpAddress, String boxUIPort, String username, String password) {
+		return new AuStreamReader("http://" + boxIpAddress + ":" + boxUIPort + SERVICE_PATH, username, password, connectTimeoutMillis, requestTimeoutMillis);
+	}
+
+	/**
+	 * Removes the cached client of a box (e.g. after a transport failure)
+	 *
+	 * @param boxIpAddress the box ip address
+	 * @param boxUIPort the box UI port
+	 */
+	public void evict(String boxIpAddress, String boxUIPort) {
+		clients.remove(boxIpAddress + ":" + boxUIPort);
+	}
+
+	/**
+	 * Gets the number of cached clients
+	 */
+	public int size() {
+		return clients.size();
+	}
+
+	private DaemonStatusService createPort(String boxAddress, String username, String password) {
+		DaemonStatusService port;
+		synchronized (service) {
+			port = service.getPort(DaemonStatusService.class);
+		}
+
+		Map<String, Object> requestContext = ((BindingProvider) port).getRequestContext();
+		requestContext.put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, "http://" + boxAddress + SERVICE_PATH);
+		requestContext.put(BindingProvider.USERNAME_PROPERTY, username);
+		requestContext.put(BindingProvider.PASSWORD_PROPERTY, password);
+		for (String property : CONNECT_TIMEOUT_PROPERTIES) {
+			requestContext.put(property, connectTimeoutMillis);
+		}
+		for (String property : REQUEST_TIMEOUT_PROPERTIES) {
+			requestContext.put(property, requestTimeoutMillis);
+		}
+
+		LOGGER.debug("Created Daemon Status Service client for " + boxAddress);
+		return port;
+	}
+
+	/**
+	 * Finds the local WSDL copy: configured location (file or URL), or classpath resource
+	 */
+	private static URL findWsdl(String location) {
+		if (!location.isEmpty()) {
+			try {
+				File file = new File(location);
+				return file.exists() ? file.toURI().toURL() : new URL(location);
+			} catch (MalformedURLException e) {
+				LOGGER.warn("Invalid DSS_WSDL_LOCATION " + location + ": " + e.getMessage());
+			}
+		}
+		return DaemonStatusClientFactory.class.getClassLoader().getResource(WSDL_RESOURCE);
+	}
+
+	/**
+	 * Cached client of a box with the credentials it was created with
+	 */
+	private static class BoxClient {
+		private final DaemonStatusService port;
+		private final String username;
+		private final String password;
+
+		BoxClient(DaemonStatusService port, String username, String password) {
+			this.port = port;
+			this.username = username;
+			this.password = password;
+		}
+
+		boolean hasCredentials(String username, String password) {
+			return equals(this.username, username) && equals(this.password, password);
+		}
+
+		private static boolean equals(String a, String b) {
+			return (a == null) ? (b == null) : a.equals(b);
+		}
+	}
+
+}
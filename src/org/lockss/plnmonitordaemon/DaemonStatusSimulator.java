@@ -0,0 +1,291 @@
+package org.lockss.plnmonitordaemon;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlElementWrapper;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.ws.Endpoint;
+
+import org.lockss.ws.entities.AuWsResult;
+import org.lockss.ws.entities.PeerWsResult;
+import org.lockss.ws.entities.PlatformConfigurationWsResult;
+import org.lockss.ws.entities.RepositorySpaceWsResult;
+import org.lockss.ws.entities.RepositoryWsResult;
+import org.lockss.ws.status.DaemonStatusService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.BasicAuthenticator;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The Class DaemonStatusSimulator.
+ *
+ * Local fake LOCKSS network to load test the collector on a single machine without network access
+ * (java -jar plnmonitor-daemon.jar simulate).
+ * <p>
+ * Each simulated box listens on its own loopback address (SIM_ADDRESS_PREFIX.x.y, all of 127.0.0.0/8 is local
+ * on Linux) on the UI port, and serves the Daemon Status Service (SimulatedDaemonStatusService) with generated
+ * data (SIM_AUS_PER_BOX AUs, SyntheticData) or with the data recorded from real boxes (SIM_RECORDINGS_DIR,
+ * see record). The lockss.xml of the simulated network, listing all the simulated boxes, is served on
+ * http://SIM_CONFIG_ADDRESS:SIM_CONFIG_PORT/lockss.xml: a PLN whose config_url points to it is collected as a
+ * real one. Latency, errors, hangs and AU changes of the calls are set by the SIM_* parameters.
+ */
+public class DaemonStatusSimulator {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(DaemonStatusSimulator.class);
+
+	/** Daemon Status Service path on the LOCKSS box UI port */
+	private static final String SERVICE_PATH = "/ws/DaemonStatusService";
+
+	/** Number of simulated boxes */
+	private int boxes = DaemonConfiguration.getInt("SIM_BOXES", 10);
+
+	/** Generated data: AUs, peers and disks of each box, characters added to each AU name */
+	private int ausPerBox = DaemonConfiguration.getInt("SIM_AUS_PER_BOX", 1000);
+	private int peersPerBox = DaemonConfiguration.getInt("SIM_PEERS_PER_BOX", 0);
+	private int disksPerBox = DaemonConfiguration.getInt("SIM_DISKS_PER_BOX", 2);
+	private int auNamePadding = DaemonConfiguration.getInt("SIM_AU_NAME_PADDING", 0);
+	private long seed = DaemonConfiguration.getLong("SIM_SEED", 42);
+
+	/** Recorded data (one file per box, see record), replayed instead of the generated data */
+	private String recordingsDirectory = DaemonConfiguration.getString("SIM_RECORDINGS_DIR", "");
+
+	/** Addresses of the boxes: SIM_ADDRESS_PREFIX.(i / 250).(i % 250 + 1) */
+	private String addressPrefix = DaemonConfiguration.getString("SIM_ADDRESS_PREFIX", "127.1");
+	private int uiPort = DaemonConfiguration.getInt("SIM_UI_PORT", 8081);
+	private int threadsPerBox = DaemonConfiguration.getInt("SIM_THREADS_PER_BOX", 4);
+
+	/** Credentials of the boxes (empty: any credentials accepted) */
+	private String username = DaemonConfiguration.getString("SIM_USER_NAME", "");
+	private String password = DaemonConfiguration.getString("SIM_PASSWORD", "");
+
+	/** lockss.xml of the simulated network */
+	private String configAddress = DaemonConfiguration.getString("SIM_CONFIG_ADDRESS", "127.0.0.1");
+	private int configPort = DaemonConfiguration.getInt("SIM_CONFIG_PORT", 8080);
+	private int configTitles = DaemonConfiguration.getInt("SIM_CONFIG_TITLES", 1000);
+
+	/** Latency and failures of the calls */
+	private SimulatedDaemonStatusService.Behaviour behaviour = new SimulatedDaemonStatusService.Behaviour(
+			DaemonConfiguration.getLong("SIM_LATENCY_MILLIS", 200),
+			DaemonConfiguration.getLong("SIM_LATENCY_JITTER_MILLIS", 100),
+			DaemonConfiguration.getLong("SIM_LATENCY_PER_1000_RECORDS_MILLIS", 50),
+			DaemonConfiguration.getDouble("SIM_ERROR_RATE", 0),
+			DaemonConfiguration.getDouble("SIM_HANG_RATE", 0),
+			DaemonConfiguration.getLong("SIM_HANG_SECONDS", 3600) * 1000L,
+			DaemonConfiguration.getDouble("SIM_AU_CHURN_RATE", 0));
+
+	private final List<HttpServer> servers = new ArrayList<HttpServer>();
+	private final List<ExecutorService> executors = new ArrayList<ExecutorService>();
+	private final List<SimulatedDaemonStatusService> services = new ArrayList<SimulatedDaemonStatusService>();
+
+	/**
+	 * Starts the simulated boxes and the lockss.xml of the simulated network
+	 *
+	 * @throws IOException if an address can't be bound or a recording can't be read
+	 * @throws JAXBException if a recording is not valid
+	 */
+	public void start() throws IOException, JAXBException {
+		List<File> recordings = listRecordings();
+		List<String> boxAddresses = new ArrayList<String>(boxes);
+
+		for (int i = 0; i < boxes; i++) {
+			String boxIpAddress = addressPrefix + "." + (i / 250) + "." + (i % 250 + 1);
+			boxAddresses.add(boxIpAddress);
+
+			SimulatedDaemonStatusService service = recordings.isEmpty() ? generateBox(i, boxIpAddress)
+					: replayBox(recordings.get(i % recordings.size()), boxIpAddress);
+			services.add(service);
+
+			HttpServer server = HttpServer.create(new InetSocketAddress(boxIpAddress, uiPort), 0);
+			HttpContext context = server.createContext(SERVICE_PATH);
+			if (!username.isEmpty()) {
+				context.setAuthenticator(new BasicAuthenticator("LOCKSS") {
+					@Override
+					public Result authenticate(HttpExchange exchange) {
+						// the schema imported by the WSDL is read by JAX-WS without credentials
+						if ("GET".equals(exchange.getRequestMethod())) {
+							return new Authenticator.Success(new HttpPrincipal("", "LOCKSS"));
+						}
+						return super.authenticate(exchange);
+					}
+
+					@Override
+					public boolean checkCredentials(String user, String pwd) {
+						return username.equals(user) && password.equals(pwd);
+					}
+				});
+			}
+			ExecutorService executor = Executors.newFixedThreadPool(threadsPerBox);
+			server.setExecutor(executor);
+			Endpoint.create(service).publish(context);
+			server.start();
+			servers.add(server);
+			executors.add(executor);
+		}
+
+		final byte[] lockssXml = SyntheticData.lockssXml(boxAddresses, configTitles);
+		HttpServer configServer = HttpServer.create(new InetSocketAddress(configAddress, configPort), 0);
+		configServer.createContext("/lockss.xml", (HttpExchange exchange) -> {
+			try {
+				exchange.getResponseHeaders().set("Content-Type", "application/xml");
+				exchange.sendResponseHeaders(200, lockssXml.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(lockssXml);
+				out.close();
+			} finally {
+				exchange.close();
+			}
+		});
+		configServer.start();
+		servers.add(configServer);
+
+		LOGGER.info("\u001B[32m" + boxes + " simulated boxes on " + boxAddresses.get(0) + " to " + boxAddresses.get(boxes - 1) + ", port " + uiPort
+				+ ((recordings.isEmpty()) ? ", " + ausPerBox + " AUs each" : ", replaying " + recordings.size() + " recordings") + "\u001B[0m");
+		LOGGER.info("\u001B[32mNetwork configuration on http://" + configAddress + ":" + configPort + "/lockss.xml\u001B[0m");
+	}
+
+	/**
+	 * Stops the simulated boxes and logs the number of calls of each box
+	 */
+	public void stop() {
+		for (HttpServer server : servers) {
+			server.stop(0);
+		}
+		for (ExecutorService executor : executors) {
+			executor.shutdownNow();
+		}
+		for (SimulatedDaemonStatusService service : services) {
+			LOGGER.info(service.getCounters());
+		}
+		servers.clear();
+		executors.clear();
+	}
+
+	/**
+	 * Runs the simulator until the process is stopped (SIGTERM / Ctrl-C)
+	 */
+	public static void run() {
+		final DaemonStatusSimulator simulator = new DaemonStatusSimulator();
+		final CountDownLatch stopped = new CountDownLatch(1);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				simulator.stop();
+				stopped.countDown();
+			}
+		});
+		try {
+			simulator.start();
+			stopped.await();
+		} catch (Exception e) {
+			LOGGER.error(e.getMessage());
+			simulator.stop();
+		}
+	}
+
+	/**
+	 * Records the status of a real box in a file that the simulator can replay (SIM_RECORDINGS_DIR)
+	 *
+	 * @param boxIpAddress the box ip address
+	 * @param boxUIPort the box UI port
+	 * @param username username of the debug user in the LOCKSS box UI
+	 * @param password password of the debug user in the LOCKSS box UI
+	 * @param directory directory of the recordings, the file is named after the box address
+	 * @throws Exception if the box can't be queried or the file can't be written
+	 */
+	public static void record(String boxIpAddress, String boxUIPort, String username, String password, String directory) throws Exception {
+		DaemonStatusService dss = DaemonStatusClientFactory.fromConfiguration().getClient(boxIpAddress, boxUIPort, username, password);
+		BoxRecording recording = new BoxRecording();
+		recording.platformConfiguration = dss.getPlatformConfiguration();
+		recording.repositorySpaces = dss.queryRepositorySpaces("select *");
+		recording.aus = dss.queryAus(AuQueryProfile.FULL.getQuery());
+		recording.peers = dss.queryPeers("select *");
+		recording.repositories = dss.queryRepositories("select *");
+
+		File file = new File(directory, boxIpAddress + ".xml");
+		file.getParentFile().mkdirs();
+		Marshaller marshaller = JAXBContext.newInstance(BoxRecording.class).createMarshaller();
+		marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+		marshaller.marshal(recording, file);
+		LOGGER.info("\u001B[32mRecorded " + recording.aus.size() + " AUs and " + recording.peers.size() + " peers of " + boxIpAddress + " in " + file + "\u001B[0m");
+	}
+
+	private SimulatedDaemonStatusService generateBox(int i, String boxIpAddress) {
+		long boxSeed = seed + i;
+		List<PeerWsResult> peers = SyntheticData.peers((peersPerBox > 0) ? peersPerBox : boxes, boxSeed);
+		return new SimulatedDaemonStatusService(boxIpAddress, behaviour,
+				SyntheticData.platformConfiguration(boxIpAddress, "simbox" + i + ".localdomain", disksPerBox),
+				SyntheticData.repositorySpaces(disksPerBox, ausPerBox, boxSeed),
+				SyntheticData.peerAgreements(SyntheticData.aus(ausPerBox, boxSeed, auNamePadding), peers, boxSeed),
+				peers,
+				Collections.<RepositoryWsResult>emptyList());
+	}
+
+	private SimulatedDaemonStatusService replayBox(File file, String boxIpAddress) throws JAXBException {
+		BoxRecording recording = (BoxRecording) JAXBContext.newInstance(BoxRecording.class).createUnmarshaller().unmarshal(file);
+		// the recorded box answers as the simulated one
+		recording.platformConfiguration.setIpAddress(boxIpAddress);
+		recording.platformConfiguration.setV3Identity("TCP:[" + boxIpAddress + "]:9729");
+		return new SimulatedDaemonStatusService(boxIpAddress, behaviour, recording.platformConfiguration,
+				recording.repositorySpaces, recording.aus, recording.peers, recording.repositories);
+	}
+
+	private List<File> listRecordings() throws IOException {
+		if (recordingsDirectory.isEmpty()) {
+			return Collections.emptyList();
+		}
+		File[] files = new File(recordingsDirectory).listFiles((File dir, String name) -> name.endsWith(".xml"));
+		if ((files == null) || (files.length == 0)) {
+			throw new IOException("No recording found in " + recordingsDirectory);
+		}
+		Arrays.sort(files);
+		return Arrays.asList(files);
+	}
+
+	/**
+	 * Status of a box as returned by its Daemon Status Service (recording file)
+	 */
+	@XmlRootElement(name = "box")
+	@XmlAccessorType(XmlAccessType.FIELD)
+	static class BoxRecording {
+		PlatformConfigurationWsResult platformConfiguration;
+
+		@XmlElementWrapper(name = "repositorySpaces")
+		@XmlElement(name = "repositorySpace")
+		List<RepositorySpaceWsResult> repositorySpaces = new ArrayList<RepositorySpaceWsResult>();
+
+		@XmlElementWrapper(name = "aus")
+		@XmlElement(name = "au")
+		List<AuWsResult> aus = new ArrayList<AuWsResult>();
+
+		@XmlElementWrapper(name = "peers")
+		@XmlElement(name = "peer")
+		List<PeerWsResult> peers = new ArrayList<PeerWsResult>();
+
+		@XmlElementWrapper(name = "repositories")
+		@XmlElement(name = "repository")
+		List<RepositoryWsResult> repositories = new ArrayList<RepositoryWsResult>();
+	}
+
+}
@@ -1,38 +1,42 @@
 
 package org.lockss.plnmonitordaemon;
 
-import java.net.Authenticator;
-import java.net.PasswordAuthentication;
-import java.net.URL;
+import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.xml.namespace.QName;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.ws.Service;
 import javax.xml.ws.WebServiceException;
-import javax.xml.ws.BindingProvider;
 import org.lockss.ws.entities.AuWsResult;
+import org.lockss.ws.entities.LockssWebServicesFault;
 import org.lockss.ws.entities.PeerWsResult;
 import org.lockss.ws.entities.PlatformConfigurationWsResult;
 import org.lockss.ws.entities.RepositorySpaceWsResult;
 import org.lockss.ws.entities.RepositoryWsResult;
 import org.lockss.ws.status.DaemonStatusService;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 import org.mindrot.jbcrypt.BCrypt;
 
 import org.slf4j.Logger;
@@ -64,30 +68,123 @@ public class DaemonStatusWebService {
 
 	private static Logger LOGGER = LoggerFactory.getLogger(DaemonStatusWebService.class);
 
-	/** The Constant prefixDSS. Http prefix for Daemon Status Web Service URL*/
-	private static final String prefixDSS = "http://";
+	private String dbConnectionURL;
+	private String dbUser;
+	private String dbPassword;
+	private String dbDriver;
 
-	//TODO: use DSS parameters from the database for specific box (no hardcoded 8081 port but instead specific to box)
-	/** The Constant postfixDSS. Postfix for Daemon Status Web Service URL */
-	private static final String postfixDSS = "/ws/DaemonStatusService?wsdl";
+	/** Number of AUs sent to the database in a single JDBC batch */
+	private int auBatchSize = DaemonConfiguration.getInt("AU_BATCH_SIZE", 500);
 
-	/** The Constant TARGET_NAMESPACE. Daemon Status Service namespace  */
-	private static final String TARGET_NAMESPACE = "http://status.ws.lockss.org/";
+	/** Bulk load (COPY) of the data of large boxes */
+	private boolean bulkLoadEnabled = DaemonConfiguration.getBoolean("BULK_LOAD", false);
 
-	/** The Constant SERVICE_NAME. Daemon Status Service service name*/
-	private static final String SERVICE_NAME = "DaemonStatusServiceImplService";
+	/** Min number of AUs of a box for its data to be bulk loaded */
+	private int bulkLoadMinAus = DaemonConfiguration.getInt("BULK_LOAD_MIN_AUS", 10000);
 
-	/** The Constant QUERY. Daemon Status Service query to get all available info in specific order*/
-	private static final String QUERY = "select auId, name, volume, pluginName, tdbYear, accessType, contentSize, diskUsage, recentPollAgreement, tdbPublisher, availableFromPublisher, substanceState, creationTime, crawlProxy, crawlWindow, crawlPool, lastCompletedCrawl, lastCrawl, lastCrawlResult, lastCompletedPoll, lastPollResult, currentlyCrawling, currentlyPolling, subscriptionStatus, auConfiguration, newContentCrawlUrls, urlStems, isBulkContent, peerAgreements";
+	/** Pool of database connections shared by all methods (and threads) */
+	private DBConnectionPool connectionPool;
 
-	/** The Constant IPV4_PATTERN. Grep expression to identify IP address of LOCKSS boxes in the LOCKSS xml file*/
-	private static final String IPV4_PATTERN = 
-			"(?:(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)";
+	/** SQL dialect of the database server (detected by initializeDatabase) */
+	private SQLDialect dialect;
 
-	private String dbConnectionURL;
-	private String dbUser;
-	private String dbPassword;
-	private String dbDriver;
+	/** True once the database schema is up to date (see DatabaseSchema) */
+	private boolean schemaUpdated = false;
+
+	/** Dialect used while the server can't be reached, and time of the next detection attempt (see getDialect) */
+	private final SQLDialect fallbackDialect = new SQLDialect(9, 4);
+	private long dialectRetryTime = 0;
+	private long dialectRetryDelayMillis = 0;
+
+	/** Daemon Status Service clients of the LOCKSS boxes (one per box, with its credentials) */
+	private DaemonStatusClientFactory clientFactory;
+
+	/** Snapshots of the AU and repository space metrics in the history tables */
+	private volatile boolean historyEnabled = DaemonConfiguration.getBoolean("HISTORY_ENABLED", true);
+
+	/** Min interval between two snapshots of the AUs of a box */
+	private long historyAuIntervalMillis = DaemonConfiguration.getLong("HISTORY_AU_INTERVAL_MINUTES", 1440) * 60000L;
+
+	/** Number of months of history kept */
+	private int historyRetentionMonths = DaemonConfiguration.getInt("HISTORY_RETENTION_MONTHS", 24);
+
+	/** Days of hourly and daily AU rollups kept (0 keeps everything) */
+	private int rollupHourlyRetentionDays = DaemonConfiguration.getInt("ROLLUP_HOURLY_RETENTION_DAYS", 14);
+	private int rollupDailyRetentionDays = DaemonConfiguration.getInt("ROLLUP_DAILY_RETENTION_DAYS", 0);
+
+	/** Keep the former content_per_tdb_publisher table (one column per publisher) up to date, see LegacyPublisherTable */
+	private boolean legacyPublisherTableEnabled = DaemonConfiguration.getBoolean("LEGACY_PUBLISHER_TABLE", true);
+
+	/** Rollups and AU x box matrix (disabled only if their tables can't be created, see DatabaseSchema) */
+	private volatile boolean rollupsEnabled = true;
+	private volatile boolean matrixEnabled = true;
+
+	/**
+	 * Attempts of the AU matrix update of a box, retried when it is chosen as deadlock victim (SQL state 40P01) or
+	 * when another box inserted the same new AU first (23505)
+	 */
+	private static final int MATRIX_UPDATE_ATTEMPTS = 3;
+	private static final String DEADLOCK_DETECTED = "40P01";
+	private static final String UNIQUE_VIOLATION = "23505";
+
+	/** Time of the last AU snapshot of each box (box ID, time) */
+	private Map<Integer, Long> lastAuSnapshots = new ConcurrentHashMap<Integer, Long>();
+
+	/** Reader of the lockss.xml files of the networks (keeps the last peer list of each file) */
+	private PLNConfigurationReader configurationReader = new PLNConfigurationReader(DaemonConfiguration.getInt("LOCKSS_XML_TIMEOUT_SECONDS", 60) * 1000);
+
+	/** Threads running the Daemon Status Service queries of the boxes (see BoxQueries) */
+	private ExecutorService queryExecutor = BoxQueries.newExecutor();
+
+	/** Timeout of the Daemon Status Service queries of a box, except queryAus */
+	private long queryTimeoutMillis = DaemonConfiguration.getLong("DSS_QUERY_TIMEOUT_SECONDS", 120) * 1000L;
+
+	/** Timeout of the queryAus Daemon Status Service query, shorter than the deadline of the box (see auQueryTimeout) */
+	private long auQueryTimeoutMillis = auQueryTimeout(DaemonConfiguration.getLong("DSS_AU_QUERY_TIMEOUT_SECONDS", 0) * 1000L,
+			DaemonConfiguration.getLong("COLLECTOR_BOX_TIMEOUT_SECONDS", 900) * 1000L);
+
+	/** AUs parsed off the queryAus response and stored chunk by chunk while they are received (see AuStreamReader) */
+	private boolean auStreamingEnabled = DaemonConfiguration.getBoolean("DSS_AU_STREAMING", true);
+
+	/** Max number of streamed AUs held in memory before they are sent to the database */
+	private int auStreamChunkSize = DaemonConfiguration.getInt("DSS_AU_STREAM_CHUNK_SIZE", auBatchSize);
+
+	/** Min number of AUs of a box (previous collection) for its streamed queryAus call to be split into shards (0: never) */
+	private int auShardMinAus = DaemonConfiguration.getInt("DSS_AU_SHARD_MIN_AUS", 20000);
+
+	/** Splitting of the queryAus call of large boxes (shard field and target number of AUs per shard) */
+	private AuShards auShards = new AuShards(DaemonConfiguration.getString("DSS_AU_SHARD_FIELD", "tdbPublisher"),
+			DaemonConfiguration.getInt("DSS_AU_SHARD_SIZE", 10000));
+
+	/** Max number of shards of a box queried at the same time */
+	private int auShardParallelism = Math.max(1, DaemonConfiguration.getInt("DSS_AU_SHARD_PARALLELISM", 2));
+
+	/** Number of retries of a failed shard, and delay before the first one (doubled at each retry) */
+	private int auShardRetries = DaemonConfiguration.getInt("DSS_AU_SHARD_RETRIES", 2);
+	private long auShardRetryDelayMillis = DaemonConfiguration.getLong("DSS_AU_SHARD_RETRY_DELAY_SECONDS", 10) * 1000L;
+
+	/** Min interval between two collections of a box with the full AU query profile (0: always full, see AuQueryProfile) */
+	private long auFullProfileIntervalMillis = DaemonConfiguration.getLong("DSS_AU_FULL_PROFILE_INTERVAL_MINUTES", 1440) * 60000L;
+
+	/** Time of the last full AU collection stored for each box (pln ID/box ip address, time) */
+	private Map<String, Long> lastFullAuCollections = new ConcurrentHashMap<String, Long>();
+
+	/** Agreement of each peer on each AU, packed in one row per AU (see AuAgreements) */
+	private volatile boolean agreementsEnabled = DaemonConfiguration.getBoolean("AGREEMENTS_ENABLED", true);
+
+	/** Agreement types stored for each peer */
+	private List<String> agreementTypes = Arrays.asList(DaemonConfiguration.getString("AGREEMENT_TYPES", "POR, POP, SYMMETRIC_POR, SYMMETRIC_POP").split("\\s*,\\s*"));
+
+	/** IDs of the peers in the agreement rows */
+	private AuAgreements.PeerDictionary peerDictionary;
+
+	/** Index of the boxes holding each AU, summarized in au_replication (see ReplicationIndex) */
+	private volatile boolean replicationEnabled = DaemonConfiguration.getBoolean("REPLICATION_ENABLED", true);
+	private ReplicationIndex replicationIndex = new ReplicationIndex(DaemonConfiguration.getDouble("REPLICATION_MIN_AGREEMENT", 0.95),
+			DaemonConfiguration.getInt("REPLICATION_MIN_BOXES", 3));
+
+	/** AU fields not stored, passed over when parsing the streamed AUs */
+	private Set<String> auUnstoredFields = new HashSet<String>(Arrays.asList("auConfiguration", "newContentCrawlUrls", "urlStems", "peerAgreements"));
 
 
 	/**
@@ -99,6 +196,91 @@ public class DaemonStatusWebService {
 		this.dbUser = dbUser;
 		this.dbPassword = dbPassword;
 		this.dbDriver = dbDriver;
+
+		try {
+			Class.forName(dbDriver);
+		} catch (ClassNotFoundException e) {
+			LOGGER.error(e.getMessage());
+		}
+
+		this.connectionPool = new DBConnectionPool(dbConnectionURL, dbUser, dbPassword,
+				poolSize(DaemonConfiguration.getInt("DB_POOL_SIZE", 10), DaemonConfiguration.getInt("COLLECTOR_MAX_THREADS", 8)),
+				DaemonConfiguration.getLong("DB_POOL_TIMEOUT_SECONDS", 60) * 1000L,
+				DaemonConfiguration.getLong("DB_POOL_VALIDATE_AFTER_IDLE_SECONDS", 30) * 1000L,
+				DaemonConfiguration.getInt("DB_POOL_VALIDATION_TIMEOUT_SECONDS", 5),
+				DaemonConfiguration.getLong("DB_POOL_MAX_LIFETIME_MINUTES", 30) * 60000L);
+
+		this.clientFactory = DaemonStatusClientFactory.fromConfiguration();
+		this.peerDictionary = new AuAgreements.PeerDictionary(connectionPool);
+		if (agreementsEnabled) {
+			auUnstoredFields.remove("peerAgreements");
+		}
+
+		// read when the metrics are scraped (see MetricsServer)
+		CollectorMetrics.gauge("plnmonitor_db_pool_size", "Max number of database connections", () -> connectionPool.getMaxSize());
+		CollectorMetrics.gauge("plnmonitor_db_pool_active", "Database connections in use", () -> connectionPool.getActiveCount());
+		CollectorMetrics.gauge("plnmonitor_db_pool_idle", "Idle database connections", () -> connectionPool.getIdleCount());
+		CollectorMetrics.gauge("plnmonitor_db_pool_waits", "Times a caller waited for a free database connection", () -> connectionPool.getWaitCount());
+		CollectorMetrics.gauge("plnmonitor_db_pool_timeouts", "Times a caller gave up waiting for a free database connection", () -> connectionPool.getTimeoutCount());
+		CollectorMetrics.gauge("plnmonitor_dss_clients", "Cached Daemon Status Service clients", () -> clientFactory.size());
+	}
+
+	/**
+	 * Timeout of the queryAus query: 3/4 of the deadline of the box collection (COLLECTOR_BOX_TIMEOUT_SECONDS) by default,
+	 * so that a hanging query fails on its own timeout, with the box still stored, before the whole box is abandoned.
+	 * A configured timeout not shorter than the box deadline is replaced by the default.
+	 *
+	 * @param configuredMillis DSS_AU_QUERY_TIMEOUT_SECONDS in ms (0: default)
+	 * @param boxTimeoutMillis COLLECTOR_BOX_TIMEOUT_SECONDS in ms
+	 * @return the timeout in ms
+	 */
+	static long auQueryTimeout(long configuredMillis, long boxTimeoutMillis) {
+		long defaultMillis = boxTimeoutMillis * 3 / 4;
+		if (configuredMillis <= 0) {
+			return defaultMillis;
+		}
+		if (configuredMillis >= boxTimeoutMillis) {
+			LOGGER.warn("DSS_AU_QUERY_TIMEOUT_SECONDS (" + configuredMillis / 1000 + ") is not shorter than COLLECTOR_BOX_TIMEOUT_SECONDS ("
+					+ boxTimeoutMillis / 1000 + "), using " + defaultMillis / 1000);
+			return defaultMillis;
+		}
+		return configuredMillis;
+	}
+
+	/**
+	 * Size of the connection pool: each box collected at the same time holds a connection while its AUs are stored,
+	 * and needs another one for the other results, the peer IDs and the AU matrix. DB_POOL_SIZE is raised to
+	 * 2 * COLLECTOR_MAX_THREADS + 2 if it is smaller, so the boxes don't wait for each other's connections.
+	 *
+	 * @param configuredSize DB_POOL_SIZE
+	 * @param collectorThreads COLLECTOR_MAX_THREADS
+	 * @return the pool size
+	 */
+	static int poolSize(int configuredSize, int collectorThreads) {
+		int minSize = 2 * Math.max(1, collectorThreads) + 2;
+		if (configuredSize < minSize) {
+			LOGGER.warn("DB_POOL_SIZE (" + configuredSize + ") too small for COLLECTOR_MAX_THREADS (" + collectorThreads + "), using " + minSize);
+			return minSize;
+		}
+		return configuredSize;
+	}
+
+	/**
+	 * Closes the database connections
+	 */
+	public void close() {
+		queryExecutor.shutdownNow();
+		LOGGER.info("Database connection pool: " + connectionPool.getStatistics());
+		connectionPool.close();
+	}
+
+	/**
+	 * Gets the database connection pool (usage metrics)
+	 *
+	 * @return the connection pool
+	 */
+	public DBConnectionPool getConnectionPool() {
+		return connectionPool;
 	}
 
 	/**
@@ -155,32 +337,11 @@ public class DaemonStatusWebService {
 
 		try {
 
-			String insertTableSQL = 
-					"WITH upsert AS " +
-							"(UPDATE plnmonitor.pln " +
-							"SET name = ? " +
-							"WHERE config_url=? and id=? RETURNING *), " +
-
-					"inserted AS ("+
-					"INSERT INTO plnmonitor.pln " +
-					"(name,config_url,id) "+
-					"SELECT ?,?,? WHERE NOT EXISTS "+
-					"(SELECT * FROM upsert) "+
-					"RETURNING *) "+
-					"SELECT * " +
-					"FROM upsert " +
-					"union all " +
-					"SELECT * " +
-					"FROM inserted";
+			SQLDialect.Upsert upsert = getDialect().upsert("plnmonitor.pln", StatusRows.PLN_COLUMNS, StatusRows.KEY_COLUMNS.get("plnmonitor.pln"), true);
 
 			dbConnection = getDBConnection();
-			preparedStatement = dbConnection.prepareStatement(insertTableSQL, Statement.KEEP_CURRENT_RESULT);
-			preparedStatement.setString(1, name);
-			preparedStatement.setString(2, configUrl);
-			preparedStatement.setInt(3, plnID);
-			preparedStatement.setString(4, name);
-			preparedStatement.setString(5, configUrl);
-			preparedStatement.setInt(6, plnID);
+			preparedStatement = dbConnection.prepareStatement(upsert.getSQL(), Statement.KEEP_CURRENT_RESULT);
+			upsert.bind(preparedStatement, new Object[] { name, configUrl, plnID });
 
 			ResultSet rs=preparedStatement.executeQuery();
 
@@ -198,34 +359,9 @@ public class DaemonStatusWebService {
 
 		List<String> plnMembers=new  ArrayList<String>();
 
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-		factory.setNamespaceAware(true);
+		// streaming read of the peer list, lockss.xml is downloaded again only if it changed
 		try{
-			DocumentBuilder db = factory.newDocumentBuilder();
-
-			Document doc = db.parse(new URL(configUrl).openStream());
-			doc.getDocumentElement().normalize();
-			NodeList propertyList = doc.getElementsByTagName("property");
-			for (int temp = 0; temp < propertyList.getLength(); temp++) {
-				Node propertyNode = propertyList.item(temp);
-				if (propertyNode.getNodeType() == Node.ELEMENT_NODE) {
-
-					Element eElement = (Element) propertyNode;
-
-					if (eElement.getAttribute("name").contains("id.initialV3PeerList")) {
-						NodeList valuesList = eElement.getElementsByTagName("value");
-						for (int i=0; i<valuesList.getLength(); i++) {
-							LOGGER.info("Value : " + valuesList.item(i).getTextContent());
-							Pattern p = Pattern.compile(IPV4_PATTERN);
-							Matcher m = p.matcher(valuesList.item(i).getTextContent());
-							while (m.find()) {
-								plnMembers.add(m.group()) ;
-							}
-						}
-					}
-				}
-			}
-
+			plnMembers = configurationReader.getPeerAddresses(configUrl);
 		}
 		catch(Exception e){
 			LOGGER.error(e.toString());
@@ -253,50 +389,30 @@ public class DaemonStatusWebService {
 		HashMap<String, String> boxInfo = null;
 		Connection dbConnection = null;
 		PreparedStatement preparedStatement=null;
-		Service service = null;
 
 		PlatformConfigurationWsResult boxConfiguration = null;
 
 		try {
 			// Call the service and get the results of the query.
-			// Store AUs results for each server in a Hashmap (server name, list of Aus)
-			this.authenticate(username, password); //basic authentication (inline)
-
+			// basic authentication with the box credentials set on the client of the box
 			String boxSocketName = boxIpAddress + ":" + boxUIPort;
 
-			String serviceAddress=prefixDSS+boxSocketName+postfixDSS; 
-			
 			try {
-
-				service = Service.create(new URL(serviceAddress), new QName(
-						TARGET_NAMESPACE, SERVICE_NAME));
-				
+				DaemonStatusService dss = clientFactory.getClient(boxIpAddress, boxUIPort, username, password);
+				boxConfiguration = dss.getPlatformConfiguration();
 			}
-
 			catch (WebServiceException e) {
+				clientFactory.evict(boxIpAddress, boxUIPort);
+				LOGGER.error(e.toString());
 				LOGGER.error("Can't connect to the LOCKSS box " + boxSocketName);
 				LOGGER.error("*** Please check the LOCKSS box firewall settings and LOCKSS UI access control.");
 			}
 
-			try {
-				if (service != null) {  //if service available, get all data from the LOCKSS box
-					DaemonStatusService dss = service.getPort(DaemonStatusService.class);
-					BindingProvider prov = (BindingProvider)dss;
-					prov.getRequestContext().put(BindingProvider.USERNAME_PROPERTY, username);
-					prov.getRequestContext().put(BindingProvider.PASSWORD_PROPERTY, password);
-		
-					boxConfiguration = dss.getPlatformConfiguration();
-				}
-			}
-			catch (WebServiceException e) {
-				LOGGER.error(e.toString());
-			}
-
 			// if data from platform configuration is available, update the LOCKSS box table accordingly in the database
 			if (boxConfiguration!=null) {
 				//update LOCKSS box config in the LOCKSS_box database
 				//upsert: if box date identified by (ipaddress+pln id) is already in the database, update entry otherwise insert 
-				//upsert is not available in Postgres 9.4
+				//upsert form depends on the Postgres version (see SQLDialect)
 				try {
 
 					String queryTableSQL = "SELECT * FROM plnmonitor.lockss_box AS box INNER JOIN plnmonitor.lockss_box_info AS info "
@@ -367,158 +483,43 @@ public class DaemonStatusWebService {
 	public void setBoxInfo(Integer plnID, String boxIpAddress, String boxUIPort, String username, String password, String latitude, String longitude, String country, String boxname) throws SQLException{
 		Connection dbConnection = null;
 		PreparedStatement preparedStatement=null;
-		Service service = null;
 
 		PlatformConfigurationWsResult boxConfiguration = null;
 		Integer boxId=null;
 
 		try {
 			// Call the service and get the results of the query.
-			// Store AUs results for each server in a Hashmap (server name, list of Aus)
-			this.authenticate(username, password); //basic authentication (inline)
-
+			// basic authentication with the box credentials set on the client of the box
 			String boxSocketName = boxIpAddress+ ":" + boxUIPort;
 
-			String serviceAddress=prefixDSS+boxSocketName+postfixDSS; 
-
 			try {
-
-				service = Service.create(new URL(serviceAddress), new QName(TARGET_NAMESPACE, SERVICE_NAME));
+				DaemonStatusService dss = clientFactory.getClient(boxIpAddress, boxUIPort, username, password);
+				boxConfiguration = dss.getPlatformConfiguration();
 			}
-
 			catch (WebServiceException e) {
+				clientFactory.evict(boxIpAddress, boxUIPort);
 				LOGGER.error(e.toString());
 				LOGGER.error((char)27 + "[31mCan't connect to the LOCKSS box " + boxSocketName + ". Please check the LOCKSS box firewall settings and LOCKSS UI access control" + (char)27 + "[39m");
 			}
 
-			try {
-				if (service != null) {  //if service available, get all data from the LOCKSS box
-					DaemonStatusService dss = service.getPort(DaemonStatusService.class);
-					BindingProvider prov = (BindingProvider)dss;
-					prov.getRequestContext().put(BindingProvider.USERNAME_PROPERTY, username);
-					prov.getRequestContext().put(BindingProvider.PASSWORD_PROPERTY, password);
-
-					boxConfiguration = dss.getPlatformConfiguration();
-				}
-			}
-			catch (WebServiceException e) {
-				LOGGER.error(e.toString());
-			}
-
 			// if data from platform configuration is available, update the LOCKSS box table accordingly in the database
 			if (boxConfiguration!=null){
 				//update LOCKSS box config in the LOCKSS_box database
 				//upsert: if box date identified by (ipaddress+pln id) is already in the database, update entry otherwise insert 
-				//upsert is not available in Postgres 9.4
+				//upsert form depends on the Postgres version (see SQLDialect)
 				try {
 
-					String insertTableSQL = 
-							"WITH upsert AS " +
-									"(UPDATE plnmonitor.lockss_box " +
-									"SET uiport = ?, " +
-									"groups = ?, " +
-									"v3identity = ?, " +
-									"uptime = ?, " +
-									"admin_email = ?, " +
-									"disks = ?, " +
-									"\"current_time\" = ?, " +
-									"daemon_full_version = ?, " +
-									"java_version = ?, " +
-									"platform = ? " +
-									"WHERE ipaddress=? and pln=? RETURNING *), " +
-
-							"inserted AS ("+
-							"INSERT INTO plnmonitor.lockss_box " +
-							"(ipaddress,uiport,pln,groups,v3identity,uptime,admin_email,disks,\"current_time\", daemon_full_version, java_version, platform) "+
-							"SELECT ?,?,?,?,?,?,?,?,?,?,?,? WHERE NOT EXISTS "+
-							"(SELECT * FROM upsert) "+
-							"RETURNING *) "+
-							"SELECT * " +
-							"FROM upsert " +
-							"union all " +
-							"SELECT * " +
-							"FROM inserted";
-
 					dbConnection = getDBConnection();
-					preparedStatement = dbConnection.prepareStatement(insertTableSQL, Statement.KEEP_CURRENT_RESULT);
-					preparedStatement.setString(1, boxUIPort);
-					preparedStatement.setString(2, boxConfiguration.getGroups().get(0).replaceAll("\\[|\\]", ""));
-					preparedStatement.setString(3, boxConfiguration.getV3Identity().replaceAll("\\[|\\]", ""));
-					preparedStatement.setLong(4, boxConfiguration.getUptime());
-					preparedStatement.setString(5, boxConfiguration.getAdminEmail().replaceAll("\\[|\\]", ""));
-					preparedStatement.setString(6, boxConfiguration.getDisks().get(0).replaceAll("\\[|\\]", ""));
-					preparedStatement.setLong(7, boxConfiguration.getCurrentTime());
-					preparedStatement.setString(8, boxConfiguration.getDaemonVersion().toString().replaceAll("\\[|\\]", ""));
-					preparedStatement.setString(9, boxConfiguration.getJavaVersion().toString().replaceAll("\\[|\\]", ""));
-					preparedStatement.setString(10, boxConfiguration.getPlatform().toString().replaceAll("\\[|\\]", ""));
-
-					preparedStatement.setString(11, boxIpAddress);
-					preparedStatement.setInt(12, plnID);
-
-					preparedStatement.setString(13, boxIpAddress);
-					preparedStatement.setString(14, boxUIPort);
-					preparedStatement.setInt(15, plnID);
-					preparedStatement.setString(16, boxConfiguration.getGroups().get(0).replaceAll("\\[|\\]", ""));
-					preparedStatement.setString(17, boxConfiguration.getV3Identity().replaceAll("\\[|\\]", ""));
-					preparedStatement.setLong(18, boxConfiguration.getUptime());
-					preparedStatement.setString(19, boxConfiguration.getAdminEmail().replaceAll("\\[|\\]", ""));
-					preparedStatement.setString(20, boxConfiguration.getDisks().get(0).replaceAll("\\[|\\]", ""));
-					preparedStatement.setLong(21, boxConfiguration.getCurrentTime());
-					preparedStatement.setString(22, boxConfiguration.getDaemonVersion().toString().replaceAll("\\[|\\]", ""));
-					preparedStatement.setString(23, boxConfiguration.getJavaVersion().toString().replaceAll("\\[|\\]", ""));
-					preparedStatement.setString(24, boxConfiguration.getPlatform().toString().replaceAll("\\[|\\]", ""));
-					ResultSet rs=preparedStatement.executeQuery();
-					if (rs.next()) {
-						boxId = rs.getInt("id");
-					}
-					LOGGER.info("Entry for pln: "+ plnID + " with IP address "+boxIpAddress + " ----- " + boxConfiguration.getIpAddress() + "V3 identity:" +  boxConfiguration.getV3Identity() + " is inserted/updated into LOCKSS_BOX table at position "+ boxId);
+					boxId = storeBoxConfiguration(dbConnection, plnID, boxIpAddress, boxUIPort, boxConfiguration);
 
+					// update box_info table 
 
+					SQLDialect.Upsert upsert = getDialect().upsert("plnmonitor.lockss_box_info", StatusRows.BOX_INFO_COLUMNS, StatusRows.KEY_COLUMNS.get("plnmonitor.lockss_box_info"), true);
 
-					// update box_info table 
+					preparedStatement = dbConnection.prepareStatement(upsert.getSQL(), Statement.KEEP_CURRENT_RESULT);
+					upsert.bind(preparedStatement, new Object[] { boxId, username, password, Double.valueOf(longitude), Double.valueOf(latitude), country, boxname });
 
-					insertTableSQL = 
-							"WITH upsert AS " +
-									"(UPDATE plnmonitor.lockss_box_info " +
-									"SET username = ?, " +
-									"password = ?, " +
-									"longitude = ?, " +
-									"latitude = ?, " +
-									"country = ?, " +
-									"name = ? " +
-									"WHERE box=? RETURNING *), " +
-
-							"inserted AS ("+
-							"INSERT INTO plnmonitor.lockss_box_info " +
-							"(box,username,password,longitude,latitude,country,name) "+
-							"SELECT ?,?,?,?,?,?,? WHERE NOT EXISTS "+
-							"(SELECT * FROM upsert) "+
-							"RETURNING *) "+
-							"SELECT * " +
-							"FROM upsert " +
-							"union all " +
-							"SELECT * " +
-							"FROM inserted";
-
-					preparedStatement = dbConnection.prepareStatement(insertTableSQL, Statement.KEEP_CURRENT_RESULT);
-					preparedStatement.setString(1, username);
-					preparedStatement.setString(2, password);
-					preparedStatement.setDouble(3, Double.valueOf(longitude));
-					preparedStatement.setDouble(4, Double.valueOf(latitude));
-					preparedStatement.setString(5, country);
-					preparedStatement.setString(6, boxname);
-
-					preparedStatement.setInt(7, boxId);
-
-					preparedStatement.setInt(8, boxId);
-					preparedStatement.setString(9, username);
-					preparedStatement.setString(10, password);
-					preparedStatement.setDouble(11, Double.valueOf(longitude));
-					preparedStatement.setDouble(12, Double.valueOf(latitude));
-					preparedStatement.setString(13, country);
-					preparedStatement.setString(14, boxname);
-
-					rs=preparedStatement.executeQuery();
+					ResultSet rs=preparedStatement.executeQuery();
 					if (rs.next()) {
 						boxId = rs.getInt("id");
 					}
@@ -620,16 +621,23 @@ public class DaemonStatusWebService {
 	 * @throws SQLException the SQL exception
 	 */
 	public void loadDaemonStatus(Integer plnID, String boxIpAddress) throws SQLException{
+		loadDaemonStatus(plnID, boxIpAddress, EnumSet.allOf(BoxQueries.Query.class));
+	}
+
+	/**
+	 * Load daemon status.
+	 *
+	 * Get the given status info from a LOCKSS box identified by its IP address boxIpAddress.
+	 * Without the platform configuration query, the box must already be in the database.
+	 *
+	 * @param plnID the pln ID in the database
+	 * @param boxIpAddress the box ip address
+	 * @param queries the Daemon Status Service queries to issue
+	 * @throws SQLException the SQL exception
+	 */
+	public void loadDaemonStatus(Integer plnID, String boxIpAddress, Set<BoxQueries.Query> queries) throws SQLException{
 		Connection dbConnection = null;
 		PreparedStatement preparedStatement=null;
-		Service service = null;
-		List<AuWsResult> ausFromCurrentBox = null;                  
-		List<RepositorySpaceWsResult> repositoryBox = null;
-		List<PeerWsResult> peersBox = null;
-		List<RepositoryWsResult> repo = null;
-		PlatformConfigurationWsResult boxConfiguration = null;
-		Integer boxId=null;
-		Map<String, String> headers = null;
 		String username = "admin";
 		String password = "admin";
 		String boxUIPort = "8081"; //default port for LOCKSS 1.x
@@ -667,592 +675,1433 @@ public class DaemonStatusWebService {
 				}
 			}
 
-			this.authenticate(username, password); //basic authentication (inline)
-
-
-			String socketAddress = boxIpAddress + ":" + boxUIPort;
-
-	
-			String serviceAddress=prefixDSS+socketAddress+postfixDSS; 
-
+			// basic authentication with the box credentials set on the client of the box (cached between runs)
+			DaemonStatusService client = null;
 			try {
-
-				service = Service.create(new URL(serviceAddress), new QName(
-						TARGET_NAMESPACE, SERVICE_NAME));
-				
-
+				client = clientFactory.getClient(boxIpAddress, boxUIPort, username, password);
 			}
-
 			catch (WebServiceException e) {
 				LOGGER.error(e.toString());
 				LOGGER.error("\u001B[31m Nothing to do connection unavailable... \u001B[0m");
+				return;
 			}
 
-			try {
-				if (service != null) {  //if service available, get all data from the LOCKSS box
-					DaemonStatusService dss = service.getPort(DaemonStatusService.class);
-					
-					//BindingProvider prov = (BindingProvider)dss;
-					//prov.getRequestContext().put(BindingProvider.USERNAME_PROPERTY, username);
-					//prov.getRequestContext().put(BindingProvider.PASSWORD_PROPERTY, password);
-
-					
-					LOGGER.info("\u001B[32m Getting platform configuration...\u001B[0m");
-					boxConfiguration = dss.getPlatformConfiguration();
-					LOGGER.debug(boxConfiguration.toString());
-					LOGGER.info("\u001B[32m Getting repository spaces status...\u001B[0m");
-					repositoryBox = dss.queryRepositorySpaces("select *");
-					LOGGER.debug(repositoryBox.toString());
-					
-					LOGGER.info("\u001B[32m Getting AUs status... \u001B[0m");
-					ausFromCurrentBox = dss.queryAus(QUERY);
-					LOGGER.debug(ausFromCurrentBox.toString());
-					
-					LOGGER.info("\u001B[32m Getting peers status...\u001B[0m");
-					peersBox = dss.queryPeers("select *");
-					LOGGER.debug(peersBox.toString());
-					
-					LOGGER.info("\u001B[32m Getting repository status...\u001B[0m");
-					repo = dss.queryRepositories("select *");
-					LOGGER.debug(repo.toString());
-					
-				}
+			// the queries are issued concurrently; each result is stored as soon as it arrives
+			final DaemonStatusService dss = client;
+			BoxQueries boxQueries = new BoxQueries(queryExecutor, boxIpAddress);
+			BoxResultWriter writer = new BoxResultWriter(plnID, boxIpAddress, boxUIPort, selectAuProfile(plnID, boxIpAddress));
+			if (queries.contains(BoxQueries.Query.PLATFORM_CONFIGURATION)) {
+				boxQueries.submit(BoxQueries.Query.PLATFORM_CONFIGURATION, () -> dss.getPlatformConfiguration(), queryTimeoutMillis);
 			}
-			catch (WebServiceException e) {
-				LOGGER.error(e.toString());
+			else {
+				writer.useStoredBoxId();
+			}
+			if (queries.contains(BoxQueries.Query.REPOSITORY_SPACES)) {
+				boxQueries.submit(BoxQueries.Query.REPOSITORY_SPACES, () -> dss.queryRepositorySpaces("select *"), queryTimeoutMillis);
+			}
+			if (queries.contains(BoxQueries.Query.AUS) && auStreamingEnabled) {
+				// AUs stored chunk by chunk by the query thread as they are parsed off the response
+				final AuStreamReader auStreamReader = clientFactory.getAuStreamReader(boxIpAddress, boxUIPort, username, password);
+				// cancelled: the response is disconnected, so the query thread doesn't wait for the read timeout
+				boxQueries.submit(BoxQueries.Query.AUS, () -> streamAus(auStreamReader, dss, writer), auQueryTimeoutMillis, auStreamReader::abort);
+			}
+			else if (queries.contains(BoxQueries.Query.AUS)) {
+				boxQueries.submit(BoxQueries.Query.AUS, () -> dss.queryAus(writer.auProfile.getQuery()), auQueryTimeoutMillis);
+			}
+			if (queries.contains(BoxQueries.Query.PEERS)) {
+				boxQueries.submit(BoxQueries.Query.PEERS, () -> dss.queryPeers("select *"), queryTimeoutMillis);
+			}
+			if (queries.contains(BoxQueries.Query.REPOSITORIES)) {
+				boxQueries.submit(BoxQueries.Query.REPOSITORIES, () -> dss.queryRepositories("select *"), queryTimeoutMillis);
 			}
 
-			LOGGER.info("\u001B[32m Updating LOCKSS boxes configurations in the database \u001B[0m");
-			
-			// if data from plaftorm configuration is available, update the LOCKSS box table accordingly in the database
-			if (boxConfiguration!=null){
-				//update LOCKSS box config in the LOCKSS_box database
-				//upsert: if box date identified by (ipaddress+pln id) is already in the database, update entry otherwise insert 
-				//upsert is not available in Postgres 9.4
-				try {
+			List<BoxQueries.Query> failedQueries = boxQueries.await(writer);
+			if (!queries.isEmpty() && (failedQueries.size() == queries.size())) {
+				// the connection to the box failed: a new client is created next time
+				clientFactory.evict(boxIpAddress, boxUIPort);
+			}
 
-					String insertTableSQL = 
-							"WITH upsert AS " +
-									"(UPDATE plnmonitor.lockss_box " +
-									"SET uiport = ?, " +
-									"groups = ?, " +
-									"v3identity = ?, " +
-									"uptime = ?, " +
-									"admin_email = ?, " +
-									"disks = ?, " +
-									"\"current_time\" = ?, " +
-									"daemon_full_version = ?, " +
-									"java_version = ?, " +
-									"platform = ? " +
-									"WHERE ipaddress=? and pln=? RETURNING *), " +
-
-							"inserted AS ("+
-							"INSERT INTO plnmonitor.lockss_box " +
-							"(ipaddress,uiport,pln,groups,v3identity,uptime,admin_email,disks,\"current_time\", daemon_full_version, java_version, platform) "+
-							"SELECT ?,?,?,?,?,?,?,?,?,?,?,? WHERE NOT EXISTS "+
-							"(SELECT * FROM upsert) "+
-							"RETURNING *) "+
-							"SELECT * " +
-							"FROM upsert " +
-							"union all " +
-							"SELECT * " +
-							"FROM inserted";
+			// the AU summary per publisher is computed once per run (see updatePublisherSummary)
 
-					dbConnection = getDBConnection();
-					preparedStatement = dbConnection.prepareStatement(insertTableSQL, Statement.KEEP_CURRENT_RESULT);
-					preparedStatement.setString(1, boxUIPort);
-					preparedStatement.setString(2, boxConfiguration.getGroups().get(0).replaceAll("\\[|\\]", ""));
-					preparedStatement.setString(3, boxConfiguration.getV3Identity().replaceAll("\\[|\\]", ""));
-					preparedStatement.setLong(4, boxConfiguration.getUptime());
-					preparedStatement.setString(5, boxConfiguration.getAdminEmail().replaceAll("\\[|\\]", ""));
-					preparedStatement.setString(6, boxConfiguration.getDisks().get(0).replaceAll("\\[|\\]", ""));
-					preparedStatement.setLong(7, boxConfiguration.getCurrentTime());
-					preparedStatement.setString(8, boxConfiguration.getDaemonVersion().toString().replaceAll("\\[|\\]", ""));
-					preparedStatement.setString(9, boxConfiguration.getJavaVersion().toString().replaceAll("\\[|\\]", ""));
-					preparedStatement.setString(10, boxConfiguration.getPlatform().toString().replaceAll("\\[|\\]", ""));
-
-					preparedStatement.setString(11, boxIpAddress);
-					preparedStatement.setInt(12, plnID);
-
-					preparedStatement.setString(13, boxIpAddress);
-					preparedStatement.setString(14, boxUIPort);
-					preparedStatement.setInt(15, plnID);
-					preparedStatement.setString(16, boxConfiguration.getGroups().get(0).replaceAll("\\[|\\]", ""));
-					preparedStatement.setString(17, boxConfiguration.getV3Identity().replaceAll("\\[|\\]", ""));
-					preparedStatement.setLong(18, boxConfiguration.getUptime());
-					preparedStatement.setString(19, boxConfiguration.getAdminEmail().replaceAll("\\[|\\]", ""));
-					preparedStatement.setString(20, boxConfiguration.getDisks().get(0).replaceAll("\\[|\\]", ""));
-					preparedStatement.setLong(21, boxConfiguration.getCurrentTime());
-					preparedStatement.setString(22, boxConfiguration.getDaemonVersion().toString().replaceAll("\\[|\\]", ""));
-					preparedStatement.setString(23, boxConfiguration.getJavaVersion().toString().replaceAll("\\[|\\]", ""));
-					preparedStatement.setString(24, boxConfiguration.getPlatform().toString().replaceAll("\\[|\\]", ""));
-					ResultSet rs=preparedStatement.executeQuery();
-					if (rs.next()) {
-						boxId = rs.getInt("id");
-					}
-					LOGGER.info("Entry for pln: "+ plnID + " with IP address "+boxIpAddress + " ----- " + boxConfiguration.getIpAddress() + "V3 identity:" +  boxConfiguration.getV3Identity() + " is inserted/updated into LOCKSS_BOX table at position "+ boxId);
+		}
+		catch (InterruptedException e) {
+			// collection of the box abandoned (see BoxCollectionScheduler)
+			LOGGER.error("\u001B[31m Collection of " + boxIpAddress + " interrupted \u001B[0m");
+			Thread.currentThread().interrupt();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace() ;
+		}
+
+
+	}
+
+	/**
+	 * Stores the results of the queries of a box as they arrive (see BoxQueries).
+	 * The platform configuration gives the box ID: results arriving before it wait for it.
+	 */
+	private class BoxResultWriter implements BoxQueries.ResultHandler {
+		private final Integer plnID;
+		private final String boxIpAddress;
+		private final String boxUIPort;
+		/** AU fields collected in this cycle */
+		private final AuQueryProfile auProfile;
+
+		private volatile Integer boxId = null;
+		private boolean boxIdKnown = false;
+		/** Released once the box ID is known (or known to be missing), for the streamed AUs */
+		private final CountDownLatch boxIdLatch = new CountDownLatch(1);
+		private final Map<BoxQueries.Query, Object> waitingResults = new EnumMap<BoxQueries.Query, Object>(BoxQueries.Query.class);
+
+		BoxResultWriter(Integer plnID, String boxIpAddress, String boxUIPort, AuQueryProfile auProfile) {
+			this.plnID = plnID;
+			this.boxIpAddress = boxIpAddress;
+			this.boxUIPort = boxUIPort;
+			this.auProfile = auProfile;
+		}
 
+		@Override
+		public void handle(BoxQueries.Query query, Object result) throws SQLException {
+			if (query == BoxQueries.Query.PLATFORM_CONFIGURATION) {
+				// if data from platform configuration is available, update the LOCKSS box table accordingly in the database
+				LOGGER.info("\u001B[32m Updating LOCKSS boxes configurations in the database \u001B[0m");
+				LOGGER.debug(result.toString());
+				Connection dbConnection = getDBConnection();
+				try {
+					boxId = storeBoxConfiguration(dbConnection, plnID, boxIpAddress, boxUIPort, (PlatformConfigurationWsResult) result);
 				} catch (SQLException e) {
 					LOGGER.error(e.getMessage());
-
 				} finally {
-					if (preparedStatement != null) {
-						preparedStatement.close();
-					}
 					if (dbConnection != null) {
 						dbConnection.close();
 					}
-				}	
+				}
+				boxIdFound();
 			}
+			else if (!boxIdKnown) {
+				waitingResults.put(query, result);
+			}
+			else {
+				store(query, result);
+			}
+		}
 
+		@Override
+		public void failed(BoxQueries.Query query, Throwable cause) {
+			if (query == BoxQueries.Query.PLATFORM_CONFIGURATION) {
+				useStoredBoxId();
+			}
+		}
 
-			// if repository box data is collected for the current LOCKSS Box identified by box id and repository_space_lockss_id
-			// insert the results in the table lockss_box_data_current
-
-			LOGGER.info("\u001B[32m Updating LOCKSS boxes respository space in the database... \u001B[0m");
-
-			if (repositoryBox != null) {
-				for (RepositorySpaceWsResult currentBoxResult : repositoryBox) {
-					try {							
-						String insertTableSQL = "WITH upsert AS (UPDATE plnmonitor.lockss_box_data_current " +
-								"SET used = ?, " +
-								"size = ?, " +
-								"free = ?, " +
-								"percentage = ?, " +
-								"active_aus = ?, " +
-								"deleted_aus = ?, " +
-								"inactive_aus = ?, " +
-								"orphaned_aus = ? " +
-								"WHERE box=? and repository_space_lockss_id=? RETURNING *)" +
-								"INSERT INTO plnmonitor.lockss_box_data_current" +
-								"(box,used,size,free,percentage,active_aus, repository_space_lockss_id, deleted_aus, inactive_aus, orphaned_aus) "+
-								"SELECT ?,?,?,?,?,?,?,?,?,? WHERE NOT EXISTS "+
-								"(SELECT * FROM upsert)";
-
-						dbConnection = getDBConnection();
-						preparedStatement = dbConnection.prepareStatement(insertTableSQL);
-						preparedStatement.setLong(1, currentBoxResult.getUsed());
-						preparedStatement.setLong(2, currentBoxResult.getSize());
-						preparedStatement.setLong(3, currentBoxResult.getFree());
-						preparedStatement.setDouble(4, currentBoxResult.getPercentageFull());
-						preparedStatement.setLong(5, currentBoxResult.getActiveCount());
-						preparedStatement.setLong(6, currentBoxResult.getDeletedCount());
-						preparedStatement.setLong(7, currentBoxResult.getInactiveCount());
-						preparedStatement.setLong(8, currentBoxResult.getOrphanedCount());
-
-						preparedStatement.setLong(9, boxId );
-						preparedStatement.setString(10, currentBoxResult.getRepositorySpaceId());
-
-						preparedStatement.setLong(11, boxId );
-						preparedStatement.setLong(12, currentBoxResult.getUsed());
-						preparedStatement.setLong(13, currentBoxResult.getSize());
-						preparedStatement.setLong(14, currentBoxResult.getFree());
-						preparedStatement.setDouble(15, currentBoxResult.getPercentageFull());
-						preparedStatement.setLong(16, currentBoxResult.getActiveCount());
-						preparedStatement.setString(17, currentBoxResult.getRepositorySpaceId());
-						preparedStatement.setLong(18,currentBoxResult.getDeletedCount());
-						preparedStatement.setLong(19,currentBoxResult.getInactiveCount());
-						preparedStatement.setLong(20, currentBoxResult.getOrphanedCount());
-
-						LOGGER.debug(preparedStatement.toString());
-						preparedStatement.executeUpdate();
-
-						LOGGER.debug("Record is inserted and updated into database table LOCKSS_box_data_current for boxId" + boxId + " Repository Id: " + currentBoxResult.getRepositorySpaceId());
-
-					} catch (SQLException e) {
-
-						LOGGER.error(e.getMessage());
-
-					} finally {
-
-						if (preparedStatement != null) {
-							preparedStatement.close();
-						}
+		/**
+		 * Uses the ID of the box stored by a previous collection
+		 */
+		void useStoredBoxId() {
+			boxId = findBoxId(plnID, boxIpAddress);
+			try {
+				boxIdFound();
+			} catch (SQLException e) {
+				LOGGER.error(e.getMessage());
+			}
+		}
 
-						if (dbConnection != null) {
-							dbConnection.close();
-						}
+		/**
+		 * Waits until the box ID is known (called by the query thread streaming the AUs)
+		 *
+		 * @return the box ID, or null if the box is not in the database
+		 * @throws InterruptedException if the query is cancelled
+		 */
+		Integer awaitBoxId() throws InterruptedException {
+			boxIdLatch.await();
+			return boxId;
+		}
 
-					}
+		/**
+		 * Records that the AUs of the box were stored with the full profile
+		 */
+		void ausStored() {
+			if (auProfile.isFull()) {
+				lastFullAuCollections.put(plnID + "/" + boxIpAddress, System.currentTimeMillis());
+			}
+		}
 
+		private void boxIdFound() throws SQLException {
+			boxIdKnown = true;
+			boxIdLatch.countDown();
+			for (Map.Entry<BoxQueries.Query, Object> entry : waitingResults.entrySet()) {
+				// a failed result doesn't prevent the next ones from being stored
+				try {
+					store(entry.getKey(), entry.getValue());
+				} catch (SQLException e) {
+					LOGGER.error("Storing " + entry.getKey() + " of " + boxIpAddress + " failed: " + e.getMessage());
+					CollectorMetrics.failure(boxIpAddress, "store_" + CollectorMetrics.callName(entry.getKey()));
 				}
+			}
+			waitingResults.clear();
+		}
 
+		@SuppressWarnings("unchecked")
+		private void store(BoxQueries.Query query, Object result) throws SQLException {
+			if (boxId == null) {
+				LOGGER.error("\u001B[31m Box " + boxIpAddress + " is not in the database, " + query + " not stored \u001B[0m");
+				return;
+			}
 
-				// if peers box data is collected from the LOCKSS Box, insert the results in the table Peers
-				LOGGER.info("\u001B[32m Updating peers status in the database... \u001B[0m");
-
-				if (peersBox != null) {
-
-					for (PeerWsResult currentPeer : peersBox) {
-
-						try {							
-							String insertTableSQL = "WITH upsert AS (UPDATE plnmonitor.peer " +
-									"SET box = ?, " +
-									"last_poll = ?, " +
-									"polls_called = ?, " +
-									"last_invitation = ?, " +
-									"last_vote = ?, " +
-									"peer_lockss_id = ?, " +
-									"last_message = ?, " +
-									"invitation_count = ?, " +
-									"message_count = ?, " +
-									"message_type = ?, " +
-									"polls_rejected = ?, " +
-									"votes_cast = ? " + 
-									"WHERE box=? and peer_lockss_id=? RETURNING *)" +
-									"INSERT INTO plnmonitor.peer " +
-									"(box,last_poll,polls_called,last_invitation,last_vote,peer_lockss_id,last_message, invitation_count, message_count, message_type, polls_rejected, votes_cast) "+
-									"SELECT " +
-									"?,?,?,?,? ,?,?,?,?,? ,?,? WHERE NOT EXISTS "+
-									"(SELECT * FROM upsert)";
-
-							dbConnection = getDBConnection();
-							preparedStatement = dbConnection.prepareStatement(insertTableSQL);
-							preparedStatement.setLong(1, boxId);
-							preparedStatement.setLong(2, currentPeer.getLastPoll());
-							preparedStatement.setLong(3, currentPeer.getPollsCalled());
-							preparedStatement.setLong(4, currentPeer.getLastInvitation());
-							preparedStatement.setLong(5, currentPeer.getLastVote());
-							preparedStatement.setString(6, currentPeer.getPeerId());
-							preparedStatement.setLong(7, currentPeer.getLastMessage());
-							preparedStatement.setLong(8, currentPeer.getInvitationCount());
-							preparedStatement.setLong(9, currentPeer.getMessageCount());
-							preparedStatement.setString(10, currentPeer.getMessageType());
-							preparedStatement.setLong(11, currentPeer.getPollsRejected());
-							preparedStatement.setLong(12, currentPeer.getVotesCast() );
-
-							preparedStatement.setLong(13, boxId );
-							preparedStatement.setString(14, currentPeer.getPeerId() );
-
-							preparedStatement.setLong(15, boxId);
-							preparedStatement.setLong(16, currentPeer.getLastPoll());
-							preparedStatement.setLong(17, currentPeer.getPollsCalled());
-							preparedStatement.setLong(18, currentPeer.getLastInvitation());
-							preparedStatement.setLong(19, currentPeer.getLastVote());
-							preparedStatement.setString(20, currentPeer.getPeerId());
-							preparedStatement.setLong(21, currentPeer.getLastMessage());
-							preparedStatement.setLong(22, currentPeer.getInvitationCount());
-							preparedStatement.setLong(23, currentPeer.getMessageCount());
-							preparedStatement.setString(24, currentPeer.getMessageType());
-							preparedStatement.setLong(25, currentPeer.getPollsRejected());
-							preparedStatement.setLong(26, currentPeer.getVotesCast() );
-							//preparedStatement.setInt(28, currentPeer.getPeerId().hashCode() );
-
-							//System.out.println(preparedStatement.toString());
-							preparedStatement.executeUpdate();
-
-							//LOGGER.info("Record is inserted into Peers table!");
-
-						} catch (SQLException e) {
-
-							LOGGER.error(e.getMessage());
-
-						} finally {
-
-							if (preparedStatement != null) {
-								preparedStatement.close();
-							}
-
-							if (dbConnection != null) {
-								dbConnection.close();
-							}
-
-						}
-					}
-
-					// if AUs box data is collected from the LOCKSS Box, insert the results in the table AU_current
-					LOGGER.info("\u001B[32m Updating AU status in the database... \u001B[0m");
-
-					if (ausFromCurrentBox != null) {
-						for (AuWsResult currentAU :  ausFromCurrentBox) {
-							try {							
-								String insertTableSQL = "WITH upsert AS (UPDATE plnmonitor.au_current " +
-										"SET box = ?, " +
-										"name = ?, " +
-										"plugin_name = ?, " +
-										"tdb_year = ?, " +
-										"access_type = ?, " +
-										"content_size = ?, " +
-										"recent_poll_agreement = ?, " +
-										"creation_time = ?, " +
-										"au_lockss_id = ?, " +
-										"tdb_publisher = ?, " +
-										"volume = ?, " + 
-										"disk_usage = ?, " + 
-										"last_completed_crawl = ?, " + 
-										"last_completed_poll = ?, " + 
-										"last_crawl = ?, " + 
-										"last_poll = ?, " + 
-										"crawl_pool = ?, " + 
-										"crawl_proxy = ? ," + 
-										"crawl_window = ?, " + 
-										"last_crawl_result = ?, " + 
-										"last_poll_result = ?, " + 
-										"publishing_platform = ?, " + 
-										"repository_path = ?, " + 
-										"subscription_status = ?, " +
-										"substance_state = ?, " + 
-										"available_from_publisher = ? " + 
-										"WHERE box=? and au_lockss_id=? RETURNING *)" +
-										"INSERT INTO plnmonitor.au_current " +
-										"(box,name,plugin_name,tdb_year,access_type,content_size,recent_poll_agreement,creation_time,au_lockss_id,tdb_publisher,volume,disk_usage,last_completed_crawl,last_completed_poll,last_crawl,last_poll,crawl_pool,crawl_proxy,crawl_window,last_crawl_result,last_poll_result,publishing_platform,repository_path,subscription_status,substance_state,available_from_publisher)" + 
-										"SELECT " +
-										"?,?,?,?,? ,?,?,?,?,? ,?,?,?,?,?, ?,?,?,?,?, ?,?,?,?,?, ? WHERE NOT EXISTS "+
-										"(SELECT * FROM upsert)";
-
-								dbConnection = getDBConnection();
-								preparedStatement = dbConnection.prepareStatement(insertTableSQL);
-								preparedStatement.setLong(1, boxId);
-								preparedStatement.setString(2, currentAU.getName());
-								preparedStatement.setString(3, currentAU.getPluginName());
-								preparedStatement.setString(4, currentAU.getTdbYear());
-								preparedStatement.setString(5, (currentAU.getAccessType()!=null)?currentAU.getAccessType():"");
-								preparedStatement.setLong(6, currentAU.getContentSize());
-								preparedStatement.setDouble(7, (currentAU.getRecentPollAgreement()!=null)?currentAU.getRecentPollAgreement():0);
-								preparedStatement.setLong(8, currentAU.getCreationTime());
-								preparedStatement.setString(9, currentAU.getAuId());
-								preparedStatement.setString(10, currentAU.getTdbPublisher());
-								preparedStatement.setString(11, currentAU.getVolume());
-								preparedStatement.setLong(12, (currentAU.getDiskUsage()!=null)?currentAU.getDiskUsage():0);
-								preparedStatement.setLong(13, (currentAU.getLastCompletedCrawl()!=null)?currentAU.getLastCompletedCrawl():0);
-								preparedStatement.setLong(14, (currentAU.getLastCompletedPoll()!=null)? currentAU.getLastCompletedPoll():0);
-								preparedStatement.setLong(15, (currentAU.getLastCrawl()!=null)? currentAU.getLastCrawl():0);
-								preparedStatement.setLong(16, (currentAU.getLastPoll()!= null)?currentAU.getLastPoll():0);
-								preparedStatement.setString(17, currentAU.getCrawlPool());
-								preparedStatement.setString(18, (currentAU.getCrawlProxy()!=null)?currentAU.getCrawlProxy():"");
-								preparedStatement.setString(19, (currentAU.getCrawlWindow()!=null)?currentAU.getCrawlWindow():"");
-								preparedStatement.setString(20, currentAU.getLastCrawlResult());
-								preparedStatement.setString(21, currentAU.getLastPollResult());
-								preparedStatement.setString(22, (currentAU.getPublishingPlatform()!=null)?currentAU.getPublishingPlatform():"");
-								preparedStatement.setString(23, (currentAU.getRepositoryPath()!=null)?currentAU.getRepositoryPath():"");
-								preparedStatement.setString(24, (currentAU.getSubscriptionStatus()!=null)?currentAU.getSubscriptionStatus(): "");
-								preparedStatement.setString(25, currentAU.getSubstanceState());
-								preparedStatement.setBoolean(26, currentAU.getAvailableFromPublisher());
-
-								preparedStatement.setLong(27, boxId);
-								preparedStatement.setString(28, currentAU.getAuId());
-
-								preparedStatement.setLong(29, boxId);
-								preparedStatement.setString(30, currentAU.getName());
-								preparedStatement.setString(31, currentAU.getPluginName());
-								preparedStatement.setString(32, currentAU.getTdbYear());
-								preparedStatement.setString(33, (currentAU.getAccessType()!=null)?currentAU.getAccessType():"");
-								preparedStatement.setLong(34, currentAU.getContentSize());
-								preparedStatement.setDouble(35, (currentAU.getRecentPollAgreement()!=null)?currentAU.getRecentPollAgreement():0);
-								preparedStatement.setLong(36, currentAU.getCreationTime());
-								preparedStatement.setString(37, currentAU.getAuId());
-								preparedStatement.setString(38, currentAU.getTdbPublisher());
-								preparedStatement.setString(39, currentAU.getVolume());
-								preparedStatement.setLong(40, (currentAU.getDiskUsage()!=null)?currentAU.getDiskUsage():0);
-								preparedStatement.setLong(41, (currentAU.getLastCompletedCrawl()!=null)?currentAU.getLastCompletedCrawl():0);
-								preparedStatement.setLong(42, (currentAU.getLastCompletedPoll()!=null)? currentAU.getLastCompletedPoll():0);
-								preparedStatement.setLong(43, (currentAU.getLastCrawl()!=null)? currentAU.getLastCrawl():0);
-								preparedStatement.setLong(44, (currentAU.getLastPoll()!= null)?currentAU.getLastPoll():0);
-								preparedStatement.setString(45, currentAU.getCrawlPool());
-								preparedStatement.setString(46, (currentAU.getCrawlProxy()!=null)?currentAU.getCrawlProxy():"");
-								preparedStatement.setString(47, (currentAU.getCrawlWindow()!=null)?currentAU.getCrawlWindow():"");
-								preparedStatement.setString(48, currentAU.getLastCrawlResult());
-								preparedStatement.setString(49, currentAU.getLastPollResult());
-								preparedStatement.setString(50, currentAU.getPublishingPlatform());
-								preparedStatement.setString(51, (currentAU.getRepositoryPath()!=null)?currentAU.getRepositoryPath():"");
-								preparedStatement.setString(52, (currentAU.getSubscriptionStatus()!=null)?currentAU.getSubscriptionStatus(): "");
-								preparedStatement.setString(53, currentAU.getSubstanceState());
-								preparedStatement.setBoolean(54, currentAU.getAvailableFromPublisher());
-
-								preparedStatement.executeUpdate();
-								//LOGGER.info(preparedStatement.toString());
-								//LOGGER.info("Record "+ currentAU.getName() + " is inserted into AU_current table.");
-
-							} catch (Exception e) {
-
-								LOGGER.error(e.getMessage());
-
-							} finally {
-
-								if (preparedStatement != null) {
-									preparedStatement.close();
-								}
-
-								if (dbConnection != null) {
-									dbConnection.close();
-								}
-
-							}
-						}
-					}
-
-					// if AUs box data is collected from the LOCKSS Box, insert the results in the table AU_current
-					LOGGER.info("\u001B[32m Updating AU summary status in the database... \u001B[0m");
-
-					
-					// select distinct(tdb_publisher) from au_current; 
-					// for each tdb_publisher get total size
-					//WITH distinctAU AS (SELECT name, tdb_publisher, MAX(content_size)as content_size FROM au_current GROUP BY name, tdb_publisher) select SUM(CASE WHEN tdb_publisher = 'Universiteit Gent' THEN content_size/2 END) AS "Universiteit Gent" from distinctAU;
-					
-					// upsert (tdb_publisher, size) to table
-					try {							
-
-						ArrayList<String> tdbPublishers = new ArrayList<String>();
-					
-					
-						String queryTableSQL = "SELECT distinct(tdb_publisher) FROM plnmonitor.au_current"; 
-
-						dbConnection = getDBConnection();
-						preparedStatement = dbConnection.prepareStatement(queryTableSQL, Statement.KEEP_CURRENT_RESULT);
-
-						ResultSet rs=preparedStatement.executeQuery();
-
-						while (rs.next()) {
-							tdbPublishers.add(rs.getString("tdb_publisher"));
-						}
-					    
-						String SQLRequest;
-						
-						if (tdbPublishers != null) {
-							SQLRequest = "DROP TABLE IF EXISTS content_per_tdb_publisher"; 
-							preparedStatement = dbConnection.prepareStatement(SQLRequest);
-							preparedStatement.executeUpdate();
-							
-							SQLRequest = "CREATE TABLE content_per_tdb_publisher(id serial primary key)";
-							preparedStatement = dbConnection.prepareStatement(SQLRequest);
-							preparedStatement.executeUpdate();
-
-							//TODO: Replace ID=1 by PLNid 
-							SQLRequest = "INSERT INTO content_per_tdb_publisher(id) VALUES (1)";
-							preparedStatement = dbConnection.prepareStatement(SQLRequest);
-							preparedStatement.executeUpdate();
-
-						}
-						for (String tdbPublisher : tdbPublishers) {
-							if (tdbPublisher != null && !tdbPublisher.isEmpty()) {
-								queryTableSQL = "WITH distinctAU AS (SELECT name, tdb_publisher, MAX(content_size) as content_size FROM au_current GROUP BY name, tdb_publisher) select SUM(CASE WHEN tdb_publisher = \'" + tdbPublisher + "\' THEN content_size END) as content_size from distinctAU";
-								preparedStatement = dbConnection.prepareStatement(queryTableSQL, Statement.KEEP_CURRENT_RESULT);
-							
-								Long contentSize=(long) 0;
-								ResultSet tdbResults=preparedStatement.executeQuery();
-								if (tdbResults.next()) {
-									contentSize = tdbResults.getLong("content_size");
-								}
-							
-//								String insertTableSQL = "WITH upsert AS (UPDATE plnmonitor.au_per_publisher " +
-//									"SET tdb_publisher = ?, " +
-//									"content_size = ? " + 
-//									"WHERE tdb_publisher=? RETURNING *)" +
-//									"INSERT INTO plnmonitor.au_per_publisher " +
-//									"(tdb_publisher,content_size)" + 
-//									"SELECT " +
-//									"?,? WHERE NOT EXISTS "+
-//									"(SELECT * FROM upsert)";
-//
-//								preparedStatement = dbConnection.prepareStatement(insertTableSQL);
-//								preparedStatement.setString(1, tdbPublisher);
-//								preparedStatement.setLong(2, contentSize);
-//
-//								preparedStatement.setString(3, tdbPublisher);
-//
-//								preparedStatement.setString(4, tdbPublisher);
-//								preparedStatement.setLong(5, contentSize);
-//							
-//								System.out.println(preparedStatement.toString());
-//							
-//								preparedStatement.executeUpdate();
-								
-								
-								SQLRequest ="ALTER TABLE content_per_tdb_publisher add column \"" + tdbPublisher + "\" bigint";
-								preparedStatement = dbConnection.prepareStatement(SQLRequest);
-								preparedStatement.executeUpdate();
-									            
-								//TODO: replace id=1 by PLN ID
-								SQLRequest = "UPDATE content_per_tdb_publisher set \"" + tdbPublisher + "\"= " + contentSize + " where id=1";
-								preparedStatement = dbConnection.prepareStatement(SQLRequest);
-								preparedStatement.executeUpdate();
-								
-							}
-						}
+			switch (query) {
+			case REPOSITORY_SPACES:
+				// insert the repository spaces of the box identified by box id and repository_space_lockss_id in lockss_box_data_current
+				LOGGER.info("\u001B[32m Updating LOCKSS boxes respository space in the database... \u001B[0m");
+				storeRepositorySpaces(boxId, (List<RepositorySpaceWsResult>) result);
+				break;
 
-					} catch (SQLException e)  {
-						LOGGER.error(e.getMessage());
+			case PEERS:
+				LOGGER.info("\u001B[32m Updating peers status in the database... \u001B[0m");
+				storePeers(boxId, (List<PeerWsResult>) result);
+				break;
 
-					} finally {
-						if (preparedStatement != null) {
-							preparedStatement.close();
-						}
-					if (dbConnection != null) {
-						dbConnection.close();
-					}
+			case AUS:
+				if (result instanceof Long) {
+					// streamed AUs, already stored (see streamAus)
+					break;
 				}
-					
-					
-					
+				List<AuWsResult> ausFromCurrentBox = (List<AuWsResult>) result;
+				LOGGER.debug(ausFromCurrentBox.size() + " AUs received from " + boxIpAddress + " (" + auProfile + " profile)");
+				if (!auProfile.isFull()) {
+					LOGGER.info("\u001B[32m Updating AU status in the database (" + auProfile + " profile)... \u001B[0m");
+					storeAus(boxId, ausFromCurrentBox, auProfile);
 				}
+				else if (useBulkLoad(ausFromCurrentBox)) {
+					// large box: AUs are streamed to the database with COPY
+					LOGGER.info("\u001B[32m Bulk loading AU status in the database... \u001B[0m");
+					bulkLoad(boxId, null, null, ausFromCurrentBox);
+				}
+				else {
+					LOGGER.info("\u001B[32m Updating AU status in the database... \u001B[0m");
+					storeAus(boxId, ausFromCurrentBox);
+				}
+				ausStored();
+				break;
 
-			}
-
+			case REPOSITORIES:
+				// not stored
+				LOGGER.debug(((List<RepositoryWsResult>) result).toString());
+				break;
 
+			default:
+				break;
+			}
 		}
-		catch (Exception e)
-		{
-			e.printStackTrace() ;
-		}
-
-
 	}
 
-	/** Set admin credentials in the plnmonitor database
-	 * @return 
-	 * 
+	/**
+	 * Finds the ID of a box in the lockss_box table
+	 *
+	 * @param plnID the pln ID in the database
+	 * @param boxIpAddress the box ip address
+	 * @return the box ID, or null if the box is not in the database
 	 */
-	public void setCredentials(String username, String role, String password)
-	{
+	public Integer findBoxId(Integer plnID, String boxIpAddress) {
 		Connection dbConnection = null;
-		PreparedStatement preparedStatement=null;
-
-		try {				
-			Integer userId = null;
-			String pwHash = BCrypt.hashpw(password, BCrypt.gensalt()); 
-
-			String configUrlQuery = "UPSERT * from plnmonitor.user where name=" + username;
-
-			dbConnection = getDBConnection();
-
-			String insertTableSQL = 
-					"WITH upsert AS " +
-							"(UPDATE plnmonitor.user " +
-							"SET \"passwordHash\" = ?, " +
-							"role = ? "  +
-							"WHERE name=? RETURNING *), " +
-
-					"inserted AS ("+
-					"INSERT INTO plnmonitor.user " +
-					"(name,\"passwordHash\",role) "+
-					"SELECT ?,?,? WHERE NOT EXISTS "+
-					"(SELECT * FROM upsert) "+
-					"RETURNING *) "+
-					"SELECT * " +
-					"FROM upsert " +
-					"union all " +
-					"SELECT * " +
-					"FROM inserted";
-
+		try {
 			dbConnection = getDBConnection();
-			preparedStatement = dbConnection.prepareStatement(insertTableSQL, Statement.KEEP_CURRENT_RESULT);
-			preparedStatement.setString(1, pwHash);
-			preparedStatement.setString(2, role);
-			preparedStatement.setString(3, username);
-
-			preparedStatement.setString(4, username);
-			preparedStatement.setString(5, pwHash);
-			preparedStatement.setString(6, role);
-
-			//System.out.println(preparedStatement.toString());
-			ResultSet rs=preparedStatement.executeQuery();
+			PreparedStatement preparedStatement = dbConnection.prepareStatement("SELECT id FROM plnmonitor.lockss_box WHERE ipaddress = ? AND pln = ?");
+			preparedStatement.setString(1, boxIpAddress);
+			preparedStatement.setInt(2, plnID);
+			ResultSet rs = preparedStatement.executeQuery();
 			if (rs.next()) {
-				userId = rs.getInt("id");
-				LOGGER.info("Added or updated user: " + username + " to the database with ID: " + userId + " " + pwHash  );
+				return rs.getInt("id");
 			}
-		}
-		catch (SQLException e) {
-
+		} catch (SQLException e) {
+			LOGGER.error(e.getMessage());
+		} finally {
+			try {
+				if (dbConnection != null) {
+					dbConnection.close();
+				}
+			} catch (SQLException e) {
+				LOGGER.error(e.getMessage());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the boxes of a PLN shown in the dashboards, from the database only (no box is queried)
+	 *
+	 * @param plnID the pln ID in the database
+	 * @return box ID of each box name (nickname of lockss_box_info, or IP address), in box ID order;
+	 * 	null if the boxes can't be read
+	 */
+	public Map<String, Integer> getDashboardBoxes(Integer plnID) {
+		Connection dbConnection = null;
+		try {
+			dbConnection = getDBConnection();
+			PreparedStatement preparedStatement = dbConnection.prepareStatement("SELECT box.id, box.ipaddress, info.name "
+					+ "FROM plnmonitor.lockss_box AS box LEFT JOIN plnmonitor.lockss_box_info AS info ON info.box = box.id "
+					+ "WHERE box.pln = ? ORDER BY box.id");
+			preparedStatement.setInt(1, plnID);
+			ResultSet rs = preparedStatement.executeQuery();
+			Map<String, Integer> boxIds = new LinkedHashMap<String, Integer>();
+			while (rs.next()) {
+				String boxname = rs.getString("name");
+				if ((boxname == null) || boxname.isEmpty()) {
+					boxname = rs.getString("ipaddress");
+				}
+				else if (boxIds.containsKey(boxname)) {
+					// two boxes with the same nickname: one column (and dashboard) each
+					boxname = boxname + " (" + rs.getString("ipaddress") + ")";
+				}
+				boxIds.put(boxname, rs.getInt("id"));
+			}
+			return boxIds;
+		} catch (SQLException e) {
+			LOGGER.error(e.getMessage());
+		} finally {
+			try {
+				if (dbConnection != null) {
+					dbConnection.close();
+				}
+			} catch (SQLException e) {
+				LOGGER.error(e.getMessage());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the location of the boxes of a PLN already in lockss_box_info (no box is queried)
+	 *
+	 * @param plnID the pln ID in the database
+	 * @return the location of each box IP address located, empty if they can't be read
+	 */
+	public Map<String, GeoLocationProvider.Location> getBoxLocations(Integer plnID) {
+		Map<String, GeoLocationProvider.Location> boxLocations = new HashMap<String, GeoLocationProvider.Location>();
+		Connection dbConnection = null;
+		try {
+			dbConnection = getDBConnection();
+			PreparedStatement preparedStatement = dbConnection.prepareStatement("SELECT box.ipaddress, info.latitude, info.longitude, info.country "
+					+ "FROM plnmonitor.lockss_box AS box INNER JOIN plnmonitor.lockss_box_info AS info ON info.box = box.id "
+					+ "WHERE box.pln = ? AND info.latitude IS NOT NULL AND info.longitude IS NOT NULL");
+			preparedStatement.setInt(1, plnID);
+			ResultSet rs = preparedStatement.executeQuery();
+			while (rs.next()) {
+				boxLocations.put(rs.getString("ipaddress"), new GeoLocationProvider.Location(rs.getString("country"), null,
+						Double.toString(rs.getDouble("latitude")), Double.toString(rs.getDouble("longitude"))));
+			}
+		} catch (SQLException e) {
+			LOGGER.error(e.getMessage());
+		} finally {
+			try {
+				if (dbConnection != null) {
+					dbConnection.close();
+				}
+			} catch (SQLException e) {
+				LOGGER.error(e.getMessage());
+			}
+		}
+		return boxLocations;
+	}
+
+	/**
+	 * Gets the TDB publishers of a PLN shown in the dashboards, from the content_per_publisher summary
+	 * (see updatePublisherSummary), or from au_current if the summary hasn't been computed yet
+	 *
+	 * @param plnID the pln ID in the database
+	 * @return the TDB publishers, null if they can't be read
+	 */
+	public List<String> getDashboardPublishers(Integer plnID) {
+		List<String> tdbPublishers = null;
+		Connection dbConnection = null;
+		try {
+			dbConnection = getDBConnection();
+			PreparedStatement preparedStatement = dbConnection.prepareStatement("SELECT tdb_publisher FROM plnmonitor.content_per_publisher "
+					+ "WHERE pln = ? ORDER BY tdb_publisher");
+			preparedStatement.setInt(1, plnID);
+			ResultSet rs = preparedStatement.executeQuery();
+			tdbPublishers = new ArrayList<String>();
+			while (rs.next()) {
+				tdbPublishers.add(rs.getString("tdb_publisher"));
+			}
+		} catch (SQLException e) {
+			LOGGER.error(e.getMessage());
+		} finally {
+			try {
+				if (dbConnection != null) {
+					dbConnection.close();
+				}
+			} catch (SQLException e) {
+				LOGGER.error(e.getMessage());
+			}
+		}
+
+		if ((tdbPublishers == null) || tdbPublishers.isEmpty()) {
+			try {
+				return getTdbPublishers(plnID);
+			} catch (SQLException e) {
+				LOGGER.error(e.getMessage());
+			}
+		}
+		return tdbPublishers;
+	}
+
+	/**
+	 * Updates the content size per TDB publisher of each PLN in the content_per_publisher table
+	 *
+	 * The summary is computed by a single grouped aggregate over au_current (an AU stored in several boxes
+	 * is counted once, with its max content size) and replaces the previous one in a single transaction:
+	 * readers keep seeing the previous summary until the commit and no DDL lock is taken.
+	 * The former content_per_tdb_publisher table is updated from it in the same transaction (see LegacyPublisherTable).
+	 * Called once per collection run, after all boxes have been collected.
+	 */
+	public void updatePublisherSummary() {
+		Connection dbConnection = null;
+		long start = System.currentTimeMillis();
+
+		LOGGER.info("\u001B[32m Updating AU summary status in the database... \u001B[0m");
+
+		try {
+			dbConnection = getDBConnection();
+			if (dbConnection == null) {
+				return;
+			}
+			dbConnection.setAutoCommit(false);
+
+			Statement statement = dbConnection.createStatement();
+			statement.executeUpdate("DELETE FROM plnmonitor.content_per_publisher");
+			int publisherCount = statement.executeUpdate("INSERT INTO plnmonitor.content_per_publisher (pln, tdb_publisher, content_size, au_count, computed_at) "
+					+ "SELECT pln, tdb_publisher, SUM(content_size), COUNT(*), now() FROM "
+					+ "(SELECT lockss_box.pln, au_current.name, au_current.tdb_publisher, MAX(au_current.content_size) AS content_size "
+					+ "FROM plnmonitor.au_current INNER JOIN plnmonitor.lockss_box ON lockss_box.id = au_current.box "
+					+ "WHERE au_current.tdb_publisher <> '' "
+					+ "GROUP BY lockss_box.pln, au_current.name, au_current.tdb_publisher) AS distinctAU "
+					+ "GROUP BY pln, tdb_publisher");
+			if (legacyPublisherTableEnabled) {
+				LegacyPublisherTable.update(dbConnection);
+			}
+
+			dbConnection.commit();
+			CollectorMetrics.observeDbOperation("update_publisher_summary", System.currentTimeMillis() - start);
+			CollectorMetrics.rowsWritten("plnmonitor.content_per_publisher", publisherCount);
+			LOGGER.info("Content size of " + publisherCount + " TDB publishers updated in " + (System.currentTimeMillis() - start) + " ms");
+
+		} catch (SQLException e) {
+			LOGGER.error(e.getMessage());
+			try {
+				if (dbConnection != null) {
+					dbConnection.rollback();
+				}
+			} catch (SQLException e1) {
+				LOGGER.error(e1.getMessage());
+			}
+
+		} finally {
+			try {
+				if (dbConnection != null) {
+					dbConnection.close();
+				}
+			} catch (SQLException e) {
+				LOGGER.error(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Writes the AUs whose replication changed during the run to au_replication (see ReplicationIndex).
+	 * Called once per collection run, after the AUs of all the boxes have been stored.
+	 */
+	public void updateReplication() {
+		if (!replicationEnabled) {
+			return;
+		}
+		Connection dbConnection = null;
+		long start = System.currentTimeMillis();
+
+		LOGGER.info("\u001B[32m Updating AU replication in the database... \u001B[0m");
+
+		try {
+			dbConnection = getDBConnection();
+			if (dbConnection == null) {
+				return;
+			}
+			dbConnection.setAutoCommit(false);
+
+			int atRisk = replicationIndex.write(dbConnection, getDialect(), auBatchSize);
+
+			dbConnection.commit();
+			CollectorMetrics.observeDbOperation("update_replication", System.currentTimeMillis() - start);
+			LOGGER.info("AU replication updated in " + (System.currentTimeMillis() - start) + " ms: " + atRisk + " AUs at risk");
+
+		} catch (SQLException e) {
+			LOGGER.error(e.getMessage());
+			// au_replication no longer matches the index: written again from au_current next time
+			replicationIndex.reset();
+			try {
+				if (dbConnection != null) {
+					dbConnection.rollback();
+				}
+			} catch (SQLException e1) {
+				LOGGER.error(e1.getMessage());
+			}
+
+		} finally {
+			try {
+				if (dbConnection != null) {
+					dbConnection.close();
+				}
+			} catch (SQLException e) {
+				LOGGER.error(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Reads the AUs of a box for the replication index, in the transaction storing them
+	 *
+	 * @return the update of the index, or null if the index is not in use yet
+	 */
+	private ReplicationIndex.BoxUpdate readReplication(Connection dbConnection, Integer boxId) throws SQLException {
+		if (!replicationEnabled || !replicationIndex.isLoaded()) {
+			return null;
+		}
+		return replicationIndex.read(dbConnection, boxId);
+	}
+
+	/**
+	 * Updates the hourly and daily AU rollups (see RollupTables) from au_current.
+	 * Called once per collection run, after the AUs of all the boxes have been stored.
+	 */
+	public void updateRollups() {
+		if (!rollupsEnabled) {
+			return;
+		}
+		Connection dbConnection = null;
+		long start = System.currentTimeMillis();
+
+		LOGGER.info("\u001B[32m Updating AU rollups in the database... \u001B[0m");
+
+		try {
+			dbConnection = getDBConnection();
+			if (dbConnection == null) {
+				return;
+			}
+			dbConnection.setAutoCommit(false);
+
+			int rows = RollupTables.update(dbConnection, rollupHourlyRetentionDays, rollupDailyRetentionDays);
+
+			dbConnection.commit();
+			CollectorMetrics.observeDbOperation("update_rollups", System.currentTimeMillis() - start);
+			LOGGER.info("AU rollups updated (" + rows + " hourly and daily rows) in " + (System.currentTimeMillis() - start) + " ms");
+
+		} catch (SQLException e) {
+			LOGGER.error(e.getMessage());
+			try {
+				if (dbConnection != null) {
+					dbConnection.rollback();
+				}
+			} catch (SQLException e1) {
+				LOGGER.error(e1.getMessage());
+			}
+
+		} finally {
+			try {
+				if (dbConnection != null) {
+					dbConnection.close();
+				}
+			} catch (SQLException e) {
+				LOGGER.error(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Store the platform configuration of a box in the lockss_box table
+	 *
+	 * @param dbConnection connection to the plnmonitor database
+	 * @param plnID the pln ID in the database
+	 * @param boxIpAddress the box ip address
+	 * @param boxUIPort the box UI port
+	 * @param boxConfiguration platform configuration collected from the box
+	 * @return the box ID in the database
+	 * @throws SQLException the SQL exception
+	 */
+	private Integer storeBoxConfiguration(Connection dbConnection, Integer plnID, String boxIpAddress, String boxUIPort, PlatformConfigurationWsResult boxConfiguration) throws SQLException {
+		Integer boxId = null;
+		SQLDialect.Upsert upsert = getDialect().upsert("plnmonitor.lockss_box", StatusRows.BOX_COLUMNS, StatusRows.KEY_COLUMNS.get("plnmonitor.lockss_box"), true);
+
+		PreparedStatement preparedStatement = dbConnection.prepareStatement(upsert.getSQL(), Statement.KEEP_CURRENT_RESULT);
+		try {
+			upsert.bind(preparedStatement, StatusRows.boxRow(plnID, boxIpAddress, boxUIPort, boxConfiguration));
+			ResultSet rs=preparedStatement.executeQuery();
+			if (rs.next()) {
+				boxId = rs.getInt("id");
+			}
+		} finally {
+			preparedStatement.close();
+		}
+		LOGGER.info("Entry for pln: "+ plnID + " with IP address "+boxIpAddress + " ----- " + boxConfiguration.getIpAddress() + "V3 identity:" +  boxConfiguration.getV3Identity() + " is inserted/updated into LOCKSS_BOX table at position "+ boxId);
+		return boxId;
+	}
+
+	/**
+	 * Checks whether the data of a box should be bulk loaded (BULK_LOAD enabled and at least BULK_LOAD_MIN_AUS AUs)
+	 *
+	 * @param ausFromCurrentBox AUs status collected from the box
+	 * @return true if the box data should be loaded with COPY
+	 */
+	private boolean useBulkLoad(List<AuWsResult> ausFromCurrentBox) {
+		return bulkLoadEnabled && (ausFromCurrentBox != null) && (ausFromCurrentBox.size() >= bulkLoadMinAus);
+	}
+
+	/**
+	 * Bulk load AUs, peers and repository spaces status of a box with COPY in a single transaction
+	 *
+	 * @param boxId the box ID in the database
+	 * @param repositoryBox repository spaces status collected from the box (may be null)
+	 * @param peersBox peers status collected from the box (may be null)
+	 * @param ausFromCurrentBox AUs status collected from the box
+	 * @throws SQLException the SQL exception
+	 */
+	void bulkLoad(Integer boxId, List<RepositorySpaceWsResult> repositoryBox, List<PeerWsResult> peersBox, List<AuWsResult> ausFromCurrentBox) throws SQLException {
+		Connection dbConnection = null;
+		long start = System.currentTimeMillis();
+
+		try {
+			dbConnection = getDBConnection();
+			dbConnection.setAutoCommit(false);
+			BulkLoader bulkLoader = new BulkLoader(dbConnection, getDialect());
+
+			if (repositoryBox != null) {
+				bulkLoader.loadRepositorySpaces(boxId, repositoryBox);
+			}
+			if (peersBox != null) {
+				bulkLoader.loadPeers(boxId, peersBox);
+			}
+			long auCount = bulkLoader.loadAus(boxId, ausFromCurrentBox);
+			if (agreementsEnabled) {
+				AuAgreements agreements = new AuAgreements(dbConnection, getDialect(), peerDictionary, boxId, agreementTypes, auBatchSize);
+				agreements.write(ausFromCurrentBox);
+				agreements.finish();
+			}
+			appendAuHistory(dbConnection, boxId);
+			ReplicationIndex.BoxUpdate replication = readReplication(dbConnection, boxId);
+
+			dbConnection.commit();
+			if (replication != null) {
+				replicationIndex.apply(replication);
+			}
+			CollectorMetrics.observeDbOperation("bulk_load", System.currentTimeMillis() - start);
+			CollectorMetrics.rowsWritten("plnmonitor.au_current", auCount);
+			LOGGER.info(auCount + " AUs bulk loaded for box " + boxId + " in " + (System.currentTimeMillis() - start) + " ms");
+
+		} catch (Exception e) {
+			LOGGER.error("Bulk load of box " + boxId + " failed: " + e.getMessage());
+			if (dbConnection != null) {
+				dbConnection.rollback();
+			}
+			// counted as a storage failure of the box (see BoxQueries)
+			throw e;
+
+		} finally {
+			if (dbConnection != null) {
+				dbConnection.close();
+			}
+		}
+		// also when no AU changed: fills the elements of the box in a new matrix
+		updateAuBoxMatrix(boxId);
+	}
+
+	/**
+	 * Store repository spaces status of a box in the lockss_box_data_current table
+	 *
+	 * @param boxId the box ID in the database
+	 * @param repositoryBox repository spaces status collected from the box
+	 * @throws SQLException the SQL exception
+	 */
+	private void storeRepositorySpaces(Integer boxId, List<RepositorySpaceWsResult> repositoryBox) throws SQLException {
+		Connection dbConnection = null;
+		PreparedStatement preparedStatement = null;
+		long start = System.currentTimeMillis();
+		int rows = 0;
+
+		try {
+			SQLDialect.Upsert upsert = getDialect().upsert("plnmonitor.lockss_box_data_current", StatusRows.REPOSITORY_SPACE_COLUMNS, StatusRows.KEY_COLUMNS.get("plnmonitor.lockss_box_data_current"), false);
+
+			dbConnection = getDBConnection();
+			preparedStatement = dbConnection.prepareStatement(upsert.getSQL());
+
+			for (RepositorySpaceWsResult currentBoxResult : repositoryBox) {
+				try {
+					upsert.bind(preparedStatement, StatusRows.repositorySpaceRow(boxId, currentBoxResult));
+
+					LOGGER.debug(preparedStatement.toString());
+					rows += preparedStatement.executeUpdate();
+
+					LOGGER.debug("Record is inserted and updated into database table LOCKSS_box_data_current for boxId" + boxId + " Repository Id: " + currentBoxResult.getRepositorySpaceId());
+
+				} catch (SQLException e) {
+
+					LOGGER.error(e.getMessage());
+
+				}
+			}
+
+			if (historyEnabled) {
+				// autocommit: the repository spaces are already stored if the history can't be appended
+				try {
+					CollectorMetrics.rowsWritten("plnmonitor." + HistoryTables.REPOSITORY_SPACE_HISTORY,
+							HistoryTables.appendRepositorySpaces(dbConnection, boxId, getCurrentTimeStamp()));
+				} catch (SQLException e) {
+					LOGGER.error("Repository space history of box " + boxId + " not appended: " + e.getMessage());
+				}
+			}
+			CollectorMetrics.observeDbOperation("store_repository_spaces", System.currentTimeMillis() - start);
+			CollectorMetrics.rowsWritten("plnmonitor.lockss_box_data_current", rows);
+
+		} catch (SQLException e) {
+
+			LOGGER.error(e.getMessage());
+
+		} finally {
+
+			if (preparedStatement != null) {
+				preparedStatement.close();
+			}
+
+			if (dbConnection != null) {
+				dbConnection.close();
+			}
+
+		}
+	}
+
+	/**
+	 * Store peers status of a box in the peer table
+	 *
+	 * @param boxId the box ID in the database
+	 * @param peersBox peers status collected from the box
+	 * @throws SQLException the SQL exception
+	 */
+	void storePeers(Integer boxId, List<PeerWsResult> peersBox) throws SQLException {
+		Connection dbConnection = null;
+		PreparedStatement preparedStatement = null;
+		long start = System.currentTimeMillis();
+		int rows = 0;
+
+		try {
+			SQLDialect.Upsert upsert = getDialect().upsert("plnmonitor.peer", StatusRows.PEER_COLUMNS, StatusRows.KEY_COLUMNS.get("plnmonitor.peer"), false);
+
+			dbConnection = getDBConnection();
+			preparedStatement = dbConnection.prepareStatement(upsert.getSQL());
+
+			for (PeerWsResult currentPeer : peersBox) {
+				try {
+					upsert.bind(preparedStatement, StatusRows.peerRow(boxId, currentPeer));
+					rows += preparedStatement.executeUpdate();
+
+				} catch (SQLException e) {
+
+					LOGGER.error(e.getMessage());
+
+				}
+			}
+			CollectorMetrics.observeDbOperation("store_peers", System.currentTimeMillis() - start);
+			CollectorMetrics.rowsWritten("plnmonitor.peer", rows);
+
+		} catch (SQLException e) {
+
+			LOGGER.error(e.getMessage());
+
+		} finally {
+
+			if (preparedStatement != null) {
+				preparedStatement.close();
+			}
+
+			if (dbConnection != null) {
+				dbConnection.close();
+			}
+
+		}
+	}
+
+	/**
+	 * Store AUs status of a box in the au_current table
+	 *
+	 * Only the AUs whose status changed since the last collection are written: the hash of the AU values
+	 * (row_hash) is compared with the one stored in au_current. AUs no longer reported by the box are deleted.
+	 * Changes are upserted in JDBC batches of AU_BATCH_SIZE rows inside a single transaction:
+	 * either all AUs of the box are updated or none of them (the previous status is kept).
+	 *
+	 * @param boxId the box ID in the database
+	 * @param ausFromCurrentBox AUs status collected from the box
+	 * @throws SQLException the SQL exception
+	 */
+	void storeAus(Integer boxId, List<AuWsResult> ausFromCurrentBox) throws SQLException {
+		storeAus(boxId, ausFromCurrentBox, AuQueryProfile.FULL);
+	}
+
+	/**
+	 * Store AUs status of a box collected with a query profile in the au_current table
+	 *
+	 * With the full profile, same as storeAus(boxId, ausFromCurrentBox). With a partial profile, only the
+	 * columns of the profile are updated, for the AUs already in au_current (see AuWriter).
+	 *
+	 * @param boxId the box ID in the database
+	 * @param ausFromCurrentBox AUs status collected from the box
+	 * @param auProfile AU fields collected
+	 * @throws SQLException the SQL exception
+	 */
+	void storeAus(Integer boxId, List<AuWsResult> ausFromCurrentBox, AuQueryProfile auProfile) throws SQLException {
+		AuWriter auWriter = new AuWriter(boxId, false, auProfile);
+		try {
+			auWriter.write(ausFromCurrentBox);
+		} catch (SQLException e) {
+			auWriter.rollback(e);
+			// counted as a storage failure of the box (see BoxQueries)
+			throw e;
+		}
+		auWriter.commit();
+	}
+
+	/**
+	 * Gets the AUs of a box with a streaming queryAus call and stores them chunk by chunk in the same way as
+	 * storeAus (or bulkLoad for large boxes): at most DSS_AU_STREAM_CHUNK_SIZE AUs are held in memory.
+	 * Runs in the query thread of the AUs, after the box ID is known. An incomplete response stores nothing.
+	 * <p>
+	 * The call of a box with at least DSS_AU_SHARD_MIN_AUS AUs is split into shards (see AuShards) queried
+	 * DSS_AU_SHARD_PARALLELISM at a time, each retried on its own. When a shard still fails, the AUs of the other
+	 * shards are stored but no AU is removed from au_current (the AUs of the failed shard are kept as they were).
+	 *
+	 * @param auStreamReader streaming client of the box
+	 * @param dss Daemon Status Service client of the box (shard field of the AUs)
+	 * @param writer result writer of the box (box ID)
+	 * @return number of AUs received
+	 * @throws Exception if the call or the storage failed
+	 */
+	private Long streamAus(AuStreamReader auStreamReader, DaemonStatusService dss, BoxResultWriter writer) throws Exception {
+		Integer boxId = writer.awaitBoxId();
+		if (boxId == null) {
+			throw new SQLException("box is not in the database, AUs not stored");
+		}
+
+		AuQueryProfile auProfile = writer.auProfile;
+		int storedCount = countAus(boxId);
+		List<String> shards = ((auShardMinAus > 0) && (storedCount >= auShardMinAus)) ? planAuShards(dss, writer.boxIpAddress) : Collections.<String>emptyList();
+		// AUs of a retried shard may be written twice: not possible in a COPY staging table
+		AuWriter auWriter = new AuWriter(boxId, shards.isEmpty() && auProfile.isFull() && bulkLoadEnabled && (storedCount >= bulkLoadMinAus), auProfile);
+		long received;
+		int failedShards = 0;
+		try {
+			if (shards.isEmpty()) {
+				received = auStreamReader.queryAus(auProfile.getQuery(), auStreamChunkSize, auUnstoredFields, auWriter::write);
+			}
+			else {
+				AtomicLong shardReceived = new AtomicLong();
+				failedShards = streamAuShards(auStreamReader, writer.boxIpAddress, auProfile, shards, auWriter, shardReceived);
+				received = shardReceived.get();
+			}
+			if (Thread.currentThread().isInterrupted()) {
+				// cancelled after the last chunk (box timed out): the box is reported as failed, nothing is stored
+				throw new InterruptedException("queryAus abandoned");
+			}
+		} catch (Exception e) {
+			auWriter.rollback(e);
+			throw e;
+		}
+		auWriter.commit(failedShards == 0);
+		if (failedShards == 0) {
+			writer.ausStored();
+		}
+		return received;
+	}
+
+	/**
+	 * Reads the shard field of the AUs of a box and builds its shards
+	 *
+	 * @return the where clauses of the shards, empty to query all the AUs at once
+	 */
+	private List<String> planAuShards(DaemonStatusService dss, String boxIpAddress) {
+		try {
+			long start = System.currentTimeMillis();
+			List<String> shards = auShards.plan(dss.queryAus(auShards.getKeyQuery()));
+			LOGGER.info("AUs of " + boxIpAddress + " split into " + shards.size() + " shards in " + (System.currentTimeMillis() - start) + " ms");
+			return shards;
+		} catch (LockssWebServicesFault | WebServiceException e) {
+			// the whole AU list is queried at once instead
+			LOGGER.error("Shards of the AUs of " + boxIpAddress + " not available: " + e.getMessage());
+			CollectorMetrics.failure(boxIpAddress, "au_shards");
+			return Collections.emptyList();
+		}
+	}
+
+	/**
+	 * Queries the shards of a box, DSS_AU_SHARD_PARALLELISM at a time, and writes their AUs as they arrive
+	 *
+	 * @param received number of AUs received (set)
+	 * @return number of shards failed after all their retries
+	 * @throws Exception if the storage failed or the collection of the box was interrupted
+	 */
+	private int streamAuShards(AuStreamReader auStreamReader, String boxIpAddress, AuQueryProfile auProfile, List<String> shards,
+			AuWriter auWriter, AtomicLong received) throws Exception {
+		CompletionService<Long> completionService = new ExecutorCompletionService<Long>(queryExecutor);
+		List<Future<Long>> running = new ArrayList<Future<Long>>();
+		int next = 0;
+		int failed = 0;
+		try {
+			while ((next < shards.size()) || !running.isEmpty()) {
+				while ((next < shards.size()) && (running.size() < auShardParallelism)) {
+					String query = auProfile.getQuery() + " where " + shards.get(next++);
+					running.add(completionService.submit(() -> streamAuShard(auStreamReader, boxIpAddress, query, auWriter)));
+				}
+				Future<Long> done = completionService.take();
+				running.remove(done);
+				try {
+					received.addAndGet(done.get());
+				} catch (ExecutionException e) {
+					if (!(e.getCause() instanceof IOException) && !(e.getCause() instanceof WebServiceException)) {
+						// the AU transaction can't go on
+						throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+					}
+					failed++;
+					CollectorMetrics.failure(boxIpAddress, "au_shard");
+				}
+			}
+		} finally {
+			for (Future<Long> future : running) {
+				future.cancel(true);
+			}
+		}
+		if (failed > 0) {
+			LOGGER.error("\u001B[31m " + failed + " of " + shards.size() + " AU shards of " + boxIpAddress
+					+ " failed: AUs of the other shards stored, no AU removed \u001B[0m");
+		}
+		return failed;
+	}
+
+	/**
+	 * Queries a shard of the AUs of a box, retried DSS_AU_SHARD_RETRIES times on call failures
+	 *
+	 * @return number of AUs received
+	 */
+	private long streamAuShard(AuStreamReader auStreamReader, String boxIpAddress, String query, AuWriter auWriter) throws Exception {
+		long delay = auShardRetryDelayMillis;
+		for (int attempt = 0; ; attempt++) {
+			try {
+				return auStreamReader.queryAus(query, auStreamChunkSize, auUnstoredFields, auWriter::write);
+			} catch (IOException | WebServiceException e) {
+				if (attempt >= auShardRetries) {
+					LOGGER.error("AU shard of " + boxIpAddress + " failed: " + e.getMessage() + " (" + query.substring(query.indexOf(" where ")) + ")");
+					throw e;
+				}
+				LOGGER.warn("AU shard of " + boxIpAddress + " failed, retrying in " + delay + " ms: " + e.getMessage());
+				Thread.sleep(delay);
+				delay *= 2;
+			}
+		}
+	}
+
+	/**
+	 * Selects the AU query profile of a box for this cycle: full when the AUs of the box were not fully collected
+	 * for DSS_AU_FULL_PROFILE_INTERVAL_MINUTES (or never since the start of the collector), light otherwise
+	 *
+	 * @param plnID the pln ID in the database
+	 * @param boxIpAddress the box ip address
+	 * @return the AU query profile
+	 */
+	private AuQueryProfile selectAuProfile(Integer plnID, String boxIpAddress) {
+		Long lastFullCollection = lastFullAuCollections.get(plnID + "/" + boxIpAddress);
+		if ((auFullProfileIntervalMillis <= 0) || (lastFullCollection == null)
+				|| (System.currentTimeMillis() - lastFullCollection >= auFullProfileIntervalMillis)) {
+			return AuQueryProfile.FULL;
+		}
+		return AuQueryProfile.LIGHT;
+	}
+
+	/**
+	 * Counts the AUs of a box in au_current (size of the previous collection)
+	 */
+	private int countAus(Integer boxId) throws SQLException {
+		Connection dbConnection = getDBConnection();
+		try {
+			PreparedStatement preparedStatement = dbConnection.prepareStatement("SELECT count(*) FROM plnmonitor.au_current WHERE box = ?");
+			preparedStatement.setInt(1, boxId);
+			ResultSet rs = preparedStatement.executeQuery();
+			return rs.next() ? rs.getInt(1) : 0;
+		} finally {
+			dbConnection.close();
+		}
+	}
+
+	/**
+	 * Writes the AUs of a box to au_current in a single transaction, in one or several parts
+	 *
+	 * Row by row: only the AUs whose status changed since the last collection are written (the hash of the
+	 * AU values, row_hash, is compared with the one stored in au_current), in JDBC batches of AU_BATCH_SIZE rows.
+	 * Bulk: the AUs are sent with COPY to a staging table merged at the end (see BulkLoader).
+	 * Partial (light AU query profile): only the columns of the profile are updated, when one of their values
+	 * changed, and row_hash is cleared so that the next full collection rewrites the row; AUs not in au_current
+	 * yet are left for the next full collection.
+	 * At commit the AUs no longer reported by the box are deleted, the AU history and the AU x box matrix are
+	 * updated. Either all AUs of the box are updated or none of them (the previous status is kept).
+	 */
+	private class AuWriter {
+		private final Integer boxId;
+		private final AuQueryProfile auProfile;
+		private final long start = System.currentTimeMillis();
+		private Connection dbConnection;
+		private PreparedStatement preparedStatement;
+		private SQLDialect.Upsert upsert;
+		private BulkLoader bulkLoader;
+		/** Agreements of the peers on the AUs (full profile) */
+		private AuAgreements agreements;
+
+		/** Hash of the AUs currently stored for the box, not received yet (au_lockss_id, row_hash) */
+		private Map<String, Long> storedHashes;
+
+		private int batchCount = 0;
+		private long receivedCount = 0;
+		private long changedCount = 0;
+		/**
+		 * Hash of the AUs received in this collection and in au_current (stored before or written in this transaction):
+		 * the AUs of a retried shard are compared with it, and only written and counted again if they changed
+		 */
+		private Map<String, Long> receivedHashes = new HashMap<String, Long>();
+		/** AUs of a partial profile not stored (not in au_current yet) */
+		private Set<String> skippedAus = new HashSet<String>();
+		private long skippedCount = 0;
+
+		private final boolean bulk;
+		/** true once the transaction is over (committed or rolled back) */
+		private boolean closed = false;
+
+		AuWriter(Integer boxId, boolean bulk, AuQueryProfile auProfile) {
+			this.boxId = boxId;
+			this.bulk = bulk;
+			this.auProfile = auProfile;
+		}
+
+		/**
+		 * Takes a connection and starts the transaction, when the first AUs arrive: no connection is held
+		 * while the box prepares its response
+		 */
+		private void open() throws SQLException {
+			if (dbConnection != null) {
+				return;
+			}
+			if (closed) {
+				throw new SQLException("AUs of box " + boxId + " already stored or rolled back");
+			}
+			dbConnection = getDBConnection();
+			if (dbConnection == null) {
+				throw new SQLException("No database connection available for the AUs of box " + boxId);
+			}
+			try {
+				dbConnection.setAutoCommit(false);
+				if (agreementsEnabled && auProfile.isFull()) {
+					// before the COPY: no other statement can run on the connection until it ends (rows deferred until then)
+					agreements = new AuAgreements(dbConnection, getDialect(), peerDictionary, boxId, agreementTypes, auBatchSize, bulk);
+				}
+				if (bulk) {
+					bulkLoader = new BulkLoader(dbConnection, getDialect());
+					bulkLoader.startAus();
+				}
+				else if (auProfile.isFull()) {
+					upsert = getDialect().upsert("plnmonitor.au_current", StatusRows.AU_COLUMNS, StatusRows.KEY_COLUMNS.get("plnmonitor.au_current"), false);
+					storedHashes = getAuHashes(dbConnection, boxId);
+					preparedStatement = dbConnection.prepareStatement(upsert.getSQL());
+				}
+				else {
+					storedHashes = getAuHashes(dbConnection, boxId);
+					if (auProfile.getColumns().length > 0) {
+						upsert = getDialect().update("plnmonitor.au_current", StatusRows.AU_COLUMNS, auProfile.getColumns(),
+								StatusRows.KEY_COLUMNS.get("plnmonitor.au_current"), new String[] { StatusRows.AU_COLUMNS[StatusRows.AU_HASH_COLUMN] });
+						preparedStatement = dbConnection.prepareStatement(upsert.getSQL());
+					}
+				}
+			} catch (SQLException e) {
+				close();
+				throw e;
+			}
+		}
+
+		/** called by the query threads of the shards of the box: one chunk at a time */
+		synchronized void write(List<AuWsResult> aus) throws SQLException {
+			open();
+			if (agreements != null) {
+				agreements.write(aus);
+			}
+			if (bulkLoader != null) {
+				receivedCount += aus.size();
+				bulkLoader.addAus(boxId, aus);
+				return;
+			}
+
+			for (AuWsResult currentAU : aus) {
+				String auId = currentAU.getAuId();
+				Object[] row = StatusRows.auRow(boxId, currentAU);
+				// AUs of a retried shard may come twice
+				boolean retried = receivedHashes.containsKey(auId) || skippedAus.contains(auId);
+				boolean stored;
+				Long storedHash;
+				if (retried) {
+					stored = receivedHashes.containsKey(auId);
+					storedHash = receivedHashes.get(auId);
+				}
+				else {
+					receivedCount++;
+					stored = storedHashes.containsKey(auId);
+					storedHash = storedHashes.remove(auId);
+				}
+				if (!auProfile.isFull()) {
+					// the update itself skips the unchanged AUs, a retried AU is already updated
+					if (!stored) {
+						if (skippedAus.add(auId)) {
+							skippedCount++;
+						}
+						continue;
+					}
+					receivedHashes.put(auId, storedHash);
+					if ((upsert == null) || retried) {
+						continue;
+					}
+				}
+				else {
+					Object rowHash = row[StatusRows.AU_HASH_COLUMN];
+					receivedHashes.put(auId, (Long) rowHash);
+					if ((storedHash != null) && storedHash.equals(rowHash)) {
+						continue;
+					}
+					if (!retried) {
+						changedCount++;
+					}
+				}
+
+				upsert.bind(preparedStatement, row);
+				preparedStatement.addBatch();
+
+				if (++batchCount == auBatchSize) {
+					executeBatch();
+				}
+			}
+		}
+
+		void commit() throws SQLException {
+			commit(true);
+		}
+
+		/**
+		 * @param complete false if some AUs of the box were not received (no AU is removed)
+		 */
+		synchronized void commit(boolean complete) throws SQLException {
+			try {
+				open();
+				int removedCount = 0;
+				if (bulkLoader != null) {
+					changedCount = bulkLoader.endAus(boxId);
+				}
+				else {
+					if (batchCount > 0) {
+						executeBatch();
+					}
+					// AUs left in storedHashes are no longer on the box (an empty AU list is not trusted)
+					if ((receivedCount > 0) && complete) {
+						removedCount = deleteAus(dbConnection, boxId, storedHashes.keySet());
+					}
+				}
+				if (agreements != null) {
+					agreements.finish();
+				}
+
+				appendAuHistory(dbConnection, boxId);
+				ReplicationIndex.BoxUpdate replication = readReplication(dbConnection, boxId);
+
+				dbConnection.commit();
+				if (replication != null) {
+					replicationIndex.apply(replication);
+				}
+				CollectorMetrics.observeDbOperation((bulkLoader != null) ? "bulk_load" : "store_aus", System.currentTimeMillis() - start);
+				CollectorMetrics.rowsWritten("plnmonitor.au_current", changedCount + removedCount);
+				if (bulkLoader != null) {
+					LOGGER.info(changedCount + " AUs bulk loaded for box " + boxId + " in " + (System.currentTimeMillis() - start) + " ms");
+				}
+				else {
+					LOGGER.info(receivedCount + " AUs collected for box " + boxId + " (" + auProfile + " profile): " + changedCount + " changed, "
+							+ (receivedCount - changedCount - skippedCount) + " unchanged, " + removedCount + " removed"
+							+ ((skippedCount > 0) ? ", " + skippedCount + " new left for the next full collection" : "")
+							+ " in " + (System.currentTimeMillis() - start) + " ms");
+				}
+			} catch (SQLException e) {
+				rollback(e);
+				throw e;
+			} finally {
+				close();
+			}
+			// also when no AU changed: fills the elements of the box in a new matrix
+			updateAuBoxMatrix(boxId);
+		}
+
+		private void executeBatch() throws SQLException {
+			int[] counts = preparedStatement.executeBatch();
+			if (!auProfile.isFull()) {
+				// rows actually written: unchanged AUs are not updated
+				for (int count : counts) {
+					changedCount += (count == Statement.SUCCESS_NO_INFO) ? 1 : count;
+				}
+			}
+			batchCount = 0;
+		}
+
+		synchronized void rollback(Exception cause) {
+			// BatchUpdateException hides the actual cause of the failure
+			if ((cause instanceof SQLException) && ((SQLException) cause).getNextException() != null) {
+				LOGGER.error("AUs of box " + boxId + " not stored: " + ((SQLException) cause).getNextException().getMessage());
+			}
+			else {
+				LOGGER.error("AUs of box " + boxId + " not stored: " + cause.getMessage());
+			}
+			if (bulkLoader != null) {
+				bulkLoader.cancel();
+			}
+			try {
+				if (dbConnection != null) {
+					dbConnection.rollback();
+				}
+			} catch (SQLException e) {
+				LOGGER.error(e.getMessage());
+			}
+			close();
+		}
+
+		private void close() {
+			if (agreements != null) {
+				agreements.close();
+			}
+			try {
+				if (preparedStatement != null) {
+					preparedStatement.close();
+				}
+				if (dbConnection != null) {
+					dbConnection.close();
+				}
+			} catch (SQLException e) {
+				LOGGER.error(e.getMessage());
+			}
+			preparedStatement = null;
+			dbConnection = null;
+			closed = true;
+		}
+	}
+
+	/**
+	 * Updates the elements of a box in the AU x box matrix, after its AUs have been committed, in a short transaction
+	 * of its own: the rows of the matrix are shared by the boxes of a PLN, they are not kept locked while the AUs of a
+	 * box are stored. A transaction chosen as deadlock victim or failing on a unique violation (an AU inserted by
+	 * another box meanwhile) is retried.
+	 *
+	 * @param boxId the box ID in the database
+	 */
+	private void updateAuBoxMatrix(Integer boxId) {
+		if (!matrixEnabled) {
+			return;
+		}
+		Connection dbConnection = null;
+		long start = System.currentTimeMillis();
+		try {
+			dbConnection = getDBConnection();
+			if (dbConnection == null) {
+				return;
+			}
+			dbConnection.setAutoCommit(false);
+			for (int attempt = 1; ; attempt++) {
+				try {
+					AuBoxMatrix.update(dbConnection, boxId, getDialect().isOnConflictAvailable());
+					dbConnection.commit();
+					break;
+				} catch (SQLException e) {
+					dbConnection.rollback();
+					boolean conflict = DEADLOCK_DETECTED.equals(e.getSQLState()) || UNIQUE_VIOLATION.equals(e.getSQLState());
+					if (!conflict || (attempt == MATRIX_UPDATE_ATTEMPTS)) {
+						throw e;
+					}
+					LOGGER.warn("AU matrix of box " + boxId + " conflicts with another box (" + e.getSQLState() + "), retrying (" + attempt + "/"
+							+ MATRIX_UPDATE_ATTEMPTS + ")");
+				}
+			}
+			CollectorMetrics.observeDbOperation("update_au_box_matrix", System.currentTimeMillis() - start);
+
+		} catch (SQLException e) {
+			LOGGER.error("AU matrix of box " + boxId + " not updated: " + e.getMessage());
+
+		} finally {
+			try {
+				if (dbConnection != null) {
+					dbConnection.close();
+				}
+			} catch (SQLException e) {
+				LOGGER.error(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Appends the AU metrics of a box to the AU history, at most once per HISTORY_AU_INTERVAL_MINUTES.
+	 * Runs in a savepoint of the caller transaction: a failure is logged and doesn't prevent the AUs from being stored.
+	 *
+	 * @param dbConnection the DB connection (in the transaction storing the AUs, autocommit off)
+	 * @param boxId the box ID in the database
+	 */
+	private void appendAuHistory(Connection dbConnection, Integer boxId) {
+		if (!historyEnabled) {
+			return;
+		}
+		Long lastSnapshot = lastAuSnapshots.get(boxId);
+		if ((lastSnapshot != null) && (System.currentTimeMillis() - lastSnapshot < historyAuIntervalMillis)) {
+			return;
+		}
+
+		Savepoint savepoint = null;
+		try {
+			savepoint = dbConnection.setSavepoint();
+			java.sql.Timestamp collectedAt = getCurrentTimeStamp();
+			int rows = HistoryTables.appendAus(dbConnection, boxId, collectedAt);
+			dbConnection.releaseSavepoint(savepoint);
+			CollectorMetrics.rowsWritten("plnmonitor." + HistoryTables.AU_HISTORY, rows);
+			// recorded before the commit: a failed transaction only delays the next snapshot by one interval
+			lastAuSnapshots.put(boxId, collectedAt.getTime());
+			LOGGER.debug(rows + " AUs of box " + boxId + " appended to the history");
+
+		} catch (SQLException e) {
+			LOGGER.error("AU history of box " + boxId + " not appended: " + e.getMessage());
+			try {
+				if (savepoint != null) {
+					dbConnection.rollback(savepoint);
+				}
+			} catch (SQLException e1) {
+				LOGGER.error(e1.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Creates the history partitions of the current and next months and drops the expired ones.
+	 * Called once per collection run.
+	 */
+	public void maintainHistory() {
+		// schema checked first: history may be disabled if its tables can't be created
+		getDialect();
+		if (!historyEnabled) {
+			return;
+		}
+
+		Connection dbConnection = null;
+		try {
+			dbConnection = getDBConnection();
+			if (dbConnection != null) {
+				HistoryTables.maintain(dbConnection, historyRetentionMonths);
+			}
+		} catch (SQLException e) {
+			LOGGER.error(e.getMessage());
+		} finally {
+			try {
+				if (dbConnection != null) {
+					dbConnection.close();
+				}
+			} catch (SQLException e) {
+				LOGGER.error(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Gets the hash of the AUs stored for a box in au_current
+	 *
+	 * @param dbConnection the DB connection
+	 * @param boxId the box ID in the database
+	 * @return the hash of each AU (au_lockss_id, row_hash)
+	 * @throws SQLException the SQL exception
+	 */
+	private Map<String, Long> getAuHashes(Connection dbConnection, Integer boxId) throws SQLException {
+		Map<String, Long> auHashes = new HashMap<String, Long>();
+		PreparedStatement preparedStatement = dbConnection.prepareStatement("SELECT au_lockss_id, row_hash FROM plnmonitor.au_current WHERE box = ?");
+		try {
+			preparedStatement.setInt(1, boxId);
+			preparedStatement.setFetchSize(auBatchSize);
+			ResultSet rs = preparedStatement.executeQuery();
+			while (rs.next()) {
+				long rowHash = rs.getLong("row_hash");
+				auHashes.put(rs.getString("au_lockss_id"), rs.wasNull() ? null : rowHash);
+			}
+		} finally {
+			preparedStatement.close();
+		}
+		return auHashes;
+	}
+
+	/**
+	 * Deletes AUs of a box from au_current
+	 *
+	 * @param dbConnection the DB connection
+	 * @param boxId the box ID in the database
+	 * @param auIds the AU lockss ids
+	 * @return number of AUs deleted
+	 * @throws SQLException the SQL exception
+	 */
+	private int deleteAus(Connection dbConnection, Integer boxId, Collection<String> auIds) throws SQLException {
+		if (auIds.isEmpty()) {
+			return 0;
+		}
+
+		PreparedStatement preparedStatement = dbConnection.prepareStatement("DELETE FROM plnmonitor.au_current WHERE box = ? AND au_lockss_id = ?");
+		try {
+			int batchCount = 0;
+			for (String auId : auIds) {
+				preparedStatement.setInt(1, boxId);
+				preparedStatement.setString(2, auId);
+				preparedStatement.addBatch();
+
+				if (++batchCount == auBatchSize) {
+					preparedStatement.executeBatch();
+					batchCount = 0;
+				}
+			}
+			if (batchCount > 0) {
+				preparedStatement.executeBatch();
+			}
+		} finally {
+			preparedStatement.close();
+		}
+		return auIds.size();
+	}
+
+	/** Set admin credentials in the plnmonitor database
+	 * @return 
+	 * 
+	 */
+	public void setCredentials(String username, String role, String password)
+	{
+		Connection dbConnection = null;
+		PreparedStatement preparedStatement=null;
+
+		try {				
+			Integer userId = null;
+			String pwHash = BCrypt.hashpw(password, BCrypt.gensalt()); 
+
+			SQLDialect.Upsert upsert = getDialect().upsert("plnmonitor.user", StatusRows.USER_COLUMNS, StatusRows.KEY_COLUMNS.get("plnmonitor.user"), true);
+
+			dbConnection = getDBConnection();
+			preparedStatement = dbConnection.prepareStatement(upsert.getSQL(), Statement.KEEP_CURRENT_RESULT);
+			upsert.bind(preparedStatement, new Object[] { username, pwHash, role });
+
+			//System.out.println(preparedStatement.toString());
+			ResultSet rs=preparedStatement.executeQuery();
+			if (rs.next()) {
+				userId = rs.getInt("id");
+				LOGGER.info("Added or updated user: " + username + " to the database with ID: " + userId + " " + pwHash  );
+			}
+		}
+		catch (SQLException e) {
+
 			LOGGER.error(e.getMessage());
 
 		} 
@@ -1279,27 +2128,101 @@ public class DaemonStatusWebService {
 
 
 	/**
-	 * Gets the DB connection.
+	 * Brings the database schema up to date and detects the SQL dialect of the server.
+	 * Called once when the daemon starts, before any collection: a required schema change that fails is thrown
+	 * (the daemon shouldn't run), an optional feature whose tables can't be created is disabled.
 	 *
-	 * @return the DB connection
+	 * @throws SQLException if the database can't be reached or a required schema change fails
 	 */
-	private Connection getDBConnection() {
-
-		Connection dbConnection = null;
-
+	public synchronized void initializeDatabase() throws SQLException {
+		if (dialect != null) {
+			return;
+		}
+		Connection dbConnection = connectionPool.getConnection();
 		try {
+			Map<String, String[]> keyColumns = new LinkedHashMap<String, String[]>(StatusRows.KEY_COLUMNS);
+			if (!schemaUpdated) {
+				Set<DatabaseSchema.Feature> unavailable = DatabaseSchema.update(dbConnection);
+				disableFeatures(unavailable);
+				schemaUpdated = true;
+			}
+			if (!agreementsEnabled) {
+				keyColumns.remove(DatabaseSchema.Feature.AGREEMENTS.getUpsertTable());
+			}
+			if (!replicationEnabled) {
+				keyColumns.remove(DatabaseSchema.Feature.REPLICATION.getUpsertTable());
+			}
+			dialect = SQLDialect.detect(dbConnection, keyColumns);
+		} finally {
+			dbConnection.close();
+		}
+	}
 
-			Class.forName(dbDriver);
-
-		} catch (ClassNotFoundException e) {
+	/**
+	 * Disables the features whose tables are missing
+	 */
+	private void disableFeatures(Set<DatabaseSchema.Feature> features) {
+		for (DatabaseSchema.Feature feature : features) {
+			switch (feature) {
+			case HISTORY:
+				historyEnabled = false;
+				break;
+			case ROLLUPS:
+				rollupsEnabled = false;
+				break;
+			case AU_BOX_MATRIX:
+				matrixEnabled = false;
+				break;
+			case AGREEMENTS:
+				agreementsEnabled = false;
+				auUnstoredFields.add("peerAgreements");
+				break;
+			case REPLICATION:
+				replicationEnabled = false;
+				break;
+			}
+		}
+	}
 
-			LOGGER.error(e.getMessage());
+	/**
+	 * Gets the SQL dialect of the database server (see initializeDatabase).
+	 * If the database couldn't be initialized yet, the legacy dialect is used and the initialization is tried again
+	 * after a delay doubled at each failure (30 seconds to 10 minutes), not on every call.
+	 *
+	 * @return the SQL dialect
+	 */
+	private synchronized SQLDialect getDialect() {
+		if (dialect != null) {
+			return dialect;
+		}
 
+		long now = System.currentTimeMillis();
+		if (now >= dialectRetryTime) {
+			try {
+				initializeDatabase();
+				return dialect;
+			} catch (SQLException e) {
+				dialectRetryDelayMillis = Math.min(Math.max(2 * dialectRetryDelayMillis, 30000L), 600000L);
+				dialectRetryTime = now + dialectRetryDelayMillis;
+				LOGGER.error("Can't initialize the database (next attempt in " + (dialectRetryDelayMillis / 1000) + " s): " + e.getMessage());
+			}
 		}
+		return fallbackDialect;
+	}
+
+	/**
+	 * Gets the DB connection from the connection pool.
+	 * Closing the connection gives it back to the pool.
+	 *
+	 * @return the DB connection
+	 */
+	private Connection getDBConnection() {
+
+		Connection dbConnection = null;
 
 		try {
 
-			dbConnection = DriverManager.getConnection(dbConnectionURL, dbUser, dbPassword);
+			dbConnection = connectionPool.getConnection();
 			return dbConnection;
 
 		} catch (SQLException e) {
@@ -1325,16 +2248,6 @@ public class DaemonStatusWebService {
 
 	}
 
-	// basic authentication 
-	private void authenticate(String user, String password) {
-		Authenticator.setDefault(new Authenticator() {
-			@Override
-			protected PasswordAuthentication getPasswordAuthentication() {
-				return new PasswordAuthentication(user, password.toCharArray());
-			}
-		});
-	}
-
 
 
 }
@@ -0,0 +1,266 @@
+package org.lockss.plnmonitordaemon;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class DashboardBuilder.
+ *
+ * Writes the Grafana dashboards provisioned for a PLN: the network dashboard (dashboard.json), one dashboard per
+ * LOCKSS box (boxes/) and one per TDB publisher (tdb_publishers/).
+ * <p>
+ * The three templates are compiled once (see DashboardTemplate) and the dashboards are rendered and written by
+ * DASHBOARD_THREADS threads. A dashboard is written to a temporary file of its directory, then moved over the
+ * previous one, so Grafana never reads a partial file. A dashboard with the same SHA-256 as the file already
+ * provisioned isn't written at all, leaving its modification time (and Grafana) untouched.
+ * <p>
+ * The AU trend panels of the three dashboards read the hourly and daily rollups (AUROLLUPHOURLYRAWSQLREQUEST and
+ * AUROLLUPDAILYRAWSQLREQUEST, see RollupTables.buildQuery) scoped to the PLN, the box or the TDB publisher.
+ */
+public class DashboardBuilder {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(DashboardBuilder.class);
+
+	/** Placeholders of the templates */
+	public static final String BOX_NAME = "LOCKSS_BOX_NAME";
+	public static final String TDB_PUBLISHER_NAME = "LOCKSS_TDB_PUBLISHER_NAME";
+	public static final String PIVOT_REQUEST = "PIVOTRAWSQLREQUEST";
+	public static final String AGREEMENT_PIVOT_REQUEST = "AUAGREEMENTPIVOTRAWSQLREQUEST";
+	public static final String SIZE_PIVOT_REQUEST = "AUSIZEPIVOTRAWSQLREQUEST";
+	public static final String HOURLY_ROLLUP_REQUEST = "AUROLLUPHOURLYRAWSQLREQUEST";
+	public static final String DAILY_ROLLUP_REQUEST = "AUROLLUPDAILYRAWSQLREQUEST";
+
+	/** Number of dashboards rendered and written at the same time */
+	private static int threads = DaemonConfiguration.getInt("DASHBOARD_THREADS", 4);
+
+	private final DashboardTemplate networkTemplate;
+	private final DashboardTemplate boxTemplate;
+	private final DashboardTemplate publisherTemplate;
+
+	private final Path networkPath;
+	private final Path boxDirectory;
+	private final Path publisherDirectory;
+
+	private final AtomicInteger writtenCount = new AtomicInteger();
+	private final AtomicInteger unchangedCount = new AtomicInteger();
+	private final AtomicInteger failedCount = new AtomicInteger();
+
+	/**
+	 * DashboardBuilder constructor
+	 *
+	 * @param networkTemplatePath network dashboard template
+	 * @param boxTemplatePath LOCKSS box dashboard template
+	 * @param publisherTemplatePath TDB publisher dashboard template
+	 * @param provisioningPath Grafana dashboard provisioning directory
+	 * @throws IOException if a template can't be read
+	 */
+	public DashboardBuilder(String networkTemplatePath, String boxTemplatePath, String publisherTemplatePath, String provisioningPath) throws IOException {
+		this.networkTemplate = DashboardTemplate.load(networkTemplatePath, AGREEMENT_PIVOT_REQUEST, SIZE_PIVOT_REQUEST, HOURLY_ROLLUP_REQUEST, DAILY_ROLLUP_REQUEST);
+		this.boxTemplate = DashboardTemplate.load(boxTemplatePath, BOX_NAME, HOURLY_ROLLUP_REQUEST, DAILY_ROLLUP_REQUEST);
+		this.publisherTemplate = DashboardTemplate.load(publisherTemplatePath, TDB_PUBLISHER_NAME, PIVOT_REQUEST, HOURLY_ROLLUP_REQUEST, DAILY_ROLLUP_REQUEST);
+		Path provisioning = Paths.get(provisioningPath);
+		this.networkPath = provisioning.resolve("dashboard.json");
+		this.boxDirectory = provisioning.resolve("boxes");
+		this.publisherDirectory = provisioning.resolve("tdb_publishers");
+	}
+
+	/**
+	 * Writes the dashboards of a PLN
+	 *
+	 * @param plnID the pln ID in the database
+	 * @param boxIds box ID of each box name, in the column order of the AU tables
+	 * @param tdbPublishers the TDB publishers (null and empty names are ignored)
+	 * @return true if every dashboard has been written or was up to date
+	 */
+	public boolean build(Integer plnID, Map<String, Integer> boxIds, List<String> tdbPublishers) {
+		writtenCount.set(0);
+		unchangedCount.set(0);
+		failedCount.set(0);
+
+		try {
+			Files.createDirectories(boxDirectory);
+			Files.createDirectories(publisherDirectory);
+		} catch (IOException e) {
+			LOGGER.error("Can't create dashboard directories: " + e.getMessage());
+			return false;
+		}
+
+		String pivotTableRequest = AuBoxMatrix.buildQuery("agreement", plnID, boxIds);
+		String contentSizePivotTableRequest = AuBoxMatrix.buildQuery("content_size", plnID, boxIds);
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads), new DashboardThreadFactory());
+		List<Future<?>> dashboards = new ArrayList<Future<?>>();
+		try {
+			Map<String, String> networkValues = new HashMap<String, String>();
+			networkValues.put(AGREEMENT_PIVOT_REQUEST, pivotTableRequest);
+			networkValues.put(SIZE_PIVOT_REQUEST, contentSizePivotTableRequest);
+			networkValues.put(HOURLY_ROLLUP_REQUEST, RollupTables.buildQuery(RollupTables.HOURLY, plnID, null, null));
+			networkValues.put(DAILY_ROLLUP_REQUEST, RollupTables.buildQuery(RollupTables.DAILY, plnID, null, null));
+			dashboards.add(executor.submit(() -> write(networkPath, networkTemplate, networkValues)));
+
+			for (Map.Entry<String, Integer> box : boxIds.entrySet()) {
+				Path path = boxDirectory.resolve(fileName(box.getKey()));
+				Map<String, String> values = new HashMap<String, String>();
+				values.put(BOX_NAME, DashboardTemplate.json(box.getKey()));
+				values.put(HOURLY_ROLLUP_REQUEST, RollupTables.buildQuery(RollupTables.HOURLY, plnID, box.getValue(), null));
+				values.put(DAILY_ROLLUP_REQUEST, RollupTables.buildQuery(RollupTables.DAILY, plnID, box.getValue(), null));
+				dashboards.add(executor.submit(() -> write(path, boxTemplate, values)));
+			}
+
+			for (String tdbPublisher : tdbPublishers) {
+				if ((tdbPublisher == null) || (tdbPublisher.length() == 0)) {
+					continue;
+				}
+				Path path = publisherDirectory.resolve(fileName(tdbPublisher));
+				String publisherLiteral = DashboardTemplate.json(tdbPublisher.replace("'", "''"));
+				Map<String, String> values = new HashMap<String, String>();
+				values.put(TDB_PUBLISHER_NAME, DashboardTemplate.json(tdbPublisher));
+				values.put(PIVOT_REQUEST, pivotTableRequest.replace(" ORDER BY 1", " AND tdb_publisher = '" + publisherLiteral + "' ORDER BY 1"));
+				values.put(HOURLY_ROLLUP_REQUEST, RollupTables.buildQuery(RollupTables.HOURLY, plnID, null, tdbPublisher));
+				values.put(DAILY_ROLLUP_REQUEST, RollupTables.buildQuery(RollupTables.DAILY, plnID, null, tdbPublisher));
+				dashboards.add(executor.submit(() -> write(path, publisherTemplate, values)));
+			}
+
+			for (Future<?> dashboard : dashboards) {
+				try {
+					dashboard.get();
+				} catch (ExecutionException e) {
+					failedCount.incrementAndGet();
+					LOGGER.error(e.getCause().toString());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.error("Dashboard generation interrupted");
+			return false;
+		} finally {
+			executor.shutdownNow();
+		}
+
+		LOGGER.info("\u001B[32m" + dashboards.size() + " dashboards: " + writtenCount.get() + " written, "
+				+ unchangedCount.get() + " unchanged, " + failedCount.get() + " failed\u001B[0m");
+		return failedCount.get() == 0;
+	}
+
+	/**
+	 * Writes the dashboards of a PLN from the boxes and TDB publishers in the database (see buildfromdb):
+	 * two queries, no LOCKSS box is contacted
+	 *
+	 * @param dsws the daemon status web service reading the database
+	 * @param plnID the pln ID in the database
+	 * @return true if every dashboard has been written or was up to date
+	 */
+	public boolean buildFromDatabase(DaemonStatusWebService dsws, Integer plnID) {
+		long start = System.currentTimeMillis();
+		Map<String, Integer> boxIds = dsws.getDashboardBoxes(plnID);
+		List<String> tdbPublishers = dsws.getDashboardPublishers(plnID);
+		if ((boxIds == null) || (tdbPublishers == null)) {
+			LOGGER.error("Can't read the boxes and TDB publishers of PLN " + plnID + " from the database, dashboards not updated");
+			return false;
+		}
+		LOGGER.info(boxIds.size() + " boxes and " + tdbPublishers.size() + " TDB publishers read from the database");
+		boolean built = build(plnID, boxIds, tdbPublishers);
+		LOGGER.info("Dashboards of PLN " + plnID + " rebuilt in " + (System.currentTimeMillis() - start) + " ms");
+		return built;
+	}
+
+	/**
+	 * Gets the number of dashboards written by the last build
+	 */
+	public int getWrittenCount() {
+		return writtenCount.get();
+	}
+
+	/**
+	 * Gets the number of dashboards left as they were by the last build
+	 */
+	public int getUnchangedCount() {
+		return unchangedCount.get();
+	}
+
+	/**
+	 * File name of the dashboard of a box or a publisher (word characters of its name)
+	 */
+	static String fileName(String name) {
+		return name.replaceAll("\\W+", "") + ".json";
+	}
+
+	/**
+	 * Renders a dashboard and writes it unless the file already has the same contents
+	 *
+	 * @return true if the file has been written, false if it was up to date
+	 */
+	private boolean write(Path path, DashboardTemplate template, Map<String, String> values) throws IOException {
+		byte[] contents = template.render(values).getBytes(StandardCharsets.UTF_8);
+
+		if (Files.isRegularFile(path) && (Files.size(path) == contents.length)
+				&& MessageDigest.isEqual(sha256(Files.readAllBytes(path)), sha256(contents))) {
+			unchangedCount.incrementAndGet();
+			LOGGER.debug("Dashboard unchanged: " + path);
+			return false;
+		}
+
+		// hidden temporary file next to the dashboard (same file system for the move, ignored by Grafana)
+		Path temporary = path.resolveSibling("." + path.getFileName() + ".tmp");
+		try (OutputStream output = Files.newOutputStream(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			output.write(contents);
+		}
+		try {
+			Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+		writtenCount.incrementAndGet();
+		LOGGER.debug("Dashboard written: " + path);
+		return true;
+	}
+
+	private static byte[] sha256(byte[] contents) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(contents);
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256: compare the contents themselves otherwise
+			return Arrays.copyOf(contents, contents.length);
+		}
+	}
+
+	/**
+	 * Names the dashboard threads
+	 */
+	private static class DashboardThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "dashboard-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
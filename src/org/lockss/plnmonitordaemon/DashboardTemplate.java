@@ -0,0 +1,132 @@
+package org.lockss.plnmonitordaemon;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Class DashboardTemplate.
+ *
+ * Grafana dashboard template compiled once into its literal parts and placeholders, so rendering a dashboard is
+ * a single pass appending the parts and the placeholder values (taken literally, no regular expression involved).
+ * <p>
+ * At each position the longest placeholder wins: with AUAGREEMENTPIVOTRAWSQLREQUEST and PIVOTRAWSQLREQUEST both
+ * declared, the first one is never read as a PIVOTRAWSQLREQUEST preceded by AUAGREEMENT. A placeholder that isn't
+ * declared is left in the text as it is.
+ */
+public class DashboardTemplate {
+
+	/** literal parts, one more than the placeholders */
+	private final String[] parts;
+
+	/** placeholder following each literal part (except the last one) */
+	private final String[] placeholders;
+
+	/** size of the template without its placeholders */
+	private final int literalLength;
+
+	/**
+	 * DashboardTemplate constructor
+	 *
+	 * @param text the template
+	 * @param names the placeholders of the template
+	 */
+	public DashboardTemplate(String text, String... names) {
+		String[] sortedNames = names.clone();
+		Arrays.sort(sortedNames, (a, b) -> Integer.compare(b.length(), a.length()));
+
+		List<String> partList = new ArrayList<String>();
+		List<String> placeholderList = new ArrayList<String>();
+		int length = 0;
+		int start = 0;
+		int position = 0;
+		while (position < text.length()) {
+			String match = null;
+			int matchPosition = text.length();
+			for (String name : sortedNames) {
+				int found = text.indexOf(name, position);
+				// on a tie the longer name, seen first, is kept
+				if ((found >= 0) && (found < matchPosition)) {
+					match = name;
+					matchPosition = found;
+				}
+			}
+			if (match == null) {
+				break;
+			}
+			partList.add(text.substring(start, matchPosition));
+			placeholderList.add(match);
+			length += matchPosition - start;
+			start = matchPosition + match.length();
+			position = start;
+		}
+		partList.add(text.substring(start));
+		length += text.length() - start;
+
+		this.parts = partList.toArray(new String[partList.size()]);
+		this.placeholders = placeholderList.toArray(new String[placeholderList.size()]);
+		this.literalLength = length;
+	}
+
+	/**
+	 * Reads and compiles a template file (UTF-8)
+	 *
+	 * @param path the template file path
+	 * @param names the placeholders of the template
+	 * @return the template
+	 * @throws IOException if the file can't be read
+	 */
+	public static DashboardTemplate load(String path, String... names) throws IOException {
+		return new DashboardTemplate(new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8), names);
+	}
+
+	/**
+	 * Renders the template
+	 *
+	 * @param values value of each placeholder (a placeholder without value is kept as it is)
+	 * @return the dashboard
+	 */
+	public String render(Map<String, String> values) {
+		int length = literalLength;
+		for (String placeholder : placeholders) {
+			String value = values.get(placeholder);
+			length += (value == null) ? placeholder.length() : value.length();
+		}
+		StringBuilder dashboard = new StringBuilder(length);
+		for (int i = 0; i < placeholders.length; i++) {
+			dashboard.append(parts[i]);
+			String value = values.get(placeholders[i]);
+			dashboard.append((value == null) ? placeholders[i] : value);
+		}
+		return dashboard.append(parts[parts.length - 1]).toString();
+	}
+
+	/**
+	 * Escapes a value for a JSON string (quotes, backslashes and control characters)
+	 *
+	 * @param value the value
+	 * @return the escaped value
+	 */
+	public static String json(String value) {
+		StringBuilder escaped = new StringBuilder(value.length() + 8);
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if ((c == '"') || (c == '\\')) {
+				escaped.append('\\').append(c);
+			}
+			else if (c < 0x20) {
+				escaped.append(String.format("\\u%04x", (int) c));
+			}
+			else {
+				escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+
+}
@@ -0,0 +1,147 @@
+package org.lockss.plnmonitordaemon;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class DatabaseSchema.
+ *
+ * Brings an existing plnmonitor database (created by plnmonitor-installer) up to date with the columns
+ * and tables the daemon needs. Every step is idempotent and is run once, when the daemon starts (see
+ * DaemonStatusWebService.initializeDatabase).
+ * <p>
+ * The objects every collection needs (au_current.row_hash, content_per_publisher) are required: a failure is
+ * thrown and the daemon doesn't start. The tables of the optional features are created feature by feature:
+ * a feature whose tables can't be created is reported, and disabled by the caller, without stopping the others.
+ */
+public class DatabaseSchema {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(DatabaseSchema.class);
+
+	/**
+	 * Optional features with tables of their own (and the table of their upserts, if any)
+	 */
+	public enum Feature {
+		HISTORY(null),
+		ROLLUPS(null),
+		AU_BOX_MATRIX(null),
+		AGREEMENTS(AuAgreements.TABLE),
+		REPLICATION(ReplicationIndex.TABLE);
+
+		private final String upsertTable;
+
+		Feature(String upsertTable) {
+			this.upsertTable = upsertTable;
+		}
+
+		/**
+		 * Gets the table of StatusRows.KEY_COLUMNS written by the feature, null if none
+		 */
+		public String getUpsertTable() {
+			return upsertTable;
+		}
+	}
+
+	private DatabaseSchema() {
+	}
+
+	/**
+	 * Applies the missing schema changes
+	 *
+	 * @param dbConnection connection to the plnmonitor database (autocommit)
+	 * @return the optional features whose tables can't be created (empty if the schema is complete)
+	 * @throws SQLException if a required change fails
+	 */
+	public static Set<Feature> update(Connection dbConnection) throws SQLException {
+		// hash of the AU status values, used to skip unchanged AUs
+		addColumn(dbConnection, "plnmonitor", "au_current", "row_hash", "bigint");
+
+		// content size per TDB publisher of each PLN (replaces the content_per_tdb_publisher table rebuilt after each box)
+		execute(dbConnection, "CREATE TABLE IF NOT EXISTS plnmonitor.content_per_publisher ("
+				+ "pln integer NOT NULL, "
+				+ "tdb_publisher text NOT NULL, "
+				+ "content_size bigint, "
+				+ "au_count integer, "
+				+ "computed_at timestamp with time zone NOT NULL DEFAULT now(), "
+				+ "PRIMARY KEY (pln, tdb_publisher))");
+
+		Set<Feature> unavailable = EnumSet.noneOf(Feature.class);
+		for (Feature feature : Feature.values()) {
+			try {
+				create(dbConnection, feature);
+			} catch (SQLException e) {
+				LOGGER.error("Can't create the tables of " + feature + ", " + feature + " disabled: " + e.getMessage());
+				unavailable.add(feature);
+			}
+		}
+		return unavailable;
+	}
+
+	/**
+	 * Creates the tables of an optional feature
+	 */
+	private static void create(Connection dbConnection, Feature feature) throws SQLException {
+		switch (feature) {
+		case HISTORY:
+			// time series of the AU and repository space metrics
+			HistoryTables.create(dbConnection);
+			break;
+		case ROLLUPS:
+			// hourly and daily AU aggregates per box and TDB publisher, for the dashboards
+			RollupTables.create(dbConnection);
+			break;
+		case AU_BOX_MATRIX:
+			// AU x box agreement and content size matrix, for the dashboards
+			AuBoxMatrix.create(dbConnection);
+			break;
+		case AGREEMENTS:
+			// agreement of each peer on each AU, packed in one row per AU
+			AuAgreements.create(dbConnection);
+			break;
+		case REPLICATION:
+			// number of boxes holding each AU with a good agreement, for the at-risk AU alerts
+			ReplicationIndex.create(dbConnection);
+			break;
+		}
+	}
+
+	/**
+	 * Adds a column to a table if it does not exist yet
+	 */
+	static void addColumn(Connection dbConnection, String schema, String table, String column, String type) throws SQLException {
+		String columnQuery = "SELECT 1 FROM information_schema.columns WHERE table_schema = ? AND table_name = ? AND column_name = ?";
+		PreparedStatement preparedStatement = dbConnection.prepareStatement(columnQuery);
+		try {
+			preparedStatement.setString(1, schema);
+			preparedStatement.setString(2, table);
+			preparedStatement.setString(3, column);
+			ResultSet rs = preparedStatement.executeQuery();
+			if (rs.next()) {
+				return;
+			}
+		} finally {
+			preparedStatement.close();
+		}
+
+		execute(dbConnection, "ALTER TABLE " + schema + "." + table + " ADD COLUMN " + column + " " + type);
+		LOGGER.info("Added column " + column + " to " + schema + "." + table);
+	}
+
+	static int execute(Connection dbConnection, String sql) throws SQLException {
+		Statement statement = dbConnection.createStatement();
+		try {
+			return statement.executeUpdate(sql);
+		} finally {
+			statement.close();
+		}
+	}
+
+}
@@ -0,0 +1,157 @@
+package org.lockss.plnmonitordaemon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class FileGeoLocationProvider.
+ *
+ * Locates IP addresses from a local file, for networks configured offline. One location per line, tab separated:
+ * <pre>
+ * address	latitude	longitude	country	city
+ * </pre>
+ * where address is an IP address or an IPv4 range in CIDR notation (192.0.2.0/24); the most specific range wins.
+ * Empty lines and lines starting with # are ignored. The cache file of GeoLocationCache has the same columns (and
+ * a sixth one, ignored here), so it can be copied to a machine without network and used as it is.
+ */
+public class FileGeoLocationProvider implements GeoLocationProvider {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(FileGeoLocationProvider.class);
+
+	private final Map<String, Location> addresses = new HashMap<String, Location>();
+	private final List<Range> ranges = new ArrayList<Range>();
+
+	/**
+	 * FileGeoLocationProvider constructor
+	 *
+	 * @param path the location file
+	 * @throws IOException if the file can't be read
+	 */
+	public FileGeoLocationProvider(String path) throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (line.trim().isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] columns = line.split("\t", -1);
+				if (columns.length < 3) {
+					LOGGER.warn(path + ":" + lineNumber + ": address, latitude and longitude expected");
+					continue;
+				}
+				Location location = new Location(column(columns, 3), column(columns, 4), columns[1], columns[2]);
+				String address = columns[0].trim();
+				if (address.contains("/")) {
+					Range range = Range.parse(address, location);
+					if (range == null) {
+						LOGGER.warn(path + ":" + lineNumber + ": invalid IPv4 range " + address);
+					}
+					else {
+						ranges.add(range);
+					}
+				}
+				else {
+					addresses.put(address, location);
+				}
+			}
+		}
+		LOGGER.info(addresses.size() + " addresses and " + ranges.size() + " ranges read from " + path);
+	}
+
+	@Override
+	public Location locate(String ipAddress) {
+		Location location = addresses.get(ipAddress);
+		if ((location != null) || ranges.isEmpty()) {
+			return location;
+		}
+		long parsed = Range.ipv4(ipAddress);
+		if (parsed < 0) {
+			return null;
+		}
+		int address = (int) parsed;
+		Range best = null;
+		for (Range range : ranges) {
+			if (range.contains(address) && ((best == null) || (range.prefixLength > best.prefixLength))) {
+				best = range;
+			}
+		}
+		return (best == null) ? null : best.location;
+	}
+
+	private static String column(String[] columns, int index) {
+		return (index < columns.length) ? columns[index] : "";
+	}
+
+	/**
+	 * IPv4 range (CIDR) and its location
+	 */
+	private static class Range {
+		private final int network;
+		private final int prefixLength;
+		private final Location location;
+
+		private Range(int network, int prefixLength, Location location) {
+			this.network = network;
+			this.prefixLength = prefixLength;
+			this.location = location;
+		}
+
+		static Range parse(String cidr, Location location) {
+			String[] parts = cidr.split("/", -1);
+			if (parts.length != 2) {
+				return null;
+			}
+			try {
+				int prefixLength = Integer.parseInt(parts[1]);
+				long network = ipv4(parts[0]);
+				if ((prefixLength < 0) || (prefixLength > 32) || (network < 0)) {
+					return null;
+				}
+				return new Range((int) network & mask(prefixLength), prefixLength, location);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		boolean contains(int address) {
+			return (address & mask(prefixLength)) == network;
+		}
+
+		private static int mask(int prefixLength) {
+			return (prefixLength == 0) ? 0 : -1 << (32 - prefixLength);
+		}
+
+		/**
+		 * Parses a literal IPv4 address (no name resolution)
+		 *
+		 * @return the address as an unsigned 32 bit value, -1 if it isn't an IPv4 address
+		 */
+		static long ipv4(String address) {
+			String[] bytes = address.trim().split("\\.", -1);
+			if (bytes.length != 4) {
+				return -1;
+			}
+			long value = 0;
+			for (String b : bytes) {
+				if (!b.matches("\\d{1,3}") || (Integer.parseInt(b) > 255)) {
+					return -1;
+				}
+				value = (value << 8) | Integer.parseInt(b);
+			}
+			return value;
+		}
+	}
+
+}
@@ -0,0 +1,268 @@
+package org.lockss.plnmonitordaemon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class GeoLocationCache.
+ *
+ * Persistent cache over a GeoLocationProvider: the locations found are kept in a file (GEO_CACHE_FILE, same
+ * columns as the FileGeoLocationProvider file plus the lookup time) and reused for GEO_CACHE_TTL_DAYS, so running
+ * the config mode again doesn't look the boxes up again. An expired location is still returned when the provider
+ * fails. Addresses the provider doesn't know are not cached.
+ * <p>
+ * prefetch() looks all the boxes of a network up at once on GEO_THREADS threads before the questions of the config
+ * mode, instead of one blocking request per box between the questions.
+ */
+public class GeoLocationCache implements GeoLocationProvider {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(GeoLocationCache.class);
+
+	/** Provider of the locations: remote (reallyfreegeoip.org), file (GEO_FILE, offline) or none */
+	private static String providerName = DaemonConfiguration.getString("GEO_PROVIDER", "remote");
+	private static String remoteUrl = DaemonConfiguration.getString("GEO_REMOTE_URL", "https://reallyfreegeoip.org/xml/");
+	private static String locationFile = DaemonConfiguration.getString("GEO_FILE", "/opt/config/geolocation.tsv");
+
+	/** Cache file, empty to disable the cache */
+	private static String cacheFile = DaemonConfiguration.getString("GEO_CACHE_FILE", "/opt/config/geolocation_cache.tsv");
+	private static long cacheTtlMillis = DaemonConfiguration.getLong("GEO_CACHE_TTL_DAYS", 90) * 86400000L;
+
+	/** Number of lookups at the same time, and timeout of each remote lookup */
+	private static int threads = DaemonConfiguration.getInt("GEO_THREADS", 8);
+	private static int timeoutSeconds = DaemonConfiguration.getInt("GEO_TIMEOUT_SECONDS", 10);
+
+	private final GeoLocationProvider provider;
+	private final Path path;
+	private final long ttlMillis;
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private volatile boolean modified = false;
+
+	/**
+	 * GeoLocationCache constructor
+	 *
+	 * @param provider the provider of the locations not in the cache (null: cache only)
+	 * @param path the cache file, null to keep the cache in memory only
+	 * @param ttlMillis age after which a cached location is looked up again (0: never)
+	 */
+	public GeoLocationCache(GeoLocationProvider provider, Path path, long ttlMillis) {
+		this.provider = provider;
+		this.path = path;
+		this.ttlMillis = ttlMillis;
+		if (path != null) {
+			load();
+		}
+	}
+
+	/**
+	 * Creates the cached provider set in the configuration (GEO_PROVIDER, GEO_CACHE_FILE, ...)
+	 *
+	 * @return the provider, never null (a provider that can't be set up is logged and replaced by the cache alone)
+	 */
+	public static GeoLocationCache fromConfiguration() {
+		GeoLocationProvider provider = null;
+		if (providerName.equalsIgnoreCase("remote")) {
+			provider = new RemoteGeoLocationProvider(remoteUrl, timeoutSeconds * 1000);
+		}
+		else if (providerName.equalsIgnoreCase("file")) {
+			try {
+				provider = new FileGeoLocationProvider(locationFile);
+			} catch (IOException e) {
+				LOGGER.error("Can't read the geolocation file " + locationFile + ": " + e.getMessage());
+			}
+		}
+		else if (!providerName.equalsIgnoreCase("none")) {
+			LOGGER.error("Unknown geolocation provider " + providerName + " (remote, file or none)");
+		}
+		Path path = cacheFile.trim().isEmpty() ? null : Paths.get(cacheFile.trim());
+		return new GeoLocationCache(provider, path, cacheTtlMillis);
+	}
+
+	@Override
+	public Location locate(String ipAddress) throws IOException {
+		Entry entry = entries.get(ipAddress);
+		long now = System.currentTimeMillis();
+		if ((entry != null) && ((ttlMillis <= 0) || (now - entry.time < ttlMillis))) {
+			return entry.location;
+		}
+		if (provider == null) {
+			return (entry == null) ? null : entry.location;
+		}
+
+		Location location;
+		try {
+			location = provider.locate(ipAddress);
+		} catch (IOException e) {
+			if (entry != null) {
+				LOGGER.warn("Geolocation of " + ipAddress + " failed, using the cached one: " + e.getMessage());
+				return entry.location;
+			}
+			throw e;
+		}
+		if (location != null) {
+			entries.put(ipAddress, new Entry(location, now));
+			modified = true;
+		}
+		return location;
+	}
+
+	/**
+	 * Looks up several addresses in parallel, then saves the cache
+	 *
+	 * @param ipAddresses the addresses
+	 * @return the location of each address found
+	 */
+	public Map<String, Location> prefetch(Collection<String> ipAddresses) {
+		long start = System.currentTimeMillis();
+		Map<String, Location> locations = new HashMap<String, Location>();
+		List<String> addresses = new ArrayList<String>(new LinkedHashSet<String>(ipAddresses));
+		if (addresses.isEmpty()) {
+			return locations;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, addresses.size())), new GeoLocationThreadFactory());
+		try {
+			Map<String, Future<Location>> lookups = new HashMap<String, Future<Location>>();
+			for (String ipAddress : addresses) {
+				lookups.put(ipAddress, executor.submit(() -> locate(ipAddress)));
+			}
+			// every lookup has its own timeout: this deadline only guards against a provider ignoring it
+			long deadline = System.currentTimeMillis() + 2L * timeoutSeconds * 1000L * ((addresses.size() + threads - 1) / Math.max(1, threads) + 1);
+			for (String ipAddress : addresses) {
+				try {
+					Location location = lookups.get(ipAddress).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+					if (location != null) {
+						locations.put(ipAddress, location);
+					}
+				} catch (ExecutionException e) {
+					LOGGER.warn("Geolocation of " + ipAddress + " failed: " + e.getCause().getMessage());
+				} catch (TimeoutException e) {
+					LOGGER.warn("Geolocation of " + ipAddress + " timed out");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdownNow();
+		}
+
+		save();
+		LOGGER.info(locations.size() + " of " + addresses.size() + " boxes located in " + (System.currentTimeMillis() - start) + " ms");
+		return locations;
+	}
+
+	/**
+	 * Writes the cache file if locations have been added (temporary file moved over the previous one)
+	 */
+	public void save() {
+		if ((path == null) || !modified) {
+			return;
+		}
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		try {
+			if (path.getParent() != null) {
+				Files.createDirectories(path.getParent());
+			}
+			try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+				writer.write("# address\tlatitude\tlongitude\tcountry\tcity\tlookup time (ms since epoch)\n");
+				for (Map.Entry<String, Entry> cached : entries.entrySet()) {
+					Location location = cached.getValue().location;
+					writer.write(cached.getKey() + "\t" + field(location.getLatitude()) + "\t" + field(location.getLongitude()) + "\t"
+							+ field(location.getCountry()) + "\t" + field(location.getCity()) + "\t" + cached.getValue().time + "\n");
+				}
+			}
+			try {
+				Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+			modified = false;
+		} catch (IOException e) {
+			LOGGER.error("Can't write the geolocation cache " + path + ": " + e.getMessage());
+		}
+	}
+
+	private void load() {
+		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] columns = line.split("\t", -1);
+				if (columns.length < 6) {
+					continue;
+				}
+				try {
+					entries.put(columns[0], new Entry(new Location(columns[3], columns[4], columns[1], columns[2]), Long.parseLong(columns[5].trim())));
+				} catch (NumberFormatException e) {
+					LOGGER.warn("Invalid geolocation cache line: " + line);
+				}
+			}
+			LOGGER.info(entries.size() + " locations read from the cache " + path);
+		} catch (NoSuchFileException e) {
+			LOGGER.debug("No geolocation cache yet: " + path);
+		} catch (IOException e) {
+			LOGGER.error("Can't read the geolocation cache " + path + ": " + e.getMessage());
+		}
+	}
+
+	/** a value of the cache file (no tab or line break) */
+	private static String field(String value) {
+		return value.replaceAll("[\\t\\r\\n]+", " ");
+	}
+
+	/**
+	 * Cached location and lookup time
+	 */
+	private static class Entry {
+		private final Location location;
+		private final long time;
+
+		Entry(Location location, long time) {
+			this.location = location;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * Names the lookup threads
+	 */
+	private static class GeoLocationThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "geolocation-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
@@ -0,0 +1,62 @@
+package org.lockss.plnmonitordaemon;
+
+import java.io.IOException;
+
+/**
+ * The Interface GeoLocationProvider.
+ *
+ * Most likely location of a LOCKSS box from its IP address, proposed as default answer by the config mode.
+ * Implementations: RemoteGeoLocationProvider (reallyfreegeoip.org), FileGeoLocationProvider (local file, no
+ * network) and GeoLocationCache (persistent cache over another provider, with the parallel prefetch of all the
+ * boxes of a network).
+ */
+public interface GeoLocationProvider {
+
+	/**
+	 * Locates an IP address
+	 *
+	 * @param ipAddress the IP address of the box
+	 * @return the location, null if the address is unknown to the provider
+	 * @throws IOException if the provider can't be reached
+	 */
+	Location locate(String ipAddress) throws IOException;
+
+	/**
+	 * Location of an IP address (values as shown and stored by the config mode)
+	 */
+	public static class Location {
+		private final String country;
+		private final String city;
+		private final String latitude;
+		private final String longitude;
+
+		public Location(String country, String city, String latitude, String longitude) {
+			this.country = (country == null) ? "" : country.trim();
+			this.city = (city == null) ? "" : city.trim();
+			this.latitude = latitude.trim();
+			this.longitude = longitude.trim();
+		}
+
+		public String getCountry() {
+			return country;
+		}
+
+		public String getCity() {
+			return city;
+		}
+
+		public String getLatitude() {
+			return latitude;
+		}
+
+		public String getLongitude() {
+			return longitude;
+		}
+
+		@Override
+		public String toString() {
+			return city + "," + country + " -- " + "long. : " + longitude + " - lat. : " + latitude;
+		}
+	}
+
+}
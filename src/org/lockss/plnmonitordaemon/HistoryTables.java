@@ -0,0 +1,246 @@
+package org.lockss.plnmonitordaemon;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class HistoryTables.
+ *
+ * Time series of the AU and repository space metrics: each collection of a box appends a snapshot of its
+ * rows of au_current and lockss_box_data_current to au_history and lockss_box_data_history.
+ * <p>
+ * On PostgreSQL 10+ the history tables are partitioned by month (declarative range partitioning on
+ * collected_at): create() and maintain() create the partitions of the current and next months (a row of a
+ * month without partition can't be inserted), maintain() drops the partitions older than the retention, so
+ * trend queries only scan the months they need and old data is removed without DELETE. Older servers get
+ * plain tables and the retention is applied with DELETE.
+ */
+public class HistoryTables {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(HistoryTables.class);
+
+	/** History tables (without schema) */
+	public static final String AU_HISTORY = "au_history";
+	public static final String REPOSITORY_SPACE_HISTORY = "lockss_box_data_history";
+
+	private static final String[] TABLES = { AU_HISTORY, REPOSITORY_SPACE_HISTORY };
+
+	/** Columns of au_history copied from au_current */
+	private static final String AU_HISTORY_COLUMNS = "box, au_lockss_id, content_size, disk_usage, recent_poll_agreement, "
+			+ "last_completed_crawl, last_completed_poll, substance_state";
+
+	/** Columns of lockss_box_data_history copied from lockss_box_data_current */
+	private static final String REPOSITORY_SPACE_HISTORY_COLUMNS = "box, repository_space_lockss_id, used, size, free, percentage, "
+			+ "active_aus, deleted_aus, inactive_aus, orphaned_aus";
+
+	private HistoryTables() {
+	}
+
+	/**
+	 * Creates the history tables if they don't exist, with the partitions of the current and next months
+	 *
+	 * @param dbConnection connection to the plnmonitor database
+	 * @throws SQLException the SQL exception
+	 */
+	static void create(Connection dbConnection) throws SQLException {
+		boolean partitioned = isPartitioningAvailable(dbConnection);
+		String partitioning = partitioned ? " PARTITION BY RANGE (collected_at)" : "";
+
+		DatabaseSchema.execute(dbConnection, "CREATE TABLE IF NOT EXISTS plnmonitor." + AU_HISTORY + " ("
+				+ "collected_at timestamp with time zone NOT NULL, "
+				+ "box integer NOT NULL, "
+				+ "au_lockss_id text NOT NULL, "
+				+ "content_size bigint, "
+				+ "disk_usage bigint, "
+				+ "recent_poll_agreement double precision, "
+				+ "last_completed_crawl bigint, "
+				+ "last_completed_poll bigint, "
+				+ "substance_state text)" + partitioning);
+
+		DatabaseSchema.execute(dbConnection, "CREATE TABLE IF NOT EXISTS plnmonitor." + REPOSITORY_SPACE_HISTORY + " ("
+				+ "collected_at timestamp with time zone NOT NULL, "
+				+ "box integer NOT NULL, "
+				+ "repository_space_lockss_id text NOT NULL, "
+				+ "used bigint, "
+				+ "size bigint, "
+				+ "free bigint, "
+				+ "percentage double precision, "
+				+ "active_aus integer, "
+				+ "deleted_aus integer, "
+				+ "inactive_aus integer, "
+				+ "orphaned_aus integer)" + partitioning);
+
+		if (partitioned) {
+			// the appends of the first collection run don't wait for maintain()
+			for (String table : TABLES) {
+				createMonthPartitions(dbConnection, table);
+			}
+		}
+		else {
+			// plain tables: the index replaces partition pruning
+			for (String table : TABLES) {
+				try {
+					DatabaseSchema.execute(dbConnection, "CREATE INDEX IF NOT EXISTS " + table + "_collected_at ON plnmonitor." + table + " (collected_at)");
+				} catch (SQLException e) {
+					// CREATE INDEX IF NOT EXISTS needs 9.5
+					LOGGER.warn("Can't create index on " + table + " (collected_at): " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends the current AU metrics of a box to au_history
+	 *
+	 * @param dbConnection the DB connection (in the transaction storing the AUs)
+	 * @param boxId the box ID in the database
+	 * @param collectedAt time of the collection
+	 * @return number of rows appended
+	 * @throws SQLException the SQL exception
+	 */
+	static int appendAus(Connection dbConnection, Integer boxId, Timestamp collectedAt) throws SQLException {
+		return append(dbConnection, AU_HISTORY, "au_current", AU_HISTORY_COLUMNS, boxId, collectedAt);
+	}
+
+	/**
+	 * Appends the current repository space metrics of a box to lockss_box_data_history
+	 *
+	 * @param dbConnection the DB connection
+	 * @param boxId the box ID in the database
+	 * @param collectedAt time of the collection
+	 * @return number of rows appended
+	 * @throws SQLException the SQL exception
+	 */
+	static int appendRepositorySpaces(Connection dbConnection, Integer boxId, Timestamp collectedAt) throws SQLException {
+		return append(dbConnection, REPOSITORY_SPACE_HISTORY, "lockss_box_data_current", REPOSITORY_SPACE_HISTORY_COLUMNS, boxId, collectedAt);
+	}
+
+	/**
+	 * Creates the partitions of the current and next months and drops the data older than the retention
+	 *
+	 * @param dbConnection connection to the plnmonitor database
+	 * @param retentionMonths number of months kept (0 keeps everything)
+	 * @throws SQLException the SQL exception
+	 */
+	static void maintain(Connection dbConnection, int retentionMonths) throws SQLException {
+		boolean partitioned = isPartitioningAvailable(dbConnection);
+		Calendar cutoff = firstDayOfMonth(-retentionMonths);
+
+		for (String table : TABLES) {
+			if (partitioned) {
+				createMonthPartitions(dbConnection, table);
+
+				if (retentionMonths > 0) {
+					String cutoffSuffix = partitionSuffix(cutoff);
+					for (String partition : getPartitions(dbConnection, table)) {
+						// partitions are named <table>_yyyy_mm: names sort like months
+						if (partition.substring(table.length() + 1).compareTo(cutoffSuffix) < 0) {
+							DatabaseSchema.execute(dbConnection, "DROP TABLE IF EXISTS plnmonitor." + partition);
+							LOGGER.info("Dropped history partition " + partition);
+						}
+					}
+				}
+			}
+			else if (retentionMonths > 0) {
+				PreparedStatement preparedStatement = dbConnection.prepareStatement("DELETE FROM plnmonitor." + table + " WHERE collected_at < ?");
+				try {
+					preparedStatement.setTimestamp(1, new Timestamp(cutoff.getTimeInMillis()));
+					int deleted = preparedStatement.executeUpdate();
+					LOGGER.debug(deleted + " rows older than " + retentionMonths + " months deleted from " + table);
+				} finally {
+					preparedStatement.close();
+				}
+			}
+		}
+	}
+
+	private static int append(Connection dbConnection, String historyTable, String currentTable, String columns, Integer boxId, Timestamp collectedAt) throws SQLException {
+		PreparedStatement preparedStatement = dbConnection.prepareStatement("INSERT INTO plnmonitor." + historyTable + " (collected_at, " + columns + ") "
+				+ "SELECT ?, " + columns + " FROM plnmonitor." + currentTable + " WHERE box = ?");
+		try {
+			preparedStatement.setTimestamp(1, collectedAt);
+			preparedStatement.setInt(2, boxId);
+			return preparedStatement.executeUpdate();
+		} finally {
+			preparedStatement.close();
+		}
+	}
+
+	/**
+	 * Creates the partitions of the current and next months of a history table
+	 */
+	private static void createMonthPartitions(Connection dbConnection, String table) throws SQLException {
+		Calendar month = firstDayOfMonth(0);
+		createPartition(dbConnection, table, month);
+		Calendar nextMonth = (Calendar) month.clone();
+		nextMonth.add(Calendar.MONTH, 1);
+		createPartition(dbConnection, table, nextMonth);
+	}
+
+	private static void createPartition(Connection dbConnection, String table, Calendar month) throws SQLException {
+		Calendar nextMonth = (Calendar) month.clone();
+		nextMonth.add(Calendar.MONTH, 1);
+		SimpleDateFormat day = new SimpleDateFormat("yyyy-MM-dd");
+		day.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		DatabaseSchema.execute(dbConnection, "CREATE TABLE IF NOT EXISTS plnmonitor." + table + "_" + partitionSuffix(month)
+				+ " PARTITION OF plnmonitor." + table
+				+ " FOR VALUES FROM ('" + day.format(month.getTime()) + " 00:00:00+00') TO ('" + day.format(nextMonth.getTime()) + " 00:00:00+00')");
+	}
+
+	private static List<String> getPartitions(Connection dbConnection, String table) throws SQLException {
+		List<String> partitions = new ArrayList<String>();
+		PreparedStatement preparedStatement = dbConnection.prepareStatement("SELECT child.relname FROM pg_inherits "
+				+ "INNER JOIN pg_class parent ON parent.oid = pg_inherits.inhparent "
+				+ "INNER JOIN pg_class child ON child.oid = pg_inherits.inhrelid "
+				+ "INNER JOIN pg_namespace n ON n.oid = parent.relnamespace "
+				+ "WHERE n.nspname = 'plnmonitor' AND parent.relname = ?");
+		try {
+			preparedStatement.setString(1, table);
+			ResultSet rs = preparedStatement.executeQuery();
+			while (rs.next()) {
+				String partition = rs.getString(1);
+				if (partition.matches(table + "_\\d{4}_\\d{2}")) {
+					partitions.add(partition);
+				}
+			}
+		} finally {
+			preparedStatement.close();
+		}
+		return partitions;
+	}
+
+	private static boolean isPartitioningAvailable(Connection dbConnection) throws SQLException {
+		return dbConnection.getMetaData().getDatabaseMajorVersion() >= 10;
+	}
+
+	/**
+	 * Gets the first day (UTC) of the current month shifted by the given number of months
+	 */
+	private static Calendar firstDayOfMonth(int monthOffset) {
+		Calendar month = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		month.set(Calendar.DAY_OF_MONTH, 1);
+		month.set(Calendar.HOUR_OF_DAY, 0);
+		month.set(Calendar.MINUTE, 0);
+		month.set(Calendar.SECOND, 0);
+		month.set(Calendar.MILLISECOND, 0);
+		month.add(Calendar.MONTH, monthOffset);
+		return month;
+	}
+
+	private static String partitionSuffix(Calendar month) {
+		return String.format("%04d_%02d", month.get(Calendar.YEAR), month.get(Calendar.MONTH) + 1);
+	}
+
+}
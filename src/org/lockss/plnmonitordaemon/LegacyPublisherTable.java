@@ -0,0 +1,157 @@
+package org.lockss.plnmonitordaemon;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class LegacyPublisherTable.
+ *
+ * Keeps the former content_per_tdb_publisher table (a single row, id = 1, with one bigint column per TDB
+ * publisher holding its content size) up to date for the Grafana panels that still read it, from the
+ * content_per_publisher summary (see DaemonStatusWebService.updatePublisherSummary).
+ * <p>
+ * The table used to be dropped and recreated after each box. It is now updated once per run with a single
+ * UPDATE of its row; a column is only added (ALTER TABLE) for a publisher not seen before, and the column of
+ * a publisher that is gone is set to NULL. Disabled with LEGACY_PUBLISHER_TABLE = false once the dashboards
+ * read content_per_publisher.
+ */
+public class LegacyPublisherTable {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(LegacyPublisherTable.class);
+
+	/** Not schema qualified, like the table created by the previous versions (search path of the database user) */
+	public static final String TABLE = "content_per_tdb_publisher";
+
+	/** Max length of a PostgreSQL identifier (bytes), longer column names are truncated by the server */
+	private static final int MAX_IDENTIFIER_BYTES = 63;
+
+	private LegacyPublisherTable() {
+	}
+
+	/**
+	 * Copies the content size of each TDB publisher (all PLNs together) from content_per_publisher.
+	 * Runs in a savepoint of the caller transaction: a failure is logged and doesn't prevent the summary from being stored.
+	 *
+	 * @param dbConnection the DB connection (in the transaction updating content_per_publisher, autocommit off)
+	 * @return the number of publisher columns set
+	 */
+	static int update(Connection dbConnection) {
+		Savepoint savepoint = null;
+		try {
+			savepoint = dbConnection.setSavepoint();
+			Statement statement = dbConnection.createStatement();
+			try {
+				statement.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE + " (id serial PRIMARY KEY)");
+				statement.executeUpdate("INSERT INTO " + TABLE + " (id) SELECT 1 WHERE NOT EXISTS (SELECT 1 FROM " + TABLE + " WHERE id = 1)");
+
+				// content size of each publisher, by column name
+				Map<String, Long> contentSizes = new LinkedHashMap<String, Long>();
+				ResultSet rs = statement.executeQuery("SELECT tdb_publisher, SUM(content_size) AS content_size FROM plnmonitor.content_per_publisher "
+						+ "GROUP BY tdb_publisher ORDER BY tdb_publisher");
+				while (rs.next()) {
+					// publishers with the same first 63 bytes share a column (the server truncates longer names)
+					contentSizes.merge(columnName(rs.getString("tdb_publisher")), rs.getLong("content_size"), Long::sum);
+				}
+
+				// columns of the table (publishers of the previous runs)
+				Set<String> columns = new HashSet<String>();
+				PreparedStatement columnQuery = dbConnection.prepareStatement("SELECT attname FROM pg_attribute "
+						+ "WHERE attrelid = ?::regclass AND attnum > 0 AND NOT attisdropped AND attname <> 'id'");
+				columnQuery.setString(1, TABLE);
+				rs = columnQuery.executeQuery();
+				while (rs.next()) {
+					columns.add(rs.getString("attname"));
+				}
+				columnQuery.close();
+
+				int added = 0;
+				for (String column : contentSizes.keySet()) {
+					if (columns.add(column)) {
+						statement.executeUpdate("ALTER TABLE " + TABLE + " ADD COLUMN " + quote(column) + " bigint");
+						added++;
+					}
+				}
+
+				if (!columns.isEmpty()) {
+					List<String> columnList = new ArrayList<String>(columns);
+					StringBuilder update = new StringBuilder("UPDATE " + TABLE + " SET ");
+					for (int i = 0; i < columnList.size(); i++) {
+						update.append((i == 0) ? "" : ", ").append(quote(columnList.get(i))).append(" = ?");
+					}
+					PreparedStatement preparedStatement = dbConnection.prepareStatement(update.append(" WHERE id = 1").toString());
+					for (int i = 0; i < columnList.size(); i++) {
+						Long contentSize = contentSizes.get(columnList.get(i));
+						if (contentSize == null) {
+							preparedStatement.setNull(i + 1, Types.BIGINT);
+						}
+						else {
+							preparedStatement.setLong(i + 1, contentSize);
+						}
+					}
+					preparedStatement.executeUpdate();
+					preparedStatement.close();
+				}
+
+				dbConnection.releaseSavepoint(savepoint);
+				LOGGER.debug(contentSizes.size() + " publishers copied to " + TABLE + " (" + added + " columns added)");
+				return contentSizes.size();
+			} finally {
+				statement.close();
+			}
+
+		} catch (SQLException e) {
+			LOGGER.error(TABLE + " not updated: " + e.getMessage());
+			try {
+				if (savepoint != null) {
+					dbConnection.rollback(savepoint);
+				}
+			} catch (SQLException e1) {
+				LOGGER.error(e1.getMessage());
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * Column name of a publisher, as stored by the server (truncated to 63 bytes)
+	 */
+	static String columnName(String tdbPublisher) {
+		byte[] bytes = tdbPublisher.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length <= MAX_IDENTIFIER_BYTES) {
+			return tdbPublisher;
+		}
+		// no multibyte character cut in half
+		int length = 0;
+		int bytesLength = 0;
+		while (length < tdbPublisher.length()) {
+			int codePoint = tdbPublisher.codePointAt(length);
+			int codePointBytes = new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8).length;
+			if (bytesLength + codePointBytes > MAX_IDENTIFIER_BYTES) {
+				break;
+			}
+			bytesLength += codePointBytes;
+			length += Character.charCount(codePoint);
+		}
+		return tdbPublisher.substring(0, length);
+	}
+
+	private static String quote(String identifier) {
+		return "\"" + identifier.replace("\"", "\"\"") + "\"";
+	}
+
+}
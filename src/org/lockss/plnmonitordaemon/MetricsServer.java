@@ -0,0 +1,111 @@
+package org.lockss.plnmonitordaemon;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The Class MetricsServer.
+ *
+ * Embedded HTTP endpoint exposing the CollectorMetrics to Prometheus (GET /metrics, text format 0.0.4).
+ * Uses the HTTP server of the JDK: no additional dependency. Started in daemon mode when METRICS_PORT is not 0.
+ */
+public class MetricsServer {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(MetricsServer.class);
+
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	/**
+	 * MetricsServer constructor
+	 *
+	 * @param bindAddress address the endpoint listens on
+	 * @param port port the endpoint listens on
+	 * @throws IOException if the port can't be bound
+	 */
+	public MetricsServer(String bindAddress, int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+		server.createContext("/metrics", this::handle);
+		// scrapes are rare and fast: a single daemon thread
+		executor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "metrics-server");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.setExecutor(executor);
+	}
+
+	/**
+	 * Creates and starts the endpoint configured by METRICS_PORT and METRICS_BIND_ADDRESS
+	 *
+	 * @return the started endpoint, or null if disabled or not started
+	 */
+	public static MetricsServer startFromConfiguration() {
+		int port = DaemonConfiguration.getInt("METRICS_PORT", 9464);
+		if (port <= 0) {
+			return null;
+		}
+		String bindAddress = DaemonConfiguration.getString("METRICS_BIND_ADDRESS", "0.0.0.0");
+		try {
+			MetricsServer metricsServer = new MetricsServer(bindAddress, port);
+			metricsServer.start();
+			return metricsServer;
+		} catch (IOException e) {
+			LOGGER.error("Metrics endpoint not started on " + bindAddress + ":" + port + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Starts serving the metrics
+	 */
+	public void start() {
+		server.start();
+		LOGGER.info("Metrics available on http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/metrics");
+	}
+
+	/**
+	 * Stops serving the metrics
+	 */
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			byte[] body = CollectorMetrics.scrape().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			if ("HEAD".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			try {
+				out.write(body);
+			} finally {
+				out.close();
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+}
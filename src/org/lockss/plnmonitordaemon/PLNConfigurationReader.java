@@ -0,0 +1,210 @@
+package org.lockss.plnmonitordaemon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class PLNConfigurationReader.
+ *
+ * Reads the IP addresses of the boxes of a LOCKSS network from the initialV3PeerList property of its
+ * lockss.xml configuration file.
+ * <p>
+ * The file is read with a streaming (StAX) parser which stops as soon as the peer list has been read,
+ * instead of building the DOM of the whole file (title DB and plugin properties included).
+ * The file is downloaded with a conditional GET (ETag / If-Modified-Since): when the props server answers
+ * 304 Not Modified, the peer list read last time is returned.
+ */
+public class PLNConfigurationReader {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(PLNConfigurationReader.class);
+
+	/** Name of the property listing the boxes of the network */
+	private static final String PEER_LIST_PROPERTY = "id.initialV3PeerList";
+
+	/** Grep expression to identify IP address of LOCKSS boxes in the LOCKSS xml file */
+	private static final Pattern IPV4_PATTERN = Pattern.compile(
+			"(?:(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)");
+
+	private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+	static {
+		// the peer list doesn't need the DTD, never load external resources
+		XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+	}
+
+	private final int timeoutMillis;
+
+	/** Last peer list read from each configuration file (configuration URL, peer list) */
+	private final Map<String, CachedConfiguration> cache = new ConcurrentHashMap<String, CachedConfiguration>();
+
+	/**
+	 * PLNConfigurationReader constructor
+	 *
+	 * @param timeoutMillis connection and read timeout of the download of lockss.xml
+	 */
+	public PLNConfigurationReader(int timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Gets the IP addresses of the boxes of a LOCKSS network
+	 *
+	 * @param configUrl the URL of the lockss.xml file of the network
+	 * @return the box IP addresses (a copy the caller may modify)
+	 * @throws IOException if the file can't be downloaded
+	 * @throws XMLStreamException if the file can't be parsed
+	 */
+	public List<String> getPeerAddresses(String configUrl) throws IOException, XMLStreamException {
+		CachedConfiguration cached = cache.get(configUrl);
+
+		URLConnection connection = new URL(configUrl).openConnection();
+		connection.setConnectTimeout(timeoutMillis);
+		connection.setReadTimeout(timeoutMillis);
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+
+		HttpURLConnection httpConnection = null;
+		if (connection instanceof HttpURLConnection) {
+			httpConnection = (HttpURLConnection) connection;
+			if (cached != null) {
+				if (cached.etag != null) {
+					httpConnection.setRequestProperty("If-None-Match", cached.etag);
+				}
+				if (cached.lastModified > 0) {
+					httpConnection.setIfModifiedSince(cached.lastModified);
+				}
+			}
+			if ((httpConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) && (cached != null)) {
+				httpConnection.disconnect();
+				LOGGER.info("lockss.xml not modified since last download: " + configUrl);
+				return new ArrayList<String>(cached.peerAddresses);
+			}
+		}
+
+		InputStream in = connection.getInputStream();
+		try {
+			if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+				in = new GZIPInputStream(in);
+			}
+			List<String> peerAddresses = Collections.unmodifiableList(readPeerAddresses(in));
+
+			if (httpConnection != null) {
+				cache.put(configUrl, new CachedConfiguration(httpConnection.getHeaderField("ETag"), httpConnection.getLastModified(), peerAddresses));
+			}
+			return new ArrayList<String>(peerAddresses);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the peer list from a lockss.xml stream, stopping at the end of the peer list property.
+	 * The property is found either by its full name (name="id.initialV3PeerList") or through nested
+	 * property elements (name="id" &gt; name="initialV3PeerList").
+	 *
+	 * @param in the lockss.xml content
+	 * @return the box IP addresses
+	 * @throws XMLStreamException if the file can't be parsed
+	 */
+	static List<String> readPeerAddresses(InputStream in) throws XMLStreamException {
+		List<String> peerAddresses = new ArrayList<String>();
+		XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+
+		try {
+			// dotted names of the enclosing property elements
+			Deque<String> propertyNames = new ArrayDeque<String>();
+			// depth of the peer list property in propertyNames (0 when outside)
+			int peerListDepth = 0;
+			boolean inValue = false;
+
+			while (reader.hasNext()) {
+				switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					String element = reader.getLocalName();
+					if (element.equals("property")) {
+						String name = reader.getAttributeValue(null, "name");
+						String parentName = propertyNames.peek();
+						String fullName = ((parentName == null) || parentName.isEmpty()) ? name : parentName + "." + name;
+						propertyNames.push((fullName != null) ? fullName : "");
+						if ((peerListDepth == 0) && (fullName != null) && fullName.contains(PEER_LIST_PROPERTY)) {
+							peerListDepth = propertyNames.size();
+						}
+					}
+					else if (element.equals("value") && (peerListDepth > 0)) {
+						inValue = true;
+					}
+					break;
+
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+					if (inValue) {
+						String value = reader.getText();
+						LOGGER.info("Value : " + value);
+						Matcher m = IPV4_PATTERN.matcher(value);
+						while (m.find()) {
+							peerAddresses.add(m.group());
+						}
+					}
+					break;
+
+				case XMLStreamConstants.END_ELEMENT:
+					if (reader.getLocalName().equals("value")) {
+						inValue = false;
+					}
+					else if (reader.getLocalName().equals("property")) {
+						if (propertyNames.size() == peerListDepth) {
+							// peer list read: the rest of the file is not needed
+							return peerAddresses;
+						}
+						propertyNames.pop();
+					}
+					break;
+
+				default:
+					break;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return peerAddresses;
+	}
+
+	/**
+	 * Peer list read from a configuration file, with the validators of the download
+	 */
+	private static class CachedConfiguration {
+		private final String etag;
+		private final long lastModified;
+		private final List<String> peerAddresses;
+
+		CachedConfiguration(String etag, long lastModified, List<String> peerAddresses) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.peerAddresses = peerAddresses;
+		}
+	}
+
+}
@@ -0,0 +1,92 @@
+package org.lockss.plnmonitordaemon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * The Class RemoteGeoLocationProvider.
+ *
+ * Locates IP addresses with a freegeoip-like XML web service (reallyfreegeoip.org by default): GET
+ * &lt;url&gt;&lt;ip&gt; answering a Response element with CountryName, City, Latitude and Longitude.
+ * <p>
+ * The parser factory is created once and each thread keeps its own DocumentBuilder, so parallel lookups don't
+ * pay for the parser setup. Each request has its own connect and read timeouts.
+ */
+public class RemoteGeoLocationProvider implements GeoLocationProvider {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(RemoteGeoLocationProvider.class);
+
+	private final String url;
+	private final int timeoutMillis;
+
+	private final DocumentBuilderFactory factory;
+	private final ThreadLocal<DocumentBuilder> builders;
+
+	/**
+	 * RemoteGeoLocationProvider constructor
+	 *
+	 * @param url URL of the service, the IP address is appended
+	 * @param timeoutMillis connect and read timeout of a request
+	 */
+	public RemoteGeoLocationProvider(String url, int timeoutMillis) {
+		this.url = url;
+		this.timeoutMillis = timeoutMillis;
+		this.factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		try {
+			// answers are plain XML: no DTD, no external entity
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+		} catch (ParserConfigurationException e) {
+			LOGGER.warn(e.getMessage());
+		}
+		this.builders = ThreadLocal.withInitial(() -> {
+			try {
+				return factory.newDocumentBuilder();
+			} catch (ParserConfigurationException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+	}
+
+	@Override
+	public Location locate(String ipAddress) throws IOException {
+		URLConnection connection = new URL(url + ipAddress).openConnection();
+		connection.setConnectTimeout(timeoutMillis);
+		connection.setReadTimeout(timeoutMillis);
+		connection.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/537.11 (KHTML, like Gecko) Chrome/23.0.1271.95 Safari/537.11");
+
+		Element response;
+		try (InputStream input = connection.getInputStream()) {
+			DocumentBuilder builder = builders.get();
+			builder.reset();
+			response = builder.parse(input).getDocumentElement();
+		} catch (SAXException e) {
+			throw new IOException("Invalid geolocation of " + ipAddress + ": " + e.getMessage(), e);
+		}
+
+		String latitude = text(response, "Latitude");
+		String longitude = text(response, "Longitude");
+		if ((latitude == null) || (longitude == null) || latitude.isEmpty() || longitude.isEmpty()) {
+			return null;
+		}
+		return new Location(text(response, "CountryName"), text(response, "City"), latitude, longitude);
+	}
+
+	private static String text(Element response, String tagName) {
+		Node node = response.getElementsByTagName(tagName).item(0);
+		return (node == null) ? null : node.getTextContent();
+	}
+
+}
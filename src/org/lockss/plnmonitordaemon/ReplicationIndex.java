@@ -0,0 +1,382 @@
+package org.lockss.plnmonitordaemon;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class ReplicationIndex.
+ *
+ * In-memory index of the replication of the AUs of each PLN: for each AU, the set of boxes holding it and the
+ * set of boxes holding it with a recent poll agreement of at least REPLICATION_MIN_AGREEMENT, as bitsets
+ * indexed by box ID. It is summarized in plnmonitor.au_replication (one row per AU and PLN, with the box
+ * counts and an at_risk flag when fewer than REPLICATION_MIN_BOXES boxes agree), so dashboards and alerts
+ * find the AUs held by too few boxes without self-joining au_current across the boxes.
+ * <p>
+ * The AU ids of a PLN are interned into dense slots: the per-AU values are arrays indexed by slot and each
+ * id string is kept once, however many boxes hold the AU. The AUs of a box are read back from au_current in the
+ * transaction storing them and applied to the index once it is committed. Only the slots changed since the
+ * previous write are written to au_replication. The index is loaded from au_current on its first write.
+ */
+public class ReplicationIndex {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(ReplicationIndex.class);
+
+	public static final String TABLE = "plnmonitor.au_replication";
+
+	/** Columns of au_replication */
+	public static final String[] COLUMNS = { "pln", "au_lockss_id", "name", "box_count", "agreeing_box_count", "boxes", "agreeing_boxes", "at_risk", "updated_at" };
+
+	private static final String AU_QUERY = "SELECT lockss_box.pln, au_current.box, au_current.au_lockss_id, au_current.name, au_current.recent_poll_agreement "
+			+ "FROM plnmonitor.au_current INNER JOIN plnmonitor.lockss_box ON lockss_box.id = au_current.box";
+
+	private final double minAgreement;
+	private final int minBoxes;
+	private final Map<Integer, PlnIndex> plns = new HashMap<Integer, PlnIndex>();
+	private boolean loaded = false;
+
+	/**
+	 * ReplicationIndex constructor
+	 *
+	 * @param minAgreement min recent poll agreement (0 to 1) of a box for its copy of an AU to count
+	 * @param minBoxes min number of agreeing boxes of an AU not to be at risk
+	 */
+	public ReplicationIndex(double minAgreement, int minBoxes) {
+		this.minAgreement = minAgreement;
+		this.minBoxes = minBoxes;
+	}
+
+	/**
+	 * Creates the summary table if it doesn't exist
+	 *
+	 * @param dbConnection connection to the plnmonitor database
+	 * @throws SQLException the SQL exception
+	 */
+	static void create(Connection dbConnection) throws SQLException {
+		DatabaseSchema.execute(dbConnection, "CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+				+ "pln integer NOT NULL, "
+				+ "au_lockss_id text NOT NULL, "
+				+ "name text, "
+				+ "box_count integer NOT NULL, "
+				+ "agreeing_box_count integer NOT NULL, "
+				+ "boxes integer[] NOT NULL, "
+				+ "agreeing_boxes integer[] NOT NULL, "
+				+ "at_risk boolean NOT NULL, "
+				+ "updated_at timestamp with time zone NOT NULL DEFAULT now(), "
+				+ "PRIMARY KEY (pln, au_lockss_id))");
+		try {
+			DatabaseSchema.execute(dbConnection, "CREATE INDEX IF NOT EXISTS au_replication_at_risk ON " + TABLE + " (pln) WHERE at_risk");
+		} catch (SQLException e) {
+			// CREATE INDEX IF NOT EXISTS needs 9.5
+			LOGGER.warn("Can't create index on au_replication (pln) where at_risk: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Checks whether the index was loaded from au_current (box updates are ignored before)
+	 */
+	public synchronized boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * Reads the AUs of a box from au_current
+	 *
+	 * @param dbConnection the DB connection (in the transaction storing the AUs)
+	 * @param boxId the box ID in the database
+	 * @return the update of the index, to be applied once the transaction is committed
+	 * @throws SQLException the SQL exception
+	 */
+	public BoxUpdate read(Connection dbConnection, Integer boxId) throws SQLException {
+		BoxUpdate update = new BoxUpdate(boxId);
+		PreparedStatement preparedStatement = dbConnection.prepareStatement(AU_QUERY + " WHERE au_current.box = ?");
+		try {
+			preparedStatement.setInt(1, boxId);
+			preparedStatement.setFetchSize(1000);
+			ResultSet rs = preparedStatement.executeQuery();
+			while (rs.next()) {
+				update.add(rs.getInt(1), rs.getString(3), rs.getString(4), agreement(rs));
+			}
+		} finally {
+			preparedStatement.close();
+		}
+		return update;
+	}
+
+	/**
+	 * Replaces the AUs of a box in the index
+	 *
+	 * @param update the AUs of the box (see read)
+	 */
+	public synchronized void apply(BoxUpdate update) {
+		if (!loaded) {
+			return;
+		}
+		int box = update.boxId.intValue();
+		BitSet seen = new BitSet();
+		PlnIndex index = null;
+		for (int i = 0; i < update.size; i++) {
+			index = getPln(update.plns[i]);
+			seen.set(index.add(box, update.auIds.get(i), update.names.get(i), update.agreements[i] >= minAgreement));
+		}
+		// AUs no longer in the box
+		for (PlnIndex plnIndex : plns.values()) {
+			plnIndex.remove(box, (plnIndex == index) ? seen : new BitSet());
+		}
+	}
+
+	/**
+	 * Writes the AUs changed since the previous write to au_replication (loads the index first if needed)
+	 *
+	 * @param dbConnection the DB connection (autocommit off, committed by the caller)
+	 * @param dialect SQL dialect of the database server
+	 * @param batchSize number of rows sent to the database in a single JDBC batch
+	 * @return number of AUs at risk
+	 * @throws SQLException the SQL exception (the index must then be reset)
+	 */
+	public synchronized int write(Connection dbConnection, SQLDialect dialect, int batchSize) throws SQLException {
+		if (!loaded) {
+			load(dbConnection);
+		}
+
+		SQLDialect.Upsert upsert = dialect.upsert(TABLE, COLUMNS, StatusRows.KEY_COLUMNS.get(TABLE), false);
+		PreparedStatement upsertStatement = dbConnection.prepareStatement(upsert.getSQL());
+		PreparedStatement deleteStatement = dbConnection.prepareStatement("DELETE FROM " + TABLE + " WHERE pln = ? AND au_lockss_id = ?");
+		java.sql.Timestamp now = new java.sql.Timestamp(System.currentTimeMillis());
+		int atRisk = 0;
+		long written = 0;
+		try {
+			int batchCount = 0;
+			for (Map.Entry<Integer, PlnIndex> entry : plns.entrySet()) {
+				PlnIndex index = entry.getValue();
+				for (int slot = index.dirty.nextSetBit(0); slot >= 0; slot = index.dirty.nextSetBit(slot + 1)) {
+					if (index.holders[slot].isEmpty()) {
+						deleteStatement.setInt(1, entry.getKey());
+						deleteStatement.setString(2, index.auIds[slot]);
+						deleteStatement.addBatch();
+						index.free(slot);
+					}
+					else {
+						int agreeingCount = index.agreeing[slot].cardinality();
+						upsert.bind(upsertStatement, new Object[] { entry.getKey(), index.auIds[slot], index.names[slot],
+								index.holders[slot].cardinality(), agreeingCount, boxArray(dbConnection, index.holders[slot]),
+								boxArray(dbConnection, index.agreeing[slot]), agreeingCount < minBoxes, now });
+						upsertStatement.addBatch();
+					}
+					written++;
+					if (++batchCount == batchSize) {
+						upsertStatement.executeBatch();
+						deleteStatement.executeBatch();
+						batchCount = 0;
+					}
+				}
+				index.dirty.clear();
+				atRisk += index.countAtRisk();
+			}
+			upsertStatement.executeBatch();
+			deleteStatement.executeBatch();
+		} finally {
+			upsertStatement.close();
+			deleteStatement.close();
+		}
+		CollectorMetrics.rowsWritten(TABLE, written);
+		return atRisk;
+	}
+
+	/**
+	 * Empties the index: it is loaded again from au_current on the next write (after a failed write)
+	 */
+	public synchronized void reset() {
+		plns.clear();
+		loaded = false;
+	}
+
+	/**
+	 * Loads the index from the AUs of all the boxes; all the AUs are written on the next write
+	 */
+	private void load(Connection dbConnection) throws SQLException {
+		long start = System.currentTimeMillis();
+		plns.clear();
+		long count = 0;
+		PreparedStatement preparedStatement = dbConnection.prepareStatement(AU_QUERY);
+		try {
+			// cursor-based read of au_current (autocommit off)
+			preparedStatement.setFetchSize(10000);
+			ResultSet rs = preparedStatement.executeQuery();
+			while (rs.next()) {
+				getPln(rs.getInt(1)).add(rs.getInt(2), rs.getString(3), rs.getString(4), agreement(rs) >= minAgreement);
+				count++;
+			}
+		} finally {
+			preparedStatement.close();
+		}
+		// rows of AUs gone while the daemon was stopped
+		DatabaseSchema.execute(dbConnection, "DELETE FROM " + TABLE + " AS r WHERE NOT EXISTS (SELECT 1 FROM plnmonitor.au_current "
+				+ "INNER JOIN plnmonitor.lockss_box ON lockss_box.id = au_current.box WHERE lockss_box.pln = r.pln AND au_current.au_lockss_id = r.au_lockss_id)");
+		loaded = true;
+		LOGGER.info("Replication index loaded from " + count + " AUs in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private PlnIndex getPln(int pln) {
+		PlnIndex index = plns.get(pln);
+		if (index == null) {
+			index = new PlnIndex();
+			plns.put(pln, index);
+		}
+		return index;
+	}
+
+	private static double agreement(ResultSet rs) throws SQLException {
+		double agreement = rs.getDouble(5);
+		return rs.wasNull() ? -1 : agreement;
+	}
+
+	private static java.sql.Array boxArray(Connection dbConnection, BitSet boxes) throws SQLException {
+		Integer[] boxIds = new Integer[boxes.cardinality()];
+		int i = 0;
+		for (int box = boxes.nextSetBit(0); box >= 0; box = boxes.nextSetBit(box + 1)) {
+			boxIds[i++] = box;
+		}
+		return dbConnection.createArrayOf("integer", boxIds);
+	}
+
+	/**
+	 * AUs of a box read from au_current, waiting for the commit of their transaction
+	 */
+	public static class BoxUpdate {
+		private final Integer boxId;
+		private int[] plns = new int[1024];
+		private double[] agreements = new double[1024];
+		private final List<String> auIds = new ArrayList<String>();
+		private final List<String> names = new ArrayList<String>();
+		private int size = 0;
+
+		BoxUpdate(Integer boxId) {
+			this.boxId = boxId;
+		}
+
+		void add(int pln, String auId, String name, double agreement) {
+			if (size == plns.length) {
+				plns = Arrays.copyOf(plns, size * 2);
+				agreements = Arrays.copyOf(agreements, size * 2);
+			}
+			plns[size] = pln;
+			agreements[size] = agreement;
+			auIds.add(auId);
+			names.add(name);
+			size++;
+		}
+	}
+
+	/**
+	 * AUs of a PLN: slot of each AU id, boxes holding each slot, slots held by each box
+	 */
+	private class PlnIndex {
+		private final Map<String, Integer> slots = new HashMap<String, Integer>();
+		private String[] auIds = new String[1024];
+		private String[] names = new String[1024];
+		private BitSet[] holders = new BitSet[1024];
+		private BitSet[] agreeing = new BitSet[1024];
+		private int size = 0;
+		private final BitSet freeSlots = new BitSet();
+		private final Map<Integer, BitSet> boxSlots = new HashMap<Integer, BitSet>();
+		/** Slots changed since the last write */
+		private final BitSet dirty = new BitSet();
+
+		/**
+		 * Records that a box holds an AU
+		 *
+		 * @return the slot of the AU
+		 */
+		int add(int box, String auId, String name, boolean agrees) {
+			Integer slot = slots.get(auId);
+			if (slot == null) {
+				slot = newSlot(auId);
+			}
+			int s = slot.intValue();
+			if (!holders[s].get(box) || (agreeing[s].get(box) != agrees) || ((name != null) && !name.equals(names[s]))) {
+				holders[s].set(box);
+				agreeing[s].set(box, agrees);
+				names[s] = (name != null) ? name : names[s];
+				dirty.set(s);
+			}
+			BitSet held = boxSlots.get(box);
+			if (held == null) {
+				held = new BitSet();
+				boxSlots.put(box, held);
+			}
+			held.set(s);
+			return s;
+		}
+
+		/**
+		 * Removes a box from the AUs it held, except the given ones
+		 */
+		void remove(int box, BitSet kept) {
+			BitSet held = boxSlots.get(box);
+			if (held == null) {
+				return;
+			}
+			BitSet removed = (BitSet) held.clone();
+			removed.andNot(kept);
+			for (int s = removed.nextSetBit(0); s >= 0; s = removed.nextSetBit(s + 1)) {
+				holders[s].clear(box);
+				agreeing[s].clear(box);
+				dirty.set(s);
+			}
+			held.and(kept);
+		}
+
+		/**
+		 * Frees the slot of an AU held by no box
+		 */
+		void free(int s) {
+			slots.remove(auIds[s]);
+			auIds[s] = null;
+			names[s] = null;
+			freeSlots.set(s);
+		}
+
+		int countAtRisk() {
+			int count = 0;
+			for (int s = 0; s < size; s++) {
+				if ((auIds[s] != null) && (agreeing[s].cardinality() < minBoxes)) {
+					count++;
+				}
+			}
+			return count;
+		}
+
+		private int newSlot(String auId) {
+			int s = freeSlots.nextSetBit(0);
+			if (s >= 0) {
+				freeSlots.clear(s);
+			}
+			else {
+				if (size == auIds.length) {
+					auIds = Arrays.copyOf(auIds, size * 2);
+					names = Arrays.copyOf(names, size * 2);
+					holders = Arrays.copyOf(holders, size * 2);
+					agreeing = Arrays.copyOf(agreeing, size * 2);
+				}
+				s = size++;
+			}
+			auIds[s] = auId;
+			holders[s] = new BitSet();
+			agreeing[s] = new BitSet();
+			slots.put(auId, s);
+			return s;
+		}
+	}
+
+}
@@ -0,0 +1,147 @@
+package org.lockss.plnmonitordaemon;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class RollupTables.
+ *
+ * Pre-aggregated AU metrics for the dashboards, per (pln, box, tdb_publisher, time bucket):
+ * number of AUs, content size, mean and min poll agreement, number of AUs whose last crawl
+ * was not successful and whose last poll was not complete. The number and sum of the known
+ * agreements are kept too, so that the mean of several rows is weighted by the AUs that have one.
+ * <p>
+ * au_rollup_hourly and au_rollup_daily are updated after each collection cycle: the rows of the
+ * current hour and day are replaced by a single grouped aggregate over au_current, so a bucket holds
+ * the state of the last cycle of that hour (day). Dashboard panels query these small indexed tables
+ * instead of aggregating au_current on every refresh: buildQuery gives the time series query inserted in the
+ * dashboard templates (see DashboardBuilder).
+ */
+public class RollupTables {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(RollupTables.class);
+
+	/** Rollup tables (without schema) */
+	public static final String HOURLY = "au_rollup_hourly";
+	public static final String DAILY = "au_rollup_daily";
+
+	/** Rollup tables and their time bucket (date_trunc field) */
+	private static final String[][] ROLLUPS = { { HOURLY, "hour" }, { DAILY, "day" } };
+
+	/** Crawl and poll results counted as successful */
+	private static final String CRAWL_SUCCESS = "Successful";
+	private static final String POLL_SUCCESS = "Complete";
+
+	private RollupTables() {
+	}
+
+	/**
+	 * Creates the rollup tables if they don't exist
+	 *
+	 * @param dbConnection connection to the plnmonitor database
+	 * @throws SQLException the SQL exception
+	 */
+	static void create(Connection dbConnection) throws SQLException {
+		for (String[] rollup : ROLLUPS) {
+			DatabaseSchema.execute(dbConnection, "CREATE TABLE IF NOT EXISTS plnmonitor." + rollup[0] + " ("
+					+ "bucket timestamp with time zone NOT NULL, "
+					+ "pln integer NOT NULL, "
+					+ "box integer NOT NULL, "
+					+ "tdb_publisher text NOT NULL, "
+					+ "au_count integer, "
+					+ "content_size bigint, "
+					+ "mean_agreement double precision, "
+					+ "min_agreement double precision, "
+					+ "agreement_count integer, "
+					+ "agreement_sum double precision, "
+					+ "crawl_failures integer, "
+					+ "poll_failures integer, "
+					+ "computed_at timestamp with time zone NOT NULL DEFAULT now(), "
+					+ "PRIMARY KEY (bucket, pln, box, tdb_publisher))");
+			DatabaseSchema.addColumn(dbConnection, "plnmonitor", rollup[0], "agreement_count", "integer");
+			DatabaseSchema.addColumn(dbConnection, "plnmonitor", rollup[0], "agreement_sum", "double precision");
+			// rows written before these columns: the mean is assumed to cover all the AUs of the row
+			DatabaseSchema.execute(dbConnection, "UPDATE plnmonitor." + rollup[0]
+					+ " SET agreement_count = CASE WHEN mean_agreement IS NULL THEN 0 ELSE au_count END, agreement_sum = mean_agreement * au_count"
+					+ " WHERE agreement_count IS NULL");
+		}
+	}
+
+	/**
+	 * Replaces the rows of the current buckets with the aggregates of au_current and drops the expired buckets
+	 *
+	 * @param dbConnection connection to the plnmonitor database, with autocommit off (committed by the caller)
+	 * @param hourlyRetentionDays days of hourly buckets kept (0 keeps everything)
+	 * @param dailyRetentionDays days of daily buckets kept (0 keeps everything)
+	 * @return number of rows written in all the tables
+	 * @throws SQLException the SQL exception
+	 */
+	static int update(Connection dbConnection, int hourlyRetentionDays, int dailyRetentionDays) throws SQLException {
+		int totalRows = 0;
+		for (String[] rollup : ROLLUPS) {
+			String table = "plnmonitor." + rollup[0];
+			String bucket = "date_trunc('" + rollup[1] + "', now())";
+
+			DatabaseSchema.execute(dbConnection, "DELETE FROM " + table + " WHERE bucket = " + bucket);
+
+			PreparedStatement preparedStatement = dbConnection.prepareStatement("INSERT INTO " + table
+					+ " (bucket, pln, box, tdb_publisher, au_count, content_size, mean_agreement, min_agreement, agreement_count, agreement_sum, "
+					+ "crawl_failures, poll_failures) "
+					+ "SELECT " + bucket + ", lockss_box.pln, au_current.box, COALESCE(au_current.tdb_publisher, ''), COUNT(*), "
+					+ "SUM(au_current.content_size), AVG(au_current.recent_poll_agreement), MIN(au_current.recent_poll_agreement), "
+					+ "COUNT(au_current.recent_poll_agreement), SUM(au_current.recent_poll_agreement), "
+					+ "SUM(CASE WHEN au_current.last_crawl_result IS DISTINCT FROM ? THEN 1 ELSE 0 END), "
+					+ "SUM(CASE WHEN au_current.last_poll_result IS DISTINCT FROM ? THEN 1 ELSE 0 END) "
+					+ "FROM plnmonitor.au_current INNER JOIN plnmonitor.lockss_box ON lockss_box.id = au_current.box "
+					+ "GROUP BY lockss_box.pln, au_current.box, COALESCE(au_current.tdb_publisher, '')");
+			int rows;
+			try {
+				preparedStatement.setString(1, CRAWL_SUCCESS);
+				preparedStatement.setString(2, POLL_SUCCESS);
+				rows = preparedStatement.executeUpdate();
+			} finally {
+				preparedStatement.close();
+			}
+			totalRows += rows;
+			LOGGER.debug(rows + " (box, TDB publisher) rows in the current " + rollup[1] + " bucket of " + rollup[0]);
+
+			int retentionDays = rollup[1].equals("hour") ? hourlyRetentionDays : dailyRetentionDays;
+			if (retentionDays > 0) {
+				DatabaseSchema.execute(dbConnection, "DELETE FROM " + table + " WHERE bucket < now() - interval '" + retentionDays + " days'");
+			}
+		}
+		return totalRows;
+	}
+
+	/**
+	 * Builds the dashboard time series query of a rollup table for a PLN, a box or a TDB publisher: one row per bucket in
+	 * the Grafana time range with the AU count, content size, mean and min agreement, crawl and poll failures (the mean
+	 * is computed from the sum and number of the known agreements: AUs without agreement are not counted)
+	 * (quoted for a JSON string: the query is inserted as it is in the dashboard templates)
+	 *
+	 * @param table HOURLY or DAILY
+	 * @param plnID the pln ID in the database
+	 * @param boxId the box ID in the database, null for all the boxes of the PLN
+	 * @param tdbPublisher the TDB publisher, null for all the publishers
+	 * @return the SQL query, ordered by bucket
+	 */
+	public static String buildQuery(String table, Integer plnID, Integer boxId, String tdbPublisher) {
+		StringBuilder query = new StringBuilder("SELECT bucket AS \"time\", SUM(au_count) AS \"AUs\", SUM(content_size) AS \"content size\", "
+				+ "SUM(agreement_sum) / NULLIF(SUM(agreement_count), 0) AS \"mean agreement\", "
+				+ "MIN(min_agreement) AS \"min agreement\", SUM(crawl_failures) AS \"crawl failures\", SUM(poll_failures) AS \"poll failures\" "
+				+ "FROM plnmonitor.");
+		query.append(table).append(" WHERE $__timeFilter(bucket) AND pln = ").append(plnID.intValue());
+		if (boxId != null) {
+			query.append(" AND box = ").append(boxId.intValue());
+		}
+		if (tdbPublisher != null) {
+			query.append(" AND tdb_publisher = '").append(tdbPublisher.replace("'", "''")).append("'");
+		}
+		return DashboardTemplate.json(query.append(" GROUP BY bucket ORDER BY 1").toString());
+	}
+
+}
@@ -0,0 +1,382 @@
+package org.lockss.plnmonitordaemon;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class SQLDialect.
+ *
+ * Builds the upsert statements of the daemon for the version of the PostgreSQL server.
+ * <p>
+ * On PostgreSQL 9.5+ upserts use INSERT ... ON CONFLICT DO UPDATE: each value is bound once, the row is
+ * located with a single index probe and concurrent writers can't insert the same row twice.
+ * ON CONFLICT needs a valid unique index on the key columns. When it is missing it is built with
+ * CREATE UNIQUE INDEX CONCURRENTLY (the table stays writable during the build), unless DB_CREATE_UPSERT_INDEXES
+ * is false: the indexes are then left to the installer (or to the DBA, see the statement logged) and only detected.
+ * Older servers (or tables without such an index, e.g. because they already contain duplicates) keep the
+ * writable CTE form: WITH upsert AS (UPDATE ... RETURNING *) INSERT ... WHERE NOT EXISTS.
+ */
+public class SQLDialect {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(SQLDialect.class);
+
+	/** Build the missing unique indexes of the upserts (concurrently), otherwise only detect them */
+	private static boolean createUpsertIndexes = DaemonConfiguration.getBoolean("DB_CREATE_UPSERT_INDEXES", true);
+
+	/** Server version */
+	private final int majorVersion;
+	private final int minorVersion;
+
+	/** Tables with a unique index on their key columns (ON CONFLICT is usable) */
+	private final Set<String> onConflictTables = new HashSet<String>();
+
+	/**
+	 * SQLDialect constructor
+	 *
+	 * @param majorVersion major version of the PostgreSQL server
+	 * @param minorVersion minor version of the PostgreSQL server
+	 */
+	public SQLDialect(int majorVersion, int minorVersion) {
+		this.majorVersion = majorVersion;
+		this.minorVersion = minorVersion;
+	}
+
+	/**
+	 * Detects the version of the PostgreSQL server and, on 9.5+, makes sure that each table has a unique index
+	 * on its key columns.
+	 *
+	 * @param dbConnection connection to the plnmonitor database
+	 * @param keyColumns key columns of each table (table, key columns)
+	 * @return the dialect to use with this server
+	 * @throws SQLException the SQL exception
+	 */
+	public static SQLDialect detect(Connection dbConnection, Map<String, String[]> keyColumns) throws SQLException {
+		DatabaseMetaData metaData = dbConnection.getMetaData();
+		SQLDialect dialect = new SQLDialect(metaData.getDatabaseMajorVersion(), metaData.getDatabaseMinorVersion());
+
+		if (dialect.isOnConflictAvailable()) {
+			for (Map.Entry<String, String[]> entry : keyColumns.entrySet()) {
+				if (ensureUniqueIndex(dbConnection, entry.getKey(), entry.getValue())) {
+					dialect.onConflictTables.add(entry.getKey());
+				}
+			}
+		}
+
+		LOGGER.info("PostgreSQL " + metaData.getDatabaseProductVersion() + ": using "
+				+ (dialect.onConflictTables.isEmpty() ? "legacy CTE upserts" : "INSERT ... ON CONFLICT upserts for " + dialect.onConflictTables));
+		return dialect;
+	}
+
+	/**
+	 * Checks whether the server supports INSERT ... ON CONFLICT (PostgreSQL 9.5+)
+	 */
+	public boolean isOnConflictAvailable() {
+		return (majorVersion > 9) || ((majorVersion == 9) && (minorVersion >= 5));
+	}
+
+	/**
+	 * Checks whether upserts in the given table use INSERT ... ON CONFLICT
+	 *
+	 * @param table the table name (with schema)
+	 */
+	public boolean usesOnConflict(String table) {
+		return onConflictTables.contains(table);
+	}
+
+	/**
+	 * Builds the upsert of a row identified by its key columns
+	 *
+	 * @param table the table name (with schema)
+	 * @param columns the columns set by the upsert
+	 * @param keyColumns the columns identifying the row (among columns)
+	 * @param returning true to get the inserted or updated row as a result set
+	 * @return the upsert statement
+	 */
+	public Upsert upsert(String table, String[] columns, String[] keyColumns, boolean returning) {
+		int[] keyIndexes = new int[keyColumns.length];
+		for (int i = 0; i < keyColumns.length; i++) {
+			keyIndexes[i] = Arrays.asList(columns).indexOf(keyColumns[i]);
+		}
+
+		if (usesOnConflict(table)) {
+			String sql = "INSERT INTO " + table + " (" + join(columns, "") + ") VALUES (" + placeholders(columns.length) + ") "
+					+ "ON CONFLICT (" + join(keyColumns, "") + ") DO UPDATE SET " + assignments(columns, "EXCLUDED.")
+					+ (returning ? " RETURNING *" : "");
+			int[] parameterColumns = new int[columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				parameterColumns[i] = i;
+			}
+			return new Upsert(sql, parameterColumns);
+		}
+
+		// legacy form: SET values, key values, then INSERT values
+		StringBuilder where = new StringBuilder();
+		for (String keyColumn : keyColumns) {
+			if (where.length() > 0) {
+				where.append(" and ");
+			}
+			where.append(keyColumn).append("=?");
+		}
+		StringBuilder set = new StringBuilder();
+		for (String column : columns) {
+			if (set.length() > 0) {
+				set.append(", ");
+			}
+			set.append(column).append(" = ?");
+		}
+
+		String sql = "WITH upsert AS (UPDATE " + table + " SET " + set + " WHERE " + where + " RETURNING *), ";
+		if (returning) {
+			sql = sql + "inserted AS (INSERT INTO " + table + " (" + join(columns, "") + ") "
+					+ "SELECT " + placeholders(columns.length) + " WHERE NOT EXISTS (SELECT * FROM upsert) RETURNING *) "
+					+ "SELECT * FROM upsert union all SELECT * FROM inserted";
+		}
+		else {
+			sql = sql.substring(0, sql.length() - 2) + " INSERT INTO " + table + " (" + join(columns, "") + ") "
+					+ "SELECT " + placeholders(columns.length) + " WHERE NOT EXISTS (SELECT * FROM upsert)";
+		}
+
+		int[] parameterColumns = new int[2 * columns.length + keyColumns.length];
+		int parameter = 0;
+		for (int i = 0; i < columns.length; i++) {
+			parameterColumns[parameter++] = i;
+		}
+		for (int keyIndex : keyIndexes) {
+			parameterColumns[parameter++] = keyIndex;
+		}
+		for (int i = 0; i < columns.length; i++) {
+			parameterColumns[parameter++] = i;
+		}
+		return new Upsert(sql, parameterColumns);
+	}
+
+	/**
+	 * Builds the update of some columns of an existing row, written only when one of their values changed
+	 * (rows missing from the table are not inserted)
+	 *
+	 * @param table the table name (with schema)
+	 * @param columns the columns of the rows bound to the statement
+	 * @param updatedColumns the columns set by the update (among columns)
+	 * @param keyColumns the columns identifying the row (among columns)
+	 * @param resetColumns columns set to NULL when the row is updated
+	 * @return the update statement
+	 */
+	public Upsert update(String table, String[] columns, String[] updatedColumns, String[] keyColumns, String[] resetColumns) {
+		StringBuilder set = new StringBuilder();
+		for (String column : updatedColumns) {
+			set.append(column).append(" = ?, ");
+		}
+		for (String column : resetColumns) {
+			set.append(column).append(" = NULL, ");
+		}
+		StringBuilder where = new StringBuilder();
+		for (String keyColumn : keyColumns) {
+			where.append(keyColumn).append(" = ? AND ");
+		}
+
+		String sql = "UPDATE " + table + " SET " + set.substring(0, set.length() - 2) + " WHERE " + where
+				+ "ROW(" + join(updatedColumns, "") + ") IS DISTINCT FROM ROW(" + placeholders(updatedColumns.length) + ")";
+
+		// SET values, key values, then values compared with the stored ones
+		int[] parameterColumns = new int[2 * updatedColumns.length + keyColumns.length];
+		int parameter = 0;
+		for (String column : updatedColumns) {
+			parameterColumns[parameter++] = Arrays.asList(columns).indexOf(column);
+		}
+		for (String column : keyColumns) {
+			parameterColumns[parameter++] = Arrays.asList(columns).indexOf(column);
+		}
+		for (String column : updatedColumns) {
+			parameterColumns[parameter++] = Arrays.asList(columns).indexOf(column);
+		}
+		return new Upsert(sql, parameterColumns);
+	}
+
+	/**
+	 * Builds the set-based merge of a staging table (same columns) into a table
+	 *
+	 * @param table the table name (with schema)
+	 * @param stagingTable the staging table name
+	 * @param columns the columns copied from the staging table
+	 * @param keyColumns the columns identifying a row (among columns)
+	 * @param changeColumn column whose value changes when the row changes (existing rows with the same value are
+	 *  left untouched), or null to update all existing rows
+	 * @return the merge statement
+	 */
+	public String merge(String table, String stagingTable, String[] columns, String[] keyColumns, String changeColumn) {
+		if (usesOnConflict(table)) {
+			return "INSERT INTO " + table + " AS t (" + join(columns, "") + ") SELECT " + join(columns, "") + " FROM " + stagingTable
+					+ " ON CONFLICT (" + join(keyColumns, "") + ") DO UPDATE SET " + assignments(columns, "EXCLUDED.")
+					+ ((changeColumn != null) ? " WHERE t." + changeColumn + " IS DISTINCT FROM EXCLUDED." + changeColumn : "");
+		}
+
+		// rows to insert are the ones missing before the statement (the update is not visible to the insert)
+		return "WITH updated AS (UPDATE " + table + " AS t SET " + assignments(columns, "s.")
+				+ " FROM " + stagingTable + " AS s WHERE " + keyCondition(keyColumns, "t", "s")
+				+ ((changeColumn != null) ? " AND t." + changeColumn + " IS DISTINCT FROM s." + changeColumn : "")
+				+ " RETURNING " + join(keyColumns, "t.") + ") "
+				+ "INSERT INTO " + table + " (" + join(columns, "") + ") "
+				+ "SELECT " + join(columns, "s.") + " FROM " + stagingTable + " AS s "
+				+ "WHERE NOT EXISTS (SELECT 1 FROM " + table + " AS u WHERE " + keyCondition(keyColumns, "u", "s") + ")";
+	}
+
+	/**
+	 * Checks that a valid unique index on the key columns exists and builds it concurrently if needed
+	 *
+	 * @return true if the table has a valid unique index on the key columns
+	 */
+	private static boolean ensureUniqueIndex(Connection dbConnection, String table, String[] keyColumns) throws SQLException {
+		if (hasUniqueIndex(dbConnection, table, keyColumns)) {
+			return true;
+		}
+
+		String schema = table.substring(0, table.indexOf('.'));
+		String tableName = table.substring(table.indexOf('.') + 1);
+		String indexName = tableName + "_" + join(keyColumns, "").replace(", ", "_") + "_upsert_key";
+		String createIndex = "CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS " + indexName + " ON " + table + " (" + join(keyColumns, "") + ")";
+		if (!createUpsertIndexes) {
+			LOGGER.error("No unique index on " + table + " (" + join(keyColumns, "") + "): legacy upserts used for this table. "
+					+ "Create it with: " + createIndex);
+			return false;
+		}
+
+		// CONCURRENTLY can't run in a transaction block
+		boolean autoCommit = dbConnection.getAutoCommit();
+		Statement statement = dbConnection.createStatement();
+		try {
+			dbConnection.setAutoCommit(true);
+			// an index left invalid by a failed build (ours, as no valid one exists) would satisfy IF NOT EXISTS
+			statement.executeUpdate("DROP INDEX CONCURRENTLY IF EXISTS " + schema + "." + indexName);
+			LOGGER.info("Building unique index " + indexName + " for upserts in " + table + " (concurrently)...");
+			statement.executeUpdate(createIndex);
+			if (hasUniqueIndex(dbConnection, table, keyColumns)) {
+				LOGGER.info("Created unique index " + indexName + " for upserts in " + table);
+				return true;
+			}
+			LOGGER.error("Unique index " + indexName + " on " + table + " is not valid: legacy upserts used for this table");
+		} catch (SQLException e) {
+			LOGGER.error("Can't create unique index on " + table + " (" + join(keyColumns, "") + "), legacy upserts used for this table "
+					+ "(duplicate rows must be removed first): " + e.getMessage());
+			try {
+				statement.executeUpdate("DROP INDEX CONCURRENTLY IF EXISTS " + schema + "." + indexName);
+			} catch (SQLException e1) {
+				LOGGER.error(e1.getMessage());
+			}
+		} finally {
+			statement.close();
+			dbConnection.setAutoCommit(autoCommit);
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether a table has a valid unique index on exactly the key columns
+	 */
+	private static boolean hasUniqueIndex(Connection dbConnection, String table, String[] keyColumns) throws SQLException {
+		String[] sortedKeyColumns = keyColumns.clone();
+		Arrays.sort(sortedKeyColumns);
+		String schema = table.substring(0, table.indexOf('.'));
+		String tableName = table.substring(table.indexOf('.') + 1);
+
+		String indexQuery = "SELECT 1 FROM pg_index i "
+				+ "INNER JOIN pg_class c ON c.oid = i.indrelid "
+				+ "INNER JOIN pg_namespace n ON n.oid = c.relnamespace "
+				+ "WHERE n.nspname = ? AND c.relname = ? AND i.indisunique AND i.indisvalid AND i.indpred IS NULL AND i.indexprs IS NULL "
+				+ "AND (SELECT string_agg(a.attname::text, ',' ORDER BY a.attname) FROM pg_attribute a "
+				+ "WHERE a.attrelid = c.oid AND a.attnum = ANY(i.indkey)) = ?";
+
+		PreparedStatement preparedStatement = dbConnection.prepareStatement(indexQuery);
+		try {
+			preparedStatement.setString(1, schema);
+			preparedStatement.setString(2, tableName);
+			preparedStatement.setString(3, join(sortedKeyColumns, "").replace(", ", ","));
+			ResultSet rs = preparedStatement.executeQuery();
+			return rs.next();
+		} finally {
+			preparedStatement.close();
+		}
+	}
+
+	private static String join(String[] columns, String prefix) {
+		StringBuilder joined = new StringBuilder();
+		for (String column : columns) {
+			if (joined.length() > 0) {
+				joined.append(", ");
+			}
+			joined.append(prefix).append(column);
+		}
+		return joined.toString();
+	}
+
+	private static String assignments(String[] columns, String prefix) {
+		StringBuilder assignments = new StringBuilder();
+		for (String column : columns) {
+			if (assignments.length() > 0) {
+				assignments.append(", ");
+			}
+			assignments.append(column).append(" = ").append(prefix).append(column);
+		}
+		return assignments.toString();
+	}
+
+	private static String keyCondition(String[] keyColumns, String left, String right) {
+		StringBuilder condition = new StringBuilder();
+		for (String column : keyColumns) {
+			if (condition.length() > 0) {
+				condition.append(" AND ");
+			}
+			condition.append(left).append('.').append(column).append(" = ").append(right).append('.').append(column);
+		}
+		return condition.toString();
+	}
+
+	private static String placeholders(int count) {
+		StringBuilder placeholders = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			placeholders.append((i == 0) ? "?" : ",?");
+		}
+		return placeholders.toString();
+	}
+
+	/**
+	 * Upsert statement: SQL and position of each column value among the statement parameters
+	 */
+	public static class Upsert {
+		private final String sql;
+		private final int[] parameterColumns;
+
+		Upsert(String sql, int[] parameterColumns) {
+			this.sql = sql;
+			this.parameterColumns = parameterColumns;
+		}
+
+		public String getSQL() {
+			return sql;
+		}
+
+		/**
+		 * Binds the values of a row to the statement parameters
+		 *
+		 * @param preparedStatement statement prepared with getSQL()
+		 * @param row the row values in column order
+		 * @throws SQLException the SQL exception
+		 */
+		public void bind(PreparedStatement preparedStatement, Object[] row) throws SQLException {
+			for (int i = 0; i < parameterColumns.length; i++) {
+				preparedStatement.setObject(i + 1, row[parameterColumns[i]]);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,253 @@
+package org.lockss.plnmonitordaemon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.jws.WebMethod;
+import javax.jws.WebParam;
+import javax.jws.WebResult;
+import javax.jws.WebService;
+import javax.xml.ws.WebServiceException;
+
+import org.lockss.ws.entities.AuWsResult;
+import org.lockss.ws.entities.PeerWsResult;
+import org.lockss.ws.entities.PlatformConfigurationWsResult;
+import org.lockss.ws.entities.RepositorySpaceWsResult;
+import org.lockss.ws.entities.RepositoryWsResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class SimulatedDaemonStatusService.
+ *
+ * Daemon Status Service of a simulated LOCKSS box (see DaemonStatusSimulator).
+ * Same SOAP contract as the service of a LOCKSS box for the operations called by the collector
+ * (namespace, service name, operation and parameter names), so the DaemonStatusClientFactory clients
+ * connect to it unchanged. The other operations of the real service are not served.
+ * <p>
+ * Each call waits for the configured latency (fixed part, random jitter and a part proportional to the number
+ * of records returned), then fails with a SOAP fault (error rate), never answers in practice (hang rate)
+ * or returns the data of the box (AUs filtered by the where clause of the AU shards). With a churn rate,
+ * a share of the AUs get new status values at each queryAus so that the collector writes changed rows.
+ */
+@WebService(name = "DaemonStatusService", serviceName = "DaemonStatusServiceImplService",
+		portName = "DaemonStatusServiceImplPort", targetNamespace = "http://status.ws.lockss.org/")
+public class SimulatedDaemonStatusService {
+
+	private static Logger LOGGER = LoggerFactory.getLogger(SimulatedDaemonStatusService.class);
+
+	/** Condition of a where clause: field = 'value', field = "value" or field is null */
+	private static final Pattern CONDITION = Pattern.compile("(\\w+)\\s*(?:=\\s*(?:'([^']*)'|\"([^\"]*)\")|is\\s+null)", Pattern.CASE_INSENSITIVE);
+
+	private final String boxIpAddress;
+	private final Behaviour behaviour;
+	private final PlatformConfigurationWsResult platformConfiguration;
+	private final List<RepositorySpaceWsResult> repositorySpaces;
+	private final List<PeerWsResult> peers;
+	private final List<RepositoryWsResult> repositories;
+
+	/** AUs of the box, replaced (never modified) when AUs change */
+	private volatile List<AuWsResult> aus;
+
+	/** Number of calls answered, failed on purpose and hung */
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong hangs = new AtomicLong();
+
+	/**
+	 * SimulatedDaemonStatusService constructor
+	 *
+	 * @param boxIpAddress address of the simulated box
+	 * @param behaviour latency and failures of the calls
+	 * @param platformConfiguration platform configuration of the box
+	 * @param repositorySpaces repository spaces of the box
+	 * @param aus AUs of the box
+	 * @param peers peers of the box
+	 * @param repositories repositories of the box
+	 */
+	public SimulatedDaemonStatusService(String boxIpAddress, Behaviour behaviour, PlatformConfigurationWsResult platformConfiguration,
+			List<RepositorySpaceWsResult> repositorySpaces, List<AuWsResult> aus, List<PeerWsResult> peers, List<RepositoryWsResult> repositories) {
+		this.boxIpAddress = boxIpAddress;
+		this.behaviour = behaviour;
+		this.platformConfiguration = platformConfiguration;
+		this.repositorySpaces = repositorySpaces;
+		this.aus = aus;
+		this.peers = peers;
+		this.repositories = repositories;
+	}
+
+	@WebMethod
+	@WebResult(name = "return")
+	public boolean isDaemonReady() {
+		simulate("isDaemonReady", 1);
+		return true;
+	}
+
+	@WebMethod
+	@WebResult(name = "return")
+	public PlatformConfigurationWsResult getPlatformConfiguration() {
+		simulate("getPlatformConfiguration", 1);
+		platformConfiguration.setCurrentTime(System.currentTimeMillis());
+		return platformConfiguration;
+	}
+
+	@WebMethod
+	@WebResult(name = "return")
+	public List<RepositorySpaceWsResult> queryRepositorySpaces(@WebParam(name = "repositorySpaceQuery") String repositorySpaceQuery) {
+		simulate("queryRepositorySpaces", repositorySpaces.size());
+		return repositorySpaces;
+	}
+
+	@WebMethod
+	@WebResult(name = "return")
+	public List<AuWsResult> queryAus(@WebParam(name = "auQuery") String auQuery) {
+		List<AuWsResult> result = filter(aus, auQuery);
+		simulate("queryAus", result.size());
+		if (behaviour.churnRate > 0) {
+			churn();
+		}
+		return result;
+	}
+
+	@WebMethod
+	@WebResult(name = "return")
+	public List<PeerWsResult> queryPeers(@WebParam(name = "peerQuery") String peerQuery) {
+		simulate("queryPeers", peers.size());
+		return peers;
+	}
+
+	@WebMethod
+	@WebResult(name = "return")
+	public List<RepositoryWsResult> queryRepositories(@WebParam(name = "repositoryQuery") String repositoryQuery) {
+		simulate("queryRepositories", repositories.size());
+		return repositories;
+	}
+
+	/**
+	 * Gets the number of calls received, failed on purpose and hung (for the simulator summary)
+	 */
+	@WebMethod(exclude = true)
+	public String getCounters() {
+		return boxIpAddress + ": " + calls.get() + " calls, " + errors.get() + " errors, " + hangs.get() + " hangs";
+	}
+
+	/**
+	 * Waits for the latency of a call, then fails or hangs as configured
+	 */
+	private void simulate(String operation, int records) {
+		calls.incrementAndGet();
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		try {
+			long latency = behaviour.latencyMillis + behaviour.latencyPer1000RecordsMillis * records / 1000;
+			if (behaviour.latencyJitterMillis > 0) {
+				latency += random.nextLong(behaviour.latencyJitterMillis + 1);
+			}
+			Thread.sleep(latency);
+
+			if (random.nextDouble() < behaviour.hangRate) {
+				hangs.incrementAndGet();
+				LOGGER.debug(boxIpAddress + " " + operation + ": hanging");
+				Thread.sleep(behaviour.hangMillis);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WebServiceException("Simulated box " + boxIpAddress + " interrupted");
+		}
+		if (random.nextDouble() < behaviour.errorRate) {
+			errors.incrementAndGet();
+			LOGGER.debug(boxIpAddress + " " + operation + ": simulated error");
+			throw new WebServiceException("Simulated error of " + boxIpAddress + " on " + operation);
+		}
+	}
+
+	/**
+	 * Keeps the AUs matching the where clause of a query, as far as the collector uses it (AU shards):
+	 * conditions on pluginName or tdbPublisher (= 'value', = "value" or is null) joined with or
+	 */
+	static List<AuWsResult> filter(List<AuWsResult> aus, String auQuery) {
+		int where = auQuery.toLowerCase().indexOf(" where ");
+		if (where < 0) {
+			return aus;
+		}
+		List<String[]> conditions = new ArrayList<String[]>();
+		Matcher matcher = CONDITION.matcher(auQuery.substring(where + 7));
+		while (matcher.find()) {
+			String value = (matcher.group(2) != null) ? matcher.group(2) : matcher.group(3);
+			conditions.add(new String[] { matcher.group(1), value });
+		}
+
+		List<AuWsResult> result = new ArrayList<AuWsResult>();
+		for (AuWsResult au : aus) {
+			for (String[] condition : conditions) {
+				String value = condition[0].equals("tdbPublisher") ? au.getTdbPublisher() : au.getPluginName();
+				if ((condition[1] == null) ? (value == null) : condition[1].equals(value)) {
+					result.add(au);
+					break;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Gives new status values to a share of the AUs (same AU ids); calls in progress keep the previous list
+	 */
+	private synchronized void churn() {
+		List<AuWsResult> changed = new ArrayList<AuWsResult>(aus);
+		Random random = new Random();
+		long now = System.currentTimeMillis();
+		int count = (int) (changed.size() * behaviour.churnRate);
+		for (int n = 0; n < count; n++) {
+			int i = random.nextInt(changed.size());
+			AuWsResult au = SyntheticData.au(i, random, now, 0);
+			// keeps the identity of recorded AUs
+			au.setAuId(changed.get(i).getAuId());
+			au.setName(changed.get(i).getName());
+			au.setTdbPublisher(changed.get(i).getTdbPublisher());
+			au.setPeerAgreements(changed.get(i).getPeerAgreements());
+			changed.set(i, au);
+		}
+		aus = changed;
+	}
+
+	/**
+	 * Latency and failures of the calls of a simulated box
+	 */
+	public static class Behaviour {
+		final long latencyMillis;
+		final long latencyJitterMillis;
+		final long latencyPer1000RecordsMillis;
+		final double errorRate;
+		final double hangRate;
+		final long hangMillis;
+		final double churnRate;
+
+		/**
+		 * Behaviour constructor
+		 *
+		 * @param latencyMillis fixed latency of each call
+		 * @param latencyJitterMillis max random latency added to each call
+		 * @param latencyPer1000RecordsMillis latency added per 1000 records returned
+		 * @param errorRate share of the calls failing with a SOAP fault (0 to 1)
+		 * @param hangRate share of the calls answered after hangMillis only (0 to 1)
+		 * @param hangMillis duration of a hang
+		 * @param churnRate share of the AUs changed at each queryAus (0 to 1)
+		 */
+		public Behaviour(long latencyMillis, long latencyJitterMillis, long latencyPer1000RecordsMillis, double errorRate,
+				double hangRate, long hangMillis, double churnRate) {
+			this.latencyMillis = latencyMillis;
+			this.latencyJitterMillis = latencyJitterMillis;
+			this.latencyPer1000RecordsMillis = latencyPer1000RecordsMillis;
+			this.errorRate = errorRate;
+			this.hangRate = hangRate;
+			this.hangMillis = hangMillis;
+			this.churnRate = churnRate;
+		}
+	}
+
+}
@@ -0,0 +1,202 @@
+package org.lockss.plnmonitordaemon;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.lockss.ws.entities.AuWsResult;
+import org.lockss.ws.entities.PeerWsResult;
+import org.lockss.ws.entities.PlatformConfigurationWsResult;
+import org.lockss.ws.entities.RepositorySpaceWsResult;
+
+/**
+ * The Class StatusRows.
+ *
+ * Mapping of the Daemon Status Service results to the rows of the plnmonitor tables:
+ * column lists, key columns identifying a row, and the values of a row in column order.
+ * AU rows carry a hash of their values (row_hash) so that unchanged AUs are not written again.
+ * Shared by the row by row upserts and the bulk loader so that both store the same values.
+ */
+public class StatusRows {
+
+	/** Columns of plnmonitor.au_current set from an AuWsResult */
+	public static final String[] AU_COLUMNS = { "box", "name", "plugin_name", "tdb_year", "access_type", "content_size",
+			"recent_poll_agreement", "creation_time", "au_lockss_id", "tdb_publisher", "volume", "disk_usage",
+			"last_completed_crawl", "last_completed_poll", "last_crawl", "last_poll", "crawl_pool", "crawl_proxy",
+			"crawl_window", "last_crawl_result", "last_poll_result", "publishing_platform", "repository_path",
+			"subscription_status", "substance_state", "available_from_publisher", "row_hash" };
+
+	/** Position of the hash of the other AU values in AU_COLUMNS (used to detect unchanged AUs) */
+	public static final int AU_HASH_COLUMN = AU_COLUMNS.length - 1;
+
+	/** Columns of plnmonitor.peer set from a PeerWsResult */
+	public static final String[] PEER_COLUMNS = { "box", "last_poll", "polls_called", "last_invitation", "last_vote",
+			"peer_lockss_id", "last_message", "invitation_count", "message_count", "message_type", "polls_rejected",
+			"votes_cast" };
+
+	/** Columns of plnmonitor.lockss_box_data_current set from a RepositorySpaceWsResult */
+	public static final String[] REPOSITORY_SPACE_COLUMNS = { "box", "used", "size", "free", "percentage", "active_aus",
+			"repository_space_lockss_id", "deleted_aus", "inactive_aus", "orphaned_aus" };
+
+	/** Columns of plnmonitor.lockss_box set from a PlatformConfigurationWsResult */
+	public static final String[] BOX_COLUMNS = { "ipaddress", "uiport", "pln", "groups", "v3identity", "uptime",
+			"admin_email", "disks", "\"current_time\"", "daemon_full_version", "java_version", "platform" };
+
+	/** Columns of plnmonitor.lockss_box_info */
+	public static final String[] BOX_INFO_COLUMNS = { "box", "username", "password", "longitude", "latitude", "country", "name" };
+
+	/** Columns of plnmonitor.pln */
+	public static final String[] PLN_COLUMNS = { "name", "config_url", "id" };
+
+	/** Columns of plnmonitor.user */
+	public static final String[] USER_COLUMNS = { "name", "\"passwordHash\"", "role" };
+
+	/** Columns identifying a row of each table updated by the daemon (table, key columns) */
+	public static final Map<String, String[]> KEY_COLUMNS = new LinkedHashMap<String, String[]>();
+
+	static {
+		KEY_COLUMNS.put("plnmonitor.au_current", new String[] { "box", "au_lockss_id" });
+		KEY_COLUMNS.put("plnmonitor.peer", new String[] { "box", "peer_lockss_id" });
+		KEY_COLUMNS.put("plnmonitor.lockss_box_data_current", new String[] { "box", "repository_space_lockss_id" });
+		KEY_COLUMNS.put("plnmonitor.lockss_box", new String[] { "ipaddress", "pln" });
+		KEY_COLUMNS.put("plnmonitor.lockss_box_info", new String[] { "box" });
+		KEY_COLUMNS.put("plnmonitor.pln", new String[] { "id" });
+		KEY_COLUMNS.put("plnmonitor.user", new String[] { "name" });
+		KEY_COLUMNS.put(AuAgreements.TABLE, new String[] { "box", "au_lockss_id" });
+		KEY_COLUMNS.put(ReplicationIndex.TABLE, new String[] { "pln", "au_lockss_id" });
+	}
+
+	private StatusRows() {
+	}
+
+	/**
+	 * Gets the au_current values of an AU (in AU_COLUMNS order)
+	 *
+	 * @param boxId the box ID in the database
+	 * @param currentAU the AU status
+	 * @return the row values
+	 */
+	public static Object[] auRow(Integer boxId, AuWsResult currentAU) {
+		Object[] row = new Object[] {
+				boxId,
+				currentAU.getName(),
+				currentAU.getPluginName(),
+				currentAU.getTdbYear(),
+				(currentAU.getAccessType()!=null)?currentAU.getAccessType():"",
+				currentAU.getContentSize(),
+				(currentAU.getRecentPollAgreement()!=null)?currentAU.getRecentPollAgreement():0,
+				currentAU.getCreationTime(),
+				currentAU.getAuId(),
+				currentAU.getTdbPublisher(),
+				currentAU.getVolume(),
+				(currentAU.getDiskUsage()!=null)?currentAU.getDiskUsage():0,
+				(currentAU.getLastCompletedCrawl()!=null)?currentAU.getLastCompletedCrawl():0,
+				(currentAU.getLastCompletedPoll()!=null)? currentAU.getLastCompletedPoll():0,
+				(currentAU.getLastCrawl()!=null)? currentAU.getLastCrawl():0,
+				(currentAU.getLastPoll()!= null)?currentAU.getLastPoll():0,
+				currentAU.getCrawlPool(),
+				(currentAU.getCrawlProxy()!=null)?currentAU.getCrawlProxy():"",
+				(currentAU.getCrawlWindow()!=null)?currentAU.getCrawlWindow():"",
+				currentAU.getLastCrawlResult(),
+				currentAU.getLastPollResult(),
+				(currentAU.getPublishingPlatform()!=null)?currentAU.getPublishingPlatform():"",
+				(currentAU.getRepositoryPath()!=null)?currentAU.getRepositoryPath():"",
+				(currentAU.getSubscriptionStatus()!=null)?currentAU.getSubscriptionStatus(): "",
+				currentAU.getSubstanceState(),
+				currentAU.getAvailableFromPublisher(),
+				null };
+		row[AU_HASH_COLUMN] = hash(row, AU_HASH_COLUMN);
+		return row;
+	}
+
+	/**
+	 * Computes a 64-bit hash (FNV-1a) of the first values of a row
+	 *
+	 * @param row the row values
+	 * @param count number of values to hash
+	 * @return the hash
+	 */
+	public static long hash(Object[] row, int count) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < count; i++) {
+			String value = (row[i] != null) ? row[i].toString() : "\\N";
+			for (int j = 0; j < value.length(); j++) {
+				hash ^= value.charAt(j);
+				hash *= 0x100000001b3L;
+			}
+			// value separator
+			hash ^= 0x1f;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Gets the peer values of a peer (in PEER_COLUMNS order)
+	 *
+	 * @param boxId the box ID in the database
+	 * @param currentPeer the peer status
+	 * @return the row values
+	 */
+	public static Object[] peerRow(Integer boxId, PeerWsResult currentPeer) {
+		return new Object[] {
+				boxId,
+				currentPeer.getLastPoll(),
+				currentPeer.getPollsCalled(),
+				currentPeer.getLastInvitation(),
+				currentPeer.getLastVote(),
+				currentPeer.getPeerId(),
+				currentPeer.getLastMessage(),
+				currentPeer.getInvitationCount(),
+				currentPeer.getMessageCount(),
+				currentPeer.getMessageType(),
+				currentPeer.getPollsRejected(),
+				currentPeer.getVotesCast() };
+	}
+
+	/**
+	 * Gets the lockss_box_data_current values of a repository space (in REPOSITORY_SPACE_COLUMNS order)
+	 *
+	 * @param boxId the box ID in the database
+	 * @param currentBoxResult the repository space status
+	 * @return the row values
+	 */
+	public static Object[] repositorySpaceRow(Integer boxId, RepositorySpaceWsResult currentBoxResult) {
+		return new Object[] {
+				boxId,
+				currentBoxResult.getUsed(),
+				currentBoxResult.getSize(),
+				currentBoxResult.getFree(),
+				currentBoxResult.getPercentageFull(),
+				currentBoxResult.getActiveCount(),
+				currentBoxResult.getRepositorySpaceId(),
+				currentBoxResult.getDeletedCount(),
+				currentBoxResult.getInactiveCount(),
+				currentBoxResult.getOrphanedCount() };
+	}
+
+	/**
+	 * Gets the lockss_box values of a box platform configuration (in BOX_COLUMNS order)
+	 *
+	 * @param plnID the pln ID in the database
+	 * @param boxIpAddress the box ip address
+	 * @param boxUIPort the box UI port
+	 * @param boxConfiguration the platform configuration of the box
+	 * @return the row values
+	 */
+	public static Object[] boxRow(Integer plnID, String boxIpAddress, String boxUIPort, PlatformConfigurationWsResult boxConfiguration) {
+		return new Object[] {
+				boxIpAddress,
+				boxUIPort,
+				plnID,
+				boxConfiguration.getGroups().get(0).replaceAll("\\[|\\]", ""),
+				boxConfiguration.getV3Identity().replaceAll("\\[|\\]", ""),
+				boxConfiguration.getUptime(),
+				boxConfiguration.getAdminEmail().replaceAll("\\[|\\]", ""),
+				boxConfiguration.getDisks().get(0).replaceAll("\\[|\\]", ""),
+				boxConfiguration.getCurrentTime(),
+				boxConfiguration.getDaemonVersion().toString().replaceAll("\\[|\\]", ""),
+				boxConfiguration.getJavaVersion().toString().replaceAll("\\[|\\]", ""),
+				boxConfiguration.getPlatform().toString().replaceAll("\\[|\\]", "") };
+	}
+
+}
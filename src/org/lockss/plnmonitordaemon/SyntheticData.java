@@ -0,0 +1,303 @@
+package org.lockss.plnmonitordaemon;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.lockss.ws.entities.AgreementTypeWsResult;
+import org.lockss.ws.entities.AuWsResult;
+import org.lockss.ws.entities.DaemonVersionWsResult;
+import org.lockss.ws.entities.JavaVersionWsResult;
+import org.lockss.ws.entities.PeerAgreementWsResult;
+import org.lockss.ws.entities.PeerAgreementsWsResult;
+import org.lockss.ws.entities.PeerWsResult;
+import org.lockss.ws.entities.PlatformConfigurationWsResult;
+import org.lockss.ws.entities.PlatformWsResult;
+import org.lockss.ws.entities.RepositorySpaceWsResult;
+
+/**
+ * The Class SyntheticData.
+ *
+ * Reproducible (seeded) lockss.xml files, AU, peer and repository space lists shaped like the ones of a production
+ * network, used as benchmark inputs and served by the DaemonStatusSimulator.
+ */
+public class SyntheticData {
+
+	private static final String[] PUBLISHERS = { "Brepols", "Peeters", "Presses universitaires de Louvain", "Academia Press",
+			"Editions de l'Universite de Bruxelles", "Leuven University Press", "De Boeck", "Larcier" };
+	private static final String[] CRAWL_RESULTS = { "Successful", "Successful", "Successful", "Fetch error", "No substance" };
+	private static final String[] POLL_RESULTS = { "Complete", "Complete", "Complete", "No quorum", "Error" };
+
+	private SyntheticData() {
+	}
+
+	/**
+	 * Builds a lockss.xml file with the peer list of a network among the title DB properties
+	 *
+	 * @param boxes number of boxes in the peer list
+	 * @param titles number of title DB entries before the peer list
+	 * @return the file content
+	 */
+	public static byte[] lockssXml(int boxes, int titles) {
+		List<String> boxAddresses = new ArrayList<String>(boxes);
+		for (int i = 0; i < boxes; i++) {
+			boxAddresses.add("10." + (i / 65536) + "." + ((i / 256) % 256) + "." + (i % 256));
+		}
+		return lockssXml(boxAddresses, titles);
+	}
+
+	/**
+	 * Builds a lockss.xml file with the given peer list among the title DB properties
+	 *
+	 * @param boxAddresses ip addresses of the boxes in the peer list
+	 * @param titles number of title DB entries before the peer list
+	 * @return the file content
+	 */
+	public static byte[] lockssXml(List<String> boxAddresses, int titles) {
+		int boxes = boxAddresses.size();
+		StringBuilder xml = new StringBuilder(titles * 600 + boxes * 40 + 1000);
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<lockss-config>\n");
+		xml.append("<property name=\"org.lockss\">\n");
+		xml.append(" <property name=\"title\">\n");
+		for (int i = 0; i < titles; i++) {
+			xml.append("  <property name=\"Title").append(i).append("\">\n")
+					.append("   <property name=\"attributes.publisher\" value=\"").append(PUBLISHERS[i % PUBLISHERS.length]).append("\"/>\n")
+					.append("   <property name=\"journalTitle\" value=\"Journal ").append(i / 20).append("\"/>\n")
+					.append("   <property name=\"plugin\" value=\"org.lockss.plugin.ojs2.OJS2Plugin\"/>\n")
+					.append("   <property name=\"param.1\"><property name=\"key\" value=\"base_url\"/>")
+					.append("<property name=\"value\" value=\"https://journal").append(i / 20).append(".example.org/\"/></property>\n")
+					.append("   <property name=\"param.2\"><property name=\"key\" value=\"year\"/>")
+					.append("<property name=\"value\" value=\"").append(1990 + i % 30).append("\"/></property>\n")
+					.append("  </property>\n");
+		}
+		xml.append(" </property>\n");
+		xml.append(" <property name=\"id\">\n  <property name=\"initialV3PeerList\">\n   <list>\n");
+		for (int i = 0; i < boxes; i++) {
+			xml.append("    <value>TCP:[").append(boxAddresses.get(i)).append("]:9729</value>\n");
+		}
+		xml.append("   </list>\n  </property>\n </property>\n");
+		xml.append("</property>\n</lockss-config>\n");
+		return xml.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Builds the AU list of a box
+	 *
+	 * @param count number of AUs
+	 * @param seed seed of the random values (same seed, same AUs)
+	 * @return the AUs
+	 */
+	public static List<AuWsResult> aus(int count, long seed) {
+		return aus(count, seed, 0);
+	}
+
+	/**
+	 * Builds the AU list of a box with larger AU names
+	 *
+	 * @param count number of AUs
+	 * @param seed seed of the random values (same seed, same AUs)
+	 * @param padding number of characters added to the name of each AU
+	 * @return the AUs
+	 */
+	public static List<AuWsResult> aus(int count, long seed, int padding) {
+		Random random = new Random(seed);
+		List<AuWsResult> aus = new ArrayList<AuWsResult>(count);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < count; i++) {
+			aus.add(au(i, random, now, padding));
+		}
+		return aus;
+	}
+
+	/**
+	 * Builds the AU of rank i of a box: same AU id for a given rank, status values drawn from random
+	 *
+	 * @param i rank of the AU in the box
+	 * @param random source of the status values
+	 * @param now time of the collection (ms)
+	 * @param padding number of characters added to the AU name
+	 * @return the AU
+	 */
+	public static AuWsResult au(int i, Random random, long now, int padding) {
+		AuWsResult au = new AuWsResult();
+		au.setAuId("org|lockss|plugin|ojs2|OJS2Plugin&base_url~https%3A%2F%2Fjournal" + (i / 20) + "%2Eexample%2Eorg%2F&year~" + (1990 + i % 30));
+		au.setName("Journal " + (i / 20) + " Volume " + (1990 + i % 30) + padding(padding));
+		au.setVolume(Integer.toString(1990 + i % 30));
+		au.setPluginName("org.lockss.plugin.ojs2.OJS2Plugin");
+		au.setTdbYear(Integer.toString(1990 + i % 30));
+		au.setAccessType("Subscription");
+		au.setContentSize((long) random.nextInt(1 << 30));
+		au.setDiskUsage((long) random.nextInt(1 << 30));
+		au.setRecentPollAgreement(random.nextInt(10) == 0 ? random.nextDouble() : 1.0);
+		au.setTdbPublisher(PUBLISHERS[(i / 20) % PUBLISHERS.length]);
+		au.setAvailableFromPublisher(random.nextBoolean());
+		au.setSubstanceState("Yes");
+		au.setCreationTime(now - random.nextInt(1 << 30) * 1000L);
+		au.setCrawlPool("org.lockss.plugin.ojs2.OJS2Plugin");
+		au.setLastCompletedCrawl(now - random.nextInt(1 << 28) * 1000L);
+		au.setLastCrawl(au.getLastCompletedCrawl());
+		au.setLastCrawlResult(CRAWL_RESULTS[random.nextInt(CRAWL_RESULTS.length)]);
+		au.setLastCompletedPoll(now - random.nextInt(1 << 28) * 1000L);
+		au.setLastPoll(au.getLastCompletedPoll());
+		au.setLastPollResult(POLL_RESULTS[random.nextInt(POLL_RESULTS.length)]);
+		au.setCurrentlyCrawling(Boolean.FALSE);
+		au.setCurrentlyPolling(Boolean.FALSE);
+		au.setSubscriptionStatus("Subscribed");
+		au.setRepositoryPath("/cache0/gamma/cache/" + Integer.toString(i, 26));
+		return au;
+	}
+
+	/**
+	 * Adds the agreements of peers on each AU (POR and POP agreement types), mostly full agreement
+	 *
+	 * @param aus the AUs
+	 * @param peers the peers having the AUs
+	 * @param seed seed of the random values
+	 * @return the AUs
+	 */
+	public static List<AuWsResult> peerAgreements(List<AuWsResult> aus, List<PeerWsResult> peers, long seed) {
+		Random random = new Random(seed);
+		long now = System.currentTimeMillis();
+		for (AuWsResult au : aus) {
+			List<PeerAgreementsWsResult> auAgreements = new ArrayList<PeerAgreementsWsResult>(peers.size());
+			for (PeerWsResult peer : peers) {
+				PeerAgreementsWsResult peerAgreements = new PeerAgreementsWsResult();
+				peerAgreements.setPeerId(peer.getPeerId());
+				List<AgreementTypeWsResult> agreements = new ArrayList<AgreementTypeWsResult>(2);
+				for (String type : new String[] { "POR", "POP" }) {
+					PeerAgreementWsResult peerAgreement = new PeerAgreementWsResult();
+					float percentAgreement = (random.nextInt(20) == 0) ? random.nextFloat() : 1.0f;
+					peerAgreement.setPercentAgreement(percentAgreement);
+					peerAgreement.setPercentAgreementTimestamp(now - random.nextInt(1 << 28) * 1000L);
+					peerAgreement.setHighestPercentAgreement(Math.max(percentAgreement, random.nextFloat()));
+					peerAgreement.setHighestPercentAgreementTimestamp(peerAgreement.getPercentAgreementTimestamp());
+					AgreementTypeWsResult agreement = new AgreementTypeWsResult();
+					agreement.setType(type);
+					agreement.setPeerAgreement(peerAgreement);
+					agreements.add(agreement);
+				}
+				peerAgreements.setAgreements(agreements);
+				auAgreements.add(peerAgreements);
+			}
+			au.setPeerAgreements(auAgreements);
+		}
+		return aus;
+	}
+
+	/**
+	 * Builds the peer list of a box
+	 *
+	 * @param count number of peers
+	 * @param seed seed of the random values
+	 * @return the peers
+	 */
+	public static List<PeerWsResult> peers(int count, long seed) {
+		Random random = new Random(seed);
+		List<PeerWsResult> peers = new ArrayList<PeerWsResult>(count);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < count; i++) {
+			PeerWsResult peer = new PeerWsResult();
+			peer.setPeerId("TCP:[10." + (i / 65536) + "." + ((i / 256) % 256) + "." + (i % 256) + "]:9729");
+			peer.setLastMessage(now - random.nextInt(86400) * 1000L);
+			peer.setMessageType("V3PollAck");
+			peer.setMessageCount((long) random.nextInt(100000));
+			peer.setLastPoll(now - random.nextInt(86400) * 1000L);
+			peer.setLastVote(now - random.nextInt(86400) * 1000L);
+			peer.setLastInvitation(now - random.nextInt(86400) * 1000L);
+			peer.setInvitationCount((long) random.nextInt(10000));
+			peer.setPollsCalled((long) random.nextInt(10000));
+			peer.setVotesCast((long) random.nextInt(10000));
+			peer.setPollsRejected((long) random.nextInt(100));
+			peers.add(peer);
+		}
+		return peers;
+	}
+
+	/**
+	 * Builds the repository space list of a box
+	 *
+	 * @param count number of repository spaces (disks)
+	 * @param auCount number of AUs of the box, spread over the disks
+	 * @param seed seed of the random values
+	 * @return the repository spaces
+	 */
+	public static List<RepositorySpaceWsResult> repositorySpaces(int count, int auCount, long seed) {
+		Random random = new Random(seed);
+		List<RepositorySpaceWsResult> repositorySpaces = new ArrayList<RepositorySpaceWsResult>(count);
+		for (int i = 0; i < count; i++) {
+			RepositorySpaceWsResult repositorySpace = new RepositorySpaceWsResult();
+			long size = (1L << 40) * (1 + random.nextInt(8));
+			long used = (long) (size * random.nextDouble());
+			repositorySpace.setRepositorySpaceId("/cache" + i);
+			repositorySpace.setSize(size);
+			repositorySpace.setUsed(used);
+			repositorySpace.setFree(size - used);
+			repositorySpace.setPercentageFull((double) used / size);
+			repositorySpace.setActiveCount(auCount / count);
+			repositorySpace.setInactiveCount(random.nextInt(10));
+			repositorySpace.setDeletedCount(random.nextInt(10));
+			repositorySpace.setOrphanedCount(0);
+			repositorySpaces.add(repositorySpace);
+		}
+		return repositorySpaces;
+	}
+
+	/**
+	 * Builds the platform configuration of a box
+	 *
+	 * @param ipAddress address of the box
+	 * @param hostName host name of the box
+	 * @param disks number of repository spaces of the box
+	 * @return the platform configuration
+	 */
+	public static PlatformConfigurationWsResult platformConfiguration(String ipAddress, String hostName, int disks) {
+		PlatformConfigurationWsResult platformConfiguration = new PlatformConfigurationWsResult();
+		long now = System.currentTimeMillis();
+		platformConfiguration.setHostName(hostName);
+		platformConfiguration.setIpAddress(ipAddress);
+		platformConfiguration.setV3Identity("TCP:[" + ipAddress + "]:9729");
+		platformConfiguration.setGroups(Collections.singletonList("prod"));
+		platformConfiguration.setUptime(86400000L);
+		platformConfiguration.setAdminEmail("admin@" + hostName);
+		List<String> diskList = new ArrayList<String>(disks);
+		for (int i = 0; i < disks; i++) {
+			diskList.add("/cache" + i);
+		}
+		platformConfiguration.setDisks(diskList);
+		platformConfiguration.setCurrentTime(now);
+
+		DaemonVersionWsResult daemonVersion = new DaemonVersionWsResult();
+		daemonVersion.setFullVersion("1.78.5");
+		daemonVersion.setMajorVersion(1);
+		daemonVersion.setMinorVersion(78);
+		daemonVersion.setBuildVersion(5);
+		platformConfiguration.setDaemonVersion(daemonVersion);
+
+		JavaVersionWsResult javaVersion = new JavaVersionWsResult();
+		javaVersion.setVersion("1.8.0_402");
+		javaVersion.setSpecificationVersion("1.8");
+		javaVersion.setRuntimeVersion("1.8.0_402-b06");
+		javaVersion.setRuntimeName("OpenJDK Runtime Environment");
+		platformConfiguration.setJavaVersion(javaVersion);
+
+		PlatformWsResult platform = new PlatformWsResult();
+		platform.setName("Linux RPM");
+		platform.setVersion("7");
+		platformConfiguration.setPlatform(platform);
+		return platformConfiguration;
+	}
+
+	private static String padding(int length) {
+		if (length <= 0) {
+			return "";
+		}
+		char[] padding = new char[length + 1];
+		Arrays.fill(padding, 'x');
+		padding[0] = ' ';
+		return new String(padding);
+	}
+
+}
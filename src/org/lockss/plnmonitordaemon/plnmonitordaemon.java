@@ -1,27 +1,19 @@
 package org.lockss.plnmonitordaemon;
 
-import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
-import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 //import org.lockss.plnmonitordaemon.DaemonStatusWebService;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
 import org.yaml.snakeyaml.Yaml;
 
 /**
@@ -35,6 +27,16 @@ import org.yaml.snakeyaml.Yaml;
  * 
  * /etc/cron.d/plnmonitor 
  *  30 8  *  *  * root java -jar /opt/plnmonitor-daemon.jar  
+ *
+ * Can also run as a resident process collecting each kind of status at its own interval (see CollectionDaemon):
+ *  java -jar /opt/plnmonitor-daemon.jar daemon
+ *
+ * or simulate a LOCKSS network locally for load tests (see DaemonStatusSimulator):
+ *  java -jar /opt/plnmonitor-daemon.jar simulate
+ *
+ * The Grafana dashboards are created by the interactive config mode and can be rebuilt at any time from the
+ * database, without contacting the boxes (see DashboardBuilder):
+ *  java -jar /opt/plnmonitor-daemon.jar buildfromdb
  */
 public class plnmonitordaemon {
 
@@ -77,11 +79,21 @@ public class plnmonitordaemon {
 
     /** Dashboard provisioning path */
 	private static String dashboardProvisioningPath =  "/opt/provisioning/dashboards/";
-	private static String boxProvisioningPath = dashboardProvisioningPath + "boxes/";
-	private static String tdbPublisherProvisioningPath =  dashboardProvisioningPath + "tdb_publishers/";
 		
 	/** configuration file path */
 	private static String configFilePath = "/opt/config/lockssdashboard_config.yml";
+
+	/** Max number of LOCKSS boxes collected at the same time (all PLNs together) */
+	private static int collectorMaxThreads = DaemonConfiguration.getInt("COLLECTOR_MAX_THREADS", 8);
+
+	/** Default max number of LOCKSS boxes of the same PLN collected at the same time (COLLECTOR_MAX_THREADS_PLN_<id> overrides it for a given PLN) */
+	private static int collectorMaxThreadsPerPln = DaemonConfiguration.getInt("COLLECTOR_MAX_THREADS_PER_PLN", 4);
+
+	/** Deadline for the collection of a single LOCKSS box (seconds) */
+	private static long collectorBoxTimeoutSeconds = DaemonConfiguration.getLong("COLLECTOR_BOX_TIMEOUT_SECONDS", 900);
+
+	/** Rebuild the dashboards from the database after each collection of the AUs (one-shot and daemon modes) */
+	private static boolean dashboardRebuildAfterCollection = DaemonConfiguration.getBoolean("DASHBOARD_REBUILD_AFTER_COLLECTION", false);
 	
 	/**
 	 * The main method.
@@ -96,32 +108,87 @@ public class plnmonitordaemon {
 
 		DaemonStatusWebService dsws = null;
 
-		// daemon mode (assuming configuration has been set earlier)
+		// one-shot mode (assuming configuration has been set earlier), started by cron
 		if ((args == null) || (args.length == 0)) {
 
 			LOGGER.info("Updating LOCKSS network status..." );
 			try {
 				dsws = new DaemonStatusWebService(dbConnectionURL, dbUser, dbPassword, dbDriver);
-				HashMap<Integer, String> propServerURLs = dsws.getPLNConfigurationFiles();
-				
-				for (Map.Entry<Integer, String> entry : propServerURLs.entrySet()) {
-					Integer plnID = entry.getKey();
-					String propServerURL = entry.getValue();
+				// schema brought up to date before anything else: stops here if the database can't be used
+				dsws.initializeDatabase();
+				CollectionDaemon collectionDaemon = new CollectionDaemon(dsws, collectorMaxThreads, collectorMaxThreadsPerPln, collectorBoxTimeoutSeconds * 1000L);
+				if (dashboardRebuildAfterCollection) {
+					collectionDaemon.setDashboardBuilder(newDashboardBuilder());
+				}
+				collectionDaemon.runCycle(EnumSet.allOf(BoxQueries.Query.class), true);
+			} catch (Exception e) {
+				LOGGER.error(e.getMessage());
+			} finally {
+				if (dsws != null) {
+					dsws.close();
+				}
+			}
+		}
 
-					LOGGER.info((char)27 + "[34mLoading lockss.xml configuration file from: " + propServerURL + (char)27 + "[39m");
-					List<String> boxIpAddresses = dsws.loadPLNConfiguration(plnID, "pln", propServerURL);
-					for (String boxIpAddress : boxIpAddresses) {
-						
-						LOGGER.info((char)27 + "[34mLoading configuration of: " + boxIpAddress);
-						dsws.loadDaemonStatus(plnID, boxIpAddress);
+		// daemon mode: resident process collecting each data class at its own interval (replaces the cron task)
+		else if (args[0].matches("daemon")) {
+
+			LOGGER.info("Starting plnmonitor daemon..." );
+			MetricsServer metricsServer = null;
+			try {
+				dsws = new DaemonStatusWebService(dbConnectionURL, dbUser, dbPassword, dbDriver);
+				// schema brought up to date before anything else: stops here if the database can't be used
+				dsws.initializeDatabase();
+				final CollectionDaemon collectionDaemon = new CollectionDaemon(dsws, collectorMaxThreads, collectorMaxThreadsPerPln, collectorBoxTimeoutSeconds * 1000L);
+				if (dashboardRebuildAfterCollection) {
+					collectionDaemon.setDashboardBuilder(newDashboardBuilder());
+				}
+
+				// Prometheus endpoint (METRICS_PORT, 0 to disable)
+				metricsServer = MetricsServer.startFromConfiguration();
+
+				// stop cleanly on SIGTERM / Ctrl-C: the current cycle is interrupted and the connections are closed
+				final Thread mainThread = Thread.currentThread();
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					@Override
+					public void run() {
+						collectionDaemon.stop();
+						try {
+							mainThread.join(30000);
+						} catch (InterruptedException e) {
+							LOGGER.error(e.getMessage());
+						}
 					}
+				});
+
+				collectionDaemon.run();
+			} catch (Exception e) {
+				LOGGER.error(e.getMessage());
+			} finally {
+				if (metricsServer != null) {
+					metricsServer.stop();
+				}
+				if (dsws != null) {
+					dsws.close();
 				}
+			}
+		}
+
+		// simulator mode: local fake LOCKSS network for load tests of the collector (see DaemonStatusSimulator)
+		else if (args[0].matches("simulate")) {
+			LOGGER.info("Starting LOCKSS network simulator..." );
+			DaemonStatusSimulator.run();
+		}
+
+		// recording of the status of a real box, replayed by the simulator (SIM_RECORDINGS_DIR)
+		else if (args[0].matches("record") && (args.length > 5)) {
+			try {
+				DaemonStatusSimulator.record(args[1], args[2], args[3], args[4], args[5]);
 			} catch (Exception e) {
 				LOGGER.error(e.getMessage());
 			}
 		}
 
-			
 		// config mode (setting daemon configuration)
 		else if (args[0].matches("config") )   {
 			
@@ -171,46 +238,18 @@ public class plnmonitordaemon {
 							
 			// As Pivot is not available in Postgres, we need to set the column names in the SQL query performed by the dashboard
 			// This is replacing the "PIVOTRAWSQLREQUEST" tag in the Grafana dashboard template
+			// The columns read the box elements of the AU x box matrix maintained by the daemon (see AuBoxMatrix)
 
-			// First part of the SQL query string
-			String pivotTableRequest = "select au_current.name, ";
-			String contentSizePivotTableRequest = "select au_current.name, ";
+			// Box ID of each box name, in column order
+			Map<String, Integer> matrixBoxIds = new LinkedHashMap<String, Integer>();
 
 			System.out.println((char)27 + "[34mSetting up PLN dashboard based on Grafana"  + (char)27 + "[39m");
 
-			Scanner sc;
-
 			try {
 
 				// TODO: this is a temporary solution to automate dashboard creation -> it will later be replaced by dashboard spec/Grafonnet
-				// Reading Grafana Dashboard template file and puting contents in the dahsboardTemplateContents variable
-				sc = new Scanner(new File(dashboardTemplatePath));
-				StringBuffer buffer = new StringBuffer();
-				while (sc.hasNextLine()) {
-					buffer.append(sc.nextLine()+System.lineSeparator());
-				}
-				String dahsboardTemplateContents = buffer.toString();
-
-				//clear buffer before reading another template file
-				buffer.setLength(0);
-				sc = new Scanner(new File(lockssBoxTemplatePath));
-
-				// Reading LOCKSS Box template file and putting contents in the dahsboardTemplateContents variable
-				while (sc.hasNextLine()) {
-					buffer.append(sc.nextLine()+System.lineSeparator());
-				}
-				String lockssBoxTemplateContents = buffer.toString();
-
-				//clear buffer before reading another template file
-				buffer.setLength(0);
-				sc = new Scanner(new File(tdbPublisherTemplatePath));
-
-				// Reading TDB Publisher template file and putting contents in the dahsboardTemplateContents variable
-				while (sc.hasNextLine()) {
-					buffer.append(sc.nextLine()+System.lineSeparator());
-				}
-				String tdbPublisherTemplateContents = buffer.toString();
-				sc.close();
+				// Reading and compiling the Grafana dashboard templates (network, LOCKSS box and TDB publisher)
+				DashboardBuilder dashboardBuilder = new DashboardBuilder(dashboardTemplatePath, lockssBoxTemplatePath, tdbPublisherTemplatePath, dashboardProvisioningPath);
 
 				Scanner userAnswer = new Scanner(System.in);
 				String currentAnswer;
@@ -258,6 +297,8 @@ public class plnmonitordaemon {
 				try {
 					dbConnectionURL = "jdbc:postgresql://" + dbIP + ":" + dbPort + "/" + dbName;
 					dsws = new DaemonStatusWebService(dbConnectionURL, dbUser, dbPassword, dbDriver);
+					// schema brought up to date before anything else: stops here if the database can't be used
+					dsws.initializeDatabase();
 					List<String> boxIpAddresses;
 					
 					if(configFromFile != null) {
@@ -282,13 +323,18 @@ public class plnmonitordaemon {
 
 					}
 
+					// most likely location of the boxes not located yet in the database, looked up all at once (see GeoLocationCache)
+					Map<String, GeoLocationProvider.Location> storedLocations = dsws.getBoxLocations(1);
+					List<String> unlocatedBoxes = new ArrayList<String>(boxIpAddresses);
+					unlocatedBoxes.removeAll(storedLocations.keySet());
+					System.out.println("Locating " + unlocatedBoxes.size() + " LOCKSS boxes...");
+					Map<String, GeoLocationProvider.Location> boxLocations = GeoLocationCache.fromConfiguration().prefetch(unlocatedBoxes);
+
 					for (String boxIpAddress : boxIpAddresses) {
 						System.out.println("\n\n" + (char)27 + "[36mSetting configuration of: " + boxIpAddress + (char)27 + "[39m");
 
 						System.out.println("Getting most likely lockss box location :");	
 
-						String geourl = "https://reallyfreegeoip.org/xml/"+ boxIpAddress;
-						
 						// default values
 						String boxname = "ULB";
 						String longitude = "4.383539";
@@ -296,33 +342,22 @@ public class plnmonitordaemon {
 						String country = "Belgium";
 						String city = "Brussels";
 						String boxUIPort = "8081";
-			
-						
-						DocumentBuilderFactory geofactory = DocumentBuilderFactory.newInstance();
-						geofactory.setNamespaceAware(true);
-						try{
-							URL connection = new URL(geourl);
-							URLConnection con = connection.openConnection();
-							con.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/537.11 (KHTML, like Gecko) Chrome/23.0.1271.95 Safari/537.11");
-							System.setProperty("http.agent", "Chrome");
-							DocumentBuilder db = geofactory.newDocumentBuilder();
-
-							Document doc = db.parse(con.getInputStream());
-							doc.getDocumentElement().normalize();
-							Element response = doc.getDocumentElement();
-
-							if (response.getNodeType() == Node.ELEMENT_NODE) {
-								country = response.getElementsByTagName("CountryName").item(0).getTextContent();
-								longitude = response.getElementsByTagName("Longitude").item(0).getTextContent();
-								latitude = response.getElementsByTagName("Latitude").item(0).getTextContent();
-								city = response.getElementsByTagName("City").item(0).getTextContent();
+
+						GeoLocationProvider.Location location = boxLocations.get(boxIpAddress);
+						if (location == null) {
+							location = storedLocations.get(boxIpAddress);
+						}
+						if (location != null) {
+							country = location.getCountry();
+							longitude = location.getLongitude();
+							latitude = location.getLatitude();
+							city = location.getCity();
+							if (!city.isEmpty()) {
 								boxname = city;
 							}
-
 						}
-						catch(Exception e){
-							System.out.println(e.toString());
-
+						else {
+							System.out.println("Location not found, using default values");
 						}
 
 						System.out.println(city + "," + country + " -- " + "long. : " + longitude + " - lat. : " + latitude);
@@ -432,69 +467,31 @@ public class plnmonitordaemon {
 						dsws.setBoxInfo(1, boxIpAddress, boxUIPort, username, password, latitude, longitude, country, boxname);
 						dsws.loadDaemonStatus(1, boxIpAddress);
 
-						pivotTableRequest =  pivotTableRequest + " MAX(CASE WHEN lockss_box_info.name = '" + boxname +"' THEN recent_poll_agreement END) AS \\\\\"" + boxname + "\\\\\" ,"; 
-						contentSizePivotTableRequest =  contentSizePivotTableRequest + " MAX(CASE WHEN lockss_box_info.name = '" + boxname +"' THEN content_size END) AS \\\\\"" + boxname + "\\\\\" ,"; 
+						Integer boxId = dsws.findBoxId(1, boxIpAddress);
+						if (boxId != null) {
+							matrixBoxIds.put(boxname, boxId);
+						}
+						else {
+							System.out.println((char)27 + "[31mError: " + boxname + " is not in the database, it won't be shown in the AU agreement and size tables"  + (char)27 + "[39m");
+						}
 
 						System.out.println("****************************************************************");
 
-						System.out.println("Creating dashboard for LOCKSS box " + boxname);
-						File dir = new File(boxProvisioningPath);
-
-						// create box directory if it does not exist
-						dir.mkdirs();
-
-						// replace LOCKSS_BOX_NAME -> boxname in Grafana LOCKSS Box template file
-						String lockssBoxContents = lockssBoxTemplateContents.replaceAll("LOCKSS_BOX_NAME", boxname);
-
-						FileWriter writer = new FileWriter(boxProvisioningPath + boxname.replaceAll("\\W+", "")  +".json");
-						writer.append(lockssBoxContents);
-						writer.flush();
-						writer.close();
-
 					}
 
-					pivotTableRequest = pivotTableRequest.substring(0, pivotTableRequest.length() - 2) + " from plnmonitor.au_current inner join plnmonitor.lockss_box_info on au_current.box=lockss_box_info.box GROUP BY 1 ORDER BY 1";
-					contentSizePivotTableRequest = contentSizePivotTableRequest.substring(0, contentSizePivotTableRequest.length() - 2) + " from plnmonitor.au_current inner join plnmonitor.lockss_box_info on au_current.box=lockss_box_info.box GROUP BY 1 ORDER BY 1";
-
-					System.out.println("Creating global network dashboard");
-					//Replacing the pivot request line with box info
-					dahsboardTemplateContents = dahsboardTemplateContents.replaceAll("AUAGREEMENTPIVOTRAWSQLREQUEST", pivotTableRequest);
-					dahsboardTemplateContents = dahsboardTemplateContents.replaceAll("AUSIZEPIVOTRAWSQLREQUEST", contentSizePivotTableRequest);
-					//instantiating the FileWriter class
-					FileWriter writer = new FileWriter(dashboardProvisioningPath + "dashboard.json");
-					writer.append(dahsboardTemplateContents);
-					writer.flush();
-					writer.close();
-
-					// Creation of one dashboard per TDB publisher
-					// LOCKSS_TDB_PUBLISHER_NAME
-					System.out.println("Creating TDB publisher dashboards");
-
-					File dir = new File(tdbPublisherProvisioningPath);
-
-					// create box directory if it does not exist
-					dir.mkdirs();
-
-
 					// Collect TDB publisher names from database
 
+					dsws.updatePublisherSummary();
+
 					System.out.println("Loading TDB publishers from database");
 					List<String> tdbPublishers = dsws.getTdbPublishers(1);
 
 					System.out.println("\n\n" + tdbPublishers.size() + " TDB Publishers available");
 
-					for (String tdbPublisher : tdbPublishers) {
-
-						// replace LOCKSS_BOX_NAME -> boxname in Grafana LOCKSS Box template file
-						if ((tdbPublisher != null) && (tdbPublisher.length()!=0)) {
-							System.out.println("Creating dashboard for TDB Publisher: " + tdbPublisher);
-							String tdbPublisherContents = tdbPublisherTemplateContents.replaceAll("LOCKSS_TDB_PUBLISHER_NAME", tdbPublisher).replaceAll("PIVOTRAWSQLREQUEST", pivotTableRequest.replace("GROUP BY 1 ORDER BY 1", "WHERE tdb_publisher = '" + tdbPublisher +"'  GROUP BY 1 ORDER BY 1") );
-
-							FileWriter dirWriter = new FileWriter(tdbPublisherProvisioningPath + tdbPublisher.replaceAll("\\W+", "")  +".json");
-							dirWriter.append(tdbPublisherContents);
-							dirWriter.flush();
-							dirWriter.close();
-						}
+					// network dashboard, one dashboard per LOCKSS box and one per TDB publisher
+					System.out.println("Creating dashboards in " + dashboardProvisioningPath);
+					if (!dashboardBuilder.build(1, matrixBoxIds, tdbPublishers)) {
+						System.out.println((char)27 + "[31mError: some dashboards couldn't be written (see log)"  + (char)27 + "[39m");
 					}
 
 
@@ -525,8 +522,8 @@ public class plnmonitordaemon {
 					System.out.println((char)27 + "[31mAn error occured during the configuration of your LOCKSS network."  + (char)27 + "[39m");
 					e.printStackTrace();
 				}
-			} catch (FileNotFoundException e1) {
-				System.out.println("Can't find dashboard_template.json file in the template directory");
+			} catch (IOException e1) {
+				System.out.println("Can't read the dashboard templates in the template directory");
 				e1.printStackTrace();
 			}
 		
@@ -534,18 +531,52 @@ public class plnmonitordaemon {
 			   
 		}
 		
+		// rebuild of the dashboards from the boxes and TDB publishers already in the database (non-interactive, no box queried)
 		else if ((args.length == 1) && (args[0].compareTo("buildfromdb")==0)) {	
-			
-			   
+
+			LOGGER.info("Rebuilding dashboards from the database..." );
+			try {
+				DashboardBuilder dashboardBuilder = newDashboardBuilder();
+				if (dashboardBuilder != null) {
+					dsws = new DaemonStatusWebService(dbConnectionURL, dbUser, dbPassword, dbDriver);
+					// schema brought up to date before anything else: stops here if the database can't be used
+					dsws.initializeDatabase();
+					dashboardBuilder.buildFromDatabase(dsws, 1);
+				}
+			} catch (Exception e) {
+				LOGGER.error(e.getMessage());
+			} finally {
+				if (dsws != null) {
+					dsws.close();
+				}
+			}
 		}
 		else {
-			System.out.println("Usage: \'java -jar plnmonitor-daemon config\' to configure or \\ \\'java -jar plnmonitor-daemon yamlconfig\\' to configure with yaml file  or \\'java -jar plnmonitordaemon\\' to run");
+			System.out.println("Usage: 'java -jar plnmonitor-daemon.jar config' to configure"
+					+ " or 'java -jar plnmonitor-daemon.jar yamlconfig' to configure with yaml file"
+					+ " or 'java -jar plnmonitor-daemon.jar' to run"
+					+ " or 'java -jar plnmonitor-daemon.jar daemon' to run continuously"
+					+ " or 'java -jar plnmonitor-daemon.jar buildfromdb' to rebuild the dashboards from the database"
+					+ " or 'java -jar plnmonitor-daemon.jar simulate' to simulate a LOCKSS network"
+					+ " or 'java -jar plnmonitor-daemon.jar record <ip> <port> <user> <password> <directory>' to record the status of a box");
 		}
 
 
 
 	}
 
-}
-
+	/**
+	 * Creates the builder of the dashboards from the templates
+	 *
+	 * @return the dashboard builder, null if the templates can't be read
+	 */
+	private static DashboardBuilder newDashboardBuilder() {
+		try {
+			return new DashboardBuilder(dashboardTemplatePath, lockssBoxTemplatePath, tdbPublisherTemplatePath, dashboardProvisioningPath);
+		} catch (IOException e) {
+			LOGGER.error("Can't read the dashboard templates: " + e.getMessage());
+			return null;
+		}
+	}
 
+}
@@ -0,0 +1,126 @@
+package org.lockss.plnmonitordaemon;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.lockss.ws.entities.AgreementTypeWsResult;
+import org.lockss.ws.entities.PeerAgreementWsResult;
+import org.lockss.ws.entities.PeerAgreementsWsResult;
+
+/**
+ * The Class AuAgreementsTest.
+ *
+ * Packing of the agreements of the peers of an AU: 2 bytes (big-endian) per peer and agreement type, peer major,
+ * in hundredths of a percent, 0xFFFF when missing. The bytes are also read by the au_peer_agreement view, so the
+ * layout is checked against the offsets computed by the view as well as against unpack.
+ */
+public class AuAgreementsTest {
+
+	private static final List<String> TYPES = Arrays.asList("POR", "POP", "SYMMETRIC_POR");
+
+	@Test
+	public void packsBoundaryValues() {
+		byte[] packed = AuAgreements.pack(Collections.singletonList(peer("peer0", "POR", 0f, "POP", 1f)), TYPES);
+
+		assertArrayEquals(new byte[] { 0x00, 0x00, 0x27, 0x10, (byte) 0xFF, (byte) 0xFF }, packed);
+		assertEquals(Float.valueOf(0f), AuAgreements.unpack(packed, 0, 0, TYPES.size()));
+		assertEquals(Float.valueOf(1f), AuAgreements.unpack(packed, 0, 1, TYPES.size()));
+		assertNull(AuAgreements.unpack(packed, 0, 2, TYPES.size()));
+	}
+
+	@Test
+	public void keepsHundredthsOfPercent() {
+		byte[] packed = AuAgreements.pack(Collections.singletonList(peer("peer0", "POR", 0.1234f, "POP", 0.99996f)), TYPES);
+
+		assertEquals(1234, viewValue(packed, 1, 1, TYPES.size()));
+		assertEquals(0.1234f, AuAgreements.unpack(packed, 0, 0, TYPES.size()), 0f);
+		// rounded, not truncated
+		assertEquals(10000, viewValue(packed, 1, 2, TYPES.size()));
+	}
+
+	@Test
+	public void clampsOutOfRangeValues() {
+		byte[] packed = AuAgreements.pack(Collections.singletonList(peer("peer0", "POR", -0.5f, "POP", 1.5f)), TYPES);
+
+		assertEquals(Float.valueOf(0f), AuAgreements.unpack(packed, 0, 0, TYPES.size()));
+		assertEquals(Float.valueOf(1f), AuAgreements.unpack(packed, 0, 1, TYPES.size()));
+	}
+
+	@Test
+	public void marksMissingAgreements() {
+		PeerAgreementsWsResult noAgreements = new PeerAgreementsWsResult();
+		noAgreements.setPeerId("peer0");
+
+		PeerAgreementsWsResult incomplete = peer("peer1", "POR", null, "UNKNOWN_TYPE", 0.5f);
+		AgreementTypeWsResult noPeerAgreement = new AgreementTypeWsResult();
+		noPeerAgreement.setType("POP");
+		incomplete.getAgreements().add(noPeerAgreement);
+
+		byte[] packed = AuAgreements.pack(Arrays.asList(noAgreements, incomplete), TYPES);
+
+		assertEquals(2 * TYPES.size() * 2, packed.length);
+		for (int p = 0; p < 2; p++) {
+			for (int t = 0; t < TYPES.size(); t++) {
+				assertNull(AuAgreements.unpack(packed, p, t, TYPES.size()));
+				assertEquals(0xFFFF, viewValue(packed, p + 1, t + 1, TYPES.size()));
+			}
+		}
+	}
+
+	@Test
+	public void ordersByPeerThenType() {
+		// agreements listed in another order than the types
+		List<PeerAgreementsWsResult> peers = new ArrayList<PeerAgreementsWsResult>();
+		peers.add(peer("peer0", "SYMMETRIC_POR", 0.03f, "POR", 0.01f, "POP", 0.02f));
+		peers.add(peer("peer1", "POP", 0.12f, "SYMMETRIC_POR", 0.13f, "POR", 0.11f));
+		peers.add(peer("peer2", "POR", 0.21f, "POP", 0.22f, "SYMMETRIC_POR", 0.23f));
+
+		byte[] packed = AuAgreements.pack(peers, TYPES);
+
+		assertEquals(peers.size() * TYPES.size() * 2, packed.length);
+		for (int p = 0; p < peers.size(); p++) {
+			for (int t = 0; t < TYPES.size(); t++) {
+				int expected = p * 1000 + (t + 1) * 100;
+				assertEquals(expected / 10000f, AuAgreements.unpack(packed, p, t, TYPES.size()), 0f);
+				// ordinality of unnest() starts at 1 in the view
+				assertEquals(expected, viewValue(packed, p + 1, t + 1, TYPES.size()));
+			}
+		}
+	}
+
+	/**
+	 * Reads a value like the au_peer_agreement view: get_byte(pos) * 256 + get_byte(pos + 1),
+	 * with pos = ((peer ordinality - 1) * array_length(types) + (type ordinality - 1)) * 2
+	 */
+	private static int viewValue(byte[] packed, int peerOrdinality, int typeOrdinality, int typeCount) {
+		int pos = ((peerOrdinality - 1) * typeCount + (typeOrdinality - 1)) * 2;
+		return (packed[pos] & 0xFF) * 256 + (packed[pos + 1] & 0xFF);
+	}
+
+	/**
+	 * Builds the agreements of a peer from (type, percent agreement) pairs
+	 */
+	private static PeerAgreementsWsResult peer(String peerId, Object... typesAndValues) {
+		List<AgreementTypeWsResult> agreements = new ArrayList<AgreementTypeWsResult>();
+		for (int i = 0; i < typesAndValues.length; i += 2) {
+			PeerAgreementWsResult peerAgreement = new PeerAgreementWsResult();
+			peerAgreement.setPercentAgreement((Float) typesAndValues[i + 1]);
+			AgreementTypeWsResult agreement = new AgreementTypeWsResult();
+			agreement.setType((String) typesAndValues[i]);
+			agreement.setPeerAgreement(peerAgreement);
+			agreements.add(agreement);
+		}
+		PeerAgreementsWsResult peer = new PeerAgreementsWsResult();
+		peer.setPeerId(peerId);
+		peer.setAgreements(agreements);
+		return peer;
+	}
+
+}
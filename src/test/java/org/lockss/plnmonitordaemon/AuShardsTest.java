@@ -0,0 +1,100 @@
+package org.lockss.plnmonitordaemon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+import org.lockss.ws.entities.AuWsResult;
+
+/**
+ * The Class AuShardsTest.
+ *
+ * Shards of the queryAus call of a box: every AU must be covered by exactly one where clause.
+ */
+public class AuShardsTest {
+
+	@Test
+	public void givesNullValuesAShardOfTheirOwn() {
+		List<AuWsResult> keys = new ArrayList<AuWsResult>();
+		addKeys(keys, "Publisher A", 5);
+		addKeys(keys, null, 2);
+
+		List<String> shards = new AuShards("tdbPublisher", 100).plan(keys);
+
+		assertEquals(Arrays.asList("tdbPublisher = 'Publisher A'", "tdbPublisher is null"), shards);
+	}
+
+	@Test
+	public void givesAnOversizedValueAShardOfItsOwn() {
+		List<AuWsResult> keys = new ArrayList<AuWsResult>();
+		addKeys(keys, "Small 1", 5);
+		addKeys(keys, "Big", 50);
+		addKeys(keys, "Small 2", 5);
+
+		List<String> shards = new AuShards("tdbPublisher", 30).plan(keys);
+
+		assertEquals(new HashSet<String>(Arrays.asList("tdbPublisher = 'Big'", "tdbPublisher = 'Small 1' or tdbPublisher = 'Small 2'")),
+				new HashSet<String>(shards));
+		assertEquals(2, shards.size());
+	}
+
+	@Test
+	public void doesNotSplitSmallBoxes() {
+		List<AuWsResult> keys = new ArrayList<AuWsResult>();
+		addKeys(keys, "Publisher A", 5);
+		addKeys(keys, "Publisher B", 5);
+
+		assertTrue(new AuShards("tdbPublisher", 100).plan(keys).isEmpty());
+	}
+
+	@Test
+	public void quotesValues() {
+		assertEquals("'Publisher A'", AuShards.literal("Publisher A"));
+		assertEquals("\"O'Reilly\"", AuShards.literal("O'Reilly"));
+		assertEquals("'The \"Review\"'", AuShards.literal("The \"Review\""));
+		assertNull(AuShards.literal("O'Reilly \"Review\""));
+	}
+
+	@Test
+	public void doesNotShardValuesWithBothQuotes() {
+		List<AuWsResult> keys = new ArrayList<AuWsResult>();
+		addKeys(keys, "Publisher A", 5);
+		addKeys(keys, "O'Reilly \"Review\"", 5);
+
+		// no clause could select these AUs: the box is queried in one call
+		assertTrue(new AuShards("tdbPublisher", 2).plan(keys).isEmpty());
+	}
+
+	@Test
+	public void shardsOnPluginName() {
+		List<AuWsResult> keys = new ArrayList<AuWsResult>();
+		for (String plugin : new String[] { "org.lockss.plugin.A", "org.lockss.plugin.B" }) {
+			for (int i = 0; i < 3; i++) {
+				AuWsResult au = new AuWsResult();
+				au.setPluginName(plugin);
+				keys.add(au);
+			}
+		}
+
+		AuShards auShards = new AuShards("pluginName", 3);
+
+		assertEquals("select pluginName", auShards.getKeyQuery());
+		assertEquals(new HashSet<String>(Arrays.asList("pluginName = 'org.lockss.plugin.A'", "pluginName = 'org.lockss.plugin.B'")),
+				new HashSet<String>(auShards.plan(keys)));
+	}
+
+	private static void addKeys(List<AuWsResult> keys, String tdbPublisher, int count) {
+		for (int i = 0; i < count; i++) {
+			AuWsResult au = new AuWsResult();
+			au.setTdbPublisher(tdbPublisher);
+			keys.add(au);
+		}
+	}
+
+}